@@ -0,0 +1,245 @@
+package com.speed.irc.connection;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.IRCEvent;
+import com.speed.irc.event.LagEvent;
+import com.speed.irc.types.RawMessage;
+import com.speed.irc.util.LatencyHistogram;
+import com.speed.irc.util.Numerics;
+
+/**
+ * Measures the lag of a server connection by sending it a timestamped PING
+ * at a regular interval and timing the PONG it answers with. The last
+ * {@value #SAMPLES} round trips are kept.
+ * <p/>
+ * A {@link LagEvent} is dispatched when the lag goes over the threshold and
+ * when it comes back under it. If a PING is not answered within the timeout
+ * the connection is treated as dead: it is reopened if the server reconnects
+ * automatically, or closed otherwise. While the connection is lagged the
+ * {@link OutboundQueue} releases a single line at a time.
+ * <p/>
+ * Probes start once the server has welcomed us, and start again after every
+ * reconnect.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class LagMonitor implements EventGenerator, Runnable {
+	public static final long DEFAULT_INTERVAL = 30000;
+	public static final long DEFAULT_THRESHOLD = 5000;
+	public static final long DEFAULT_TIMEOUT = 60000;
+	public static final int SAMPLES = 128;
+	private static final String TOKEN = "LAG";
+	private final Server server;
+	private final long[] samples = new long[SAMPLES];
+	private int count, next;
+	private volatile long interval = DEFAULT_INTERVAL,
+			threshold = DEFAULT_THRESHOLD, timeout = DEFAULT_TIMEOUT;
+	private volatile long sentAt, lastSent, roundTrip = -1;
+	private volatile boolean registered, lagged, enabled = true;
+
+	LagMonitor(final Server server) {
+		this.server = server;
+	}
+
+	void start(final ScheduledExecutorService executor) {
+		executor.scheduleWithFixedDelay(this, 1, 1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Forgets the outstanding probe and waits for the server to welcome us
+	 * again. Called when the connection is reopened.
+	 */
+	void reset() {
+		registered = false;
+		sentAt = 0;
+		lagged = false;
+	}
+
+	public void run() {
+		if (!enabled || !registered || !server.isConnected())
+			return;
+		final long now = System.nanoTime();
+		final long sent = sentAt;
+		if (sent != 0) {
+			final long waited = TimeUnit.NANOSECONDS.toMillis(now - sent);
+			if (waited >= timeout) {
+				sentAt = 0;
+				timedOut(waited);
+			} else if (!lagged && waited >= threshold) {
+				lagged = true;
+				server.getEventManager().dispatchEvent(
+						new LagEvent(LagEvent.LAGGED, waited, server, this));
+			}
+			return;
+		}
+		if (TimeUnit.NANOSECONDS.toMillis(now - lastSent) >= interval) {
+			sentAt = now;
+			lastSent = now;
+			server.command("PING").trailing(TOKEN)
+					.append(Long.toString(now)).send();
+		}
+	}
+
+	private void timedOut(final long waited) {
+		server.getEventManager().dispatchEvent(
+				new LagEvent(LagEvent.TIMED_OUT, waited, server, this));
+		reset();
+		if (server.autoConnect)
+			server.reconnect();
+		else
+			server.quit();
+	}
+
+	public boolean accept(final RawMessage message) {
+		final String command = message.getCommand();
+		return command.equals("PONG") || command.equals(Numerics.WELCOME);
+	}
+
+	public IRCEvent generate(final RawMessage message) {
+		if (message.getCommand().equals(Numerics.WELCOME)) {
+			registered = true;
+			return null;
+		}
+		final String raw = message.getRaw();
+		final int start = raw.lastIndexOf(TOKEN);
+		final long sent = sentAt;
+		if (start == -1
+				|| sent == 0
+				|| !raw.substring(start + TOKEN.length()).trim()
+						.equals(Long.toString(sent)))
+			return null;
+		final long time = System.nanoTime() - sent;
+		sentAt = 0;
+		roundTrip = time;
+		synchronized (samples) {
+			samples[next] = time;
+			next = (next + 1) % SAMPLES;
+			if (count < SAMPLES)
+				count++;
+		}
+		final long millis = TimeUnit.NANOSECONDS.toMillis(time);
+		if (millis >= threshold && !lagged) {
+			lagged = true;
+			return new LagEvent(LagEvent.LAGGED, millis, server, this);
+		} else if (millis < threshold && lagged) {
+			lagged = false;
+			return new LagEvent(LagEvent.RECOVERED, millis, server, this);
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the current lag: the last round trip, or the time the outstanding
+	 * PING has been waiting if that is longer.
+	 * 
+	 * @return the lag in milliseconds, or -1 if it has not been measured
+	 */
+	public long getLag() {
+		final long sent = sentAt;
+		final long rtt = roundTrip;
+		final long waiting = sent == 0 ? -1 : System.nanoTime() - sent;
+		final long lag = Math.max(rtt, waiting);
+		return lag < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(lag);
+	}
+
+	/**
+	 * Checks whether the lag is over the threshold.
+	 * 
+	 * @return <tt>true</tt> if the connection is lagged
+	 */
+	public boolean isLagged() {
+		return lagged;
+	}
+
+	/**
+	 * Gets the distribution of the last {@value #SAMPLES} round trips.
+	 * 
+	 * @return a snapshot of the round trip times, in nanoseconds
+	 */
+	public LatencyHistogram.Snapshot getRoundTrips() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		synchronized (samples) {
+			for (int i = 0; i < count; i++) {
+				histogram.record(samples[i]);
+			}
+		}
+		return histogram.getSnapshot();
+	}
+
+	/**
+	 * Turns probing on or off.
+	 * 
+	 * @param enabled
+	 *            <tt>false</tt> to stop sending PINGs
+	 */
+	public void setEnabled(final boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled)
+			sentAt = 0;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Sets how often the server is probed.
+	 * 
+	 * @param interval
+	 *            the time between PINGs in milliseconds
+	 */
+	public void setInterval(final long interval) {
+		this.interval = interval;
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Sets the lag above which the connection counts as lagged.
+	 * 
+	 * @param threshold
+	 *            the threshold in milliseconds
+	 */
+	public void setThreshold(final long threshold) {
+		this.threshold = threshold;
+	}
+
+	public long getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Sets how long to wait for a PONG before the connection is treated as
+	 * dead.
+	 * 
+	 * @param timeout
+	 *            the timeout in milliseconds
+	 */
+	public void setTimeout(final long timeout) {
+		this.timeout = timeout;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+}
@@ -0,0 +1,242 @@
+package com.speed.irc.connection;
+
+import com.speed.irc.jfr.LineWritten;
+
+/**
+ * Builds outbound lines in place without intermediate strings. Each thread
+ * has its own builder, obtained through {@link Server#command(String)}, which
+ * is reset every time a new command is started, so a builder must not be kept
+ * or shared once {@link #send()} has been called.
+ * <p/>
+ * CR, LF and NUL characters are dropped as they are appended and the line is
+ * cut off once it reaches {@link Server#MAX_LINE_LENGTH} bytes (including the
+ * trailing CR-LF) when encoded as UTF-8. A surrogate pair is never split.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public final class LineBuilder {
+	private static final int MAX_CONTENT = Server.MAX_LINE_LENGTH - 2;
+	/**
+	 * The maximum length of the message tags section of a line, including the
+	 * leading '@' and trailing space.
+	 */
+	public static final int MAX_TAGS_LENGTH = 4096;
+	private static final ThreadLocal<LineBuilder> BUILDERS = new ThreadLocal<LineBuilder>() {
+		protected LineBuilder initialValue() {
+			return new LineBuilder();
+		}
+	};
+	private final char[] buffer = new char[MAX_TAGS_LENGTH
+			+ Server.MAX_LINE_LENGTH];
+	private Server server;
+	private int length, bytes, limit;
+	private boolean truncated;
+
+	private LineBuilder() {
+	}
+
+	/**
+	 * Gets this thread's builder, reset and bound to the server.
+	 *
+	 * @param server
+	 *            the server the line will be sent to
+	 * @return the builder for the calling thread
+	 */
+	static LineBuilder get(final Server server) {
+		final LineBuilder builder = BUILDERS.get();
+		builder.server = server;
+		builder.length = 0;
+		builder.bytes = 0;
+		builder.truncated = false;
+		builder.limit = MAX_CONTENT;
+		return builder;
+	}
+
+	/**
+	 * Appends the message tags of the line. Must be called before anything
+	 * else is appended; the tags do not count towards the line length limit.
+	 *
+	 * @param tags
+	 *            the tags without the leading '@', e.g.
+	 *            <tt>batch=1;draft/multiline-concat</tt>
+	 * @return this builder
+	 */
+	LineBuilder tags(final CharSequence tags) {
+		limit = MAX_TAGS_LENGTH;
+		append('@').append(tags).append(' ');
+		limit = MAX_CONTENT + bytes;
+		return this;
+	}
+
+	/**
+	 * Appends a middle parameter, preceded by a space.
+	 *
+	 * @param param
+	 *            the parameter to append
+	 * @return this builder
+	 */
+	public LineBuilder param(final CharSequence param) {
+		return append(' ').append(param);
+	}
+
+	/**
+	 * Appends the trailing parameter, preceded by a space and a colon. Further
+	 * text can be added to the trailing parameter with
+	 * {@link #append(CharSequence)}.
+	 *
+	 * @param trailing
+	 *            the trailing parameter, can be empty
+	 * @return this builder
+	 */
+	public LineBuilder trailing(final CharSequence trailing) {
+		return append(' ').append(':').append(trailing);
+	}
+
+	/**
+	 * Appends text to the line as it is.
+	 *
+	 * @param s
+	 *            the text to append
+	 * @return this builder
+	 */
+	public LineBuilder append(final CharSequence s) {
+		for (int i = 0, n = s.length(); i < n && !truncated; i++) {
+			append(s.charAt(i));
+		}
+		return this;
+	}
+
+	/**
+	 * Appends part of some text to the line as it is.
+	 *
+	 * @param s
+	 *            the text to append
+	 * @param start
+	 *            the index of the first character to append
+	 * @param end
+	 *            the index after the last character to append
+	 * @return this builder
+	 */
+	public LineBuilder append(final CharSequence s, final int start,
+			final int end) {
+		for (int i = start; i < end && !truncated; i++) {
+			append(s.charAt(i));
+		}
+		return this;
+	}
+
+	/**
+	 * Appends a number to the line.
+	 *
+	 * @param i
+	 *            the number to append
+	 * @return this builder
+	 */
+	public LineBuilder append(int i) {
+		if (i < 0) {
+			append('-');
+			if (i == Integer.MIN_VALUE)
+				return append("2147483648");
+			i = -i;
+		}
+		int divisor = 1;
+		while (i / divisor >= 10) {
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10) {
+			append((char) ('0' + (i / divisor) % 10));
+		}
+		return this;
+	}
+
+	/**
+	 * Appends a character to the line. CR, LF and NUL are dropped.
+	 *
+	 * @param c
+	 *            the character to append
+	 * @return this builder
+	 */
+	public LineBuilder append(final char c) {
+		if (c == '\r' || c == '\n' || c == '\0' || truncated)
+			return this;
+		final int size;
+		if (c < 0x80)
+			size = 1;
+		else if (c < 0x800)
+			size = 2;
+		else if (Character.isHighSurrogate(c))
+			size = 4;
+		else if (Character.isLowSurrogate(c))
+			size = 0;
+		else
+			size = 3;
+		if (bytes + size > limit) {
+			truncated = true;
+			return this;
+		}
+		bytes += size;
+		buffer[length++] = c;
+		return this;
+	}
+
+	/**
+	 * Gets the number of bytes the line will take up when encoded as UTF-8,
+	 * excluding the trailing CR-LF.
+	 *
+	 * @return the encoded length of the line
+	 */
+	public int getByteLength() {
+		return bytes;
+	}
+
+	/**
+	 * Checks whether text has been cut off to fit the line length limit.
+	 *
+	 * @return <tt>true</tt> if the line was truncated
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Terminates the line with CR-LF and writes it to the server.
+	 */
+	public void send() {
+		send(LineWritten.DIRECT, 0);
+	}
+
+	/**
+	 * Terminates the line with CR-LF and writes it to the server.
+	 *
+	 * @param lane
+	 *            the lane the line was sent through, for flight recordings
+	 * @param queued
+	 *            the {@link System#nanoTime()} the line was queued at, or 0
+	 */
+	void send(final String lane, final long queued) {
+		buffer[length++] = '\r';
+		buffer[length++] = '\n';
+		server.write(buffer, length, lane, queued);
+		length -= 2;
+	}
+
+	@Override
+	public String toString() {
+		return new String(buffer, 0, length);
+	}
+}
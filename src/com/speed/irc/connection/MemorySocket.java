@@ -0,0 +1,94 @@
+package com.speed.irc.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * A socket which is not connected to anything: what is written to its feed
+ * can be read from its input stream, and what is written to its output
+ * stream is thrown away. Used to drive a {@link Server} without a network.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+class MemorySocket extends Socket {
+	private static final int BUFFER_SIZE = 1 << 16;
+	private final PipedInputStream in = new PipedInputStream(BUFFER_SIZE);
+	private final PipedOutputStream feed;
+	private final OutputStream out = new OutputStream() {
+		public void write(final int b) {
+		}
+
+		public void write(final byte[] b, final int off, final int len) {
+		}
+	};
+	private volatile boolean closed;
+
+	MemorySocket() throws IOException {
+		feed = new PipedOutputStream(in);
+	}
+
+	/**
+	 * Gets the stream whose bytes are read from this socket.
+	 * 
+	 * @return the feed
+	 */
+	OutputStream getFeed() {
+		return feed;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return InetAddress.getLoopbackAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return 0;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return !closed;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+		feed.close();
+	}
+}
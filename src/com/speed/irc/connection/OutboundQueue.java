@@ -0,0 +1,238 @@
+package com.speed.irc.connection;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.speed.irc.jfr.FloodThrottled;
+
+/**
+ * A rate-paced queue of outbound lines. Lines offered to this queue are not
+ * written immediately, they are released a few at a time by the server's
+ * sending thread so that low priority traffic (such as the MODE and WHO
+ * queries sent after joining channels) does not trip the server's flood
+ * protection.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class OutboundQueue {
+	/**
+	 * The default number of lines released each time the sending thread runs.
+	 */
+	public static final int DEFAULT_LINES_PER_TICK = 1;
+	private static final Runnable NOTHING = new Runnable() {
+		public void run() {
+		}
+	};
+	private final Server server;
+	private final Queue<Batch> batches = new ConcurrentLinkedQueue<Batch>();
+	private final Queue<FutureTask<Void>> written = new ConcurrentLinkedQueue<FutureTask<Void>>();
+	private final AtomicInteger size = new AtomicInteger();
+	private volatile int linesPerTick = DEFAULT_LINES_PER_TICK;
+	private volatile boolean closed;
+
+	public OutboundQueue(final Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Adds a line to the end of the queue.
+	 *
+	 * @param line
+	 *            the raw line to send once the pacing allows it
+	 */
+	public void offer(final String line) {
+		submit(Collections.singletonList(line));
+	}
+
+	/**
+	 * Adds a batch of lines to the queue. Lines of different batches are
+	 * released in turn, so a large batch does not hold back lines queued
+	 * after it.
+	 *
+	 * @param lines
+	 *            the raw lines to send, in order
+	 * @return a future which completes once the last line of the batch has
+	 *         been written and flushed to the server
+	 */
+	public Future<Void> submit(final List<String> lines) {
+		return submit(lines, null);
+	}
+
+	/**
+	 * Adds a batch of lines with trailing parameters to the queue. The
+	 * trailing parameters are kept apart from the lines and appended as each
+	 * line is written, so a long parameter shared by many lines is only held
+	 * once.
+	 *
+	 * @param lines
+	 *            the raw lines to send, in order, without their trailing
+	 *            parameters
+	 * @param trailings
+	 *            the trailing parameter of each line, or <tt>null</tt> for
+	 *            a line without one; can be <tt>null</tt> if no line has one
+	 * @return a future which completes once the last line of the batch has
+	 *         been written and flushed to the server, or is cancelled if the
+	 *         connection is closed first
+	 */
+	public Future<Void> submit(final List<String> lines,
+			final List<String> trailings) {
+		final FutureTask<Void> future = new FutureTask<Void>(NOTHING, null);
+		if (closed) {
+			future.cancel(false);
+			return future;
+		}
+		if (lines.isEmpty()) {
+			future.run();
+			return future;
+		}
+		size.addAndGet(lines.size());
+		batches.add(new Batch(lines.toArray(new String[lines.size()]),
+				trailings == null ? null : trailings
+						.toArray(new String[trailings.size()]), future));
+		if (closed)
+			clear();
+		return future;
+	}
+
+	/**
+	 * Gets the number of lines waiting to be sent.
+	 *
+	 * @return the number of queued lines
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Discards all queued lines. The futures of discarded batches are
+	 * cancelled.
+	 */
+	public void clear() {
+		Batch batch;
+		while ((batch = batches.poll()) != null) {
+			size.addAndGet(batch.index - batch.lines.length);
+			server.getMetrics().linesDropped.add(
+					batch.lines.length - batch.index);
+			batch.future.cancel(false);
+		}
+	}
+
+	/**
+	 * Discards all queued lines and stops accepting new ones, for when the
+	 * connection is shut down. The futures of discarded batches, and of
+	 * batches written but not yet flushed, are cancelled, so nothing waiting
+	 * on them is left blocked; their {@link Future#get()} throws a
+	 * {@link CancellationException}.
+	 */
+	public void close() {
+		closed = true;
+		clear();
+		cancelWritten();
+	}
+
+	private void cancelWritten() {
+		FutureTask<Void> future;
+		while ((future = written.poll()) != null) {
+			future.cancel(false);
+		}
+	}
+
+	/**
+	 * Sets how many queued lines are released each time the sending thread
+	 * runs.
+	 *
+	 * @param lines
+	 *            the number of lines per tick, must be at least 1
+	 */
+	public void setLinesPerTick(final int lines) {
+		if (lines < 1)
+			throw new IllegalArgumentException("lines must be at least 1");
+		linesPerTick = lines;
+	}
+
+	/**
+	 * Gets how many queued lines are released each time the sending thread
+	 * runs.
+	 *
+	 * @return the number of lines per tick
+	 */
+	public int getLinesPerTick() {
+		return linesPerTick;
+	}
+
+	/**
+	 * Releases up to {@link #getLinesPerTick()} lines to the server writer,
+	 * or one while the connection is lagged (see
+	 * {@link LagMonitor#isLagged()}), taking one line from each queued batch
+	 * in turn. Called by the server's
+	 * sending thread before it flushes.
+	 */
+	protected void release() {
+		final int lines = server.getLagMonitor().isLagged() ? 1
+				: linesPerTick;
+		for (int i = 0; i < lines; i++) {
+			final Batch batch = batches.poll();
+			if (batch == null)
+				return;
+			final int index = batch.index++;
+			server.sendPaced(batch.lines[index],
+					batch.trailings == null ? null : batch.trailings[index],
+					batch.queued);
+			size.decrementAndGet();
+			if (batch.index < batch.lines.length)
+				batches.add(batch);
+			else
+				written.add(batch.future);
+		}
+		if (closed)
+			cancelWritten();
+		if (!batches.isEmpty())
+			FloodThrottled.record(lines, size.get());
+	}
+
+	/**
+	 * Completes the futures of batches whose last line was released. Called
+	 * by the server's sending thread after it flushes.
+	 */
+	protected void flushed() {
+		FutureTask<Void> future;
+		while ((future = written.poll()) != null) {
+			future.run();
+		}
+	}
+
+	private static class Batch {
+		private final String[] lines, trailings;
+		private final FutureTask<Void> future;
+		private final long queued = System.nanoTime();
+		private int index;
+
+		private Batch(final String[] lines, final String[] trailings,
+				final FutureTask<Void> future) {
+			this.lines = lines;
+			this.trailings = trailings;
+			this.future = future;
+		}
+	}
+}
@@ -8,25 +8,42 @@ import java.io.OutputStreamWriter;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.speed.irc.event.ApiEvent;
 import com.speed.irc.event.EventManager;
+import com.speed.irc.jfr.LineWritten;
+import com.speed.irc.jfr.Reconnected;
 import com.speed.irc.types.CTCPReply;
 import com.speed.irc.types.Channel;
+import com.speed.irc.types.Conversable;
 import com.speed.irc.types.Notice;
 import com.speed.irc.types.ServerUser;
+import com.speed.irc.util.CaseMapping;
+import com.speed.irc.util.Interner;
+import com.speed.irc.util.MessageSplitter;
+import com.speed.irc.util.ScrollbackArena;
 
 /**
  * A class representing a socket connection to an IRC server with the
@@ -54,8 +71,10 @@ public class Server implements Runnable {
 	private volatile BufferedReader read;
 	protected volatile Socket socket;
 	protected EventManager eventManager = new EventManager();
-	protected Map<String, Channel> channels = new HashMap<String, Channel>();
-	private List<ServerUser> users;
+	protected Map<String, Channel> channels = new ConcurrentHashMap<String, Channel>();
+	private final Map<String, ServerUser> users = new ConcurrentHashMap<String, ServerUser>();
+	private volatile CaseMapping caseMapping = CaseMapping.RFC1459;
+	private final Interner interner = new Interner(USER_INTERNER_SIZE);
 	private char[] modeSymbols;
 	private char[] modeLetters;
 	private String serverName;
@@ -66,6 +85,41 @@ public class Server implements Runnable {
 	private int port;
 	private ScheduledThreadPoolExecutor chanExec;
 	private ScheduledExecutorService serverExecutor, eventExecutor;
+	private final OutboundQueue outboundQueue = new OutboundQueue(this);
+	private final ServerMetrics metrics = new ServerMetrics(this);
+	private final LagMonitor lagMonitor = new LagMonitor(this);
+	private volatile TrafficRecorder recorder;
+	private volatile ScrollbackArena scrollback = new ScrollbackArena();
+	private final Map<String, String> support = new ConcurrentHashMap<String, String>();
+	private final Map<String, String> capabilities = new ConcurrentHashMap<String, String>();
+	private final Set<String> enabledCapabilities = new CopyOnWriteArraySet<String>();
+	private final Set<String> wantedCapabilities = new CopyOnWriteArraySet<String>();
+	private volatile boolean negotiating;
+	private final AtomicInteger batchIds = new AtomicInteger();
+	private volatile String userName, hostName;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Logger LOGGER = Logger.getLogger(Server.class
+			.getName());
+	private final Map<Channel, String> pendingJoins = new LinkedHashMap<Channel, String>();
+	private boolean registered;
+	/**
+	 * The maximum length of a line sent to the server, including the trailing
+	 * CR-LF.
+	 */
+	public static final int MAX_LINE_LENGTH = 512;
+	/**
+	 * The delay between the initial WHO requests of channels joined in bulk.
+	 */
+	public static final int WHO_STAGGER = 2000;
+	/**
+	 * The longest time over which the initial WHO requests of channels joined
+	 * in bulk are spread, which is the period of the later WHO requests.
+	 */
+	public static final int WHO_SPREAD = 120000;
+	/**
+	 * The number of distinct hosts and user names deduplicated at once.
+	 */
+	public static final int USER_INTERNER_SIZE = 8192;
 
 	/**
 	 * Initialises a server object. Only blocking IO is supported.
@@ -79,8 +133,9 @@ public class Server implements Runnable {
 		port = sock.getPort();
 		setServerName(socket.getInetAddress().getHostAddress());
 		write = new BufferedWriter(new OutputStreamWriter(
-				sock.getOutputStream()));
-		read = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+				metrics.count(sock.getOutputStream()), UTF_8));
+		read = new BufferedReader(new InputStreamReader(
+				metrics.count(sock.getInputStream())));
 		chanExec = new ScheduledThreadPoolExecutor(10);
 		serverExecutor = Executors.newSingleThreadScheduledExecutor();
 		eventExecutor = Executors.newSingleThreadScheduledExecutor();
@@ -89,10 +144,11 @@ public class Server implements Runnable {
 		eventExecutor.scheduleWithFixedDelay(eventManager, 1000, 100,
 				TimeUnit.MILLISECONDS);
 		parser = new ServerMessageParser(this);
-		users = new ArrayList<ServerUser>();
+		lagMonitor.start(serverExecutor);
 		ctcpReplies.add(ServerMessageParser.CTCP_REPLY_VERSION);
 		ctcpReplies.add(ServerMessageParser.CTCP_REPLY_TIME);
 		ctcpReplies.add(ServerMessageParser.CTCP_REPLY_PING);
+		metrics.register();
 	}
 
 	/**
@@ -125,10 +181,10 @@ public class Server implements Runnable {
 		parser.reader.running = false;
 		try {
 			if (!socket.isClosed()) {
-				getWriter()
-						.write("QUIT"
-								+ (message == null || message.trim().isEmpty() ? "\n"
-										: (" :Quit :" + message + "\n")));
+				if (message == null || message.trim().isEmpty())
+					command("QUIT").send();
+				else
+					command("QUIT").trailing("Quit :").append(message).send();
 				getWriter().flush();
 				socket.close();
 			}
@@ -149,10 +205,12 @@ public class Server implements Runnable {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		outboundQueue.close();
 		eventExecutor.shutdownNow();
 		parser.execServ.shutdownNow();
 		chanExec.shutdownNow();
 		serverExecutor.shutdownNow();
+		metrics.unregister();
 	}
 
 	/**
@@ -177,12 +235,20 @@ public class Server implements Runnable {
 	}
 
 	protected final void connect() {
+		final Reconnected reconnected = new Reconnected();
+		reconnected.begin();
+		boolean succeeded = false;
 		try {
+			setRegistered(false);
+			capabilities.clear();
+			enabledCapabilities.clear();
 			socket = new Socket(serverName, port);
+			succeeded = true;
+			metrics.reconnects.increment();
 			write = new BufferedWriter(new OutputStreamWriter(
-					socket.getOutputStream()));
+					metrics.count(socket.getOutputStream()), UTF_8));
 			read = new BufferedReader(new InputStreamReader(
-					socket.getInputStream()));
+					metrics.count(socket.getInputStream())));
 			Logger logger = null;
 			boolean log = false;
 			if (parser.reader.logging) {
@@ -197,6 +263,8 @@ public class Server implements Runnable {
 			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			reconnected.record(serverName, port, succeeded);
 		}
 	}
 
@@ -204,6 +272,71 @@ public class Server implements Runnable {
 		return parser;
 	}
 
+	/**
+	 * Drops the connection and opens a new one, for when the connection has
+	 * stopped responding.
+	 */
+	void reconnect() {
+		parser.reader.running = false;
+		parser.execServ.shutdownNow();
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		connect();
+		eventManager.dispatchEvent(new ApiEvent(ApiEvent.SERVER_DISCONNECTED,
+				this, this));
+	}
+
+	/**
+	 * Records every line read from the server, or stops recording.
+	 * 
+	 * @param recorder
+	 *            the recorder, or <tt>null</tt> to stop recording
+	 */
+	public void setTrafficRecorder(final TrafficRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Gets the recorder lines read from the server are recorded to.
+	 * 
+	 * @return the recorder, or <tt>null</tt> if traffic is not recorded
+	 */
+	public TrafficRecorder getTrafficRecorder() {
+		return recorder;
+	}
+
+	/**
+	 * Sets the arena channels keep their recent messages in, or turns the
+	 * history off. Channels which already have a scrollback keep it.
+	 * 
+	 * @param arena
+	 *            the arena, or <tt>null</tt> to keep no history
+	 */
+	public void setScrollbackArena(final ScrollbackArena arena) {
+		this.scrollback = arena;
+	}
+
+	/**
+	 * Gets the arena channels keep their recent messages in.
+	 * 
+	 * @return the arena, or <tt>null</tt> if no history is kept
+	 */
+	public ScrollbackArena getScrollbackArena() {
+		return scrollback;
+	}
+
+	/**
+	 * Gets the monitor measuring the lag of this connection.
+	 * 
+	 * @return the lag monitor
+	 */
+	public LagMonitor getLagMonitor() {
+		return lagMonitor;
+	}
+
 	/**
 	 * Sets whether the api should auto reconnect if the connection is broken.
 	 * Default is <i>off</i>.
@@ -310,24 +443,280 @@ public class Server implements Runnable {
 	}
 
 	/**
-	 * Sends a raw command to the server.
+	 * Sends a raw command to the server. Any CR or LF characters in the
+	 * command are removed and the line is terminated with CR-LF.
 	 * 
 	 * @param raw
 	 *            The raw command to be added to the sending queue.
 	 */
 	public void sendRaw(String raw) {
+		trackNick(raw);
+		LineBuilder.get(this).append(raw).send();
+	}
+
+	/**
+	 * Sends a line released from the outbound queue.
+	 * 
+	 * @param raw
+	 *            the raw line
+	 * @param trailing
+	 *            the trailing parameter to append, or <tt>null</tt>
+	 * @param queued
+	 *            the {@link System#nanoTime()} the line was queued at
+	 */
+	void sendPaced(final String raw, final String trailing, final long queued) {
+		trackNick(raw);
+		final LineBuilder builder = LineBuilder.get(this).append(raw);
+		if (trailing != null)
+			builder.trailing(trailing);
+		builder.send(LineWritten.PACED, queued);
+	}
+
+	private void trackNick(final String raw) {
 		if (raw.startsWith("NICK")) {
 			nick = raw.replace("NICK", "").replace(":", "").trim();
 		}
-		if ((raw.contains("\n") || raw.contains("\r")) && !raw.endsWith("\r\n"))
-			raw = raw.replace("\n", "").replace("\r", "");
-		if (!raw.endsWith("\r\n"))
-			raw += "\r\n";
+	}
+
+	/**
+	 * Starts building a line to send to the server. The returned builder
+	 * belongs to the calling thread and is reused for its next line, so it
+	 * should be sent straight away, e.g.
+	 * <code>server.command("PRIVMSG").param(nick).trailing(text).send()</code>
+	 * .
+	 * 
+	 * @param command
+	 *            the command, e.g. <tt>PRIVMSG</tt>
+	 * @return the line builder of the calling thread
+	 */
+	public LineBuilder command(final String command) {
+		return LineBuilder.get(this).append(command);
+	}
+
+	/**
+	 * Starts building a line with message tags to send to the server. The
+	 * tags do not count towards the line length limit.
+	 * 
+	 * @param tags
+	 *            the tags without the leading '@'
+	 * @param command
+	 *            the command, e.g. <tt>PRIVMSG</tt>
+	 * @return the line builder of the calling thread
+	 * @see #command(String)
+	 */
+	public LineBuilder command(final String tags, final String command) {
+		return LineBuilder.get(this).tags(tags).append(command);
+	}
+
+	/**
+	 * Sends a PRIVMSG or NOTICE, splitting the text over as many lines as
+	 * needed for it to reach the target in full. The number of bytes available
+	 * on each line is worked out from our hostmask as the server will relay it
+	 * and the target. If the <tt>draft/multiline</tt> capability has been
+	 * enabled the lines are sent in a single multiline batch.
+	 * 
+	 * @param command
+	 *            <tt>PRIVMSG</tt> or <tt>NOTICE</tt>
+	 * @param target
+	 *            the channel or nick to send the text to
+	 * @param text
+	 *            the text to send, line feeds start a new line
+	 * @see MessageSplitter
+	 */
+	public void sendText(final String command, final String target,
+			final String text) {
+		final int budget = MAX_LINE_LENGTH - 2
+				- relayPrefixLength(command, target);
+		if (text.length() * 3 <= budget && text.indexOf('\n') == -1
+				&& text.indexOf('\r') == -1) {
+			command(command).param(target).trailing(text).send();
+			return;
+		}
+		final boolean multiline = isCapabilityEnabled("draft/multiline");
+		final List<String> pieces = new ArrayList<String>();
+		final BitSet continued = multiline ? new BitSet() : null;
+		MessageSplitter.split(text, Math.max(budget, MessageSplitter.MIN_BYTES),
+				multiline, pieces, continued);
+		if (multiline && pieces.size() > 1 && fitsMultiline(pieces)) {
+			final String id = Integer.toString(batchIds.incrementAndGet(),
+					Character.MAX_RADIX);
+			command("BATCH").param("+" + id).param("draft/multiline")
+					.param(target).send();
+			final String batch = "batch=" + id;
+			final String concat = batch + ";draft/multiline-concat";
+			for (int i = 0; i < pieces.size(); i++) {
+				command(continued.get(i) ? concat : batch, command)
+						.param(target).trailing(pieces.get(i)).send();
+			}
+			command("BATCH").param("-" + id).send();
+			return;
+		}
+		for (String piece : pieces) {
+			command(command).param(target).trailing(piece).send();
+		}
+	}
+
+	private boolean fitsMultiline(final List<String> pieces) {
+		final String value = getCapability("draft/multiline");
+		int maxBytes = Integer.MAX_VALUE, maxLines = Integer.MAX_VALUE;
+		if (value != null) {
+			for (String entry : value.split(",")) {
+				if (entry.startsWith("max-bytes="))
+					maxBytes = parseLimit(entry.substring(10), maxBytes);
+				else if (entry.startsWith("max-lines="))
+					maxLines = parseLimit(entry.substring(10), maxLines);
+			}
+		}
+		if (pieces.size() > maxLines)
+			return false;
+		int bytes = 0;
+		for (String piece : pieces) {
+			bytes += MessageSplitter.utf8Length(piece);
+		}
+		return bytes <= maxBytes;
+	}
+
+	/**
+	 * Works out the length of the prefix the server adds when relaying a
+	 * message from us, e.g. <tt>:nick!user@host PRIVMSG #channel :</tt>.
+	 * Parts of our hostmask which are not known yet are assumed to be as long
+	 * as the server allows.
+	 */
+	private int relayPrefixLength(final String command, final String target) {
+		int length = 1 + 1 + 1 + 1 + command.length() + 1
+				+ MessageSplitter.utf8Length(target) + 2;
+		length += nick != null ? MessageSplitter.utf8Length(nick)
+				: supportLength("NICKLEN", 30);
+		length += userName != null ? MessageSplitter.utf8Length(userName)
+				: supportLength("USERLEN", 10) + 1;
+		length += hostName != null ? MessageSplitter.utf8Length(hostName)
+				: supportLength("HOSTLEN", 63);
+		return length;
+	}
+
+	private int supportLength(final String token, final int def) {
+		final String value = getSupport(token);
+		return value == null ? def : parseLimit(value, def);
+	}
+
+	/**
+	 * Gets our own <tt>user@host</tt> as seen by the server, if it is known.
+	 * 
+	 * @return our <tt>user@host</tt> or <tt>null</tt> if it is not known yet
+	 */
+	public String getUserHost() {
+		return userName == null || hostName == null ? null : userName + '@'
+				+ hostName;
+	}
+
+	protected void setUserHost(final String user, final String host) {
+		if (user != null)
+			userName = user;
+		if (host != null)
+			hostName = host;
+	}
+
+	/**
+	 * Starts capability negotiation; must be sent before NICK and USER. Once
+	 * the server has listed its capabilities, those of the given ones it
+	 * offers are requested and negotiation is ended, which lets registration
+	 * go on. A server without capability negotiation ignores the CAP command
+	 * and registers straight away.
+	 * 
+	 * @param capabilities
+	 *            the names of the capabilities to enable, e.g.
+	 *            <tt>draft/multiline</tt>
+	 */
+	public void requestCapabilities(final String... capabilities) {
+		wantedCapabilities.addAll(Arrays.asList(capabilities));
+		negotiating = true;
+		command("CAP").param("LS").param("302").send();
+	}
+
+	/**
+	 * Requests the wanted capabilities once the server has finished listing
+	 * its capabilities.
+	 */
+	void capabilitiesListed() {
+		if (!negotiating)
+			return;
+		final StringBuilder request = new StringBuilder();
+		for (String capability : wantedCapabilities) {
+			if (capabilities.containsKey(capability)) {
+				if (request.length() > 0)
+					request.append(' ');
+				request.append(capability);
+			}
+		}
+		if (request.length() == 0)
+			capabilitiesAcknowledged();
+		else
+			command("CAP").param("REQ").trailing(request).send();
+	}
+
+	/**
+	 * Ends negotiation once the server has accepted or refused the request.
+	 */
+	void capabilitiesAcknowledged() {
+		if (!negotiating)
+			return;
+		negotiating = false;
+		command("CAP").param("END").send();
+	}
+
+	/**
+	 * Gets the value of a capability the server offered in its CAP LS or CAP
+	 * NEW replies.
+	 * 
+	 * @param capability
+	 *            the name of the capability
+	 * @return the value of the capability, <tt>""</tt> if it has no value or
+	 *         <tt>null</tt> if the server does not offer it
+	 */
+	public String getCapability(final String capability) {
+		return capabilities.get(capability);
+	}
+
+	/**
+	 * Checks whether a capability has been acknowledged by the server with CAP
+	 * ACK.
+	 * 
+	 * @param capability
+	 *            the name of the capability
+	 * @return <tt>true</tt> if the capability is enabled
+	 */
+	public boolean isCapabilityEnabled(final String capability) {
+		return enabledCapabilities.contains(capability);
+	}
+
+	protected void setCapability(final String capability, final String value) {
+		if (value == null) {
+			capabilities.remove(capability);
+			enabledCapabilities.remove(capability);
+		} else {
+			capabilities.put(capability, value);
+		}
+	}
+
+	protected void setCapabilityEnabled(final String capability,
+			final boolean enabled) {
+		if (enabled)
+			enabledCapabilities.add(capability);
+		else
+			enabledCapabilities.remove(capability);
+	}
+
+	void write(final char[] line, final int length, final String lane,
+			final long queued) {
+		final LineWritten written = new LineWritten();
+		written.begin();
 		try {
-			write.write(raw);
+			write.write(line, 0, length);
+			metrics.linesOut.increment();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		written.record(lane, line, length, queued);
 	}
 
 	/**
@@ -387,6 +776,182 @@ public class Server implements Runnable {
 		return !socket.isClosed();
 	}
 
+	/**
+	 * Gets the rate-paced queue used for low priority outbound lines.
+	 * 
+	 * @return the paced outbound queue
+	 */
+	public OutboundQueue getOutboundQueue() {
+		return outboundQueue;
+	}
+
+	/**
+	 * Gets the counters of this server, which are registered with the
+	 * platform MBean server.
+	 * 
+	 * @return the metrics
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Gets the port connected to.
+	 * 
+	 * @return the server's port
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Gets the number of users known.
+	 * 
+	 * @return the number of users
+	 */
+	public int getUserCount() {
+		return users.size();
+	}
+
+	/**
+	 * Gets the value of a token advertised by the server in its ISUPPORT
+	 * (005) replies.
+	 * 
+	 * @param token
+	 *            the name of the token, e.g. <tt>CHANLIMIT</tt>
+	 * @return the value of the token, <tt>""</tt> if the token has no value
+	 *         or <tt>null</tt> if the server did not advertise it
+	 */
+	public String getSupport(final String token) {
+		return support.get(token.toUpperCase());
+	}
+
+	protected void setSupport(final String token, final String value) {
+		if (value == null)
+			support.remove(token.toUpperCase());
+		else
+			support.put(token.toUpperCase(), value);
+		if (token.equalsIgnoreCase("CASEMAPPING"))
+			setCaseMapping(CaseMapping.forName(value));
+		if (value != null && token.equalsIgnoreCase("PREFIX")
+				&& value.startsWith("(")) {
+			final int close = value.indexOf(')');
+			if (close != -1) {
+				final String letters = value.substring(1, close);
+				final String symbols = value.substring(close + 1);
+				if (letters.length() == symbols.length()) {
+					setModeLetters(letters.toCharArray());
+					setModeSymbols(symbols.toCharArray());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets all the ISUPPORT tokens the server has advertised.
+	 * 
+	 * @return a copy of the tokens and their values
+	 */
+	Map<String, String> getSupport() {
+		return new LinkedHashMap<String, String>(support);
+	}
+
+	/**
+	 * Gets the case mapping the server advertised with its CASEMAPPING token,
+	 * used to compare nicks and channel names.
+	 * 
+	 * @return the server's case mapping, {@link CaseMapping#RFC1459} if none
+	 *         was advertised
+	 */
+	public CaseMapping getCaseMapping() {
+		return caseMapping;
+	}
+
+	/**
+	 * Changes the case mapping, re-keying the known users by their nicks
+	 * folded the new way.
+	 */
+	private void setCaseMapping(final CaseMapping mapping) {
+		if (mapping == caseMapping)
+			return;
+		caseMapping = mapping;
+		final List<ServerUser> known = new ArrayList<ServerUser>(
+				users.values());
+		users.clear();
+		for (ServerUser user : known) {
+			users.put(mapping.fold(user.getNick()), user);
+		}
+		eventManager.setCaseMapping(mapping);
+	}
+
+	/**
+	 * Gets the maximum number of comma separated targets the server accepts
+	 * for a command, as advertised by the TARGMAX (or MAXTARGETS) token.
+	 * 
+	 * @param command
+	 *            the command, e.g. <tt>JOIN</tt> or <tt>PRIVMSG</tt>
+	 * @param def
+	 *            the limit to use if the server did not advertise one
+	 * @return the maximum number of targets, {@link Integer#MAX_VALUE} if the
+	 *         server advertised no limit
+	 */
+	public int getTargetLimit(final String command, final int def) {
+		final String targmax = getSupport("TARGMAX");
+		if (targmax != null) {
+			for (String entry : targmax.split(",")) {
+				final int colon = entry.indexOf(':');
+				if (colon != -1
+						&& entry.substring(0, colon).equalsIgnoreCase(command)) {
+					return parseLimit(entry.substring(colon + 1), def);
+				}
+			}
+			return def;
+		}
+		final String maxTargets = getSupport("MAXTARGETS");
+		if (maxTargets != null
+				&& (command.equalsIgnoreCase("PRIVMSG") || command
+						.equalsIgnoreCase("NOTICE"))) {
+			return parseLimit(maxTargets, def);
+		}
+		return def;
+	}
+
+	/**
+	 * Gets the maximum number of channels with the given prefix that can be
+	 * joined at once, as advertised by the CHANLIMIT (or MAXCHANNELS) token.
+	 * 
+	 * @param prefix
+	 *            the channel prefix, e.g. <tt>#</tt>
+	 * @return the maximum number of channels, {@link Integer#MAX_VALUE} if
+	 *         there is no limit
+	 */
+	public int getChannelLimit(final char prefix) {
+		final String chanLimit = getSupport("CHANLIMIT");
+		if (chanLimit != null) {
+			for (String entry : chanLimit.split(",")) {
+				final int colon = entry.indexOf(':');
+				if (colon != -1 && entry.substring(0, colon).indexOf(prefix) != -1) {
+					return parseLimit(entry.substring(colon + 1),
+							Integer.MAX_VALUE);
+				}
+			}
+			return Integer.MAX_VALUE;
+		}
+		final String maxChannels = getSupport("MAXCHANNELS");
+		return maxChannels == null ? Integer.MAX_VALUE : parseLimit(
+				maxChannels, Integer.MAX_VALUE);
+	}
+
+	private static int parseLimit(final String value, final int def) {
+		if (value.isEmpty())
+			return Integer.MAX_VALUE;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
 	/**
 	 * Gets the channel access mode symbols (e.g. @ for op)
 	 * 
@@ -420,16 +985,173 @@ public class Server implements Runnable {
 	 *            sender can be null.
 	 */
 	public void sendNotice(final Notice notice) {
-		sendRaw("NOTICE " + notice.getTarget() + " :" + notice.getMessage()
-				+ "\n");
+		sendText("NOTICE", notice.getTarget().getName(), notice.getMessage());
 	}
 
 	public ServerUser getUser(String nick) {
-		for (ServerUser u : users) {
-			if (u.getNick().equalsIgnoreCase(nick))
-				return u;
+		final ServerUser user = users.get(caseMapping.fold(nick));
+		return user != null ? user : new ServerUser(nick, null, null, this);
+	}
+
+	/**
+	 * Gets the user with a nick, if they are known.
+	 * 
+	 * @param nick
+	 *            the nick of the user
+	 * @return the user, or <tt>null</tt> if no user with that nick is known
+	 */
+	public ServerUser findUser(final String nick) {
+		return users.get(caseMapping.fold(nick));
+	}
+
+	/**
+	 * Gets the user with a nick, creating it if it is not known yet. The user
+	 * name and host are filled in if they were not known, or updated if they
+	 * changed, and are deduplicated so users on the same host share one
+	 * string.
+	 * 
+	 * @param nick
+	 *            the nick of the user
+	 * @param user
+	 *            the username of the user, can be <tt>null</tt>
+	 * @param host
+	 *            the host of the user, can be <tt>null</tt>
+	 * @return the user
+	 */
+	public ServerUser getUser(final String nick, final String user,
+			final String host) {
+		final String key = caseMapping.fold(nick);
+		ServerUser existing = users.get(key);
+		if (existing == null) {
+			final ServerUser created = new ServerUser(nick,
+					interner.intern(host), interner.intern(user), this);
+			existing = users.get(key);
+			return existing != null ? existing : created;
+		}
+		if (user != null && !user.equals(existing.getUser()))
+			existing.setUser(interner.intern(user));
+		if (host != null && !host.equals(existing.getHost()))
+			existing.setHost(interner.intern(host));
+		return existing;
+	}
+
+	/**
+	 * Forgets a user, once they have quit.
+	 * 
+	 * @param nick
+	 *            the nick of the user
+	 */
+	void removeUser(final String nick) {
+		users.remove(caseMapping.fold(nick));
+	}
+
+	/**
+	 * Moves a user to a new nick.
+	 * 
+	 * @param oldNick
+	 *            the nick the user had
+	 * @param newNick
+	 *            the nick the user has now
+	 */
+	void renameUser(final String oldNick, final String newNick) {
+		final ServerUser user = users.remove(caseMapping.fold(oldNick));
+		if (user != null) {
+			user.setNick(newNick);
+			users.put(caseMapping.fold(newNick), user);
 		}
-		return new ServerUser(nick, null, null, this);
+	}
+
+	/**
+	 * Sends the same message to many channels and/or users. Targets are
+	 * comma-joined into as few PRIVMSG commands as the server's TARGMAX token
+	 * and the line length allow, and the resulting lines are submitted to the
+	 * paced {@link OutboundQueue} as a single batch. A message too long to
+	 * reach the longest target in one line is split with
+	 * {@link MessageSplitter} first.
+	 * 
+	 * @param message
+	 *            the message to send
+	 * @param targets
+	 *            the channels and users to send the message to
+	 * @return a future which completes once the last line has been written
+	 */
+	public Future<Void> broadcast(final String message,
+			final Collection<? extends Conversable> targets) {
+		return broadcast("PRIVMSG", message, targets);
+	}
+
+	/**
+	 * Sends the same notice to many channels and/or users. Targets are
+	 * comma-joined into as few NOTICE commands as the server's TARGMAX token
+	 * and the line length allow, and the resulting lines are submitted to the
+	 * paced {@link OutboundQueue} as a single batch. A notice too long to
+	 * reach the longest target in one line is split with
+	 * {@link MessageSplitter} first.
+	 * 
+	 * @param notice
+	 *            the notice to send
+	 * @param targets
+	 *            the channels and users to send the notice to
+	 * @return a future which completes once the last line has been written
+	 */
+	public Future<Void> broadcastNotice(final String notice,
+			final Collection<? extends Conversable> targets) {
+		return broadcast("NOTICE", notice, targets);
+	}
+
+	private Future<Void> broadcast(final String command, final String message,
+			final Collection<? extends Conversable> targets) {
+		final String[] names = new String[targets.size()];
+		final int[] nameLengths = new int[names.length];
+		String longest = "";
+		int n = 0, longestLength = -1;
+		for (Conversable target : targets) {
+			names[n] = target.getName();
+			nameLengths[n] = MessageSplitter.utf8Length(names[n]);
+			if (nameLengths[n] > longestLength) {
+				longest = names[n];
+				longestLength = nameLengths[n];
+			}
+			n++;
+		}
+		final List<String> pieces = MessageSplitter.split(message, Math.max(
+				MAX_LINE_LENGTH - 2 - relayPrefixLength(command, longest),
+				MessageSplitter.MIN_BYTES));
+		final int limit = getTargetLimit(command, 1);
+		final List<String> lines = new ArrayList<String>();
+		final List<String> trailings = new ArrayList<String>();
+		final StringBuilder line = new StringBuilder(MAX_LINE_LENGTH);
+		for (String piece : pieces) {
+			final int fixed = command.length() + 1 + 2
+					+ MessageSplitter.utf8Length(piece) + 2;
+			int count = 0, length = 0;
+			for (int i = 0; i < n; i++) {
+				if (count > 0
+						&& (count >= limit || fixed + length + 1
+								+ nameLengths[i] > MAX_LINE_LENGTH)) {
+					lines.add(line.toString());
+					trailings.add(piece);
+					line.setLength(0);
+					count = 0;
+					length = 0;
+				}
+				if (count == 0) {
+					line.append(command).append(' ');
+				} else {
+					line.append(',');
+					length++;
+				}
+				line.append(names[i]);
+				length += nameLengths[i];
+				count++;
+			}
+			if (count > 0) {
+				lines.add(line.toString());
+				trailings.add(piece);
+				line.setLength(0);
+			}
+		}
+		return outboundQueue.submit(lines, trailings);
 	}
 
 	/**
@@ -442,7 +1164,8 @@ public class Server implements Runnable {
 	 *            The action you would like to send.
 	 */
 	public void sendAction(final String channel, final String action) {
-		sendRaw("PRIVMSG " + channel + ": \u0001ACTION " + action + "\n");
+		command("PRIVMSG").param(channel).trailing("\u0001ACTION ")
+				.append(action).append('\u0001').send();
 	}
 
 	/**
@@ -457,7 +1180,9 @@ public class Server implements Runnable {
 	public void run() {
 		try {
 			if (write != null) {
+				outboundQueue.release();
 				write.flush();
+				outboundQueue.flushed();
 			}
 		} catch (SocketException e) {
 			if (autoConnect) {
@@ -520,6 +1245,172 @@ public class Server implements Runnable {
 		return channel;
 	}
 
+	/**
+	 * Joins several channels with {@link #joinChannels(Collection)} once
+	 * registration has finished, so that the server's TARGMAX and CHANLIMIT
+	 * tokens are known when the JOIN lines are packed. Registration is taken
+	 * to have finished at the end of the MOTD; if it already has, the
+	 * channels are joined at once.
+	 * 
+	 * @param channels
+	 *            the channels to join
+	 */
+	public void joinOnRegistration(final Collection<Channel> channels) {
+		synchronized (pendingJoins) {
+			if (!registered) {
+				for (Channel channel : channels) {
+					pendingJoins.put(channel, null);
+				}
+				return;
+			}
+		}
+		joinChannels(channels);
+	}
+
+	/**
+	 * Records whether registration has finished, joining the channels
+	 * waiting for it if it has.
+	 */
+	void setRegistered(final boolean registered) {
+		final Map<Channel, String> joins;
+		synchronized (pendingJoins) {
+			this.registered = registered;
+			if (!registered || pendingJoins.isEmpty())
+				return;
+			joins = new LinkedHashMap<Channel, String>(pendingJoins);
+			pendingJoins.clear();
+		}
+		joinChannels(joins);
+	}
+
+	/**
+	 * Joins several channels at once, packing as many channel names into each
+	 * JOIN command as the line length and the server's TARGMAX and CHANLIMIT
+	 * tokens allow. Channels over the CHANLIMIT are not joined, and are
+	 * logged. The MODE query for each channel is sent through the paced
+	 * {@link OutboundQueue} and the initial WHO requests are staggered by
+	 * {@link #WHO_STAGGER} milliseconds, or less if that would take longer
+	 * than {@link #WHO_SPREAD}.
+	 * 
+	 * @param channels
+	 *            the channels to join
+	 * @return the channels a JOIN was sent for
+	 */
+	public List<Channel> joinChannels(final Collection<Channel> channels) {
+		final Map<Channel, String> keys = new LinkedHashMap<Channel, String>();
+		for (Channel channel : channels) {
+			keys.put(channel, null);
+		}
+		return joinChannels(keys);
+	}
+
+	/**
+	 * Joins several channels at once using the provided passwords, packing as
+	 * many channel names into each JOIN command as the line length and the
+	 * server's TARGMAX and CHANLIMIT tokens allow. Channels over the
+	 * CHANLIMIT are not joined, and are logged. The MODE query for each
+	 * channel is sent through the paced {@link OutboundQueue} and the initial
+	 * WHO requests are staggered by {@link #WHO_STAGGER} milliseconds, or less
+	 * if that would take longer than {@link #WHO_SPREAD}.
+	 * 
+	 * @param channels
+	 *            the channels to join mapped to their passwords, a password
+	 *            can be <tt>null</tt> if the channel has none
+	 * @return the channels a JOIN was sent for
+	 */
+	public List<Channel> joinChannels(final Map<Channel, String> channels) {
+		final List<Channel> keyed = new ArrayList<Channel>();
+		final List<Channel> unkeyed = new ArrayList<Channel>();
+		final List<Channel> dropped = new ArrayList<Channel>();
+		final Map<Character, Integer> joined = new HashMap<Character, Integer>();
+		for (Channel channel : new HashSet<Channel>(this.channels.values())) {
+			if (channel.isRunning && !channels.containsKey(channel)
+					&& !channel.getName().isEmpty()) {
+				final char prefix = channel.getName().charAt(0);
+				final Integer count = joined.get(prefix);
+				joined.put(prefix, count == null ? 1 : count + 1);
+			}
+		}
+		for (Map.Entry<Channel, String> entry : channels.entrySet()) {
+			final Channel channel = entry.getKey();
+			if (channel.getName().isEmpty())
+				continue;
+			final char prefix = channel.getName().charAt(0);
+			final Integer count = joined.get(prefix);
+			final int c = count == null ? 0 : count;
+			if (c >= getChannelLimit(prefix)) {
+				dropped.add(channel);
+				continue;
+			}
+			joined.put(prefix, c + 1);
+			final String key = entry.getValue();
+			if (key != null && !key.isEmpty())
+				keyed.add(channel);
+			else
+				unkeyed.add(channel);
+		}
+		final List<Channel> order = new ArrayList<Channel>(keyed);
+		order.addAll(unkeyed);
+		final int targets = getTargetLimit("JOIN", Integer.MAX_VALUE);
+		final StringBuilder names = new StringBuilder();
+		final StringBuilder passwords = new StringBuilder();
+		int count = 0, namesLength = 0, keysLength = 0;
+		for (Channel channel : order) {
+			final String key = channels.get(channel);
+			final boolean hasKey = key != null && !key.isEmpty();
+			final int nameLength = channel.getName().getBytes(UTF_8).length;
+			final int keyLength = hasKey ? key.getBytes(UTF_8).length : 0;
+			int newNames = namesLength + (count > 0 ? 1 : 0) + nameLength;
+			int newKeys = hasKey ? keysLength + (keysLength > 0 ? 1 : 0)
+					+ keyLength : keysLength;
+			if (count > 0
+					&& (count >= targets || joinLength(newNames, newKeys) > MAX_LINE_LENGTH)) {
+				sendJoin(names, passwords);
+				count = 0;
+				newNames = nameLength;
+				newKeys = keyLength;
+			}
+			if (count > 0)
+				names.append(',');
+			names.append(channel.getName());
+			if (hasKey) {
+				if (passwords.length() > 0)
+					passwords.append(',');
+				passwords.append(key);
+			}
+			namesLength = newNames;
+			keysLength = newKeys;
+			count++;
+		}
+		if (count > 0)
+			sendJoin(names, passwords);
+		if (!dropped.isEmpty())
+			LOGGER.warning("Not joining " + dropped.size()
+					+ " channels over the CHANLIMIT: " + dropped);
+		final long stagger = order.isEmpty() ? 0 : Math.min(WHO_STAGGER,
+				WHO_SPREAD / order.size());
+		for (int i = 0; i < order.size(); i++) {
+			final Channel channel = order.get(i);
+			outboundQueue.offer("MODE " + channel.getName());
+			channel.setJoined(i * stagger);
+		}
+		return order;
+	}
+
+	private static int joinLength(final int names, final int keys) {
+		return "JOIN ".length() + names + (keys > 0 ? 1 + keys : 0) + 2;
+	}
+
+	private void sendJoin(final StringBuilder names,
+			final StringBuilder passwords) {
+		if (passwords.length() > 0)
+			command("JOIN").param(names).param(passwords).send();
+		else
+			command("JOIN").param(names).send();
+		names.setLength(0);
+		passwords.setLength(0);
+	}
+
 	/**
 	 * Creates/finds a channel object for the specified channel.
 	 * 
@@ -533,7 +1424,8 @@ public class Server implements Runnable {
 	}
 
 	public void addUser(final ServerUser user) {
-		if (!users.contains(user))
-			users.add(user);
+		final String key = caseMapping.fold(user.getNick());
+		if (!users.containsKey(key))
+			users.putIfAbsent(key, user);
 	}
 }
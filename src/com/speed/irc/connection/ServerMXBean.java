@@ -0,0 +1,129 @@
+package com.speed.irc.connection;
+
+import java.util.Map;
+
+/**
+ * The management interface of a {@link Server}, registered with the platform
+ * MBean server when the server is created.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public interface ServerMXBean {
+	/**
+	 * @return the server's host address
+	 */
+	String getServerName();
+
+	/**
+	 * @return our nick
+	 */
+	String getNick();
+
+	/**
+	 * @return <tt>true</tt> if the socket is open
+	 */
+	boolean isConnected();
+
+	/**
+	 * @return <tt>true</tt> if the server reconnects when the connection is
+	 *         lost
+	 */
+	boolean isAutoReconnect();
+
+	/**
+	 * @return the number of times the server has reconnected
+	 */
+	long getReconnectCount();
+
+	/**
+	 * @return the number of bytes read from the socket
+	 */
+	long getBytesIn();
+
+	/**
+	 * @return the number of bytes written to the socket
+	 */
+	long getBytesOut();
+
+	/**
+	 * @return the number of lines read from the server
+	 */
+	long getLinesIn();
+
+	/**
+	 * @return the number of lines written to the server
+	 */
+	long getLinesOut();
+
+	/**
+	 * @return the number of queued outbound lines which were discarded
+	 */
+	long getLinesDropped();
+
+	/**
+	 * @return the number of lines read but not yet parsed
+	 */
+	int getReaderQueueSize();
+
+	/**
+	 * @return the number of events waiting to be dispatched
+	 */
+	int getEventQueueSize();
+
+	/**
+	 * @return the number of lines waiting in the paced outbound queue
+	 */
+	int getOutboundQueueSize();
+
+	/**
+	 * @return the number of listeners added to the server's event manager
+	 */
+	int getListenerCount();
+
+	/**
+	 * @return the number of channels we are in
+	 */
+	int getChannelCount();
+
+	/**
+	 * @return the number of users known
+	 */
+	int getUserCount();
+
+	/**
+	 * @return the number of lines each event generator has accepted, by the
+	 *         generator's class name
+	 */
+	Map<String, Long> getGeneratorHits();
+
+	/**
+	 * Stops dispatching events; they are kept in the queue until dispatch is
+	 * resumed.
+	 */
+	void pauseDispatch();
+
+	/**
+	 * Carries on dispatching events.
+	 */
+	void resumeDispatch();
+
+	/**
+	 * @return a description of the connection, channels and event manager
+	 */
+	String dumpState();
+}
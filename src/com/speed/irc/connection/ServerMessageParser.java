@@ -2,28 +2,36 @@ package com.speed.irc.connection;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.speed.irc.event.ChannelEvent;
 import com.speed.irc.event.EventGenerator;
 import com.speed.irc.event.ExceptionEvent;
 import com.speed.irc.event.IRCEvent;
+import com.speed.irc.event.LatencyMetrics;
 import com.speed.irc.event.RawMessageEvent;
 import com.speed.irc.event.generators.JoinGenerator;
 import com.speed.irc.event.generators.KickGenerator;
 import com.speed.irc.event.generators.ModeGenerator;
+import com.speed.irc.event.generators.NetsplitGenerator;
 import com.speed.irc.event.generators.NoticeGenerator;
 import com.speed.irc.event.generators.PartGenerator;
 import com.speed.irc.event.generators.PrivmsgGenerator;
+import com.speed.irc.jfr.MessageParsed;
 import com.speed.irc.types.CTCPReply;
 import com.speed.irc.types.Channel;
 import com.speed.irc.types.ChannelUser;
 import com.speed.irc.types.ParsingException;
 import com.speed.irc.types.RawMessage;
+import com.speed.irc.types.ServerUser;
 import com.speed.irc.util.Numerics;
 
 /**
@@ -49,6 +57,7 @@ import com.speed.irc.util.Numerics;
 public class ServerMessageParser implements Runnable, EventGenerator {
 	private final Server server;
 	private List<EventGenerator> generators;
+	private final ConcurrentHashMap<EventGenerator, LongAdder> hits = new ConcurrentHashMap<EventGenerator, LongAdder>();
 	protected ServerMessageReader reader;
 	protected ScheduledExecutorService execServ;
 	protected Future<?> future;
@@ -93,12 +102,16 @@ public class ServerMessageParser implements Runnable, EventGenerator {
 		this.server = server;
 		generators = new CopyOnWriteArrayList<EventGenerator>();
 		generators.add(this);
-		generators.add(new JoinGenerator());
+		final NetsplitGenerator netsplits = new NetsplitGenerator(server);
+		generators.add(new JoinGenerator(netsplits));
 		generators.add(new KickGenerator());
 		generators.add(new ModeGenerator());
+		generators.add(netsplits);
 		generators.add(new NoticeGenerator(server));
 		generators.add(new PartGenerator());
 		generators.add(new PrivmsgGenerator());
+		generators.add(server.getLagMonitor());
+		server.getLagMonitor().reset();
 		reader = new ServerMessageReader(server);
 		execServ = Executors.newSingleThreadScheduledExecutor();
 		new Thread(reader, "Server message reader").start();
@@ -107,19 +120,81 @@ public class ServerMessageParser implements Runnable, EventGenerator {
 
 	}
 
-	private synchronized void parse(final String s) throws Exception {
-		final RawMessage message = new RawMessage(s, server);
+	private synchronized void parse(final String s, final long read)
+			throws Exception {
+		final LatencyMetrics latency = server.eventManager
+				.getLatencyMetrics();
+		final long parsed = latency == null ? 0 : System.nanoTime();
+		if (latency != null && read != 0)
+			latency.record(LatencyMetrics.Stage.READ_TO_PARSE, parsed - read);
+		final RawMessage message = new RawMessage(s, server, read);
 		for (EventGenerator generator : generators) {
 			if (generator.accept(message)) {
+				hit(generator);
+				final MessageParsed recorded = new MessageParsed();
+				recorded.begin();
 				IRCEvent event = generator.generate(message);
-				if (event != null)
+				recorded.record(message.getCommand(), generator, event != null);
+				if (event != null) {
+					if (latency != null)
+						latency.record(LatencyMetrics.Stage.PARSE_TO_GENERATE,
+								System.nanoTime() - parsed);
 					server.eventManager.dispatchEvent(event);
+				}
 			}
 		}
-		server.eventManager.dispatchEvent(new RawMessageEvent(message, this));
+		if (message.getCommand().equals("QUIT"))
+			quit(message.getSender().split("!")[0]);
+		if (server.eventManager.hasSubscribers(RawMessageEvent.class))
+			server.eventManager.dispatchEvent(new RawMessageEvent(message,
+					this));
 
 	}
 
+	/**
+	 * Removes a user who has quit from every channel and forgets them. This
+	 * is done once every generator has seen the QUIT, so they can still find
+	 * which channels the user was in.
+	 */
+	private void quit(final String nick) {
+		final ServerUser user = server.findUser(nick);
+		if (user == null)
+			return;
+		for (Channel channel : server.channels.values()) {
+			final ChannelUser member = channel.getState().getUser(user);
+			if (member != null)
+				channel.removeChannelUser(member);
+		}
+		server.removeUser(nick);
+	}
+
+	private void hit(final EventGenerator generator) {
+		LongAdder count = hits.get(generator);
+		if (count == null) {
+			count = new LongAdder();
+			final LongAdder existing = hits.putIfAbsent(generator, count);
+			if (existing != null)
+				count = existing;
+		}
+		count.increment();
+	}
+
+	/**
+	 * Gets the number of lines each generator has accepted.
+	 * 
+	 * @return the counts, by the generator's class name
+	 */
+	public Map<String, Long> getGeneratorHits() {
+		final Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<EventGenerator, LongAdder> entry : hits.entrySet()) {
+			final String name = entry.getKey().getClass().getName();
+			final Long previous = counts.get(name);
+			counts.put(name, entry.getValue().sum()
+					+ (previous == null ? 0 : previous));
+		}
+		return counts;
+	}
+
 	/**
 	 * Submits an event generator to this parser
 	 * 
@@ -142,12 +217,11 @@ public class ServerMessageParser implements Runnable, EventGenerator {
 	}
 
 	public void run() {
-		String s;
-		if (!reader.isEmpty()) {
-			s = reader.poll();
-			s = s.substring(1);
+		ServerMessageReader.Line line;
+		while ((line = reader.pollLine()) != null) {
+			final String s = line.text.substring(1);
 			try {
-				parse(s);
+				parse(s, line.read);
 			} catch (Exception e) {
 				server.eventManager
 						.dispatchEvent(new ExceptionEvent(new ParsingException(
@@ -164,23 +238,68 @@ public class ServerMessageParser implements Runnable, EventGenerator {
 	public IRCEvent generate(RawMessage message) {
 		String raw = message.getRaw();
 		String code = message.getCommand();
+		final String self = server.getNick();
+		final String sender = message.getSender();
+		if (self != null && sender.length() > self.length()
+				&& sender.charAt(self.length()) == '!'
+				&& sender.regionMatches(true, 0, self, 0, self.length())) {
+			final int at = sender.indexOf('@', self.length());
+			if (at != -1)
+				server.setUserHost(sender.substring(self.length() + 1, at),
+						sender.substring(at + 1));
+		}
 		if (raw.startsWith("PING")) {
-			server.sendRaw(raw.replaceFirst("PING", "PONG") + "\n");
+			server.command("PONG").append(raw, 4, raw.length()).send();
 		} else if (message.getCommand().equals(Numerics.SERVER_SUPPORT)) {
-			if (raw.contains("PREFIX")) {
-				String temp = raw.substring(0, raw.indexOf(" :"));
-				String[] parts = temp.split(" ");
-				for (String t : parts) {
-					if (t.startsWith("PREFIX=")) {
-						String letters = t.split("\\(", 2)[1].split("\\)")[0];
-						String symbols = t.split("\\)", 2)[1];
-						if (letters.length() == symbols.length()) {
-							server.setModeLetters(letters.toCharArray());
-							server.setModeSymbols(symbols.toCharArray());
-						}
-					}
+			final int end = raw.indexOf(" :");
+			String temp = end == -1 ? raw : raw.substring(0, end);
+			String[] parts = temp.split(" ");
+			for (int i = 3; i < parts.length; i++) {
+				final String t = parts[i];
+				if (t.startsWith("-")) {
+					server.setSupport(t.substring(1), null);
+					continue;
+				}
+				final int eq = t.indexOf('=');
+				server.setSupport(eq == -1 ? t : t.substring(0, eq),
+						eq == -1 ? "" : t.substring(eq + 1));
+			}
+		} else if (code.equals("CAP")) {
+			final String[] parts = raw.split(" :", 2);
+			final String[] header = parts[0].split(" ");
+			if (header.length < 4)
+				return null;
+			final String subcommand = header[3];
+			final String list = parts.length > 1 ? parts[1] : header[header.length - 1];
+			for (String cap : list.trim().split(" ")) {
+				if (cap.isEmpty())
+					continue;
+				final boolean remove = cap.startsWith("-");
+				if (remove)
+					cap = cap.substring(1);
+				final int eq = cap.indexOf('=');
+				final String name = eq == -1 ? cap : cap.substring(0, eq);
+				final String value = eq == -1 ? "" : cap.substring(eq + 1);
+				if (subcommand.equals("LS") || subcommand.equals("NEW")) {
+					server.setCapability(name, value);
+				} else if (subcommand.equals("ACK")) {
+					server.setCapabilityEnabled(name, !remove);
+				} else if (subcommand.equals("DEL")) {
+					server.setCapability(name, null);
 				}
 			}
+			if (subcommand.equals("LS")
+					&& (header.length < 5 || !header[4].equals("*")))
+				server.capabilitiesListed();
+			else if (subcommand.equals("ACK") || subcommand.equals("NAK"))
+				server.capabilitiesAcknowledged();
+		} else if (code.equals(Numerics.MOTD_END)
+				|| code.equals(Numerics.NO_MOTD)) {
+			server.setRegistered(true);
+		} else if (code.equals(Numerics.HOST_HIDDEN)) {
+			final String[] parts = raw.split(" ");
+			if (parts.length > 3)
+				server.setUserHost(null, parts[3]);
 		} else if (code.equals(Numerics.CHANNEL_MODES)) {
 			String chan_name = message.getRaw().split(" ")[3];
 			String modez = message.getRaw().split(" ")[4];
@@ -188,7 +307,41 @@ public class ServerMessageParser implements Runnable, EventGenerator {
 				return null;
 			}
 			Channel channel = server.channels.get(chan_name);
-			channel.chanMode.parse(modez);
+			channel.applyModes(modez);
+		} else if (code.equals(Numerics.NAMES_REPLY)) {
+			final int colon = raw.indexOf(" :");
+			if (colon == -1)
+				return null;
+			final String head = raw.substring(0, colon);
+			final Channel channel = server.channels.get(head.substring(head
+					.lastIndexOf(' ') + 1));
+			if (channel == null)
+				return null;
+			final char[] symbols = server.getModeSymbols();
+			final String prefixes = symbols == null ? "~&@%+" : new String(
+					symbols);
+			for (String name : raw.substring(colon + 2).split(" ")) {
+				int start = 0;
+				while (start < name.length()
+						&& prefixes.indexOf(name.charAt(start)) != -1) {
+					start++;
+				}
+				if (start == name.length())
+					continue;
+				final int bang = name.indexOf('!', start);
+				final int at = name.indexOf('@', start);
+				final String nick = bang == -1 ? name.substring(start) : name
+						.substring(start, bang);
+				final String user = bang == -1 || at == -1 ? null : name
+						.substring(bang + 1, at);
+				final String host = at == -1 ? null : name.substring(at + 1);
+				channel.bufferUser(new ChannelUser(nick, name.substring(0,
+						start), user, host, channel));
+			}
+		} else if (code.equals(Numerics.NAMES_END)) {
+			final Channel channel = server.channels.get(raw.split(" ")[3]);
+			if (channel != null)
+				channel.commitUsers();
 		} else if (code.equals(Numerics.WHO_RESPONSE)) {
 			Channel channel = server.channels.get(raw.split(" ")[3]);
 			String[] temp = raw.split(" ");
@@ -197,15 +350,13 @@ public class ServerMessageParser implements Runnable, EventGenerator {
 			String nick = temp[7];
 			String modes = temp[8];
 			modes = modes.replace("*", "").replace("G", "").replace("H", "");
-			channel.userBuffer.add(new ChannelUser(nick, modes, user, host,
+			channel.bufferUser(new ChannelUser(nick, modes, user, host,
 					channel));
 
 		} else if (code.equals(Numerics.WHO_END)) {
 			Channel channel = server.channels.get(raw.split(" ")[3]);
 
-			channel.users.clear();
-			channel.users.addAll(channel.userBuffer);
-			channel.userBuffer.clear();
+			channel.commitUsers();
 		} else if (code.toLowerCase().equals("topic")) {
 			Channel channel = server.channels.get(raw.split(" ")[2]);
 			String[] temp = raw.split(" :", 2);
@@ -220,13 +371,11 @@ public class ServerMessageParser implements Runnable, EventGenerator {
 			if (channel != null && channel.isRunning)
 				channel.isRunning = false;
 		} else if (code.equals("NICK")) {
-			for (Channel channel : server.channels.values()) {
-				final ChannelUser user = channel.getUser(message.getSender()
-						.split("!")[0]);
-				if (user != null) {
-					user.setNick(raw.substring(raw.indexOf(": ") + 2).trim());
-				}
-			}
+			final String oldNick = sender.split("!")[0];
+			String newNick = raw.substring(raw.indexOf(" NICK ") + 6).trim();
+			if (newNick.startsWith(":"))
+				newNick = newNick.substring(1);
+			server.renameUser(oldNick, newNick);
 		}
 		return null;
 	}
@@ -1,11 +1,14 @@
 package com.speed.irc.connection;
 
 import java.io.IOException;
+import java.util.AbstractQueue;
+import java.util.Iterator;
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Logger;
 
 import com.speed.irc.event.ApiEvent;
+import com.speed.irc.jfr.LineReceived;
 
 /**
  * Reads messages from the server and adds them to a queue. Encapsulates the
@@ -31,7 +34,7 @@ import com.speed.irc.event.ApiEvent;
  */
 public class ServerMessageReader implements Runnable {
 	private final Server server;
-	private LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+	private LinkedBlockingQueue<Line> queue = new LinkedBlockingQueue<Line>();
 	private volatile String current;
 	protected volatile boolean running = true;
 	protected Logger logger = Logger.getLogger(Logger.class.getName());
@@ -44,6 +47,16 @@ public class ServerMessageReader implements Runnable {
 	 * @return the next message
 	 */
 	protected String poll() {
+		final Line line = queue.poll();
+		return line == null ? null : line.text;
+	}
+
+	/**
+	 * Gets the next message to be read with the time it was read.
+	 * 
+	 * @return the next message, or <tt>null</tt> if there is none
+	 */
+	Line pollLine() {
 		return queue.poll();
 	}
 
@@ -53,7 +66,8 @@ public class ServerMessageReader implements Runnable {
 	 * @return the next item on queue
 	 */
 	public String peek() {
-		return queue.peek();
+		final Line line = queue.peek();
+		return line == null ? null : line.text;
 	}
 
 	/**
@@ -65,6 +79,15 @@ public class ServerMessageReader implements Runnable {
 		return queue.isEmpty();
 	}
 
+	/**
+	 * Gets the number of messages waiting to be parsed.
+	 * 
+	 * @return the size of the queue
+	 */
+	public int size() {
+		return queue.size();
+	}
+
 	/**
 	 * No public access to queue to prevent reading before the parser. Gets the
 	 * queue
@@ -72,23 +95,95 @@ public class ServerMessageReader implements Runnable {
 	 * @return the queue
 	 */
 	protected Queue<String> getQueue() {
-		return queue;
+		return new AbstractQueue<String>() {
+			public boolean offer(final String s) {
+				return queue.offer(new Line(s, 0));
+			}
+
+			public String poll() {
+				return ServerMessageReader.this.poll();
+			}
+
+			public String peek() {
+				return ServerMessageReader.this.peek();
+			}
+
+			public int size() {
+				return queue.size();
+			}
+
+			public Iterator<String> iterator() {
+				final Iterator<Line> lines = queue.iterator();
+				return new Iterator<String>() {
+					public boolean hasNext() {
+						return lines.hasNext();
+					}
+
+					public String next() {
+						return lines.next().text;
+					}
+
+					public void remove() {
+						lines.remove();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * A line read from the server, with the {@link System#nanoTime()} it was
+	 * read at if latency tracking was on, or 0.
+	 */
+	static class Line {
+		final String text;
+		final long read;
+
+		Line(final String text, final long read) {
+			this.text = text;
+			this.read = read;
+		}
 	}
 
 	public ServerMessageReader(final Server server) {
 		this.server = server;
 	}
 
+	/**
+	 * Waits while an event subscriber has paused reading, so that the server
+	 * stops sending once the socket's buffers fill.
+	 * 
+	 * @return <tt>true</tt> if reading can carry on
+	 */
+	private boolean awaitResumed() {
+		try {
+			while (running && !server.eventManager.awaitResumed(1000)) {
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return running;
+	}
+
 	public void run() {
 		try {
-			while (server.isConnected() && running
+			while (server.isConnected() && running && awaitResumed()
 					&& (current = server.getReader().readLine()) != null) {
+				server.getMetrics().linesIn.increment();
+				LineReceived.record(server.getServerName(), current);
+				final TrafficRecorder recorder = server.getTrafficRecorder();
+				if (recorder != null)
+					recorder.record(server, current);
+				final Line line = new Line(current,
+						server.eventManager.getLatencyMetrics() == null ? 0
+								: System.nanoTime());
 				try {
-					queue.add(current);
+					queue.add(line);
 				} catch (IllegalStateException e) {
 
 					queue.clear();
-					queue.add(current);
+					queue.add(line);
 				}
 				if (logging) {
 					logger.info(current);
@@ -109,7 +204,8 @@ public class ServerMessageReader implements Runnable {
 			}
 		} catch (IOException e) {
 
-			server.quit();
+			if (running)
+				server.quit();
 
 		}
 
@@ -0,0 +1,239 @@
+package com.speed.irc.connection;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.speed.irc.types.Channel;
+
+/**
+ * The counters of a {@link Server}, exposed over JMX together with its
+ * {@link com.speed.irc.event.EventManagerMetrics}. Counters are striped so
+ * that the reading, parsing and sending threads can update them cheaply.
+ * <p/>
+ * The beans are registered as
+ * <tt>com.speed.irc:type=Server,name=&lt;host:port&gt;,id=&lt;n&gt;</tt> and
+ * <tt>com.speed.irc:type=EventManager,name=&lt;host:port&gt;,id=&lt;n&gt;</tt>.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public final class ServerMetrics implements ServerMXBean {
+	private static final AtomicInteger IDS = new AtomicInteger();
+	private static final Logger LOGGER = Logger.getLogger(ServerMetrics.class
+			.getName());
+
+	private final Server server;
+	final LongAdder reconnects = new LongAdder(), bytesIn = new LongAdder(),
+			bytesOut = new LongAdder(), linesIn = new LongAdder(),
+			linesOut = new LongAdder(), linesDropped = new LongAdder();
+	private ObjectName serverName, eventManagerName;
+
+	ServerMetrics(final Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Registers this server's beans with the platform MBean server. Failures
+	 * are logged rather than thrown, so monitoring never stops a connection.
+	 */
+	void register() {
+		final String suffix = ",name="
+				+ ObjectName.quote(server.getServerName() + ":"
+						+ server.getPort()) + ",id=" + IDS.incrementAndGet();
+		final MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+		try {
+			serverName = new ObjectName("com.speed.irc:type=Server" + suffix);
+			eventManagerName = new ObjectName("com.speed.irc:type=EventManager"
+					+ suffix);
+			mbeans.registerMBean(this, serverName);
+			mbeans.registerMBean(server.getEventManager().getMetrics(),
+					eventManagerName);
+		} catch (JMException e) {
+			LOGGER.log(Level.WARNING, "Could not register MBeans", e);
+		}
+	}
+
+	/**
+	 * Removes this server's beans from the platform MBean server.
+	 */
+	void unregister() {
+		final MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : new ObjectName[] { serverName, eventManagerName }) {
+			try {
+				if (name != null && mbeans.isRegistered(name))
+					mbeans.unregisterMBean(name);
+			} catch (JMException e) {
+				LOGGER.log(Level.WARNING, "Could not unregister " + name, e);
+			}
+		}
+	}
+
+	/**
+	 * Gets the name this server's bean is registered under.
+	 * 
+	 * @return the object name, or <tt>null</tt> if it is not registered
+	 */
+	public ObjectName getObjectName() {
+		return serverName;
+	}
+
+	InputStream count(final InputStream in) {
+		return new FilterInputStream(in) {
+			public int read() throws IOException {
+				final int b = super.read();
+				if (b != -1)
+					bytesIn.increment();
+				return b;
+			}
+
+			public int read(final byte[] b, final int off, final int len)
+					throws IOException {
+				final int n = super.read(b, off, len);
+				if (n > 0)
+					bytesIn.add(n);
+				return n;
+			}
+		};
+	}
+
+	OutputStream count(final OutputStream out) {
+		return new FilterOutputStream(out) {
+			public void write(final int b) throws IOException {
+				out.write(b);
+				bytesOut.increment();
+			}
+
+			public void write(final byte[] b, final int off, final int len)
+					throws IOException {
+				out.write(b, off, len);
+				bytesOut.add(len);
+			}
+		};
+	}
+
+	public String getServerName() {
+		return server.getServerName();
+	}
+
+	public String getNick() {
+		return server.getNick();
+	}
+
+	public boolean isConnected() {
+		return server.isConnected();
+	}
+
+	public boolean isAutoReconnect() {
+		return server.autoConnect;
+	}
+
+	public long getReconnectCount() {
+		return reconnects.sum();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	public long getLinesIn() {
+		return linesIn.sum();
+	}
+
+	public long getLinesOut() {
+		return linesOut.sum();
+	}
+
+	public long getLinesDropped() {
+		return linesDropped.sum();
+	}
+
+	public int getReaderQueueSize() {
+		return server.getParser().reader.size();
+	}
+
+	public int getEventQueueSize() {
+		return server.getEventManager().getMetrics().getEventQueueSize();
+	}
+
+	public int getOutboundQueueSize() {
+		return server.getOutboundQueue().size();
+	}
+
+	public int getListenerCount() {
+		return server.getEventManager().getMetrics().getListenerCount();
+	}
+
+	public int getChannelCount() {
+		return server.getChannels().size();
+	}
+
+	public int getUserCount() {
+		return server.getUserCount();
+	}
+
+	public Map<String, Long> getGeneratorHits() {
+		return server.getParser().getGeneratorHits();
+	}
+
+	public void pauseDispatch() {
+		server.getEventManager().setDispatchPaused(true);
+	}
+
+	public void resumeDispatch() {
+		server.getEventManager().setDispatchPaused(false);
+	}
+
+	public String dumpState() {
+		final StringBuilder builder = new StringBuilder();
+		builder.append(getServerName()).append(':').append(server.getPort())
+				.append(" as ").append(getNick())
+				.append(isConnected() ? ", connected" : ", disconnected")
+				.append(", reconnects: ").append(getReconnectCount())
+				.append('\n');
+		builder.append("in: ").append(getLinesIn()).append(" lines/")
+				.append(getBytesIn()).append(" bytes, out: ")
+				.append(getLinesOut()).append(" lines/").append(getBytesOut())
+				.append(" bytes, dropped: ").append(getLinesDropped())
+				.append('\n');
+		builder.append("reader queue: ").append(getReaderQueueSize())
+				.append(", outbound queue: ").append(getOutboundQueueSize())
+				.append('\n');
+		for (Channel channel : server.getChannels().values()) {
+			builder.append(channel.getName()).append(": ")
+					.append(channel.getState().size()).append(" users\n");
+		}
+		builder.append(server.getEventManager().dumpState());
+		return builder.toString();
+	}
+}
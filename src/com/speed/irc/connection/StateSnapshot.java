@@ -0,0 +1,420 @@
+package com.speed.irc.connection;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.speed.irc.types.Channel;
+import com.speed.irc.types.ChannelState;
+import com.speed.irc.types.ChannelUser;
+import com.speed.irc.types.ServerUser;
+
+/**
+ * Saves what a {@link Server} knows about its channels to a compact binary
+ * file, so that after a restart it can be loaded back in milliseconds instead
+ * of rejoining and sending WHO for every channel before anything works. The
+ * file holds the server's ISUPPORT tokens and, for each joined channel, its
+ * members with their user names, hosts and rights, its modes, topic and ban,
+ * exempt and invite lists.
+ * <p/>
+ * Writes are incremental: each channel is encoded on its own and the encoding
+ * is kept until the channel's {@link ChannelState} changes or one of its
+ * members changes nick, user name or host, so a periodic
+ * write of thousands of channels only encodes those which changed, and
+ * nothing is written if none did. The file is replaced atomically, so a crash
+ * during a write leaves the previous snapshot.
+ * <p/>
+ * Loaded state is provisional. The channels are filled in at once, so
+ * features which look up users or rights work as soon as the JOINs are sent,
+ * and each channel's members are replaced by the server's own list when its
+ * NAMES reply arrives on joining, or a later WHO reply. Joins, parts and
+ * mode changes seen in the meantime are applied to the loaded state as
+ * usual.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class StateSnapshot implements Runnable, Closeable {
+	public static final int MAGIC = 0x53495253;
+	public static final int FORMAT = 1;
+	private static final Logger LOGGER = Logger.getLogger(StateSnapshot.class
+			.getName());
+
+	private final Server server;
+	private final Path file;
+	private final Map<Channel, Block> blocks = new IdentityHashMap<Channel, Block>();
+	private Map<String, String> writtenSupport;
+	private ScheduledFuture<?> future;
+	private long writes, encoded;
+
+	/**
+	 * Creates a snapshot of a server's state, saved to a file.
+	 * 
+	 * @param server
+	 *            the server
+	 * @param file
+	 *            the file to write
+	 */
+	public StateSnapshot(final Server server, final Path file) {
+		this.server = server;
+		this.file = file;
+	}
+
+	/**
+	 * Starts writing the snapshot periodically on the server's channel
+	 * executor.
+	 * 
+	 * @param period
+	 *            the time between writes
+	 * @param unit
+	 *            the unit of the period
+	 */
+	public synchronized void start(final long period, final TimeUnit unit) {
+		if (future != null)
+			future.cancel(false);
+		future = server.getChanExec().scheduleWithFixedDelay(this, period,
+				period, unit);
+	}
+
+	public void run() {
+		try {
+			write();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not write state snapshot", e);
+		} catch (RuntimeException e) {
+			// an exception escaping would cancel every later write
+			LOGGER.log(Level.WARNING, "Could not write state snapshot", e);
+		}
+	}
+
+	/**
+	 * Stops the periodic writes and writes the snapshot one last time.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (future != null)
+				future.cancel(false);
+			future = null;
+		}
+		write();
+	}
+
+	/**
+	 * Writes the snapshot if anything changed since it was last written.
+	 * 
+	 * @return <tt>true</tt> if the file was written
+	 * @throws IOException
+	 *             if the file could not be written
+	 */
+	public synchronized boolean write() throws IOException {
+		final List<Channel> channels = new ArrayList<Channel>();
+		for (Channel channel : new ArrayList<Channel>(server.getChannels()
+				.values())) {
+			if (channel.isRunning && !channels.contains(channel))
+				channels.add(channel);
+		}
+		final Map<String, String> support = server.getSupport();
+		boolean changed = !support.equals(writtenSupport)
+				|| channels.size() != blocks.size();
+		final Map<Channel, Block> current = new IdentityHashMap<Channel, Block>();
+		final long identities = ServerUser.getLatestVersion();
+		for (Channel channel : channels) {
+			final ChannelState state = channel.getState();
+			Block block = blocks.get(channel);
+			if (block == null || block.version != state.getVersion()
+					|| renamed(state, block.identities)) {
+				block = new Block(state.getVersion(), identities, encode(
+						channel, state));
+				encoded++;
+				changed = true;
+			} else if (block.identities != identities) {
+				block = new Block(block.version, identities, block.data);
+			}
+			current.put(channel, block);
+		}
+		if (!changed)
+			return false;
+		blocks.clear();
+		blocks.putAll(current);
+		final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		final OutputStream stream = Files.newOutputStream(temp);
+		try {
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(stream, 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeShort(FORMAT);
+			out.writeLong(System.currentTimeMillis());
+			writeVarint(out, support.size());
+			for (Map.Entry<String, String> entry : support.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeUTF(entry.getValue());
+			}
+			writeVarint(out, channels.size());
+			for (Channel channel : channels) {
+				final byte[] data = current.get(channel).data;
+				writeVarint(out, data.length);
+				out.write(data);
+			}
+			out.flush();
+		} finally {
+			stream.close();
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		writtenSupport = support;
+		writes++;
+		return true;
+	}
+
+	/**
+	 * Checks whether the nick, user name or host of any member changed after
+	 * a version of the users.
+	 */
+	private static boolean renamed(final ChannelState state, final long since) {
+		if (ServerUser.getLatestVersion() == since)
+			return false;
+		for (ChannelUser user : state.getUsers()) {
+			if (user.getIdentity().getVersion() > since)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Encodes one channel. User names and hosts which repeat within the
+	 * channel are written once and then referred to by index.
+	 */
+	private static byte[] encode(final Channel channel,
+			final ChannelState state) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				64 + state.size() * 24);
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(channel.getName());
+		out.writeBoolean(state.getTopic() != null);
+		if (state.getTopic() != null)
+			out.writeUTF(state.getTopic());
+		out.writeUTF(state.getModes());
+		writeList(out, state.getBans());
+		writeList(out, state.getExempts());
+		writeList(out, state.getInvites());
+		final List<ChannelUser> users = state.getUsers();
+		writeVarint(out, users.size());
+		final Map<String, Integer> table = new HashMap<String, Integer>();
+		for (ChannelUser user : users) {
+			out.writeUTF(user.getNick());
+			writeRef(out, table, user.getUser());
+			writeRef(out, table, user.getHost());
+			out.writeByte(user.getRights());
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void writeList(final DataOutput out, final List<String> list)
+			throws IOException {
+		writeVarint(out, list.size());
+		for (String s : list) {
+			out.writeUTF(s);
+		}
+	}
+
+	private static void writeRef(final DataOutput out,
+			final Map<String, Integer> table, final String s)
+			throws IOException {
+		if (s == null) {
+			writeVarint(out, 0);
+			return;
+		}
+		final Integer index = table.get(s);
+		if (index != null) {
+			writeVarint(out, index + 1);
+			return;
+		}
+		table.put(s, table.size());
+		writeVarint(out, table.size());
+		out.writeUTF(s);
+	}
+
+	private static String readRef(final DataInput in, final List<String> table)
+			throws IOException {
+		final int ref = readVarint(in);
+		if (ref == 0)
+			return null;
+		if (ref <= table.size())
+			return table.get(ref - 1);
+		if (ref != table.size() + 1)
+			throw new IOException("Bad string reference " + ref);
+		final String s = in.readUTF();
+		table.add(s);
+		return s;
+	}
+
+	private static void writeVarint(final DataOutput out, int value)
+			throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarint(final DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			final byte b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IOException("Bad varint");
+	}
+
+	/**
+	 * Gets the number of times the file has been written.
+	 * 
+	 * @return the number of writes
+	 */
+	public synchronized long getWriteCount() {
+		return writes;
+	}
+
+	/**
+	 * Gets the number of times a channel has been encoded, which is the
+	 * number of changed channels written.
+	 * 
+	 * @return the number of channel encodings
+	 */
+	public synchronized long getEncodeCount() {
+		return encoded;
+	}
+
+	/**
+	 * Loads a snapshot into a server as provisional state. ISUPPORT tokens
+	 * are only set if the server has not sent them yet. The channels are
+	 * created if needed but not joined: pass them to
+	 * {@link Server#joinOnRegistration(java.util.Collection)}.
+	 * 
+	 * @param server
+	 *            the server
+	 * @param file
+	 *            the snapshot file
+	 * @return the channels restored
+	 * @throws IOException
+	 *             if the file could not be read or is not a snapshot
+	 */
+	public static List<Channel> load(final Server server, final Path file)
+			throws IOException {
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(Files.readAllBytes(file)));
+		if (in.readInt() != MAGIC)
+			throw new IOException(file + " is not a state snapshot");
+		final int format = in.readUnsignedShort();
+		if (format != FORMAT)
+			throw new IOException("Unsupported snapshot format " + format);
+		in.readLong();
+		for (int i = readVarint(in); i > 0; i--) {
+			final String token = in.readUTF();
+			final String value = in.readUTF();
+			if (server.getSupport(token) == null)
+				server.setSupport(token, value);
+		}
+		final int count = readVarint(in);
+		final List<Channel> channels = new ArrayList<Channel>(count);
+		for (int c = 0; c < count; c++) {
+			readVarint(in);
+			final String name = in.readUTF();
+			final String topic = in.readBoolean() ? in.readUTF() : null;
+			final String modes = in.readUTF();
+			final List<String> bans = readList(in);
+			final List<String> exempts = readList(in);
+			final List<String> invites = readList(in);
+			Channel channel = server.getChannels().get(name);
+			if (channel == null)
+				channel = server.getChannels().get(name.toLowerCase().trim());
+			if (channel == null) {
+				channel = new Channel(name, server);
+				channel.isRunning = false;
+			}
+			final int size = readVarint(in);
+			final List<ChannelUser> members = new ArrayList<ChannelUser>(size);
+			final List<String> table = new ArrayList<String>();
+			for (int i = 0; i < size; i++) {
+				final String nick = in.readUTF();
+				final String user = readRef(in, table);
+				final String host = readRef(in, table);
+				final int rights = in.readUnsignedByte();
+				final ServerUser identity = server.getUser(nick, user, host);
+				members.add(new ChannelUser(identity, rights, channel));
+			}
+			channel.restore(members, modes, topic, bans, exempts, invites);
+			channels.add(channel);
+		}
+		return channels;
+	}
+
+	private static List<String> readList(final DataInput in)
+			throws IOException {
+		final int size = readVarint(in);
+		final List<String> list = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(in.readUTF());
+		}
+		return list;
+	}
+
+	/**
+	 * The encoding of a channel, and the version of its state it encodes.
+	 */
+	private static class Block {
+		private final long version, identities;
+		private final byte[] data;
+
+		/**
+		 * @param version
+		 *            the version of the channel's state which was encoded
+		 * @param identities
+		 *            the latest version of the users before it was encoded
+		 * @param data
+		 *            the encoded channel
+		 */
+		private Block(final long version, final long identities,
+				final byte[] data) {
+			this.version = version;
+			this.identities = identities;
+			this.data = data;
+		}
+	}
+}
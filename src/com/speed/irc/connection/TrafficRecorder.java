@@ -0,0 +1,267 @@
+package com.speed.irc.connection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+/**
+ * Records the lines read from one or more servers to an append-only log, so
+ * that the traffic can be replayed later with {@link TrafficReplay}. Set a
+ * recorder on a server with {@link Server#setTrafficRecorder(TrafficRecorder)}.
+ * <p/>
+ * The log is written through memory-mapped regions of
+ * {@value #REGION_SIZE} bytes. Each line is stored with the time since the
+ * previous line in nanoseconds, the id of the server it came from and its
+ * UTF-8 bytes, with the numbers as variable-length integers. Servers are
+ * given ids the first time they are seen. With compression on, lines are
+ * gathered into blocks of about {@value #BLOCK_SIZE} bytes which are deflated
+ * before they are written.
+ * <p/>
+ * The log is only guaranteed to be complete once the recorder is closed.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class TrafficRecorder implements Closeable {
+	static final byte[] MAGIC = { 'S', 'I', 'R', 'C' };
+	static final int VERSION = 1, HEADER_SIZE = 24, FLAG_COMPRESSED = 1;
+	static final byte END = 0, RECORD = 1, BLOCK = 2, SERVER = 3, NEXT = 4;
+	public static final int REGION_SIZE = 8 << 20;
+	public static final int BLOCK_SIZE = 64 << 10;
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Logger LOGGER = Logger.getLogger(TrafficRecorder.class
+			.getName());
+
+	private final FileChannel channel;
+	private final boolean compress;
+	private final Deflater deflater;
+	private final Map<Server, Integer> servers = new IdentityHashMap<Server, Integer>();
+	private MappedByteBuffer region;
+	private long regionStart;
+	private byte[] block = new byte[BLOCK_SIZE + 1024], deflated;
+	private int blockLength;
+	private long last;
+	private long lines;
+	private boolean closed;
+
+	/**
+	 * Creates a recording, replacing any file at the path.
+	 * 
+	 * @param file
+	 *            the file to record to
+	 * @param compress
+	 *            <tt>true</tt> to deflate the lines
+	 * @throws IOException
+	 *             if the file cannot be created
+	 */
+	public TrafficRecorder(final Path file, final boolean compress)
+			throws IOException {
+		this.compress = compress;
+		deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+		channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		region = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+		region.put(MAGIC).put((byte) VERSION)
+				.put((byte) (compress ? FLAG_COMPRESSED : 0)).putShort((short) 0)
+				.putInt(REGION_SIZE).putLong(System.currentTimeMillis())
+				.putInt(0);
+		last = System.nanoTime();
+	}
+
+	/**
+	 * Records a line read from a server. If the log cannot be written to, a
+	 * warning is logged and recording stops.
+	 * 
+	 * @param server
+	 *            the server the line was read from
+	 * @param line
+	 *            the line, without CR-LF
+	 */
+	public synchronized void record(final Server server, final String line) {
+		if (closed)
+			return;
+		final long now = System.nanoTime();
+		try {
+			Integer id = servers.get(server);
+			if (id == null) {
+				id = servers.size();
+				servers.put(server, id);
+				final byte[] name = (server.getServerName() + ":" + server
+						.getPort()).getBytes(UTF_8);
+				reserve(11 + name.length);
+				block[blockLength++] = SERVER;
+				blockLength = putVarint(block, blockLength, id);
+				blockLength = putBytes(name, name.length);
+			}
+			final byte[] bytes = line.getBytes(UTF_8);
+			reserve(31 + bytes.length);
+			block[blockLength++] = RECORD;
+			blockLength = putVarint(block, blockLength, now - last);
+			blockLength = putVarint(block, blockLength, id);
+			blockLength = putBytes(bytes, bytes.length);
+			last = now;
+			lines++;
+			if (!compress || blockLength >= BLOCK_SIZE)
+				writeBlock();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Stopped recording traffic", e);
+			closeQuietly();
+		}
+	}
+
+	private void reserve(final int length) {
+		if (blockLength + length > block.length)
+			block = Arrays.copyOf(block, Math.max(block.length * 2,
+					blockLength + length));
+	}
+
+	private int putBytes(final byte[] bytes, final int length) {
+		int position = putVarint(block, blockLength, length);
+		System.arraycopy(bytes, 0, block, position, length);
+		return position + length;
+	}
+
+	static int putVarint(final byte[] buffer, int position, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	static long getVarint(final ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0;; shift += 7) {
+			final byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+	}
+
+	/**
+	 * Writes the pending lines to the log, deflated if compression is on.
+	 */
+	private void writeBlock() throws IOException {
+		if (blockLength == 0)
+			return;
+		if (!compress) {
+			ensure(blockLength);
+			region.put(block, 0, blockLength);
+		} else {
+			deflater.reset();
+			deflater.setInput(block, 0, blockLength);
+			deflater.finish();
+			if (deflated == null || deflated.length < blockLength + 64)
+				deflated = new byte[blockLength + blockLength / 8 + 64];
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == deflated.length)
+					deflated = Arrays.copyOf(deflated, length * 2);
+				length += deflater.deflate(deflated, length, deflated.length
+						- length);
+			}
+			final byte[] header = new byte[21];
+			header[0] = BLOCK;
+			int h = putVarint(header, 1, blockLength);
+			h = putVarint(header, h, length);
+			ensure(h + length);
+			region.put(header, 0, h).put(deflated, 0, length);
+		}
+		blockLength = 0;
+	}
+
+	/**
+	 * Makes room for some bytes in the current region, moving on to the next
+	 * region if they do not fit. One byte is always left for the marker
+	 * which ends a region.
+	 */
+	private void ensure(final int length) throws IOException {
+		if (length + 1 > REGION_SIZE - HEADER_SIZE)
+			throw new IOException("record of " + length
+					+ " bytes is larger than a region");
+		if (region.remaining() >= length + 1)
+			return;
+		region.put(NEXT);
+		regionStart += REGION_SIZE;
+		region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart,
+				REGION_SIZE);
+	}
+
+	/**
+	 * Writes any lines held back for compression to the log.
+	 * 
+	 * @throws IOException
+	 *             if the log cannot be written to
+	 */
+	public synchronized void flush() throws IOException {
+		if (closed)
+			return;
+		writeBlock();
+		region.force();
+	}
+
+	/**
+	 * Gets the number of lines recorded.
+	 * 
+	 * @return the number of lines
+	 */
+	public synchronized long getLineCount() {
+		return lines;
+	}
+
+	/**
+	 * Flushes the log, marks its end and trims the unused part of the last
+	 * region.
+	 */
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		try {
+			writeBlock();
+			region.put(END);
+			region.force();
+			channel.truncate(regionStart + region.position());
+		} finally {
+			closeQuietly();
+		}
+	}
+
+	private void closeQuietly() {
+		closed = true;
+		if (deflater != null)
+			deflater.end();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Could not close recording", e);
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package com.speed.irc.connection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads back a log written by a {@link TrafficRecorder}, one line at a time.
+ * The log is mapped into memory a region at a time.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class TrafficRecording implements Closeable {
+	private final FileChannel channel;
+	private final long size, startTime;
+	private final int regionSize;
+	private final boolean compressed;
+	private final Inflater inflater;
+	private final List<String> servers = new ArrayList<String>();
+	private ByteBuffer region, block;
+	private byte[] inflated = new byte[TrafficRecorder.BLOCK_SIZE * 2];
+	private long regionStart, time;
+	private boolean ended;
+
+	/**
+	 * A recorded line.
+	 */
+	public static final class Entry {
+		private final long time;
+		private final String server, line;
+
+		private Entry(final long time, final String server, final String line) {
+			this.time = time;
+			this.server = server;
+			this.line = line;
+		}
+
+		/**
+		 * Gets the time the line was read at.
+		 * 
+		 * @return nanoseconds since the recording started
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Gets the server the line was read from.
+		 * 
+		 * @return the server's address and port, e.g.
+		 *         <tt>irc.example.net:6667</tt>
+		 */
+		public String getServer() {
+			return server;
+		}
+
+		/**
+		 * Gets the line as it was read.
+		 * 
+		 * @return the line, without CR-LF
+		 */
+		public String getLine() {
+			return line;
+		}
+	}
+
+	/**
+	 * Opens a recording.
+	 * 
+	 * @param file
+	 *            the recording
+	 * @throws IOException
+	 *             if the file cannot be read or is not a recording
+	 */
+	public TrafficRecording(final Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		size = channel.size();
+		if (size < TrafficRecorder.HEADER_SIZE)
+			throw new IOException("not a traffic recording");
+		final ByteBuffer header = ByteBuffer
+				.allocate(TrafficRecorder.HEADER_SIZE);
+		channel.read(header, 0);
+		header.flip();
+		final byte[] magic = new byte[4];
+		header.get(magic);
+		if (!Arrays.equals(magic, TrafficRecorder.MAGIC)
+				|| header.get() != TrafficRecorder.VERSION) {
+			channel.close();
+			throw new IOException("not a traffic recording");
+		}
+		compressed = (header.get() & TrafficRecorder.FLAG_COMPRESSED) != 0;
+		header.getShort();
+		regionSize = header.getInt();
+		startTime = header.getLong();
+		inflater = compressed ? new Inflater() : null;
+		map(0);
+		region.position(TrafficRecorder.HEADER_SIZE);
+	}
+
+	private void map(final long start) throws IOException {
+		regionStart = start;
+		region = channel.map(FileChannel.MapMode.READ_ONLY, start,
+				Math.min(regionSize, size - start));
+	}
+
+	/**
+	 * Gets the wall clock time the recording was started at.
+	 * 
+	 * @return the time in milliseconds since the epoch
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Checks whether the lines were compressed.
+	 * 
+	 * @return <tt>true</tt> if the recording is compressed
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Reads the next line.
+	 * 
+	 * @return the line, or <tt>null</tt> at the end of the recording
+	 * @throws IOException
+	 *             if the recording cannot be read or is corrupt
+	 */
+	public Entry next() throws IOException {
+		while (!ended) {
+			if (block != null && block.hasRemaining()) {
+				final Entry entry = read(block);
+				if (entry != null)
+					return entry;
+				continue;
+			}
+			if (!region.hasRemaining()) {
+				ended = true;
+				break;
+			}
+			final byte tag = region.get(region.position());
+			if (tag == TrafficRecorder.END) {
+				ended = true;
+			} else if (tag == TrafficRecorder.NEXT) {
+				final long next = regionStart + regionSize;
+				if (next >= size)
+					ended = true;
+				else
+					map(next);
+			} else if (tag == TrafficRecorder.BLOCK) {
+				region.get();
+				inflate();
+			} else {
+				final Entry entry = read(region);
+				if (entry != null)
+					return entry;
+			}
+		}
+		return null;
+	}
+
+	private void inflate() throws IOException {
+		final int rawLength = (int) TrafficRecorder.getVarint(region);
+		final int length = (int) TrafficRecorder.getVarint(region);
+		final byte[] input = new byte[length];
+		region.get(input);
+		if (inflated.length < rawLength)
+			inflated = new byte[rawLength];
+		inflater.reset();
+		inflater.setInput(input);
+		try {
+			int read = 0;
+			while (read < rawLength && !inflater.finished()) {
+				final int n = inflater.inflate(inflated, read, rawLength - read);
+				if (n == 0 && inflater.needsInput())
+					break;
+				read += n;
+			}
+			if (read != rawLength)
+				throw new IOException("truncated block");
+		} catch (DataFormatException e) {
+			throw new IOException("corrupt block", e);
+		}
+		block = ByteBuffer.wrap(inflated, 0, rawLength);
+	}
+
+	private Entry read(final ByteBuffer buffer) throws IOException {
+		final byte tag = buffer.get();
+		if (tag == TrafficRecorder.SERVER) {
+			final int id = (int) TrafficRecorder.getVarint(buffer);
+			final String name = string(buffer);
+			while (servers.size() <= id) {
+				servers.add(null);
+			}
+			servers.set(id, name);
+			return null;
+		} else if (tag == TrafficRecorder.RECORD) {
+			time += TrafficRecorder.getVarint(buffer);
+			final int id = (int) TrafficRecorder.getVarint(buffer);
+			return new Entry(time, id < servers.size() ? servers.get(id)
+					: null, string(buffer));
+		}
+		throw new IOException("unknown record type " + tag);
+	}
+
+	private static String string(final ByteBuffer buffer) {
+		final int length = (int) TrafficRecorder.getVarint(buffer);
+		final String s;
+		if (buffer.hasArray()) {
+			s = new String(buffer.array(), buffer.arrayOffset()
+					+ buffer.position(), length, TrafficRecorder.UTF_8);
+			buffer.position(buffer.position() + length);
+		} else {
+			final byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			s = new String(bytes, TrafficRecorder.UTF_8);
+		}
+		return s;
+	}
+
+	public void close() throws IOException {
+		if (inflater != null)
+			inflater.end();
+		channel.close();
+	}
+}
@@ -0,0 +1,142 @@
+package com.speed.irc.connection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.concurrent.locks.LockSupport;
+
+import com.speed.irc.event.ExceptionEvent;
+
+/**
+ * Replays a {@link TrafficRecorder} log into a {@link Server} which reads
+ * from memory instead of a socket, so the whole parse and dispatch pipeline
+ * can be run against real traffic without a network. Lines can be replayed
+ * at their original pace, a multiple of it, or as fast as the server takes
+ * them. What the server sends back is thrown away.
+ * <p/>
+ * Add listeners to {@link #getServer()}'s event manager before calling
+ * {@link #run()}. The server's {@link LagMonitor} is turned off, as nothing
+ * answers its probes.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class TrafficReplay implements Runnable {
+	/**
+	 * The speed at which lines are replayed without any pauses.
+	 */
+	public static final double AS_FAST_AS_POSSIBLE = 0;
+	private final Path recording;
+	private final double speed;
+	private final MemorySocket socket;
+	private final Server server;
+	private volatile String filter;
+	private volatile long replayed;
+
+	/**
+	 * Creates a replay and the server it feeds.
+	 * 
+	 * @param recording
+	 *            the recording to replay
+	 * @param speed
+	 *            1 to replay at the original pace, 2 to replay twice as fast
+	 *            and so on, or {@link #AS_FAST_AS_POSSIBLE}
+	 * @throws IOException
+	 *             if the server cannot be created
+	 */
+	public TrafficReplay(final Path recording, final double speed)
+			throws IOException {
+		if (speed < 0)
+			throw new IllegalArgumentException("speed must not be negative");
+		this.recording = recording;
+		this.speed = speed;
+		socket = new MemorySocket();
+		server = new Server(socket);
+		server.getLagMonitor().setEnabled(false);
+	}
+
+	/**
+	 * Gets the server the recording is replayed into.
+	 * 
+	 * @return the server
+	 */
+	public Server getServer() {
+		return server;
+	}
+
+	/**
+	 * Only replays the lines of one server, for recordings of several.
+	 * 
+	 * @param server
+	 *            the server's address and port as recorded, or <tt>null</tt>
+	 *            for every server
+	 */
+	public void setServerFilter(final String server) {
+		filter = server;
+	}
+
+	/**
+	 * Gets the number of lines replayed so far.
+	 * 
+	 * @return the number of lines
+	 */
+	public long getLinesReplayed() {
+		return replayed;
+	}
+
+	/**
+	 * Replays the recording and then closes the server's input, so the
+	 * reader stops once it has read every line. Failures are reported as
+	 * {@link com.speed.irc.event.ExceptionEvent}s.
+	 */
+	public void run() {
+		final OutputStream feed = socket.getFeed();
+		try {
+			final TrafficRecording in = new TrafficRecording(recording);
+			try {
+				final long start = System.nanoTime();
+				final String filter = this.filter;
+				TrafficRecording.Entry entry;
+				while ((entry = in.next()) != null) {
+					if (filter != null && !filter.equals(entry.getServer()))
+						continue;
+					if (speed != AS_FAST_AS_POSSIBLE) {
+						final long due = start + (long) (entry.getTime() / speed);
+						long wait;
+						while ((wait = due - System.nanoTime()) > 0) {
+							LockSupport.parkNanos(wait);
+						}
+					}
+					feed.write((entry.getLine() + "\r\n")
+							.getBytes(TrafficRecorder.UTF_8));
+					replayed++;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			server.getEventManager().dispatchEvent(
+					new ExceptionEvent(e, this, server));
+		} finally {
+			try {
+				feed.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
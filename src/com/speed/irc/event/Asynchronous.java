@@ -0,0 +1,48 @@
+package com.speed.irc.event;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Listener classes with this annotation are called on a shared pool of
+ * threads instead of the event thread, through a {@link ListenerMailbox}, so
+ * a listener which blocks does not hold up other listeners. Events are still
+ * delivered to each listener one at a time and in order.
+ * 
+ * This file is part of Speed's IRC API.
+ * 
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ * 
+ */
+@Retention(value = RetentionPolicy.RUNTIME)
+public @interface Asynchronous {
+	/**
+	 * The number of events which can wait for the listener before new events
+	 * are dropped.
+	 */
+	int mailboxSize() default ListenerMailbox.DEFAULT_SIZE;
+
+	/**
+	 * The number of milliseconds the listener can take over one event before
+	 * it is interrupted, or 0 to never interrupt it.
+	 */
+	long timeout() default ListenerMailbox.DEFAULT_TIMEOUT;
+
+	/**
+	 * The number of milliseconds after which an event counts as slow.
+	 */
+	long slowThreshold() default ListenerMailbox.DEFAULT_SLOW_THRESHOLD;
+}
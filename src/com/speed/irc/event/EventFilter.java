@@ -0,0 +1,285 @@
+package com.speed.irc.event;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.speed.irc.types.Channel;
+import com.speed.irc.types.ChannelUser;
+import com.speed.irc.types.Conversable;
+import com.speed.irc.types.Notice;
+import com.speed.irc.types.Privmsg;
+import com.speed.irc.types.RawMessage;
+import com.speed.irc.types.ServerUser;
+import com.speed.irc.util.CaseMapping;
+
+/**
+ * Conditions an event must meet before a handler registered with
+ * {@link EventManager#on(Class, EventFilter, EventHandler)} is called: the
+ * channel it happened in, the mask of its sender, its command and the start
+ * of its message. Filters are immutable; each method returns a new filter
+ * with one more condition.
+ * <p/>
+ * The event manager indexes handlers by the channels and command of their
+ * filters, so handlers whose channel or command does not match an event are
+ * never looked at. Equal filters are only evaluated once per event, however
+ * many handlers use them. Channel names and masks are compared using the
+ * event manager's {@link EventManager#getCaseMapping() case mapping}.
+ * 
+ * This file is part of Speed's IRC API.
+ * 
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ * 
+ */
+public final class EventFilter {
+	/**
+	 * A filter which every event passes.
+	 */
+	public static final EventFilter ANY = new EventFilter(null, null, null,
+			null);
+	private final Set<String> channels;
+	private final String sender, command, prefix;
+
+	private EventFilter(final Set<String> channels, final String sender,
+			final String command, final String prefix) {
+		this.channels = channels;
+		this.sender = sender;
+		this.command = command;
+		this.prefix = prefix;
+	}
+
+	/**
+	 * Only passes events which happened in one of some channels.
+	 * 
+	 * @param channels
+	 *            the names of the channels
+	 * @return the new filter
+	 */
+	public EventFilter inChannels(final String... channels) {
+		final Set<String> set = new LinkedHashSet<String>();
+		for (String channel : channels) {
+			set.add(channel);
+		}
+		return new EventFilter(Collections.unmodifiableSet(set), sender,
+				command, prefix);
+	}
+
+	/**
+	 * Only passes events sent by users matching a mask.
+	 * 
+	 * @param mask
+	 *            the mask, such as <tt>*!*@example.com</tt>, where <tt>*</tt>
+	 *            matches any number of characters and <tt>?</tt> any one
+	 *            character
+	 * @return the new filter
+	 */
+	public EventFilter fromSender(final String mask) {
+		return new EventFilter(channels, mask, command, prefix);
+	}
+
+	/**
+	 * Only passes events for a command, such as <tt>PRIVMSG</tt> or a
+	 * numeric.
+	 * 
+	 * @param command
+	 *            the command
+	 * @return the new filter
+	 */
+	public EventFilter withCommand(final String command) {
+		return new EventFilter(channels, sender, command.toUpperCase(), prefix);
+	}
+
+	/**
+	 * Only passes messages and notices whose text starts with a prefix.
+	 * 
+	 * @param prefix
+	 *            the prefix
+	 * @return the new filter
+	 */
+	public EventFilter withPrefix(final String prefix) {
+		return new EventFilter(channels, sender, command, prefix);
+	}
+
+	Set<String> getChannels() {
+		return channels;
+	}
+
+	String getCommand() {
+		return command;
+	}
+
+	/**
+	 * Checks an event against the filter.
+	 * 
+	 * @param e
+	 *            the event
+	 * @param channel
+	 *            the folded name of the event's channel, or <tt>null</tt>
+	 * @param command
+	 *            the event's command, or <tt>null</tt>
+	 * @param mapping
+	 *            the case mapping to compare names with
+	 * @return <tt>true</tt> if the event passes
+	 */
+	boolean matches(final IRCEvent e, final String channel,
+			final String command, final CaseMapping mapping) {
+		if (channels != null && !contains(channels, channel, mapping))
+			return false;
+		if (this.command != null && !this.command.equals(command))
+			return false;
+		if (prefix != null) {
+			final String text = getText(e);
+			if (text == null || !text.startsWith(prefix))
+				return false;
+		}
+		if (sender != null) {
+			final String mask = getSender(e);
+			if (mask == null || !mapping.matches(sender, mask))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean contains(final Set<String> channels,
+			final String channel, final CaseMapping mapping) {
+		if (channel == null)
+			return false;
+		for (String c : channels) {
+			if (mapping.equals(c, channel))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the folded name of the channel an event happened in.
+	 */
+	static String getChannel(final IRCEvent e, final CaseMapping mapping) {
+		String name = null;
+		if (e instanceof ChannelEvent) {
+			final Channel channel = ((ChannelEvent) e).getChannel();
+			name = channel == null ? null : channel.getName();
+		} else if (e instanceof PrivateMessageEvent) {
+			final Conversable c = ((PrivateMessageEvent) e).getMessage()
+					.getConversable();
+			name = c instanceof Channel ? c.getName() : null;
+		} else if (e instanceof NoticeEvent) {
+			name = ((NoticeEvent) e).getNotice().getTargetName();
+		} else if (e instanceof RawMessageEvent) {
+			name = ((RawMessageEvent) e).getMessage().getTarget();
+			if (name != null && name.startsWith(":"))
+				name = name.substring(1);
+		}
+		if (name == null || name.isEmpty()
+				|| (name.charAt(0) != '#' && name.charAt(0) != '&'))
+			return null;
+		return mapping.fold(name);
+	}
+
+	/**
+	 * Gets the command of an event.
+	 */
+	static String getCommand(final IRCEvent e) {
+		if (e instanceof PrivateMessageEvent)
+			return "PRIVMSG";
+		if (e instanceof NoticeEvent)
+			return "NOTICE";
+		if (e instanceof RawMessageEvent)
+			return ((RawMessageEvent) e).getMessage().getCommand();
+		return null;
+	}
+
+	private static String getText(final IRCEvent e) {
+		if (e instanceof PrivateMessageEvent)
+			return ((PrivateMessageEvent) e).getMessage().getMessage();
+		if (e instanceof NoticeEvent)
+			return ((NoticeEvent) e).getNotice().getMessage();
+		if (e instanceof RawMessageEvent) {
+			final String raw = ((RawMessageEvent) e).getMessage().getRaw();
+			final int colon = raw.indexOf(" :");
+			return colon == -1 ? null : raw.substring(colon + 2);
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the nick!user@host of the sender of an event. The user and host
+	 * are empty if they are not known.
+	 */
+	private static String getSender(final IRCEvent e) {
+		if (e instanceof RawMessageEvent)
+			return ((RawMessageEvent) e).getMessage().getSender();
+		if (e instanceof ChannelUserEvent) {
+			final ChannelUser user = ((ChannelUserEvent) e).getUser();
+			return user == null ? null : mask(user.getNick(), user.getUser(),
+					user.getHost());
+		}
+		String nick = null;
+		ServerUser user = null;
+		if (e instanceof PrivateMessageEvent) {
+			final Privmsg message = ((PrivateMessageEvent) e).getMessage();
+			nick = message.getSender();
+			final Conversable conversable = message.getConversable();
+			if (conversable instanceof ServerUser) {
+				// a private message's conversable is its sender, made from
+				// the prefix of the message
+				user = (ServerUser) conversable;
+			} else if (conversable instanceof Channel && nick != null) {
+				user = ((Channel) conversable).getServer().findUser(nick);
+			}
+		} else if (e instanceof NoticeEvent) {
+			final Notice notice = ((NoticeEvent) e).getNotice();
+			nick = notice.getSenderNick();
+			if (nick != null && notice.getServer() != null)
+				user = notice.getServer().findUser(nick);
+		}
+		if (nick == null)
+			return null;
+		return user == null ? nick + "!@" : mask(nick, user.getUser(),
+				user.getHost());
+	}
+
+	private static String mask(final String nick, final String user,
+			final String host) {
+		return nick + '!' + (user == null ? "" : user) + '@'
+				+ (host == null ? "" : host);
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		if (!(o instanceof EventFilter))
+			return false;
+		final EventFilter f = (EventFilter) o;
+		return equal(channels, f.channels) && equal(sender, f.sender)
+				&& equal(command, f.command) && equal(prefix, f.prefix);
+	}
+
+	private static boolean equal(final Object a, final Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(new Object[] { channels, sender, command, prefix });
+	}
+
+	@Override
+	public String toString() {
+		return "EventFilter[channels=" + channels + ", sender=" + sender
+				+ ", command=" + command + ", prefix=" + prefix + "]";
+	}
+}
@@ -1,9 +1,30 @@
 package com.speed.irc.event;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+import com.speed.irc.jfr.EventDispatched;
+import com.speed.irc.types.Channel;
+import com.speed.irc.types.Notice;
+import com.speed.irc.types.Privmsg;
+import com.speed.irc.types.RawMessage;
+import com.speed.irc.util.CaseMapping;
+import com.speed.irc.util.Numerics;
 
 /**
  * Manages events.
@@ -28,7 +49,24 @@ import java.util.concurrent.LinkedBlockingQueue;
 public class EventManager implements Runnable {
 
 	private List<IRCEventListener> listeners = new CopyOnWriteArrayList<IRCEventListener>();
-	private BlockingQueue<IRCEvent> eventQueue = new LinkedBlockingQueue<IRCEvent>();
+	private BlockingQueue<Object> eventQueue = new LinkedBlockingQueue<Object>();
+	private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+	private final Map<Class<?>, SubscriptionIndex> resolved = new ConcurrentHashMap<Class<?>, SubscriptionIndex>();
+	private long order;
+	private final Map<Class<?>, Boolean> interest = new ConcurrentHashMap<Class<?>, Boolean>();
+	private volatile int interestVersion;
+	private volatile ExecutorService[] shards;
+	private final Object shardLock = new Object();
+	private boolean pending;
+	private Map<IRCEventListener, ListenerMailbox> mailboxes = new ConcurrentHashMap<IRCEventListener, ListenerMailbox>();
+	private final Object pauseLock = new Object();
+	private int pauses;
+	private EventPublisher<IRCEvent> publisher;
+	private volatile LatencyMetrics latency;
+	private volatile boolean dispatchPaused;
+	private volatile CaseMapping caseMapping = CaseMapping.RFC1459;
+	private volatile boolean coalescedOnly;
+	private final EventManagerMetrics metrics = new EventManagerMetrics(this);
 
 	/**
 	 * @deprecated see {@link #dispatchEvent(IRCEvent)} instead
@@ -45,7 +83,46 @@ public class EventManager implements Runnable {
 	 *            the event to be processed by the event queue.
 	 */
 	public synchronized void dispatchEvent(final IRCEvent event) {
-		eventQueue.add(event);
+		if (latency == null)
+			eventQueue.add(event);
+		else
+			eventQueue.add(new Stamped(event, System.nanoTime()));
+	}
+
+	/**
+	 * An event queued while latency tracking was enabled, with the time it
+	 * was queued.
+	 */
+	private static class Stamped {
+		private final IRCEvent event;
+		private final long queued;
+
+		private Stamped(final IRCEvent event, final long queued) {
+			this.event = event;
+			this.queued = queued;
+		}
+	}
+
+	/**
+	 * Turns the collection of latency metrics on or off. While it is off, no
+	 * timestamps are taken and nothing is recorded.
+	 * 
+	 * @param on
+	 *            <tt>true</tt> to collect metrics, starting from empty
+	 *            histograms
+	 */
+	public synchronized void setLatencyTracking(final boolean on) {
+		if (on != (latency != null))
+			latency = on ? new LatencyMetrics() : null;
+	}
+
+	/**
+	 * Gets the latency metrics being collected.
+	 * 
+	 * @return the metrics, or <tt>null</tt> if latency tracking is off
+	 */
+	public LatencyMetrics getLatencyMetrics() {
+		return latency;
 	}
 
 	/**
@@ -55,13 +132,623 @@ public class EventManager implements Runnable {
 	 *            the listener to be added to this event manager
 	 */
 	public synchronized void addListener(final IRCEventListener listener) {
-		listeners.add(listener);
+		final Asynchronous async = listener.getClass().getAnnotation(
+				Asynchronous.class);
+		if (async != null) {
+			addListener(listener, async.mailboxSize(), async.timeout(),
+					async.slowThreshold());
+		} else {
+			listeners.add(listener);
+			interestChanged();
+		}
+	}
+
+	/**
+	 * Adds an event listener which is called on a shared pool of threads
+	 * instead of the event thread, through its own mailbox. Events are
+	 * delivered to the listener one at a time and in order.
+	 * 
+	 * @param listener
+	 *            the listener to be added to this event manager
+	 * @param mailboxSize
+	 *            the number of events which can wait for the listener before
+	 *            new events are dropped
+	 * @param timeout
+	 *            the number of milliseconds the listener can take over one
+	 *            event before it is interrupted, or 0 for no limit
+	 * @param slowThreshold
+	 *            the number of milliseconds after which an event counts as
+	 *            slow
+	 * @return the listener's mailbox, which keeps its metrics
+	 */
+	public synchronized ListenerMailbox addListener(
+			final IRCEventListener listener, final int mailboxSize,
+			final long timeout, final long slowThreshold) {
+		final ListenerMailbox mailbox = new ListenerMailbox(this, listener,
+				mailboxSize, timeout, slowThreshold);
+		final ListenerMailbox old = mailboxes.put(listener, mailbox);
+		if (old != null)
+			old.close();
+		else
+			listeners.add(listener);
+		interestChanged();
+		return mailbox;
+	}
+
+	/**
+	 * Checks whether anything would receive an event of a type, so that event
+	 * generators can avoid creating events nobody is listening for. The
+	 * answer is cached until listeners or handlers are added or removed.
+	 * 
+	 * @param type
+	 *            the class of event
+	 * @return <tt>true</tt> if a listener or handler would receive the event
+	 */
+	public boolean hasSubscribers(final Class<? extends IRCEvent> type) {
+		final Boolean cached = interest.get(type);
+		if (cached != null)
+			return cached;
+		final int version = interestVersion;
+		boolean found = !getSubscriptions(type).isEmpty();
+		for (int i = 0; !found && i < listeners.size(); i++) {
+			found = listensTo(listeners.get(i), type);
+		}
+		synchronized (interest) {
+			if (version == interestVersion)
+				interest.put(type, found);
+		}
+		return found;
+	}
+
+	private void interestChanged() {
+		synchronized (interest) {
+			interestVersion++;
+			interest.clear();
+		}
+	}
+
+	private static boolean listensTo(final IRCEventListener listener,
+			final Class<?> type) {
+		for (Class<?> clz : listener.getClass().getInterfaces()) {
+			final ListenerProperties properties = clz
+					.getAnnotation(ListenerProperties.class);
+			if (properties == null)
+				continue;
+			for (Class<? extends IRCEvent> clazz : properties.events()) {
+				if (type.isAssignableFrom(clazz))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Registers a handler for a type of event. The handler is also called for
+	 * subclasses of the type.
+	 * 
+	 * @param type
+	 *            the type of event to handle
+	 * @param handler
+	 *            the handler
+	 * @return the subscription, which can be cancelled to remove the handler
+	 */
+	public <E extends IRCEvent> Subscription on(final Class<E> type,
+			final EventHandler<? super E> handler) {
+		return on(type, EventFilter.ANY, handler);
+	}
+
+	/**
+	 * Registers a handler for a type of event, which is only called for
+	 * events which pass a filter. The handler is also called for subclasses
+	 * of the type.
+	 * 
+	 * @param type
+	 *            the type of event to handle
+	 * @param filter
+	 *            the filter events must pass
+	 * @param handler
+	 *            the handler
+	 * @return the subscription, which can be cancelled to remove the handler
+	 */
+	@SuppressWarnings("unchecked")
+	public <E extends IRCEvent> Subscription on(final Class<E> type,
+			final EventFilter filter, final EventHandler<? super E> handler) {
+		synchronized (subscriptions) {
+			final Subscription subscription = new Subscription(this, type,
+					filter, (EventHandler<IRCEvent>) handler, order++);
+			subscriptions.add(subscription);
+			resolved.clear();
+			interestChanged();
+			return subscription;
+		}
+	}
+
+	/**
+	 * Registers every method of an object annotated with {@link Subscribe}.
+	 * Each method is bound once, when it is registered, so no reflection is
+	 * used when events are dispatched.
+	 * 
+	 * @param target
+	 *            the object whose methods should be registered
+	 * @return a subscription which removes all the object's handlers when it
+	 *         is cancelled
+	 * @throws IllegalArgumentException
+	 *             if an annotated method does not take a single event
+	 *             parameter, or cannot be accessed
+	 */
+	@SuppressWarnings("unchecked")
+	public Subscription subscribe(final Object target) {
+		final List<Subscription> parts = new ArrayList<Subscription>();
+		final MethodHandles.Lookup lookup = MethodHandles.lookup();
+		for (Class<?> c = target.getClass(); c != null && c != Object.class; c = c
+				.getSuperclass()) {
+			for (final Method method : c.getDeclaredMethods()) {
+				if (method.getAnnotation(Subscribe.class) == null)
+					continue;
+				final Class<?>[] params = method.getParameterTypes();
+				if (params.length != 1
+						|| !IRCEvent.class.isAssignableFrom(params[0]))
+					throw new IllegalArgumentException(method
+							+ " must take a single event parameter");
+				final MethodHandle handle;
+				try {
+					method.setAccessible(true);
+					handle = lookup.unreflect(method).bindTo(target)
+							.asType(MethodType.methodType(void.class,
+									IRCEvent.class));
+				} catch (Exception e) {
+					throw new IllegalArgumentException("cannot access "
+							+ method, e);
+				}
+				parts.add(on((Class<IRCEvent>) params[0],
+						getFilter(method.getAnnotation(Subscribe.class)),
+						new MethodHandler(handle, method)));
+			}
+		}
+		return new Subscription(this, parts.toArray(new Subscription[parts
+				.size()]));
+	}
+
+	private static EventFilter getFilter(final Subscribe subscribe) {
+		EventFilter filter = EventFilter.ANY;
+		if (subscribe.channels().length > 0)
+			filter = filter.inChannels(subscribe.channels());
+		if (!subscribe.sender().isEmpty())
+			filter = filter.fromSender(subscribe.sender());
+		if (!subscribe.command().isEmpty())
+			filter = filter.withCommand(subscribe.command());
+		if (!subscribe.prefix().isEmpty())
+			filter = filter.withPrefix(subscribe.prefix());
+		return filter;
+	}
+
+	void unsubscribe(final Subscription subscription) {
+		if (subscription.getParts() != null) {
+			for (Subscription part : subscription.getParts()) {
+				part.cancel();
+			}
+			return;
+		}
+		synchronized (subscriptions) {
+			if (subscriptions.remove(subscription))
+				resolved.clear();
+			interestChanged();
+		}
+	}
+
+	/**
+	 * Gets the handlers for an event class, including those registered for
+	 * its superclasses and interfaces, in the order they were registered. The
+	 * index is cached until handlers are added or removed.
+	 */
+	private SubscriptionIndex getSubscriptions(final Class<?> type) {
+		SubscriptionIndex index = resolved.get(type);
+		if (index == null) {
+			synchronized (subscriptions) {
+				final List<Subscription> list = new ArrayList<Subscription>();
+				for (Subscription subscription : subscriptions) {
+					if (subscription.getType().isAssignableFrom(type))
+						list.add(subscription);
+				}
+				index = list.isEmpty() ? SubscriptionIndex.EMPTY
+						: new SubscriptionIndex(list, caseMapping);
+				resolved.put(type, index);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Passes an event to a handler, dispatching any exception it throws as an
+	 * {@link ExceptionEvent}.
+	 */
+	void deliver(final Subscription subscription, final IRCEvent e) {
+		final LatencyMetrics latency = this.latency;
+		final EventDispatched dispatched = new EventDispatched();
+		dispatched.begin();
+		final long start = latency == null ? 0 : System.nanoTime();
+		try {
+			subscription.deliver(e);
+		} catch (Exception e1) {
+			if (!(e instanceof ExceptionEvent))
+				this.dispatchEvent(new ExceptionEvent(e1, subscription, null));
+			else
+				e1.printStackTrace();
+		} finally {
+			if (subscription.getHandler() != null) {
+				final EventHandler<IRCEvent> handler = subscription
+						.getHandler();
+				final Class<?> type = handler instanceof MethodHandler ? ((MethodHandler) handler).method
+						.getDeclaringClass() : handler.getClass();
+				if (latency != null)
+					latency.recordListener(type, System.nanoTime() - start);
+				dispatched.record(e, type);
+			}
+		}
+	}
+
+	/**
+	 * Calls a method through a method handle bound to its object.
+	 */
+	private static class MethodHandler implements EventHandler<IRCEvent> {
+		private final MethodHandle handle;
+		private final Method method;
+
+		private MethodHandler(final MethodHandle handle, final Method method) {
+			this.handle = handle;
+			this.method = method;
+		}
+
+		public void handle(final IRCEvent e) {
+			try {
+				handle.invokeExact(e);
+			} catch (RuntimeException ex) {
+				throw ex;
+			} catch (Error ex) {
+				throw ex;
+			} catch (Throwable t) {
+				throw new RuntimeException(t);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return method.toString();
+		}
+	}
+
+	/**
+	 * Gets a publisher of every event, which buffers up to
+	 * {@link EventPublisher#DEFAULT_CAPACITY} events for each subscriber and
+	 * drops the oldest when a subscriber falls further behind.
+	 * 
+	 * @return the publisher
+	 */
+	public synchronized EventPublisher<IRCEvent> getPublisher() {
+		if (publisher == null)
+			publisher = publisher(IRCEvent.class,
+					EventPublisher.DEFAULT_CAPACITY,
+					EventPublisher.Overflow.DROP_OLDEST);
+		return publisher;
+	}
+
+	/**
+	 * Creates a publisher of a type of event, including its subclasses.
+	 * 
+	 * @param type
+	 *            the type of event to publish
+	 * @param capacity
+	 *            the number of events which can be buffered for each
+	 *            subscriber
+	 * @param overflow
+	 *            what to do when a subscriber's buffer is full
+	 * @return the publisher
+	 */
+	public <E extends IRCEvent> EventPublisher<E> publisher(
+			final Class<E> type, final int capacity,
+			final EventPublisher.Overflow overflow) {
+		return new EventPublisher<E>(this, type, capacity, overflow);
+	}
+
+	void pause() {
+		synchronized (pauseLock) {
+			pauses++;
+		}
+	}
+
+	void resume() {
+		synchronized (pauseLock) {
+			if (--pauses == 0)
+				pauseLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Checks whether a subscriber has asked for reading from the server to be
+	 * paused until it has caught up.
+	 * 
+	 * @return <tt>true</tt> if reading is paused
+	 */
+	public boolean isPaused() {
+		synchronized (pauseLock) {
+			return pauses > 0;
+		}
+	}
+
+	/**
+	 * Waits until reading from the server is no longer paused.
+	 * 
+	 * @param timeout
+	 *            the longest time to wait, in milliseconds
+	 * @return <tt>true</tt> if reading is no longer paused
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public boolean awaitResumed(final long timeout) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		synchronized (pauseLock) {
+			long remaining = timeout;
+			while (pauses > 0 && remaining > 0) {
+				pauseLock.wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+			return pauses == 0;
+		}
+	}
+
+	/**
+	 * Gets the mailbox of an asynchronous listener.
+	 * 
+	 * @param listener
+	 *            the listener
+	 * @return the listener's mailbox, or <tt>null</tt> if the listener is
+	 *         called on the event thread
+	 */
+	public ListenerMailbox getMailbox(final IRCEventListener listener) {
+		return mailboxes.get(listener);
+	}
+
+	/**
+	 * Gets the mailboxes of all asynchronous listeners.
+	 * 
+	 * @return the mailboxes
+	 */
+	public Collection<ListenerMailbox> getMailboxes() {
+		return Collections.unmodifiableCollection(mailboxes.values());
+	}
+
+	/**
+	 * Sets the number of threads events are dispatched on. With more than one
+	 * thread, events are sharded by their dispatch key (see
+	 * {@link #getDispatchKey(IRCEvent)}): events with the same key are
+	 * dispatched in the order they were received, while events with different
+	 * keys may be dispatched at the same time, so listeners must be
+	 * thread-safe. Events without a key act as barriers: they are dispatched
+	 * on their own once every earlier event has been dispatched.
+	 * 
+	 * @param threads
+	 *            the number of dispatch threads, 1 to dispatch every event on
+	 *            the event thread
+	 */
+	public void setDispatchThreads(final int threads) {
+		synchronized (shardLock) {
+			final ExecutorService[] old = shards;
+			if (old != null) {
+				barrier(old);
+				for (ExecutorService shard : old) {
+					shard.shutdown();
+				}
+			}
+			shards = threads <= 1 ? null : createShards(threads);
+		}
+	}
+
+	private static ExecutorService[] createShards(final int threads) {
+		final ExecutorService[] created = new ExecutorService[threads];
+		for (int i = 0; i < threads; i++) {
+			final String name = "Event dispatcher " + (i + 1);
+			created[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return created;
+	}
+
+	/**
+	 * Gets the number of threads events are dispatched on.
+	 * 
+	 * @return the number of dispatch threads
+	 */
+	public int getDispatchThreads() {
+		final ExecutorService[] s = shards;
+		return s == null ? 1 : s.length;
+	}
+
+	/**
+	 * Checks whether changes reported by a {@link ModeChangeEvent} or
+	 * {@link NetsplitEvent} are kept from also being reported by the older
+	 * per-line events.
+	 * 
+	 * @return <tt>true</tt> if only the coalesced events are dispatched
+	 */
+	public boolean isCoalescedOnly() {
+		return coalescedOnly;
+	}
+
+	/**
+	 * Sets whether changes reported by a {@link ModeChangeEvent} or
+	 * {@link NetsplitEvent} are kept from also being reported by the older
+	 * per-line events: the {@link ChannelEvent#MODE_CHANGED} and
+	 * {@link ChannelUserEvent#USER_MODE_CHANGED} events of a MODE line, and
+	 * the {@link ChannelUserEvent#USER_JOINED} events of a netjoin. Off by
+	 * default, so listeners of the older events are told about every change.
+	 * 
+	 * @param on
+	 *            <tt>true</tt> to dispatch only the coalesced events
+	 */
+	public void setCoalescedOnly(final boolean on) {
+		coalescedOnly = on;
+	}
+
+	/**
+	 * Gets the case mapping channel names, nicks and sender masks are
+	 * compared with when filtering and ordering events.
+	 * 
+	 * @return the case mapping, {@link CaseMapping#RFC1459} until the server
+	 *         advertises another
+	 */
+	public CaseMapping getCaseMapping() {
+		return caseMapping;
+	}
+
+	/**
+	 * Sets the case mapping channel names, nicks and sender masks are
+	 * compared with. Called by the server when it learns its CASEMAPPING.
+	 * 
+	 * @param mapping
+	 *            the case mapping
+	 */
+	public void setCaseMapping(final CaseMapping mapping) {
+		synchronized (subscriptions) {
+			if (caseMapping == mapping)
+				return;
+			caseMapping = mapping;
+			resolved.clear();
+		}
+	}
+
+	/**
+	 * Gets the key used to keep events in order when they are dispatched on
+	 * several threads: the channel an event happened in, or the nick of the
+	 * user for private messages and notices. Other lines from the server
+	 * share one key. Server-wide events, such as NICK, QUIT, ISUPPORT and API
+	 * events, have no key and act as barriers.
+	 * 
+	 * @param e
+	 *            the event
+	 * @return the key, or <tt>null</tt> if the event is a barrier
+	 */
+	protected String getDispatchKey(final IRCEvent e) {
+		String key = null;
+		if (e instanceof ChannelEvent) {
+			final Channel channel = ((ChannelEvent) e).getChannel();
+			key = channel == null ? null : channel.getName();
+		} else if (e instanceof PrivateMessageEvent) {
+			final Privmsg message = ((PrivateMessageEvent) e).getMessage();
+			key = message.getConversable() == null ? message.getSender()
+					: message.getConversable().getName();
+		} else if (e instanceof NoticeEvent) {
+			final Notice notice = ((NoticeEvent) e).getNotice();
+			key = isChannel(notice.getTargetName()) ? notice.getTargetName()
+					: notice.getSenderNick();
+		} else if (e instanceof RawMessageEvent) {
+			key = getDispatchKey(((RawMessageEvent) e).getMessage());
+		}
+		return key == null ? null : caseMapping.fold(key);
+	}
+
+	private static String getDispatchKey(final RawMessage message) {
+		final String command = message.getCommand();
+		if (command.equals("NICK") || command.equals("QUIT")
+				|| command.equals("ERROR") || command.equals("CAP")
+				|| command.equals(Numerics.SERVER_SUPPORT)
+				|| command.equals(Numerics.WELCOME))
+			return null;
+		String target = message.getTarget();
+		if (target != null && target.startsWith(":"))
+			target = target.substring(1);
+		if (isChannel(target))
+			return target;
+		if (command.equals("PRIVMSG") || command.equals("NOTICE")) {
+			final String sender = message.getSender();
+			final int bang = sender.indexOf('!');
+			return bang == -1 ? sender : sender.substring(0, bang);
+		}
+		return "";
+	}
+
+	private static boolean isChannel(final String target) {
+		return target != null && !target.isEmpty()
+				&& (target.charAt(0) == '#' || target.charAt(0) == '&');
+	}
+
+	/**
+	 * Waits for every event already given to the shards to be dispatched.
+	 */
+	private void barrier(final ExecutorService[] shards) {
+		if (!pending)
+			return;
+		final CountDownLatch latch = new CountDownLatch(shards.length);
+		for (ExecutorService shard : shards) {
+			shard.execute(new Runnable() {
+				public void run() {
+					latch.countDown();
+				}
+			});
+		}
+		try {
+			latch.await();
+			pending = false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	public void run() {
-		IRCEvent e = null;
-		e = eventQueue.poll();
+		if (dispatchPaused)
+			return;
+		if (shards == null) {
+			Object e;
+			while (!dispatchPaused && (e = eventQueue.poll()) != null) {
+				dispatch(e);
+			}
+			return;
+		}
+		synchronized (shardLock) {
+			final ExecutorService[] s = shards;
+			Object e;
+			while (s != null && !dispatchPaused
+					&& (e = eventQueue.poll()) != null) {
+				final String key = getDispatchKey(e instanceof Stamped ? ((Stamped) e).event
+						: (IRCEvent) e);
+				if (key == null) {
+					barrier(s);
+					dispatch(e);
+				} else {
+					final Object event = e;
+					pending = true;
+					s[(key.hashCode() & Integer.MAX_VALUE) % s.length]
+							.execute(new Runnable() {
+								public void run() {
+									dispatch(event);
+								}
+							});
+				}
+			}
+		}
+	}
+
+	private void dispatch(final Object queued) {
+		final IRCEvent e;
+		if (queued instanceof Stamped) {
+			final Stamped stamped = (Stamped) queued;
+			final LatencyMetrics latency = this.latency;
+			if (latency != null)
+				latency.record(LatencyMetrics.Stage.GENERATE_TO_DISPATCH,
+						System.nanoTime() - stamped.queued);
+			e = stamped.event;
+		} else {
+			e = (IRCEvent) queued;
+		}
 		if (e != null) {
+			metrics.dispatched.increment();
+			final SubscriptionIndex index = getSubscriptions(e.getClass());
+			if (!index.isEmpty())
+				index.dispatch(e, this);
 			for (IRCEventListener listener : listeners) {
 				for (Class<?> clz : listener.getClass().getInterfaces()) {
 					if (clz.getAnnotation(ListenerProperties.class) == null) {
@@ -73,7 +760,7 @@ public class EventManager implements Runnable {
 							for (Class<? extends IRCEvent> clazz : properties
 									.events()) {
 								if (e.getClass().isAssignableFrom(clazz)) {
-									e.callListener(listener);
+									deliver(e, listener);
 								}
 							}
 						} catch (Exception e1) {
@@ -86,6 +773,103 @@ public class EventManager implements Runnable {
 		}
 	}
 
+	private void deliver(final IRCEvent e, final IRCEventListener listener) {
+		final ListenerMailbox mailbox = mailboxes.get(listener);
+		if (mailbox != null) {
+			mailbox.offer(e);
+			return;
+		}
+		final LatencyMetrics latency = this.latency;
+		final EventDispatched dispatched = new EventDispatched();
+		dispatched.begin();
+		final long start = latency == null ? 0 : System.nanoTime();
+		try {
+			e.callListener(listener);
+		} finally {
+			if (latency != null)
+				latency.recordListener(listener.getClass(), System.nanoTime()
+						- start);
+			dispatched.record(e, listener.getClass());
+		}
+	}
+
+	/**
+	 * Stops or resumes dispatching events. While dispatch is paused, events
+	 * are kept in the queue.
+	 * 
+	 * @param paused
+	 *            <tt>true</tt> to pause dispatch
+	 */
+	public void setDispatchPaused(final boolean paused) {
+		dispatchPaused = paused;
+	}
+
+	/**
+	 * Checks whether dispatch has been paused.
+	 * 
+	 * @return <tt>true</tt> if events are not being dispatched
+	 */
+	public boolean isDispatchPaused() {
+		return dispatchPaused;
+	}
+
+	/**
+	 * Gets the counters of this event manager, which can be registered with
+	 * an MBean server.
+	 * 
+	 * @return the metrics
+	 */
+	public EventManagerMetrics getMetrics() {
+		return metrics;
+	}
+
+	int getQueueSize() {
+		return eventQueue.size();
+	}
+
+	int getListenerCount() {
+		return listeners.size();
+	}
+
+	int getSubscriptionCount() {
+		synchronized (subscriptions) {
+			return subscriptions.size();
+		}
+	}
+
+	/**
+	 * Describes the listeners, handlers and queues of this event manager.
+	 * 
+	 * @return the description
+	 */
+	public String dumpState() {
+		final StringBuilder builder = new StringBuilder();
+		builder.append("queued: ").append(eventQueue.size())
+				.append(", dispatched: ").append(metrics.getEventsDispatched())
+				.append(", dispatch threads: ").append(getDispatchThreads());
+		if (dispatchPaused)
+			builder.append(", dispatch paused");
+		if (isPaused())
+			builder.append(", reading paused");
+		builder.append('\n');
+		for (IRCEventListener listener : listeners) {
+			final ListenerMailbox mailbox = mailboxes.get(listener);
+			builder.append("listener ").append(
+					mailbox == null ? listener.getClass().getName() : mailbox
+							.toString());
+			builder.append('\n');
+		}
+		synchronized (subscriptions) {
+			for (Subscription subscription : subscriptions) {
+				builder.append("handler ").append(subscription).append('\n');
+			}
+		}
+		final LatencyMetrics latency = this.latency;
+		if (latency != null)
+			builder.append(latency);
+		return builder.toString();
+	}
+
 	/**
 	 * Clears the queue of events to be processed.
 	 */
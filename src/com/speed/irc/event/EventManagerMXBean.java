@@ -0,0 +1,87 @@
+package com.speed.irc.event;
+
+/**
+ * The management interface of an {@link EventManager}, registered with the
+ * platform MBean server by each {@link com.speed.irc.connection.Server}.
+ * 
+ * This file is part of Speed's IRC API.
+ * 
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ * 
+ */
+public interface EventManagerMXBean {
+	/**
+	 * @return the number of events waiting to be dispatched
+	 */
+	int getEventQueueSize();
+
+	/**
+	 * @return the number of listeners added
+	 */
+	int getListenerCount();
+
+	/**
+	 * @return the number of listeners called on their own threads
+	 */
+	int getAsynchronousListenerCount();
+
+	/**
+	 * @return the number of handlers registered with <tt>on</tt> or
+	 *         <tt>subscribe</tt>
+	 */
+	int getSubscriptionCount();
+
+	/**
+	 * @return the number of events dispatched
+	 */
+	long getEventsDispatched();
+
+	/**
+	 * @return the number of events dropped by full listener mailboxes
+	 */
+	long getEventsDropped();
+
+	/**
+	 * @return the number of threads events are dispatched on
+	 */
+	int getDispatchThreads();
+
+	/**
+	 * @return <tt>true</tt> if dispatch has been paused
+	 */
+	boolean isDispatchPaused();
+
+	/**
+	 * @return <tt>true</tt> if a subscriber has paused reading from the server
+	 */
+	boolean isReadingPaused();
+
+	/**
+	 * Stops dispatching events; they are kept in the queue until dispatch is
+	 * resumed.
+	 */
+	void pauseDispatch();
+
+	/**
+	 * Carries on dispatching events.
+	 */
+	void resumeDispatch();
+
+	/**
+	 * @return a description of the listeners, handlers and queues
+	 */
+	String dumpState();
+}
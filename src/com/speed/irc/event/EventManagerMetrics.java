@@ -0,0 +1,86 @@
+package com.speed.irc.event;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters of an {@link EventManager}, exposed over JMX. Counters are
+ * striped so that updating them from several dispatch threads is cheap.
+ * 
+ * This file is part of Speed's IRC API.
+ * 
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ * 
+ */
+public final class EventManagerMetrics implements EventManagerMXBean {
+	private final EventManager manager;
+	final LongAdder dispatched = new LongAdder();
+
+	EventManagerMetrics(final EventManager manager) {
+		this.manager = manager;
+	}
+
+	public int getEventQueueSize() {
+		return manager.getQueueSize();
+	}
+
+	public int getListenerCount() {
+		return manager.getListenerCount();
+	}
+
+	public int getAsynchronousListenerCount() {
+		return manager.getMailboxes().size();
+	}
+
+	public int getSubscriptionCount() {
+		return manager.getSubscriptionCount();
+	}
+
+	public long getEventsDispatched() {
+		return dispatched.sum();
+	}
+
+	public long getEventsDropped() {
+		long dropped = 0;
+		for (ListenerMailbox mailbox : manager.getMailboxes()) {
+			dropped += mailbox.getDroppedCount();
+		}
+		return dropped;
+	}
+
+	public int getDispatchThreads() {
+		return manager.getDispatchThreads();
+	}
+
+	public boolean isDispatchPaused() {
+		return manager.isDispatchPaused();
+	}
+
+	public boolean isReadingPaused() {
+		return manager.isPaused();
+	}
+
+	public void pauseDispatch() {
+		manager.setDispatchPaused(true);
+	}
+
+	public void resumeDispatch() {
+		manager.setDispatchPaused(false);
+	}
+
+	public String dumpState() {
+		return manager.dumpState();
+	}
+}
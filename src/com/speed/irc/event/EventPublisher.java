@@ -0,0 +1,291 @@
+package com.speed.irc.event;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the events of an {@link EventManager} as a reactive stream.
+ * Events are only passed to a subscriber as fast as it requests them; until
+ * then they wait in a buffer of limited size, one per subscriber. What
+ * happens when that buffer is full is decided by the publisher's
+ * {@link Overflow} strategy, so a slow subscriber never makes the buffer grow
+ * without bound.
+ * <p/>
+ * Events are passed to subscribers on the event thread, or on the thread
+ * which requested them if they were waiting in the buffer. Completion and
+ * errors are passed the same way, so a subscriber is never called from two
+ * threads at once.
+ * 
+ * This file is part of Speed's IRC API.
+ * 
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ * 
+ */
+public class EventPublisher<T extends IRCEvent> implements Flow.Publisher<T> {
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * What to do with an event when a subscriber's buffer is full.
+	 */
+	public enum Overflow {
+		/**
+		 * Discard the oldest buffered event to make room.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Discard the new event.
+		 */
+		DROP_NEWEST,
+		/**
+		 * Keep the event and stop reading from the server until the buffer
+		 * has drained to half its capacity. Only events already read are
+		 * buffered past the capacity. While reading is paused the server's
+		 * PINGs are not answered, so subscribers must not fall behind for
+		 * long.
+		 */
+		PAUSE
+	}
+
+	private final EventManager manager;
+	private final Class<T> type;
+	private final int capacity;
+	private final Overflow overflow;
+	private final List<EventSubscription> subscriptions = new CopyOnWriteArrayList<EventSubscription>();
+	private Subscription registration;
+
+	EventPublisher(final EventManager manager, final Class<T> type,
+			final int capacity, final Overflow overflow) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive");
+		this.manager = manager;
+		this.type = type;
+		this.capacity = capacity;
+		this.overflow = overflow;
+	}
+
+	public void subscribe(final Flow.Subscriber<? super T> subscriber) {
+		final EventSubscription subscription = new EventSubscription(
+				subscriber);
+		synchronized (this) {
+			subscriptions.add(subscription);
+			if (registration == null) {
+				registration = manager.on(type, new EventHandler<T>() {
+					public void handle(final T e) {
+						for (EventSubscription s : subscriptions) {
+							s.offer(e);
+						}
+					}
+				});
+			}
+		}
+		subscriber.onSubscribe(subscription);
+	}
+
+	private synchronized void remove(final EventSubscription subscription) {
+		if (subscriptions.remove(subscription) && subscriptions.isEmpty()
+				&& registration != null) {
+			registration.cancel();
+			registration = null;
+		}
+	}
+
+	/**
+	 * Completes every subscription. Buffered events which have not been
+	 * requested are discarded.
+	 */
+	public void close() {
+		for (EventSubscription s : subscriptions) {
+			s.terminate(null);
+		}
+	}
+
+	/**
+	 * Gets the number of subscribers.
+	 * 
+	 * @return the number of subscribers
+	 */
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * Gets the type of events published.
+	 * 
+	 * @return the class of event
+	 */
+	public Class<T> getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the number of events which can be buffered for each subscriber.
+	 * 
+	 * @return the buffer capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets what happens when a subscriber's buffer is full.
+	 * 
+	 * @return the overflow strategy
+	 */
+	public Overflow getOverflow() {
+		return overflow;
+	}
+
+	/**
+	 * A subscriber's demand and buffered events.
+	 */
+	private class EventSubscription implements Flow.Subscription {
+		private final Flow.Subscriber<? super T> subscriber;
+		private final ArrayDeque<T> buffer = new ArrayDeque<T>();
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private volatile boolean cancelled, terminating;
+		private Throwable error;
+		private boolean paused;
+
+		private EventSubscription(final Flow.Subscriber<? super T> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		private void offer(final T e) {
+			if (cancelled || terminating)
+				return;
+			synchronized (buffer) {
+				if (buffer.size() >= capacity) {
+					switch (overflow) {
+					case DROP_OLDEST:
+						buffer.poll();
+						break;
+					case DROP_NEWEST:
+						return;
+					case PAUSE:
+						if (!paused) {
+							paused = true;
+							manager.pause();
+						}
+						break;
+					}
+				}
+				buffer.add(e);
+			}
+			drain();
+		}
+
+		public void request(final long n) {
+			if (n <= 0) {
+				terminate(new IllegalArgumentException(
+						"non-positive request: " + n));
+				return;
+			}
+			long r, next;
+			do {
+				r = requested.get();
+				next = r + n < 0 ? Long.MAX_VALUE : r + n;
+			} while (!requested.compareAndSet(r, next));
+			drain();
+		}
+
+		public void cancel() {
+			cancelled = true;
+			synchronized (buffer) {
+				buffer.clear();
+				resume();
+			}
+			remove(this);
+		}
+
+		/**
+		 * Discards the buffered events and has the draining thread complete
+		 * the subscriber, or pass it an error.
+		 * 
+		 * @param error
+		 *            the error, or <tt>null</tt> to complete
+		 */
+		private void terminate(final Throwable error) {
+			synchronized (buffer) {
+				if (terminating)
+					return;
+				this.error = error;
+				terminating = true;
+				buffer.clear();
+				resume();
+			}
+			remove(this);
+			drain();
+		}
+
+		private void resume() {
+			if (paused) {
+				paused = false;
+				manager.resume();
+			}
+		}
+
+		/**
+		 * Passes buffered events to the subscriber while it has demand, then
+		 * completion or an error once the subscription is terminated. Only
+		 * one thread drains at a time; others leave their work to it.
+		 */
+		private void drain() {
+			if (wip.getAndIncrement() != 0)
+				return;
+			int missed = 1;
+			do {
+				long r = requested.get();
+				long emitted = 0;
+				while (emitted != r && !cancelled && !terminating) {
+					final T e;
+					synchronized (buffer) {
+						e = buffer.poll();
+						if (paused && buffer.size() <= capacity / 2)
+							resume();
+					}
+					if (e == null)
+						break;
+					try {
+						subscriber.onNext(e);
+					} catch (RuntimeException ex) {
+						terminate(ex);
+						break;
+					}
+					emitted++;
+				}
+				if (emitted > 0 && r != Long.MAX_VALUE)
+					requested.addAndGet(-emitted);
+				if (terminating && !cancelled) {
+					cancelled = true;
+					final Throwable error;
+					synchronized (buffer) {
+						error = this.error;
+					}
+					if (error == null)
+						subscriber.onComplete();
+					else
+						subscriber.onError(error);
+				}
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+}
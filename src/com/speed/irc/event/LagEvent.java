@@ -0,0 +1,86 @@
+package com.speed.irc.event;
+
+import com.speed.irc.connection.Server;
+
+/**
+ * Dispatched by a server's {@link com.speed.irc.connection.LagMonitor} when
+ * the lag of the connection goes over its threshold, when it comes back under
+ * it, and when the server has not answered a PING for so long that the
+ * connection is treated as dead.
+ * 
+ * This file is part of Speed's IRC API.
+ * 
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ * 
+ */
+public class LagEvent implements IRCEvent {
+	public static final int LAGGED = 0, RECOVERED = 1, TIMED_OUT = 2;
+	private final int code;
+	private final long lag;
+	private final Server server;
+	private final Object source;
+
+	public LagEvent(final int code, final long lag, final Server server,
+			final Object source) {
+		this.code = code;
+		this.lag = lag;
+		this.server = server;
+		this.source = source;
+	}
+
+	/**
+	 * Gets what happened.
+	 * 
+	 * @return {@link #LAGGED}, {@link #RECOVERED} or {@link #TIMED_OUT}
+	 */
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * Gets the lag of the connection when the event was raised.
+	 * 
+	 * @return the lag in milliseconds
+	 */
+	public long getLag() {
+		return lag;
+	}
+
+	/**
+	 * Gets the server whose connection is lagged.
+	 * 
+	 * @return the server
+	 */
+	public Server getServer() {
+		return server;
+	}
+
+	public Object getSource() {
+		return source;
+	}
+
+	public void callListener(final IRCEventListener listener) {
+		if (listener instanceof LagListener) {
+			final LagListener l = (LagListener) listener;
+			if (code == LAGGED)
+				l.lagged(this);
+			else if (code == RECOVERED)
+				l.recovered(this);
+			else
+				l.timedOut(this);
+		}
+	}
+}
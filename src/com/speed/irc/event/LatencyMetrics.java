@@ -0,0 +1,140 @@
+package com.speed.irc.event;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.speed.irc.util.LatencyHistogram;
+
+/**
+ * Latency histograms for each stage a line from the server passes through,
+ * from being read off the socket to the listeners it reaches returning.
+ * Metrics are only collected while they are enabled with
+ * {@link EventManager#setLatencyTracking(boolean)}; otherwise no timestamps
+ * are taken.
+ * <p/>
+ * Listener times are kept per class of listener, or of handler for
+ * {@link EventManager#on(Class, EventHandler)} subscriptions.
+ * 
+ * This file is part of Speed's IRC API.
+ * 
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ * 
+ */
+public final class LatencyMetrics {
+	/**
+	 * The stages a line passes through before it reaches the listeners.
+	 */
+	public enum Stage {
+		/**
+		 * From the line being read to the parser taking it off the queue.
+		 */
+		READ_TO_PARSE,
+		/**
+		 * From the parser taking the line to a generator returning an event.
+		 */
+		PARSE_TO_GENERATE,
+		/**
+		 * From the event being queued to it being dispatched.
+		 */
+		GENERATE_TO_DISPATCH
+	}
+
+	private final LatencyHistogram[] stages = new LatencyHistogram[Stage
+			.values().length];
+	private final ConcurrentHashMap<Class<?>, LatencyHistogram> listeners = new ConcurrentHashMap<Class<?>, LatencyHistogram>();
+
+	LatencyMetrics() {
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Records the time a line or event spent in a stage.
+	 * 
+	 * @param stage
+	 *            the stage
+	 * @param nanos
+	 *            the time in nanoseconds
+	 */
+	public void record(final Stage stage, final long nanos) {
+		stages[stage.ordinal()].record(nanos);
+	}
+
+	void recordListener(final Class<?> listener, final long nanos) {
+		LatencyHistogram histogram = listeners.get(listener);
+		if (histogram == null) {
+			histogram = new LatencyHistogram();
+			final LatencyHistogram existing = listeners.putIfAbsent(listener,
+					histogram);
+			if (existing != null)
+				histogram = existing;
+		}
+		histogram.record(nanos);
+	}
+
+	/**
+	 * Gets the latencies recorded for a stage.
+	 * 
+	 * @param stage
+	 *            the stage
+	 * @return a snapshot of the stage's histogram
+	 */
+	public LatencyHistogram.Snapshot getSnapshot(final Stage stage) {
+		return stages[stage.ordinal()].getSnapshot();
+	}
+
+	/**
+	 * Gets the time taken by each class of listener to handle events.
+	 * 
+	 * @return snapshots of each listener class's histogram
+	 */
+	public Map<Class<?>, LatencyHistogram.Snapshot> getListenerSnapshots() {
+		final Map<Class<?>, LatencyHistogram.Snapshot> snapshots = new HashMap<Class<?>, LatencyHistogram.Snapshot>();
+		for (Map.Entry<Class<?>, LatencyHistogram> entry : listeners
+				.entrySet()) {
+			snapshots.put(entry.getKey(), entry.getValue().getSnapshot());
+		}
+		return Collections.unmodifiableMap(snapshots);
+	}
+
+	/**
+	 * Removes everything recorded so far.
+	 */
+	public void reset() {
+		for (LatencyHistogram histogram : stages) {
+			histogram.reset();
+		}
+		listeners.clear();
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder();
+		for (Stage stage : Stage.values()) {
+			builder.append(stage).append(": ").append(getSnapshot(stage))
+					.append('\n');
+		}
+		for (Map.Entry<Class<?>, LatencyHistogram.Snapshot> entry : getListenerSnapshots()
+				.entrySet()) {
+			builder.append(entry.getKey().getName()).append(": ")
+					.append(entry.getValue()).append('\n');
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,332 @@
+package com.speed.irc.event;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.speed.irc.jfr.EventDispatched;
+
+/**
+ * Queues events for an asynchronous listener and delivers them, in order, on
+ * a pool of threads shared by all mailboxes. A mailbox holds a limited number
+ * of events; once it is full, new events for the listener are dropped rather
+ * than queued without bound.
+ * <p/>
+ * A listener which takes longer than its timeout over an event is reported
+ * and interrupted. The mailbox keeps counts of the events delivered, dropped,
+ * slow and timed out, and of the time spent in the listener.
+ * 
+ * This file is part of Speed's IRC API.
+ * 
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ * 
+ */
+public class ListenerMailbox implements Runnable {
+	public static final int DEFAULT_SIZE = 1024;
+	public static final long DEFAULT_TIMEOUT = 30000;
+	public static final long DEFAULT_SLOW_THRESHOLD = 500;
+	private static final int BATCH_SIZE = 32;
+	private static final AtomicInteger THREADS = new AtomicInteger();
+	private static final ThreadFactory FACTORY = new ThreadFactory() {
+		public Thread newThread(final Runnable r) {
+			final Thread thread = new Thread(r, "Listener worker "
+					+ THREADS.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+	private static final ExecutorService POOL = Executors.newFixedThreadPool(
+			Math.max(2, Runtime.getRuntime().availableProcessors()), FACTORY);
+	private static final ScheduledExecutorService WATCHDOG = Executors
+			.newSingleThreadScheduledExecutor(FACTORY);
+	private static final Logger LOGGER = Logger.getLogger(ListenerMailbox.class
+			.getName());
+
+	private final EventManager manager;
+	private final IRCEventListener listener;
+	private final BlockingQueue<IRCEvent> queue;
+	private final int capacity;
+	private final long timeout, slowThreshold;
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final AtomicLong delivered = new AtomicLong(),
+			dropped = new AtomicLong(), failed = new AtomicLong(),
+			slow = new AtomicLong(), timedOut = new AtomicLong(),
+			totalTime = new AtomicLong();
+	private final ScheduledFuture<?> watch;
+	private final Object interruptLock = new Object();
+	private volatile Thread runner;
+	private volatile IRCEvent current;
+	private volatile long started, reported, maxTime;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a mailbox for a listener.
+	 * 
+	 * @param manager
+	 *            the event manager exceptions thrown by the listener are
+	 *            dispatched to
+	 * @param listener
+	 *            the listener to deliver events to
+	 * @param capacity
+	 *            the number of events which can be queued
+	 * @param timeout
+	 *            the number of milliseconds the listener can spend on one
+	 *            event before it is interrupted, or 0 for no limit
+	 * @param slowThreshold
+	 *            the number of milliseconds after which an event counts as
+	 *            slow
+	 */
+	public ListenerMailbox(final EventManager manager,
+			final IRCEventListener listener, final int capacity,
+			final long timeout, final long slowThreshold) {
+		this.manager = manager;
+		this.listener = listener;
+		this.capacity = capacity;
+		this.queue = new ArrayBlockingQueue<IRCEvent>(capacity);
+		this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+		this.slowThreshold = TimeUnit.MILLISECONDS.toNanos(slowThreshold);
+		if (timeout > 0) {
+			final long period = Math.max(10, timeout / 4);
+			watch = WATCHDOG.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					checkTimeout();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		} else {
+			watch = null;
+		}
+	}
+
+	/**
+	 * Queues an event for the listener.
+	 * 
+	 * @param e
+	 *            the event
+	 * @return <tt>false</tt> if the mailbox was full or closed and the event
+	 *         was dropped
+	 */
+	public boolean offer(final IRCEvent e) {
+		if (closed || !queue.offer(e)) {
+			final long count = dropped.incrementAndGet();
+			if (!closed && (count == 1 || count % 1000 == 0))
+				LOGGER.warning(listener + " is not keeping up, " + count
+						+ " events dropped");
+			return false;
+		}
+		schedule();
+		return true;
+	}
+
+	private void schedule() {
+		if (!queue.isEmpty() && !closed && scheduled.compareAndSet(false, true))
+			POOL.execute(this);
+	}
+
+	public void run() {
+		runner = Thread.currentThread();
+		try {
+			for (int i = 0; i < BATCH_SIZE && !closed; i++) {
+				final IRCEvent e = queue.poll();
+				if (e == null)
+					break;
+				deliver(e);
+			}
+		} finally {
+			runner = null;
+			scheduled.set(false);
+		}
+		schedule();
+	}
+
+	private void deliver(final IRCEvent e) {
+		current = e;
+		final long start = System.nanoTime();
+		started = start;
+		final EventDispatched dispatched = new EventDispatched();
+		dispatched.begin();
+		try {
+			e.callListener(listener);
+		} catch (Exception ex) {
+			failed.incrementAndGet();
+			manager.dispatchEvent(new ExceptionEvent(ex, listener, null));
+		} finally {
+			// once started is cleared under the lock the watchdog can no
+			// longer interrupt this thread, so any interrupt it sent for this
+			// event has arrived and can be cleared
+			synchronized (interruptLock) {
+				started = 0;
+				current = null;
+			}
+			Thread.interrupted();
+			dispatched.record(e, listener.getClass());
+			final long time = System.nanoTime() - start;
+			delivered.incrementAndGet();
+			totalTime.addAndGet(time);
+			if (time > maxTime)
+				maxTime = time;
+			if (time > slowThreshold)
+				slow.incrementAndGet();
+			final LatencyMetrics latency = manager.getLatencyMetrics();
+			if (latency != null)
+				latency.recordListener(listener.getClass(), time);
+		}
+	}
+
+	private void checkTimeout() {
+		final long start = started;
+		final Thread thread = runner;
+		if (start == 0 || start == reported || thread == null
+				|| System.nanoTime() - start < timeout)
+			return;
+		reported = start;
+		timedOut.incrementAndGet();
+		LOGGER.warning(listener + " timed out handling " + current
+				+ ", interrupting it");
+		synchronized (interruptLock) {
+			if (started == start)
+				thread.interrupt();
+		}
+	}
+
+	/**
+	 * Stops delivering events and discards those still queued.
+	 */
+	public void close() {
+		closed = true;
+		queue.clear();
+		if (watch != null)
+			watch.cancel(false);
+	}
+
+	/**
+	 * Gets the listener events are delivered to.
+	 * 
+	 * @return the listener
+	 */
+	public IRCEventListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Gets the number of events waiting to be delivered.
+	 * 
+	 * @return the number of queued events
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	/**
+	 * Gets the number of events which can be queued.
+	 * 
+	 * @return the capacity of the mailbox
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Checks whether the listener is handling an event.
+	 * 
+	 * @return <tt>true</tt> if the listener is running
+	 */
+	public boolean isBusy() {
+		return started != 0;
+	}
+
+	/**
+	 * Gets the number of events delivered to the listener.
+	 * 
+	 * @return the number of events delivered
+	 */
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+
+	/**
+	 * Gets the number of events dropped because the mailbox was full.
+	 * 
+	 * @return the number of events dropped
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Gets the number of events the listener threw an exception for.
+	 * 
+	 * @return the number of events which failed
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * Gets the number of events the listener took longer than the slow
+	 * threshold over.
+	 * 
+	 * @return the number of slow events
+	 */
+	public long getSlowCount() {
+		return slow.get();
+	}
+
+	/**
+	 * Gets the number of times the listener was interrupted for taking longer
+	 * than its timeout.
+	 * 
+	 * @return the number of timeouts
+	 */
+	public long getTimeoutCount() {
+		return timedOut.get();
+	}
+
+	/**
+	 * Gets the average time the listener took over an event.
+	 * 
+	 * @return the average time in nanoseconds
+	 */
+	public long getAverageTime() {
+		final long count = delivered.get();
+		return count == 0 ? 0 : totalTime.get() / count;
+	}
+
+	/**
+	 * Gets the longest time the listener took over an event.
+	 * 
+	 * @return the longest time in nanoseconds
+	 */
+	public long getMaxTime() {
+		return maxTime;
+	}
+
+	@Override
+	public String toString() {
+		return listener + " [queued=" + size() + ", delivered="
+				+ getDeliveredCount() + ", dropped=" + getDroppedCount()
+				+ ", slow=" + getSlowCount() + ", timeouts="
+				+ getTimeoutCount() + "]";
+	}
+}
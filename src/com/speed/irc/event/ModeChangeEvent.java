@@ -0,0 +1,142 @@
+package com.speed.irc.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.speed.irc.types.Channel;
+import com.speed.irc.types.ChannelUser;
+
+/**
+ * Dispatched once for each MODE line sent for a channel, with every change
+ * the line made, so that <tt>+oooo</tt> or <tt>+bbbb</tt> is a single event.
+ * 
+ * This file is part of Speed's IRC API.
+ * 
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ * 
+ */
+public class ModeChangeEvent extends ChannelEvent {
+	private final String sender;
+	private final List<Change> changes;
+
+	public ModeChangeEvent(final Channel channel, final String sender,
+			final List<Change> changes, final Object source) {
+		super(channel, ChannelEvent.MODE_CHANGED, source);
+		this.sender = sender;
+		this.changes = Collections.unmodifiableList(changes);
+	}
+
+	/**
+	 * Gets who set the modes.
+	 * 
+	 * @return the nick!user@host of the user, or the name of the server
+	 */
+	public String getSender() {
+		return sender;
+	}
+
+	/**
+	 * Gets the changes, in the order they appeared on the line.
+	 * 
+	 * @return the changes
+	 */
+	public List<Change> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Gets the changes to users' channel rights, such as <tt>+o nick</tt>.
+	 * 
+	 * @return the changes with a user
+	 */
+	public List<Change> getUserChanges() {
+		final List<Change> list = new ArrayList<Change>();
+		for (Change change : changes) {
+			if (change.getUser() != null)
+				list.add(change);
+		}
+		return list;
+	}
+
+	@Override
+	public void callListener(final IRCEventListener listener) {
+		if (listener instanceof ModeChangeListener)
+			((ModeChangeListener) listener).modesChanged(this);
+	}
+
+	/**
+	 * A single mode being set or unset.
+	 */
+	public static class Change {
+		private final boolean adding;
+		private final char mode;
+		private final String argument;
+		private final ChannelUser user;
+
+		public Change(final boolean adding, final char mode,
+				final String argument, final ChannelUser user) {
+			this.adding = adding;
+			this.mode = mode;
+			this.argument = argument;
+			this.user = user;
+		}
+
+		/**
+		 * Checks whether the mode was set or unset.
+		 * 
+		 * @return <tt>true</tt> for <tt>+</tt>, <tt>false</tt> for
+		 *         <tt>-</tt>
+		 */
+		public boolean isAdding() {
+			return adding;
+		}
+
+		/**
+		 * Gets the mode letter.
+		 * 
+		 * @return the mode
+		 */
+		public char getMode() {
+			return mode;
+		}
+
+		/**
+		 * Gets the mode's argument, such as a nick or ban mask.
+		 * 
+		 * @return the argument, or <tt>null</tt> if the mode has none
+		 */
+		public String getArgument() {
+			return argument;
+		}
+
+		/**
+		 * Gets the user whose channel rights changed.
+		 * 
+		 * @return the user, or <tt>null</tt> if the mode is not a rights mode
+		 *         or the user is not known
+		 */
+		public ChannelUser getUser() {
+			return user;
+		}
+
+		@Override
+		public String toString() {
+			return (adding ? "+" : "-") + mode
+					+ (argument == null ? "" : " " + argument);
+		}
+	}
+}
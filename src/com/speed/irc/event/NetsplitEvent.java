@@ -0,0 +1,121 @@
+package com.speed.irc.event;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.speed.irc.types.Channel;
+
+/**
+ * Dispatched once for a netsplit, in place of the QUIT of every user who was
+ * split off, and once when those users rejoin (a netjoin). A netsplit is
+ * recognised by its quit message, which names the two servers which split
+ * apart, and the users who quit with the same message within a short time
+ * of each other are gathered into one event.
+ * 
+ * This file is part of Speed's IRC API.
+ * 
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ * 
+ */
+public class NetsplitEvent implements IRCEvent {
+	public static final int NETSPLIT = 0, NETJOIN = 1;
+	private final int code;
+	private final String hub, leaf;
+	private final Map<Channel, List<String>> users;
+	private final Object source;
+
+	public NetsplitEvent(final int code, final String hub, final String leaf,
+			final Map<Channel, List<String>> users, final Object source) {
+		this.code = code;
+		this.hub = hub;
+		this.leaf = leaf;
+		this.users = Collections.unmodifiableMap(users);
+		this.source = source;
+	}
+
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * Gets the server which stayed connected to us.
+	 * 
+	 * @return the first server named in the quit message
+	 */
+	public String getHub() {
+		return hub;
+	}
+
+	/**
+	 * Gets the server which split off.
+	 * 
+	 * @return the second server named in the quit message
+	 */
+	public String getLeaf() {
+		return leaf;
+	}
+
+	/**
+	 * Gets the channels the users were in.
+	 * 
+	 * @return the affected channels
+	 */
+	public Set<Channel> getChannels() {
+		return users.keySet();
+	}
+
+	/**
+	 * Gets the nicks of the users who split from or rejoined a channel.
+	 * 
+	 * @param channel
+	 *            the channel
+	 * @return the nicks, empty if the channel was not affected
+	 */
+	public List<String> getUsers(final Channel channel) {
+		final List<String> nicks = users.get(channel);
+		return nicks == null ? Collections.<String> emptyList() : nicks;
+	}
+
+	/**
+	 * Gets the nicks of all users who split or rejoined.
+	 * 
+	 * @return the nicks
+	 */
+	public Set<String> getUsers() {
+		final Set<String> nicks = new LinkedHashSet<String>();
+		for (List<String> list : users.values()) {
+			nicks.addAll(list);
+		}
+		return nicks;
+	}
+
+	public Object getSource() {
+		return source;
+	}
+
+	public void callListener(final IRCEventListener listener) {
+		if (listener instanceof NetsplitListener) {
+			final NetsplitListener l = (NetsplitListener) listener;
+			if (code == NETSPLIT)
+				l.netsplit(this);
+			else
+				l.netjoin(this);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.speed.irc.event;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method as an event handler, to be registered by
+ * {@link EventManager#subscribe(Object)}. The method must take a single
+ * parameter, the type of event it handles, and return nothing. The handler
+ * can be limited to some events in the same way as an {@link EventFilter}.
+ * 
+ * This file is part of Speed's IRC API.
+ * 
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ * 
+ */
+@Retention(value = RetentionPolicy.RUNTIME)
+@Target(value = ElementType.METHOD)
+public @interface Subscribe {
+	/**
+	 * The channels the handler is limited to, see
+	 * {@link EventFilter#inChannels(String...)}.
+	 */
+	String[] channels() default {};
+
+	/**
+	 * The mask senders must match, see {@link EventFilter#fromSender(String)}.
+	 */
+	String sender() default "";
+
+	/**
+	 * The command the handler is limited to, see
+	 * {@link EventFilter#withCommand(String)}.
+	 */
+	String command() default "";
+
+	/**
+	 * The prefix messages must start with, see
+	 * {@link EventFilter#withPrefix(String)}.
+	 */
+	String prefix() default "";
+}
@@ -0,0 +1,107 @@
+package com.speed.irc.event;
+
+/**
+ * A handler registered with an {@link EventManager}, which can be cancelled
+ * to remove the handler again.
+ * 
+ * This file is part of Speed's IRC API.
+ * 
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ * 
+ */
+public class Subscription {
+	private final EventManager manager;
+	private final Class<? extends IRCEvent> type;
+	private final EventHandler<IRCEvent> handler;
+	private final EventFilter filter;
+	private final long order;
+	private final Subscription[] parts;
+	private volatile boolean cancelled;
+
+	Subscription(final EventManager manager,
+			final Class<? extends IRCEvent> type, final EventFilter filter,
+			final EventHandler<IRCEvent> handler, final long order) {
+		this.manager = manager;
+		this.type = type;
+		this.filter = filter;
+		this.handler = handler;
+		this.order = order;
+		this.parts = null;
+	}
+
+	Subscription(final EventManager manager, final Subscription[] parts) {
+		this.manager = manager;
+		this.type = null;
+		this.filter = null;
+		this.handler = null;
+		this.order = -1;
+		this.parts = parts;
+	}
+
+	Class<? extends IRCEvent> getType() {
+		return type;
+	}
+
+	EventFilter getFilter() {
+		return filter;
+	}
+
+	long getOrder() {
+		return order;
+	}
+
+	Subscription[] getParts() {
+		return parts;
+	}
+
+	EventHandler<IRCEvent> getHandler() {
+		return handler;
+	}
+
+	void deliver(final IRCEvent e) {
+		if (!cancelled)
+			handler.handle(e);
+	}
+
+	/**
+	 * Removes the handler, or all the handlers of an object registered with
+	 * {@link EventManager#subscribe(Object)}. Events which are already being
+	 * dispatched are not passed to it.
+	 */
+	public void cancel() {
+		if (cancelled)
+			return;
+		cancelled = true;
+		manager.unsubscribe(this);
+	}
+
+	/**
+	 * Checks whether the subscription has been cancelled.
+	 * 
+	 * @return <tt>true</tt> if the handler has been removed
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public String toString() {
+		return parts == null ? type.getSimpleName()
+				+ (filter == EventFilter.ANY ? "" : " " + filter) + " -> "
+				+ handler
+				: "Subscription" + java.util.Arrays.toString(parts);
+	}
+}
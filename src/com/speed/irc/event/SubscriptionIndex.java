@@ -0,0 +1,173 @@
+package com.speed.irc.event;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.speed.irc.util.CaseMapping;
+
+/**
+ * The handlers for one class of event, indexed by the channels and command of
+ * their filters. Handlers with neither are kept in a general list. An index
+ * is immutable, and rebuilt by the event manager when handlers or its case
+ * mapping change.
+ * 
+ * This file is part of Speed's IRC API.
+ * 
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * 
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ * 
+ */
+final class SubscriptionIndex {
+	private static final Entry[] NONE = new Entry[0];
+	static final SubscriptionIndex EMPTY = new SubscriptionIndex(
+			new ArrayList<Subscription>(), CaseMapping.RFC1459);
+	private static final byte PASSED = 1, FAILED = 2;
+
+	private final Entry[] general;
+	private final Map<String, Entry[]> byChannel, byCommand;
+	private final EventFilter[] filters;
+	private final CaseMapping mapping;
+	private final int size;
+
+	/**
+	 * Indexes handlers.
+	 * 
+	 * @param subscriptions
+	 *            the handlers, in the order they should be called
+	 * @param mapping
+	 *            the case mapping channel names are folded with
+	 */
+	SubscriptionIndex(final List<Subscription> subscriptions,
+			final CaseMapping mapping) {
+		final List<Entry> general = new ArrayList<Entry>();
+		final Map<String, List<Entry>> byChannel = new HashMap<String, List<Entry>>();
+		final Map<String, List<Entry>> byCommand = new HashMap<String, List<Entry>>();
+		final Map<EventFilter, Integer> distinct = new LinkedHashMap<EventFilter, Integer>();
+		for (Subscription s : subscriptions) {
+			final EventFilter filter = s.getFilter();
+			Integer slot = -1;
+			if (filter != EventFilter.ANY) {
+				slot = distinct.get(filter);
+				if (slot == null) {
+					slot = distinct.size();
+					distinct.put(filter, slot);
+				}
+			}
+			final Entry entry = new Entry(s, slot);
+			if (filter.getChannels() != null) {
+				for (String channel : filter.getChannels()) {
+					add(byChannel, mapping.fold(channel), entry);
+				}
+			} else if (filter.getCommand() != null) {
+				add(byCommand, filter.getCommand(), entry);
+			} else {
+				general.add(entry);
+			}
+		}
+		this.general = general.toArray(NONE);
+		this.byChannel = freeze(byChannel);
+		this.byCommand = freeze(byCommand);
+		this.filters = distinct.keySet().toArray(
+				new EventFilter[distinct.size()]);
+		this.mapping = mapping;
+		this.size = subscriptions.size();
+	}
+
+	private static void add(final Map<String, List<Entry>> map,
+			final String key, final Entry e) {
+		List<Entry> list = map.get(key);
+		if (list == null) {
+			list = new ArrayList<Entry>();
+			map.put(key, list);
+		}
+		list.add(e);
+	}
+
+	private static Map<String, Entry[]> freeze(
+			final Map<String, List<Entry>> map) {
+		final Map<String, Entry[]> frozen = new HashMap<String, Entry[]>();
+		for (Map.Entry<String, List<Entry>> entry : map.entrySet()) {
+			frozen.put(entry.getKey(), entry.getValue().toArray(NONE));
+		}
+		return frozen;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Calls the handlers whose filters an event passes, in the order they
+	 * were registered.
+	 */
+	void dispatch(final IRCEvent e, final EventManager manager) {
+		Entry[] channel = NONE, command = NONE;
+		String channelName = null, commandName = null;
+		if (!byChannel.isEmpty() || filters.length > 0) {
+			channelName = EventFilter.getChannel(e, mapping);
+			if (channelName != null && byChannel.containsKey(channelName))
+				channel = byChannel.get(channelName);
+		}
+		if (!byCommand.isEmpty() || filters.length > 0) {
+			commandName = EventFilter.getCommand(e);
+			if (commandName != null && byCommand.containsKey(commandName))
+				command = byCommand.get(commandName);
+		}
+		final byte[] results = filters.length == 0 ? null
+				: new byte[filters.length];
+		int g = 0, c = 0, m = 0;
+		while (g < general.length || c < channel.length || m < command.length) {
+			Entry next = null;
+			if (g < general.length)
+				next = general[g];
+			if (c < channel.length
+					&& (next == null || channel[c].order < next.order))
+				next = channel[c];
+			if (m < command.length
+					&& (next == null || command[m].order < next.order))
+				next = command[m];
+			if (g < general.length && next == general[g])
+				g++;
+			else if (c < channel.length && next == channel[c])
+				c++;
+			else
+				m++;
+			final int slot = next.slot;
+			if (slot != -1) {
+				if (results[slot] == 0)
+					results[slot] = filters[slot].matches(e, channelName,
+							commandName, mapping) ? PASSED : FAILED;
+				if (results[slot] == FAILED)
+					continue;
+			}
+			manager.deliver(next.subscription, e);
+		}
+	}
+
+	private static class Entry {
+		private final Subscription subscription;
+		private final long order;
+		private final int slot;
+
+		private Entry(final Subscription subscription, final int slot) {
+			this.subscription = subscription;
+			this.order = subscription.getOrder();
+			this.slot = slot;
+		}
+	}
+}
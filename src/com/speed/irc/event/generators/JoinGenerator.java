@@ -2,6 +2,7 @@ package com.speed.irc.event.generators;
 
 import com.speed.irc.event.ChannelUserEvent;
 import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.EventManager;
 import com.speed.irc.event.IRCEvent;
 import com.speed.irc.types.Channel;
 import com.speed.irc.types.ChannelUser;
@@ -28,6 +29,21 @@ import com.speed.irc.types.RawMessage;
  * @author Shivam Mistry
  */
 public class JoinGenerator implements EventGenerator {
+	private final NetsplitGenerator netsplits;
+
+	public JoinGenerator() {
+		this(null);
+	}
+
+	/**
+	 * @param netsplits
+	 *            the generator gathering netjoins, whose users are not
+	 *            reported again as joining while the event manager
+	 *            dispatches only coalesced events, or <tt>null</tt>
+	 */
+	public JoinGenerator(final NetsplitGenerator netsplits) {
+		this.netsplits = netsplits;
+	}
 
 	public boolean accept(RawMessage raw) {
 		return raw.getCommand().equals("JOIN");
@@ -46,10 +62,13 @@ public class JoinGenerator implements EventGenerator {
 		if (channel == null) {
 			channel = new Channel(chan, raw.getServer());
 		}
-		if (channel.getUser(nick) != null) {
-			channel.removeChannelUser(channel.getUser(nick));
-		}
 		final ChannelUser u = new ChannelUser(nick, "", user, host, channel);
+		channel.addChannelUser(u);
+		final EventManager events = raw.getServer().getEventManager();
+		if (!events.hasSubscribers(ChannelUserEvent.class)
+				|| events.isCoalescedOnly() && netsplits != null
+				&& netsplits.isRejoining(nick))
+			return null;
 		return new ChannelUserEvent(this, channel, u,
 				ChannelUserEvent.USER_JOINED);
 	}
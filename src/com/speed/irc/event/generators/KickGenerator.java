@@ -41,6 +41,13 @@ public class KickGenerator implements EventGenerator {
 		if (user == null) {
 			return null;
 		}
+		channel.removeChannelUser(user);
+		if (raw.getServer().getCaseMapping()
+				.equals(user.getNick(), raw.getServer().getNick()))
+			channel.kicked();
+		if (!raw.getServer().getEventManager()
+				.hasSubscribers(ChannelUserEvent.class))
+			return null;
 		return new ChannelUserEvent(this, channel, user,
 				ChannelUserEvent.USER_KICKED);
 	}
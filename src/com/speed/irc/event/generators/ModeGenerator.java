@@ -1,16 +1,28 @@
 package com.speed.irc.event.generators;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import com.speed.irc.connection.Server;
 import com.speed.irc.event.ChannelEvent;
 import com.speed.irc.event.ChannelUserEvent;
 import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.EventManager;
 import com.speed.irc.event.IRCEvent;
+import com.speed.irc.event.ModeChangeEvent;
 import com.speed.irc.types.Channel;
 import com.speed.irc.types.ChannelUser;
 import com.speed.irc.types.RawMessage;
+import com.speed.irc.types.ServerUser;
 
 /**
- * Processes MODE messages sent from the server.
+ * Processes MODE messages sent from the server. Each line is dispatched as
+ * one {@link ModeChangeEvent} holding all of its changes; the older events
+ * are dispatched at most once per line, and once per user whose rights
+ * changed, unless the event manager is set to dispatch only coalesced events
+ * (see {@link EventManager#setCoalescedOnly(boolean)}).
  * <p/>
  * This file is part of Speed's IRC API.
  * <p/>
@@ -30,6 +42,7 @@ import com.speed.irc.types.RawMessage;
  * @author Shivam Mistry
  */
 public class ModeGenerator implements EventGenerator {
+	private static final String DEFAULT_CHANMODES = "beI,k,l,imnpst";
 
 	public boolean accept(RawMessage raw) {
 		return raw.getCommand().equals("MODE");
@@ -39,78 +52,91 @@ public class ModeGenerator implements EventGenerator {
 		String raw = message.getRaw();
 		Server server = message.getServer();
 		String name = message.getTarget();
-		if (!server.getChannels().containsKey(name)) {
+		if (name == null || !server.getChannels().containsKey(name)) {
 			return null;
 		}
 		Channel channel = server.getChannels().get(name);
-		raw = raw.split(name, 2)[1].trim();
+		// the target is the third word; the modes and arguments follow it
+		final int target = raw.indexOf(' ', raw.indexOf(' ') + 1) + 1;
+		raw = raw.substring(target + name.length()).trim();
 		String[] strings = raw.split(" ");
 		String modes = strings[0];
-		if (strings.length == 1) {
-			channel.chanMode.parse(modes);
-			return new ChannelEvent(channel, ChannelEvent.MODE_CHANGED, this);
-		} else {
-			String[] u = new String[strings.length - 1];
-			System.arraycopy(strings, 1, u, 0, u.length);
-			boolean plus = false;
-			int index = 0;
-			for (int i = 0; i < modes.toCharArray().length; i++) {
-				char c = modes.toCharArray()[i];
-				if (c == '+') {
-					plus = true;
-					continue;
-				} else if (c == '-') {
-					plus = false;
-					continue;
-				}
-				if (c == 'b') {
-					if (plus) {
-						channel.bans.add(u[index]);
-					} else {
-						channel.bans.remove(u[index]);
-					}
-					server.getEventManager().dispatchEvent(
-							new ChannelEvent(channel,
-									ChannelEvent.MODE_CHANGED, this));
-					continue;
-				} else if (c == 'e') {
-					if (plus) {
-						channel.exempts.add(u[index]);
-					} else {
-						channel.exempts.remove(u[index]);
-					}
-					server.getEventManager().dispatchEvent(
-							new ChannelEvent(channel,
-									ChannelEvent.MODE_CHANGED, this));
-					continue;
-				} else if (c == 'I') {
-					if (plus) {
-						channel.invites.add(u[index]);
-					} else {
-						channel.invites.remove(u[index]);
-					}
-					server.getEventManager().dispatchEvent(
-							new ChannelEvent(channel,
-									ChannelEvent.MODE_CHANGED, this));
-					continue;
-				}
-				ChannelUser user = channel.getUser(u[index]);
+		if (modes.startsWith(":"))
+			modes = modes.substring(1);
+		String chanModes = server.getSupport("CHANMODES");
+		if (chanModes == null)
+			chanModes = DEFAULT_CHANMODES;
+		final String[] types = chanModes.split(",", -1);
+		final List<ModeChangeEvent.Change> changes = new ArrayList<ModeChangeEvent.Change>();
+		final Map<ServerUser, ChannelUser> users = new LinkedHashMap<ServerUser, ChannelUser>();
+		boolean channelChanged = false;
+		boolean plus = true;
+		int index = 1;
+		for (int i = 0; i < modes.length(); i++) {
+			char c = modes.charAt(i);
+			if (c == '+') {
+				plus = true;
+				continue;
+			} else if (c == '-') {
+				plus = false;
+				continue;
+			}
+			final boolean rights = isRightsMode(server, c);
+			final boolean hasArgument = rights || contains(types, 0, c)
+					|| contains(types, 1, c) || plus && contains(types, 2, c);
+			String argument = null;
+			if (hasArgument && index < strings.length)
+				argument = strings[index++];
+			ChannelUser user = null;
+			if (rights) {
+				user = argument == null ? null : channel.getUser(argument);
 				if (user != null) {
-					if (plus) {
-						user.addMode(c);
-					} else {
-						user.removeMode(c);
-					}
-					server.getEventManager().dispatchEvent(
-							new ChannelUserEvent(this, channel, user,
-									ChannelUserEvent.USER_MODE_CHANGED));
-
+					user = plus ? user.addMode(c) : user.removeMode(c);
+					if (user != null)
+						users.put(user.getIdentity(), user);
+				}
+			} else {
+				if (argument != null && (c == 'b' || c == 'e' || c == 'I')) {
+					channel.setListMode(c, plus, argument);
+				} else if (!contains(types, 0, c)) {
+					channel.applyModes((plus ? "+" : "-") + c);
 				}
+				channelChanged = true;
 			}
-			index++;
+			changes.add(new ModeChangeEvent.Change(plus, c, argument, user));
+		}
+		final EventManager events = server.getEventManager();
+		final boolean legacy = !events.isCoalescedOnly();
+		if (legacy && channelChanged
+				&& events.hasSubscribers(ChannelEvent.class))
+			events.dispatchEvent(new ChannelEvent(channel,
+					ChannelEvent.MODE_CHANGED, this));
+		if (legacy && !users.isEmpty()
+				&& events.hasSubscribers(ChannelUserEvent.class)) {
+			for (ChannelUser user : users.values()) {
+				events.dispatchEvent(new ChannelUserEvent(this, channel, user,
+						ChannelUserEvent.USER_MODE_CHANGED));
+			}
+		}
+		if (changes.isEmpty() || !events.hasSubscribers(ModeChangeEvent.class))
+			return null;
+		return new ModeChangeEvent(channel, message.getSender(), changes, this);
+	}
 
+	private static boolean isRightsMode(final Server server, final char c) {
+		final char[] letters = server.getModeLetters();
+		if (letters == null)
+			return c == 'o' || c == 'v';
+		for (char letter : letters) {
+			if (letter == c)
+				return true;
 		}
-		return null;
+		return false;
+	}
+
+	private static boolean contains(final String[] types, final int type,
+			final char c) {
+		return type < types.length && types[type].indexOf(c) != -1;
 	}
 
 }
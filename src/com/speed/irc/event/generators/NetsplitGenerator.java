@@ -0,0 +1,215 @@
+package com.speed.irc.event.generators;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.speed.irc.connection.Server;
+import com.speed.irc.event.EventGenerator;
+import com.speed.irc.event.EventManager;
+import com.speed.irc.event.IRCEvent;
+import com.speed.irc.event.NetsplitEvent;
+import com.speed.irc.types.Channel;
+import com.speed.irc.types.RawMessage;
+
+/**
+ * Recognises netsplits and netjoins and gathers them into single
+ * {@link NetsplitEvent}s. A QUIT whose message is the names of two servers is
+ * taken to be part of a netsplit; quits with the same message are gathered
+ * until none has arrived for {@link #WINDOW} milliseconds. Users who split
+ * and rejoin within {@link #REJOIN_TIMEOUT} milliseconds are gathered into a
+ * netjoin in the same way. If the event manager dispatches only coalesced
+ * events (see {@link EventManager#setCoalescedOnly(boolean)}), the
+ * {@link JoinGenerator} given this generator does not dispatch a
+ * {@link com.speed.irc.event.ChannelUserEvent} for users rejoining after a
+ * split, since the netjoin already reports them.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class NetsplitGenerator implements EventGenerator {
+	public static final long WINDOW = 2000;
+	public static final long REJOIN_TIMEOUT = 30 * 60 * 1000;
+	private static final Pattern SPLIT_REASON = Pattern
+			.compile("([\\w-]+(?:\\.[\\w-]+)+) ([\\w-]+(?:\\.[\\w-]+)+)");
+	private final Server server;
+	private final Map<String, String> split = new HashMap<String, String>();
+	private final Map<String, Long> splitTimes = new HashMap<String, Long>();
+	private Batch splitting, joining;
+
+	public NetsplitGenerator(final Server server) {
+		this.server = server;
+	}
+
+	public boolean accept(RawMessage raw) {
+		final String command = raw.getCommand();
+		return (command.equals("QUIT") || command.equals("JOIN"))
+				&& server.getEventManager().hasSubscribers(NetsplitEvent.class);
+	}
+
+	/**
+	 * Checks whether a user joining a channel is rejoining after a netsplit,
+	 * and so will be reported as part of a netjoin.
+	 * 
+	 * @param nick
+	 *            the nick of the user
+	 * @return <tt>true</tt> if the join will be part of a netjoin
+	 */
+	public synchronized boolean isRejoining(final String nick) {
+		if (!server.getEventManager().hasSubscribers(NetsplitEvent.class))
+			return false;
+		final Long time = splitTimes.get(server.getCaseMapping().fold(nick));
+		return time != null
+				&& System.currentTimeMillis() - time <= REJOIN_TIMEOUT;
+	}
+
+	public synchronized IRCEvent generate(RawMessage raw) {
+		final String sender = raw.getSender();
+		final int bang = sender.indexOf('!');
+		final String nick = bang == -1 ? sender : sender.substring(0, bang);
+		final String key = server.getCaseMapping().fold(nick);
+		final long now = System.currentTimeMillis();
+		if (raw.getCommand().equals("QUIT")) {
+			final String line = raw.getRaw();
+			final int colon = line.indexOf(" :");
+			if (colon == -1)
+				return null;
+			final String reason = line.substring(colon + 2).trim();
+			if (!SPLIT_REASON.matcher(reason).matches())
+				return null;
+			if (splitting == null || !splitting.reason.equals(reason)) {
+				flush(splitting);
+				splitting = new Batch(NetsplitEvent.NETSPLIT, reason);
+			}
+			for (Channel channel : server.getChannels().values()) {
+				if (channel.getUser(nick) != null)
+					splitting.add(channel, nick, now);
+			}
+			split.put(key, reason);
+			splitTimes.put(key, now);
+		} else {
+			final String reason = split.remove(key);
+			final Long time = splitTimes.remove(key);
+			if (reason == null || now - time > REJOIN_TIMEOUT)
+				return null;
+			String name = raw.getTarget();
+			if (name.startsWith(":"))
+				name = name.substring(1);
+			final Channel channel = server.getChannels().get(name);
+			if (channel == null)
+				return null;
+			if (joining == null || !joining.reason.equals(reason)) {
+				flush(joining);
+				joining = new Batch(NetsplitEvent.NETJOIN, reason);
+			}
+			joining.add(channel, nick, now);
+			// a user rejoins each channel separately, so keep them until the
+			// batch is flushed
+			split.put(key, reason);
+			splitTimes.put(key, time);
+		}
+		return null;
+	}
+
+	/**
+	 * Dispatches a batch, if it has any users.
+	 */
+	private void flush(final Batch batch) {
+		if (batch == null || batch.users.isEmpty())
+			return;
+		if (batch == splitting)
+			splitting = null;
+		else if (batch == joining)
+			joining = null;
+		if (batch.code == NetsplitEvent.NETJOIN) {
+			for (List<String> nicks : batch.users.values()) {
+				for (String nick : nicks) {
+					final String key = server.getCaseMapping().fold(nick);
+					split.remove(key);
+					splitTimes.remove(key);
+				}
+			}
+		}
+		final long now = System.currentTimeMillis();
+		for (Iterator<Map.Entry<String, Long>> it = splitTimes.entrySet()
+				.iterator(); it.hasNext();) {
+			final Map.Entry<String, Long> entry = it.next();
+			if (now - entry.getValue() > REJOIN_TIMEOUT) {
+				split.remove(entry.getKey());
+				it.remove();
+			}
+		}
+		final Matcher matcher = SPLIT_REASON.matcher(batch.reason);
+		matcher.matches();
+		server.getEventManager().dispatchEvent(
+				new NetsplitEvent(batch.code, matcher.group(1), matcher
+						.group(2), batch.users, this));
+	}
+
+	/**
+	 * The users gathered into a netsplit or netjoin so far.
+	 */
+	private class Batch implements Runnable {
+		private final int code;
+		private final String reason;
+		private final Map<Channel, List<String>> users = new LinkedHashMap<Channel, List<String>>();
+		private long last;
+		private boolean scheduled;
+
+		private Batch(final int code, final String reason) {
+			this.code = code;
+			this.reason = reason;
+		}
+
+		private void add(final Channel channel, final String nick,
+				final long now) {
+			List<String> nicks = users.get(channel);
+			if (nicks == null) {
+				nicks = new ArrayList<String>();
+				users.put(channel, nicks);
+			}
+			if (!nicks.contains(nick))
+				nicks.add(nick);
+			last = now;
+			if (!scheduled) {
+				scheduled = true;
+				server.getChanExec().schedule(this, WINDOW,
+						TimeUnit.MILLISECONDS);
+			}
+		}
+
+		public void run() {
+			synchronized (NetsplitGenerator.this) {
+				if (splitting != this && joining != this)
+					return;
+				final long wait = last + WINDOW - System.currentTimeMillis();
+				if (wait > 0) {
+					server.getChanExec().schedule(this, wait,
+							TimeUnit.MILLISECONDS);
+				} else {
+					flush(this);
+				}
+			}
+		}
+	}
+}
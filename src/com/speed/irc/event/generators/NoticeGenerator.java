@@ -32,7 +32,7 @@ import com.speed.irc.types.RawMessage;
  */
 public class NoticeGenerator implements EventGenerator {
 	private static final Pattern PATTERN_NOTICE = Pattern
-			.compile("(.+?)!(.+?)@(.+?) NOTICE (#?.+?) :(+.*)");
+			.compile("(.+?)!(.+?)@(.+?) NOTICE (#?.+?) :(.*)");
 	private final Server server;
 
 	public NoticeGenerator(Server server) {
@@ -40,7 +40,8 @@ public class NoticeGenerator implements EventGenerator {
 	}
 
 	public boolean accept(RawMessage raw) {
-		return PATTERN_NOTICE.matcher(raw.getRaw()).matches();
+		return raw.getCommand().equals("NOTICE")
+				&& server.getEventManager().hasSubscribers(NoticeEvent.class);
 	}
 
 	public IRCEvent generate(RawMessage raw) {
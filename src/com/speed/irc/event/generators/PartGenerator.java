@@ -41,6 +41,10 @@ public class PartGenerator implements EventGenerator {
 			channel = new Channel(raw.getRaw().split(" ")[2], raw.getServer());
 		}
 		final ChannelUser user = channel.getUser(nick);
+		channel.removeChannelUser(user);
+		if (!raw.getServer().getEventManager()
+				.hasSubscribers(ChannelUserEvent.class))
+			return null;
 		return new ChannelUserEvent(this, channel, user,
 				ChannelUserEvent.USER_PARTED);
 	}
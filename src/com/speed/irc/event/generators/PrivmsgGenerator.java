@@ -7,10 +7,11 @@ import com.speed.irc.connection.Server;
 import com.speed.irc.event.EventGenerator;
 import com.speed.irc.event.IRCEvent;
 import com.speed.irc.event.PrivateMessageEvent;
+import com.speed.irc.types.Channel;
 import com.speed.irc.types.Conversable;
 import com.speed.irc.types.Privmsg;
 import com.speed.irc.types.RawMessage;
-import com.speed.irc.types.ServerUser;
+import com.speed.irc.util.Scrollback;
 
 /**
  * Processes PRIVMSG messages sent from the server.
@@ -53,16 +54,27 @@ public class PrivmsgGenerator implements EventGenerator {
 				String request = msg.replace("\u0001", "");
 				String reply = server.getCtcpReply(request);
 				if (reply != null) {
-					server.sendRaw(String.format(
-							"NOTICE %s :\u0001%s %s\u0001\n", sender, request,
-							reply));
+					server.command("NOTICE").param(sender).trailing("\u0001")
+							.append(request).append(' ').append(reply)
+							.append('\u0001').send();
 				}
 			}
+			final boolean toChannel = raw.getRaw().contains("PRIVMSG #");
+			if (toChannel) {
+				final Channel channel = server.getChannels().get(name);
+				final Scrollback scrollback = channel == null ? null : channel
+						.getScrollback();
+				if (scrollback != null)
+					scrollback.add(System.currentTimeMillis(), sender, msg);
+			}
+			if (!server.getEventManager().hasSubscribers(
+					PrivateMessageEvent.class))
+				return null;
 			Conversable conversable = null;
-			if (raw.getRaw().contains("PRIVMSG #")) {
+			if (toChannel) {
 				conversable = server.getChannels().get(name);
 			} else {
-				conversable = new ServerUser(sender, host, user, server);
+				conversable = server.getUser(sender, user, host);
 			}
 			return new PrivateMessageEvent(
 					new Privmsg(msg, sender, conversable), this);
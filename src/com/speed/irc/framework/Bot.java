@@ -3,6 +3,7 @@ package com.speed.irc.framework;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 import com.speed.irc.connection.Server;
@@ -39,6 +40,7 @@ public abstract class Bot implements ApiListener {
 	protected final int port;
 	protected Logger logger = Logger.getLogger(Bot.class.getName());
 	protected int modes;
+	private CommandRouter commands;
 
 	/**
 	 * Gets the port the bot is connected to
@@ -68,6 +70,27 @@ public abstract class Bot implements ApiListener {
 		return server;
 	}
 
+	/**
+	 * Gets the bot's command router, creating it the first time. Commands
+	 * registered with it are started with {@link #getCommandTrigger()}.
+	 * 
+	 * @return the command router
+	 */
+	public final synchronized CommandRouter getCommands() {
+		if (commands == null)
+			commands = new CommandRouter(server, getCommandTrigger());
+		return commands;
+	}
+
+	/**
+	 * Gets the character the bot's commands start with.
+	 * 
+	 * @return the command trigger character
+	 */
+	public char getCommandTrigger() {
+		return '!';
+	}
+
 	/**
 	 * Executed just after connecting to the server and before joining channels
 	 */
@@ -85,6 +108,7 @@ public abstract class Bot implements ApiListener {
 		this.port = port;
 		try {
 			this.server = new Server(new Socket(server, port));
+			this.server.requestCapabilities("batch", "draft/multiline");
 			this.server.sendRaw("NICK " + getNick() + "\n");
 			this.server.sendRaw("USER " + getUser() + " 0 * :" + getRealName());
 			if (this instanceof IRCEventListener) {
@@ -92,9 +116,7 @@ public abstract class Bot implements ApiListener {
 						(IRCEventListener) this);
 			}
 			onStart();
-			for (Channel s : getChannels()) {
-				s.join();
-			}
+			this.server.joinOnRegistration(Arrays.asList(getChannels()));
 		} catch (UnknownHostException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
@@ -145,12 +167,11 @@ public abstract class Bot implements ApiListener {
 	}
 
 	private void connect() {
+		this.server.requestCapabilities("batch", "draft/multiline");
 		this.server.sendRaw("NICK " + getNick() + "\n");
 		this.server.sendRaw("USER " + getUser() + " " + modes + " * :"
 				+ getRealName() + "\n");
-		for (Channel s : getChannels()) {
-			s.join();
-		}
+		server.joinOnRegistration(Arrays.asList(getChannels()));
 	}
 
 	/**
@@ -160,7 +181,8 @@ public abstract class Bot implements ApiListener {
 	 *            The password assigned to your nick
 	 */
 	public void identify(final String password) {
-		server.sendRaw("PRIVMSG NickServ :identify " + password + "\n");
+		server.command("PRIVMSG").param("NickServ").trailing("identify ")
+				.append(password).send();
 	}
 
 	public void apiEventReceived(ApiEvent e) {
@@ -0,0 +1,175 @@
+package com.speed.irc.framework;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.speed.irc.types.Channel;
+import com.speed.irc.types.ChannelUser;
+import com.speed.irc.types.Conversable;
+import com.speed.irc.types.Privmsg;
+
+/**
+ * A use of a command: the message it came in, the name it was invoked with
+ * and its arguments. Arguments are separated by spaces, and can contain
+ * spaces if surrounded by double quotes.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class Command {
+	private final Privmsg message;
+	private final String name;
+	private final String arguments;
+	private final String[] args;
+	private final ChannelUser user;
+
+	protected Command(final Privmsg message, final String name,
+			final String arguments, final ChannelUser user) {
+		this.message = message;
+		this.name = name;
+		this.arguments = arguments;
+		this.args = tokenize(arguments);
+		this.user = user;
+	}
+
+	private static String[] tokenize(final String s) {
+		final List<String> tokens = new ArrayList<String>();
+		final StringBuilder token = new StringBuilder();
+		boolean quoted = false, inToken = false;
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+				inToken = true;
+			} else if (c == ' ' && !quoted) {
+				if (inToken) {
+					tokens.add(token.toString());
+					token.setLength(0);
+					inToken = false;
+				}
+			} else {
+				token.append(c);
+				inToken = true;
+			}
+		}
+		if (inToken)
+			tokens.add(token.toString());
+		return tokens.toArray(new String[tokens.size()]);
+	}
+
+	/**
+	 * Gets the name the command was invoked with, without the trigger
+	 * character.
+	 * 
+	 * @return the name of the command
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the number of arguments.
+	 * 
+	 * @return the number of arguments
+	 */
+	public int getArgumentCount() {
+		return args.length;
+	}
+
+	/**
+	 * Gets an argument.
+	 * 
+	 * @param index
+	 *            the index of the argument
+	 * @return the argument, or <tt>null</tt> if there are not that many
+	 */
+	public String getArgument(final int index) {
+		return index < args.length ? args[index] : null;
+	}
+
+	/**
+	 * Gets the arguments.
+	 * 
+	 * @return a copy of the arguments
+	 */
+	public String[] getArguments() {
+		return args.clone();
+	}
+
+	/**
+	 * Gets the text after the command name, as it was sent.
+	 * 
+	 * @return the unparsed arguments
+	 */
+	public String getArgumentText() {
+		return arguments;
+	}
+
+	/**
+	 * Gets the message the command was used in.
+	 * 
+	 * @return the message
+	 */
+	public Privmsg getMessage() {
+		return message;
+	}
+
+	/**
+	 * Gets the nick of the user who used the command.
+	 * 
+	 * @return the sender's nick
+	 */
+	public String getSender() {
+		return message.getSender();
+	}
+
+	/**
+	 * Gets the user who used the command in a channel.
+	 * 
+	 * @return the channel user, or <tt>null</tt> if the command was sent
+	 *         privately
+	 */
+	public ChannelUser getUser() {
+		return user;
+	}
+
+	/**
+	 * Gets the channel the command was used in.
+	 * 
+	 * @return the channel, or <tt>null</tt> if the command was sent privately
+	 */
+	public Channel getChannel() {
+		final Conversable c = message.getConversable();
+		return c instanceof Channel ? (Channel) c : null;
+	}
+
+	/**
+	 * Replies to the command in the channel it was used in, or privately to
+	 * the sender.
+	 * 
+	 * @param reply
+	 *            the reply to send
+	 */
+	public void reply(final String reply) {
+		message.getConversable().sendMessage(reply);
+	}
+
+	@Override
+	public String toString() {
+		return arguments.isEmpty() ? name : name + " " + arguments;
+	}
+}
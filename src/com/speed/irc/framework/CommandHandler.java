@@ -0,0 +1,32 @@
+package com.speed.irc.framework;
+
+/**
+ * Handles a command registered with a {@link CommandRouter}.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public interface CommandHandler {
+	/**
+	 * Executed when the command is used by someone with the rights it
+	 * requires. Called on the router's executor, not the event thread.
+	 * 
+	 * @param command
+	 *            the command, with its arguments
+	 */
+	void execute(Command command);
+}
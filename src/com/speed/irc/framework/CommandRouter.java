@@ -0,0 +1,311 @@
+package com.speed.irc.framework;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.speed.irc.connection.Server;
+import com.speed.irc.event.ExceptionEvent;
+import com.speed.irc.event.PrivateMessageEvent;
+import com.speed.irc.event.PrivateMessageListener;
+import com.speed.irc.types.Channel;
+import com.speed.irc.types.ChannelUser;
+import com.speed.irc.types.Conversable;
+import com.speed.irc.types.Privmsg;
+
+/**
+ * Routes messages starting with a trigger character, such as <tt>!quit</tt>,
+ * to the handler registered for the command. Commands are kept in a trie, so
+ * finding the handler takes time proportional to the length of the command
+ * name whatever the number of commands, and command names are compared
+ * ignoring case.
+ * <p/>
+ * A command can require channel rights, given as one of the
+ * {@link ChannelUser} flags: only users with those rights or higher in the
+ * channel the command was used in can use it, and it cannot be used privately.
+ * Handlers run on a bounded pool of threads so a slow handler cannot hold up
+ * other events; commands which arrive while the pool and its queue are full
+ * are dropped.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class CommandRouter implements PrivateMessageListener {
+	public static final int DEFAULT_QUEUE_SIZE = 64;
+	private static final Node EMPTY = new Node(new char[0], new Node[0], null);
+	private final Server server;
+	private final char trigger;
+	private final ExecutorService executor;
+	private final Logger logger = Logger.getLogger(CommandRouter.class
+			.getName());
+	private volatile Node root = EMPTY;
+
+	/**
+	 * Creates a command router which runs handlers on a pool of one thread
+	 * per processor, and registers it with the server's event manager.
+	 * 
+	 * @param server
+	 *            the server to receive commands from
+	 * @param trigger
+	 *            the character commands start with
+	 */
+	public CommandRouter(final Server server, final char trigger) {
+		this(server, trigger, newExecutor(Runtime.getRuntime()
+				.availableProcessors(), DEFAULT_QUEUE_SIZE));
+	}
+
+	/**
+	 * Creates a command router and registers it with the server's event
+	 * manager.
+	 * 
+	 * @param server
+	 *            the server to receive commands from
+	 * @param trigger
+	 *            the character commands start with
+	 * @param executor
+	 *            the executor to run handlers on
+	 */
+	public CommandRouter(final Server server, final char trigger,
+			final ExecutorService executor) {
+		this.server = server;
+		this.trigger = trigger;
+		this.executor = executor;
+		server.getEventManager().addListener(this);
+	}
+
+	/**
+	 * Creates a pool of daemon threads with a bounded queue, suitable for
+	 * running command handlers.
+	 * 
+	 * @param threads
+	 *            the number of threads
+	 * @param queueSize
+	 *            the number of commands which can wait for a thread
+	 * @return the executor
+	 */
+	public static ExecutorService newExecutor(final int threads,
+			final int queueSize) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						queueSize), new ThreadFactory() {
+					public Thread newThread(final Runnable r) {
+						final Thread thread = new Thread(r, "Command handler "
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Gets the character commands start with.
+	 * 
+	 * @return the trigger character
+	 */
+	public char getTrigger() {
+		return trigger;
+	}
+
+	/**
+	 * Registers a command anyone can use, replacing any command with the same
+	 * name.
+	 * 
+	 * @param name
+	 *            the name of the command, without the trigger character
+	 * @param handler
+	 *            the handler to execute
+	 */
+	public void register(final String name, final CommandHandler handler) {
+		register(name, 0, handler);
+	}
+
+	/**
+	 * Registers a command, replacing any command with the same name.
+	 * 
+	 * @param name
+	 *            the name of the command, without the trigger character
+	 * @param rights
+	 *            the lowest channel rights needed to use the command, one of
+	 *            the {@link ChannelUser} flags, or 0 if anyone can use it
+	 * @param handler
+	 *            the handler to execute
+	 */
+	public synchronized void register(final String name, final int rights,
+			final CommandHandler handler) {
+		if (name.isEmpty() || name.indexOf(' ') != -1)
+			throw new IllegalArgumentException("invalid command name: " + name);
+		root = root.put(fold(name), 0, new Entry(name, rights, handler));
+	}
+
+	/**
+	 * Removes a command.
+	 * 
+	 * @param name
+	 *            the name of the command
+	 * @return <tt>true</tt> if the command was registered
+	 */
+	public synchronized boolean unregister(final String name) {
+		final String key = fold(name);
+		if (root.get(key, 0, key.length()) == null)
+			return false;
+		root = root.put(key, 0, null);
+		return true;
+	}
+
+	private static String fold(final String name) {
+		final char[] chars = name.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = Character.toLowerCase(chars[i]);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Stops the handler threads once the commands already received have been
+	 * handled.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public void messageReceived(final PrivateMessageEvent e) {
+		final Privmsg message = e.getMessage();
+		final String text = message.getMessage();
+		if (text.length() < 2 || text.charAt(0) != trigger)
+			return;
+		int end = text.indexOf(' ');
+		if (end == -1)
+			end = text.length();
+		final Entry entry = root.get(text, 1, end);
+		if (entry == null)
+			return;
+		ChannelUser user = null;
+		final Conversable conversable = message.getConversable();
+		if (conversable instanceof Channel)
+			user = ((Channel) conversable).getUser(message.getSender());
+		if (!hasRights(user, entry.rights))
+			return;
+		final Command command = new Command(message, text.substring(1, end),
+				end < text.length() ? text.substring(end + 1).trim() : "", user);
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						entry.handler.execute(command);
+					} catch (Exception e) {
+						server.getEventManager().dispatchEvent(
+								new ExceptionEvent(e, CommandRouter.this, server));
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			logger.warning("Dropped command " + command + " from "
+					+ message.getSender() + ": too many commands running");
+		}
+	}
+
+	/**
+	 * Checks whether a user has at least some channel rights.
+	 * 
+	 * @param user
+	 *            the user, <tt>null</tt> if the command was sent privately
+	 * @param rights
+	 *            one of the {@link ChannelUser} flags, or 0
+	 * @return <tt>true</tt> if the user has those rights or higher
+	 */
+	protected boolean hasRights(final ChannelUser user, final int rights) {
+		if (rights == 0)
+			return true;
+		return user != null && Integer.highestOneBit(user.getRights()) >= rights;
+	}
+
+	private static class Entry {
+		private final String name;
+		private final int rights;
+		private final CommandHandler handler;
+
+		private Entry(final String name, final int rights,
+				final CommandHandler handler) {
+			this.name = name;
+			this.rights = rights;
+			this.handler = handler;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * An immutable trie node; registering a command copies the nodes along
+	 * its path, so lookups never need to lock.
+	 */
+	private static class Node {
+		private final char[] labels;
+		private final Node[] children;
+		private final Entry entry;
+
+		private Node(final char[] labels, final Node[] children,
+				final Entry entry) {
+			this.labels = labels;
+			this.children = children;
+			this.entry = entry;
+		}
+
+		private Entry get(final String s, final int start, final int end) {
+			Node node = this;
+			for (int i = start; i < end && node != null; i++) {
+				final int index = Arrays.binarySearch(node.labels,
+						Character.toLowerCase(s.charAt(i)));
+				node = index < 0 ? null : node.children[index];
+			}
+			return node == null ? null : node.entry;
+		}
+
+		private Node put(final String key, final int depth, final Entry value) {
+			if (depth == key.length())
+				return new Node(labels, children, value);
+			final char c = key.charAt(depth);
+			final int index = Arrays.binarySearch(labels, c);
+			if (index >= 0) {
+				final Node[] copy = children.clone();
+				copy[index] = children[index].put(key, depth + 1, value);
+				return new Node(labels, copy, entry);
+			}
+			final int insert = -index - 1;
+			final char[] newLabels = new char[labels.length + 1];
+			final Node[] newChildren = new Node[labels.length + 1];
+			System.arraycopy(labels, 0, newLabels, 0, insert);
+			System.arraycopy(children, 0, newChildren, 0, insert);
+			System.arraycopy(labels, insert, newLabels, insert + 1,
+					labels.length - insert);
+			System.arraycopy(children, insert, newChildren, insert + 1,
+					labels.length - insert);
+			newLabels[insert] = c;
+			newChildren[insert] = EMPTY.put(key, depth + 1, value);
+			return new Node(newLabels, newChildren, entry);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.speed.irc.framework;
+
+/**
+ * A pattern registered with a {@link TriggerEngine}, and the listener it
+ * triggers.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class Trigger {
+	/**
+	 * The ways a trigger's pattern can match a message.
+	 */
+	public enum Type {
+		/**
+		 * The pattern occurs anywhere in the message.
+		 */
+		CONTAINS,
+		/**
+		 * The pattern occurs in the message as a whole word.
+		 */
+		WORD,
+		/**
+		 * The message starts with the pattern.
+		 */
+		PREFIX,
+		/**
+		 * The message is the pattern.
+		 */
+		EXACT,
+		/**
+		 * The message matches the pattern, where <tt>*</tt> matches any
+		 * number of characters and <tt>?</tt> matches any one character.
+		 */
+		GLOB
+	}
+
+	private final Type type;
+	private final String pattern;
+	private final TriggerListener listener;
+	protected final String keyword;
+	protected volatile boolean removed;
+
+	protected Trigger(final Type type, final String pattern,
+			final TriggerListener listener) {
+		this.type = type;
+		this.pattern = pattern;
+		this.listener = listener;
+		this.keyword = type == Type.GLOB ? longestLiteral(pattern) : pattern;
+	}
+
+	private static String longestLiteral(final String glob) {
+		String longest = "";
+		for (String part : glob.split("[*?]")) {
+			if (part.length() > longest.length())
+				longest = part;
+		}
+		return longest;
+	}
+
+	/**
+	 * Gets the way this trigger's pattern matches messages.
+	 * 
+	 * @return the type of the trigger
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the pattern of this trigger.
+	 * 
+	 * @return the pattern
+	 */
+	public String getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * Gets the listener this trigger calls.
+	 * 
+	 * @return the listener
+	 */
+	public TriggerListener getListener() {
+		return listener;
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + pattern;
+	}
+}
@@ -0,0 +1,456 @@
+package com.speed.irc.framework;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.speed.irc.connection.Server;
+import com.speed.irc.event.IRCEvent;
+import com.speed.irc.event.NoticeEvent;
+import com.speed.irc.event.NoticeListener;
+import com.speed.irc.event.PrivateMessageEvent;
+import com.speed.irc.event.PrivateMessageListener;
+import com.speed.irc.util.CaseMapping;
+import com.speed.irc.util.KeywordAutomaton;
+
+/**
+ * Matches every PRIVMSG and NOTICE against any number of registered triggers
+ * in a single pass, and calls only the listeners whose triggers matched. The
+ * patterns are compiled into a {@link KeywordAutomaton} and compared with the
+ * server's case mapping; messages are matched on their plain text, with
+ * formatting codes removed.
+ * <p/>
+ * Triggers take effect as soon as they are added or removed. The automaton is
+ * rebuilt in the background to include them, and until then new triggers are
+ * checked one by one.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class TriggerEngine implements PrivateMessageListener, NoticeListener {
+	private static final int FIRED = 1, REJECTED = 2, FLAGS = 3;
+	private static final Trigger[] NO_TRIGGERS = new Trigger[0];
+	private static final ThreadLocal<Marks> MARKS = new ThreadLocal<Marks>() {
+		protected Marks initialValue() {
+			return new Marks();
+		}
+	};
+	private static final ExecutorService REBUILDER = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, "Trigger rebuilder");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	private final Server server;
+	private final Set<Trigger> triggers = new LinkedHashSet<Trigger>();
+	private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+	private final Object rebuildLock = new Object();
+	private final Runnable rebuild = new Runnable() {
+		public void run() {
+			rebuildScheduled.set(false);
+			rebuild();
+		}
+	};
+	private volatile Snapshot snapshot;
+
+	/**
+	 * Creates a trigger engine and registers it with the server's event
+	 * manager.
+	 * 
+	 * @param server
+	 *            the server whose messages should be matched
+	 */
+	public TriggerEngine(final Server server) {
+		this.server = server;
+		snapshot = new Snapshot(new Compiled(NO_TRIGGERS,
+				server.getCaseMapping()), NO_TRIGGERS, 0);
+		server.getEventManager().addListener(this);
+	}
+
+	/**
+	 * Adds a trigger which matches messages containing a phrase.
+	 * 
+	 * @param phrase
+	 *            the phrase
+	 * @param listener
+	 *            the listener to call
+	 * @return the trigger, which can be passed to {@link #remove(Trigger)}
+	 */
+	public Trigger addPhrase(final String phrase, final TriggerListener listener) {
+		return add(Trigger.Type.CONTAINS, phrase, listener);
+	}
+
+	/**
+	 * Adds a trigger which matches messages containing a whole word.
+	 * 
+	 * @param word
+	 *            the word
+	 * @param listener
+	 *            the listener to call
+	 * @return the trigger, which can be passed to {@link #remove(Trigger)}
+	 */
+	public Trigger addWord(final String word, final TriggerListener listener) {
+		return add(Trigger.Type.WORD, word, listener);
+	}
+
+	/**
+	 * Adds a trigger which matches messages starting with a prefix.
+	 * 
+	 * @param prefix
+	 *            the prefix
+	 * @param listener
+	 *            the listener to call
+	 * @return the trigger, which can be passed to {@link #remove(Trigger)}
+	 */
+	public Trigger addPrefix(final String prefix, final TriggerListener listener) {
+		return add(Trigger.Type.PREFIX, prefix, listener);
+	}
+
+	/**
+	 * Adds a trigger which matches messages equal to some text.
+	 * 
+	 * @param text
+	 *            the text
+	 * @param listener
+	 *            the listener to call
+	 * @return the trigger, which can be passed to {@link #remove(Trigger)}
+	 */
+	public Trigger addExact(final String text, final TriggerListener listener) {
+		return add(Trigger.Type.EXACT, text, listener);
+	}
+
+	/**
+	 * Adds a trigger which matches messages matching a glob, where <tt>*</tt>
+	 * matches any number of characters and <tt>?</tt> any one character.
+	 * 
+	 * @param glob
+	 *            the glob
+	 * @param listener
+	 *            the listener to call
+	 * @return the trigger, which can be passed to {@link #remove(Trigger)}
+	 */
+	public Trigger addGlob(final String glob, final TriggerListener listener) {
+		return add(Trigger.Type.GLOB, glob, listener);
+	}
+
+	private Trigger add(final Trigger.Type type, final String pattern,
+			final TriggerListener listener) {
+		if (pattern.isEmpty())
+			throw new IllegalArgumentException("empty pattern");
+		final Trigger trigger = new Trigger(type, pattern, listener);
+		synchronized (triggers) {
+			triggers.add(trigger);
+			final Snapshot s = snapshot;
+			Trigger[] pending = s.pending;
+			if (s.count == pending.length) {
+				pending = new Trigger[Math.max(8, pending.length * 2)];
+				System.arraycopy(s.pending, 0, pending, 0, s.count);
+			}
+			// slots past a snapshot's count are never read through it, so the
+			// array can be shared with the next snapshot
+			pending[s.count] = trigger;
+			snapshot = new Snapshot(s.compiled, pending, s.count + 1);
+		}
+		scheduleRebuild();
+		return trigger;
+	}
+
+	/**
+	 * Removes a trigger. It stops matching immediately.
+	 * 
+	 * @param trigger
+	 *            the trigger to remove
+	 * @return <tt>true</tt> if the trigger was registered
+	 */
+	public boolean remove(final Trigger trigger) {
+		trigger.removed = true;
+		final boolean removed;
+		synchronized (triggers) {
+			removed = triggers.remove(trigger);
+		}
+		if (removed)
+			scheduleRebuild();
+		return removed;
+	}
+
+	/**
+	 * Gets the number of registered triggers.
+	 * 
+	 * @return the number of triggers
+	 */
+	public int size() {
+		synchronized (triggers) {
+			return triggers.size();
+		}
+	}
+
+	private void scheduleRebuild() {
+		if (rebuildScheduled.compareAndSet(false, true))
+			REBUILDER.execute(rebuild);
+	}
+
+	/**
+	 * Rebuilds the automaton from the registered triggers on the calling
+	 * thread. This normally happens in the background after triggers are
+	 * added or removed, but can be called directly after adding many triggers
+	 * at once. Rebuilds run one at a time, so an older automaton is never
+	 * published over a newer one.
+	 */
+	public void rebuild() {
+		synchronized (rebuildLock) {
+			final Trigger[] snapshot;
+			synchronized (triggers) {
+				snapshot = triggers.toArray(new Trigger[triggers.size()]);
+			}
+			final Compiled c = new Compiled(snapshot, server.getCaseMapping());
+			synchronized (triggers) {
+				final Set<Trigger> included = new LinkedHashSet<Trigger>();
+				for (Trigger t : snapshot) {
+					included.add(t);
+				}
+				final Snapshot s = this.snapshot;
+				final List<Trigger> left = new ArrayList<Trigger>();
+				for (int i = 0; i < s.count; i++) {
+					final Trigger t = s.pending[i];
+					if (!included.contains(t) && !t.removed)
+						left.add(t);
+				}
+				this.snapshot = new Snapshot(c, left.toArray(new Trigger[left
+						.size()]), left.size());
+			}
+		}
+	}
+
+	public void messageReceived(final PrivateMessageEvent e) {
+		match(e.getMessage().getPlainMessage(), e);
+	}
+
+	public void noticeReceived(final NoticeEvent e) {
+		match(e.getNotice().getPlainMessage(), e);
+	}
+
+	/**
+	 * Matches some text against the triggers and calls the listeners of those
+	 * which matched, each at most once.
+	 * 
+	 * @param text
+	 *            the text to match
+	 * @param event
+	 *            the event passed to the listeners
+	 */
+	public void match(final String text, final IRCEvent event) {
+		final Snapshot s = snapshot;
+		final Compiled c = s.compiled;
+		if (c.mapping != server.getCaseMapping())
+			scheduleRebuild();
+		final List<Trigger> matched = c.match(text);
+		for (int i = 0; i < s.count; i++) {
+			final Trigger t = s.pending[i];
+			if (!t.removed && find(t, text, c.mapping))
+				matched.add(t);
+		}
+		for (Trigger t : matched) {
+			t.getListener().triggered(t, event);
+		}
+	}
+
+	/**
+	 * Checks a trigger against some text without the automaton.
+	 */
+	private static boolean find(final Trigger t, final String text,
+			final CaseMapping mapping) {
+		final String keyword = t.keyword;
+		if (t.getType() == Trigger.Type.GLOB && keyword.isEmpty())
+			return mapping.matches(t.getPattern(), text);
+		for (int start = 0; start + keyword.length() <= text.length(); start++) {
+			if (regionEquals(text, start, keyword, mapping)
+					&& verify(t, text, start, start + keyword.length(),
+							mapping))
+				return true;
+			if (t.getType() == Trigger.Type.PREFIX
+					|| t.getType() == Trigger.Type.EXACT)
+				return false;
+		}
+		return false;
+	}
+
+	private static boolean regionEquals(final String text, final int start,
+			final String keyword, final CaseMapping mapping) {
+		for (int i = 0; i < keyword.length(); i++) {
+			if (mapping.fold(text.charAt(start + i)) != mapping.fold(keyword
+					.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether an occurrence of a trigger's keyword satisfies the
+	 * trigger.
+	 */
+	private static boolean verify(final Trigger t, final String text,
+			final int start, final int end, final CaseMapping mapping) {
+		switch (t.getType()) {
+		case CONTAINS:
+			return true;
+		case WORD:
+			return (start == 0 || !Character.isLetterOrDigit(text
+					.charAt(start - 1)))
+					&& (end == text.length() || !Character.isLetterOrDigit(text
+							.charAt(end)));
+		case PREFIX:
+			return start == 0;
+		case EXACT:
+			return start == 0 && end == text.length();
+		case GLOB:
+			return mapping.matches(t.getPattern(), text);
+		}
+		return false;
+	}
+
+	/**
+	 * The automaton and the triggers added since it was built, published
+	 * together so that a trigger is always in one or the other.
+	 */
+	private static class Snapshot {
+		private final Compiled compiled;
+		private final Trigger[] pending;
+		private final int count;
+
+		private Snapshot(final Compiled compiled, final Trigger[] pending,
+				final int count) {
+			this.compiled = compiled;
+			this.pending = pending;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * The state of each trigger while one message is matched, reused by the
+	 * thread for every message. A mark is only valid if its upper bits are
+	 * the current generation, so the marks never have to be cleared.
+	 */
+	private static class Marks {
+		private int[] marks = new int[0];
+		private int generation;
+
+		private int next(final int size) {
+			if (marks.length < size)
+				marks = new int[Math.max(size, marks.length * 2)];
+			generation += FLAGS + 1;
+			if (generation == 0) {
+				Arrays.fill(marks, 0);
+				generation = FLAGS + 1;
+			}
+			return generation;
+		}
+	}
+
+	/**
+	 * An automaton built from a snapshot of the triggers.
+	 */
+	private static class Compiled {
+		private final CaseMapping mapping;
+		private final KeywordAutomaton automaton;
+		private final Trigger[][] byKeyword;
+		private final int[][] indices;
+		private final Trigger[] unanchored;
+		private final int size;
+
+		private Compiled(final Trigger[] triggers, final CaseMapping mapping) {
+			this.mapping = mapping;
+			this.size = triggers.length;
+			final Map<String, Integer> keys = new HashMap<String, Integer>();
+			final List<String> keywords = new ArrayList<String>();
+			final List<List<Integer>> owners = new ArrayList<List<Integer>>();
+			final List<Trigger> unanchored = new ArrayList<Trigger>();
+			for (int i = 0; i < triggers.length; i++) {
+				final Trigger t = triggers[i];
+				if (t.keyword.isEmpty()) {
+					unanchored.add(t);
+					continue;
+				}
+				final String folded = mapping.fold(t.keyword);
+				Integer key = keys.get(folded);
+				if (key == null) {
+					key = keywords.size();
+					keys.put(folded, key);
+					keywords.add(folded);
+					owners.add(new ArrayList<Integer>(1));
+				}
+				owners.get(key).add(i);
+			}
+			automaton = new KeywordAutomaton(keywords, mapping);
+			byKeyword = new Trigger[keywords.size()][];
+			indices = new int[keywords.size()][];
+			for (int k = 0; k < byKeyword.length; k++) {
+				final List<Integer> o = owners.get(k);
+				byKeyword[k] = new Trigger[o.size()];
+				indices[k] = new int[o.size()];
+				for (int j = 0; j < o.size(); j++) {
+					indices[k][j] = o.get(j);
+					byKeyword[k][j] = triggers[o.get(j)];
+				}
+			}
+			this.unanchored = unanchored.toArray(new Trigger[unanchored.size()]);
+		}
+
+		private List<Trigger> match(final String text) {
+			final List<Trigger> matched = new ArrayList<Trigger>(2);
+			if (byKeyword.length > 0) {
+				final Marks marks = MARKS.get();
+				final int generation = marks.next(size);
+				final int[] state = marks.marks;
+				automaton.scan(text, new KeywordAutomaton.Visitor() {
+					public boolean found(final int keyword, final int end) {
+						final Trigger[] ts = byKeyword[keyword];
+						for (int j = 0; j < ts.length; j++) {
+							final Trigger t = ts[j];
+							final int index = indices[keyword][j];
+							if ((state[index] & ~FLAGS) == generation
+									|| t.removed)
+								continue;
+							final int start = end - t.keyword.length();
+							if (verify(t, text, start, end, mapping)) {
+								state[index] = generation | FIRED;
+								matched.add(t);
+							} else if (t.getType() == Trigger.Type.GLOB) {
+								state[index] = generation | REJECTED;
+							}
+						}
+						return true;
+					}
+				});
+			}
+			for (Trigger t : unanchored) {
+				if (!t.removed && mapping.matches(t.getPattern(), text))
+					matched.add(t);
+			}
+			return matched;
+		}
+	}
+}
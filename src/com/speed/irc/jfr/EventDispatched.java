@@ -0,0 +1,59 @@
+package com.speed.irc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a listener or handler being called with an IRC
+ * event. The duration is the time the listener took.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+@Name("com.speed.irc.EventDispatched")
+@Label("IRC Event Dispatched")
+@Category({ "IRC", "Events" })
+@Description("A listener or handler called with an event")
+@StackTrace(false)
+public final class EventDispatched extends Event {
+	@Label("Event Type")
+	Class<?> eventType;
+
+	@Label("Listener")
+	Class<?> listener;
+
+	/**
+	 * Ends the event and records it if it is enabled and lasted long enough.
+	 * 
+	 * @param event
+	 *            the IRC event
+	 * @param listener
+	 *            the class of the listener or handler
+	 */
+	public void record(final Object event, final Class<?> listener) {
+		end();
+		if (shouldCommit()) {
+			this.eventType = event.getClass();
+			this.listener = listener;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.speed.irc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for the outbound queue holding back lines because it
+ * released as many as its pacing allows.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+@Name("com.speed.irc.FloodThrottled")
+@Label("IRC Flood Throttled")
+@Category({ "IRC", "Connection" })
+@Description("Outbound lines held back by pacing")
+@StackTrace(false)
+public final class FloodThrottled extends Event {
+	@Label("Lines Released")
+	int released;
+
+	@Label("Lines Waiting")
+	int waiting;
+
+	/**
+	 * Records that lines were held back if the event is enabled.
+	 * 
+	 * @param released
+	 *            the number of lines released this tick
+	 * @param waiting
+	 *            the number of lines still queued
+	 */
+	public static void record(final int released, final int waiting) {
+		final FloodThrottled event = new FloodThrottled();
+		if (event.shouldCommit()) {
+			event.released = released;
+			event.waiting = waiting;
+			event.commit();
+		}
+	}
+}
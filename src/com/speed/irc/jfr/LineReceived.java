@@ -0,0 +1,62 @@
+package com.speed.irc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a line read from the server.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+@Name("com.speed.irc.LineReceived")
+@Label("IRC Line Received")
+@Category({ "IRC", "Connection" })
+@Description("A line read from the server")
+@StackTrace(false)
+public final class LineReceived extends Event {
+	@Label("Server")
+	String server;
+
+	@Label("Command")
+	String command;
+
+	@Label("Line")
+	String line;
+
+	/**
+	 * Records a line if the event is enabled.
+	 * 
+	 * @param server
+	 *            the name of the server
+	 * @param line
+	 *            the line as read
+	 */
+	public static void record(final String server, final String line) {
+		final LineReceived event = new LineReceived();
+		if (event.shouldCommit()) {
+			event.server = server;
+			event.command = Lines.command(line);
+			event.line = line;
+			event.commit();
+		}
+	}
+}
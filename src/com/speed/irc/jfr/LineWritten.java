@@ -0,0 +1,86 @@
+package com.speed.irc.jfr;
+
+import java.nio.CharBuffer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event for a line written to the server. Lines are either
+ * written straight away, or released from the paced outbound queue.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+@Name("com.speed.irc.LineWritten")
+@Label("IRC Line Written")
+@Category({ "IRC", "Connection" })
+@Description("A line written to the server")
+@StackTrace(false)
+public final class LineWritten extends Event {
+	/**
+	 * The lane of lines written as soon as they are sent.
+	 */
+	public static final String DIRECT = "direct";
+	/**
+	 * The lane of lines released from the outbound queue.
+	 */
+	public static final String PACED = "paced";
+
+	@Label("Lane")
+	String lane;
+
+	@Label("Command")
+	String command;
+
+	@Label("Length")
+	int length;
+
+	@Label("Queued Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long queuedTime;
+
+	/**
+	 * Ends the event and records it if it is enabled.
+	 * 
+	 * @param lane
+	 *            {@link #DIRECT} or {@link #PACED}
+	 * @param line
+	 *            the line, including CR-LF
+	 * @param length
+	 *            the length of the line
+	 * @param queued
+	 *            the {@link System#nanoTime()} the line was queued at, or 0
+	 *            if it was not queued
+	 */
+	public void record(final String lane, final char[] line, final int length,
+			final long queued) {
+		end();
+		if (shouldCommit()) {
+			this.lane = lane;
+			this.command = Lines.command(CharBuffer.wrap(line, 0, length));
+			this.length = length;
+			this.queuedTime = queued == 0 ? 0 : System.nanoTime() - queued;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package com.speed.irc.jfr;
+
+/**
+ * Helpers for describing lines in flight recorder events, only used once an
+ * event is known to be committed.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+final class Lines {
+	private Lines() {
+	}
+
+	/**
+	 * Gets the command of a raw line, skipping its tags and prefix.
+	 * 
+	 * @param line
+	 *            the line
+	 * @return the command, or <tt>""</tt> if there is none
+	 */
+	static String command(final CharSequence line) {
+		int start = 0;
+		final int length = line.length();
+		while (start < length
+				&& (line.charAt(start) == '@' || line.charAt(start) == ':')) {
+			while (start < length && line.charAt(start) != ' ')
+				start++;
+			while (start < length && line.charAt(start) == ' ')
+				start++;
+		}
+		int end = start;
+		while (end < length && line.charAt(end) != ' '
+				&& line.charAt(end) != '\r')
+			end++;
+		return line.subSequence(start, end).toString();
+	}
+}
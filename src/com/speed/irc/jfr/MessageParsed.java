@@ -0,0 +1,66 @@
+package com.speed.irc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for an event generator handling a parsed message. The
+ * duration is the time the generator took.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+@Name("com.speed.irc.MessageParsed")
+@Label("IRC Message Parsed")
+@Category({ "IRC", "Parser" })
+@Description("An event generator handling a message from the server")
+@StackTrace(false)
+public final class MessageParsed extends Event {
+	@Label("Command")
+	String command;
+
+	@Label("Generator")
+	Class<?> generator;
+
+	@Label("Event Generated")
+	boolean generated;
+
+	/**
+	 * Ends the event and records it if it is enabled and lasted long enough.
+	 * 
+	 * @param command
+	 *            the message's command
+	 * @param generator
+	 *            the generator which handled the message
+	 * @param generated
+	 *            whether the generator returned an event
+	 */
+	public void record(final String command, final Object generator,
+			final boolean generated) {
+		end();
+		if (shouldCommit()) {
+			this.command = command;
+			this.generator = generator.getClass();
+			this.generated = generated;
+			commit();
+		}
+	}
+}
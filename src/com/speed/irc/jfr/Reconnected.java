@@ -0,0 +1,64 @@
+package com.speed.irc.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for an attempt to reconnect to the server. The
+ * duration is the time taken to open the new connection.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+@Name("com.speed.irc.Reconnected")
+@Label("IRC Reconnect")
+@Category({ "IRC", "Connection" })
+@Description("An attempt to reconnect to the server")
+public final class Reconnected extends Event {
+	@Label("Server")
+	String server;
+
+	@Label("Port")
+	int port;
+
+	@Label("Succeeded")
+	boolean succeeded;
+
+	/**
+	 * Ends the event and records it if it is enabled.
+	 * 
+	 * @param server
+	 *            the server's host address
+	 * @param port
+	 *            the server's port
+	 * @param succeeded
+	 *            whether the connection was opened
+	 */
+	public void record(final String server, final int port,
+			final boolean succeeded) {
+		end();
+		if (shouldCommit()) {
+			this.server = server;
+			this.port = port;
+			this.succeeded = succeeded;
+			commit();
+		}
+	}
+}
@@ -8,6 +8,8 @@ import com.speed.irc.event.ChannelUserListener;
 import com.speed.irc.event.PrivateMessageEvent;
 import com.speed.irc.event.PrivateMessageListener;
 import com.speed.irc.framework.Bot;
+import com.speed.irc.framework.Command;
+import com.speed.irc.framework.CommandHandler;
 import com.speed.irc.types.Channel;
 import com.speed.irc.types.ChannelUser;
 
@@ -37,6 +39,7 @@ public class HelloBot extends Bot implements ChannelUserListener,
 	private static final String[] HELLO_PHRASES = new String[] { "Hello", "Hi",
 			"Hey", "Yo", "Wassup", "helo", "herro", "hiya", "hai", "heya", "sup" };
 	private static final Random RANDOM_GENERATOR = new Random();
+	private static final String OWNER = "Speed";
 	private Channel[] channels;
 
 	public HelloBot(final String server, final int port) {
@@ -62,6 +65,20 @@ public class HelloBot extends Bot implements ChannelUserListener,
 		// identify("password");
 		getServer().setAutoReconnect(true);
 		getServer().setReadDebug(true);
+		// channel rights are no authority for raw server access, so these are
+		// only for the owner
+		getCommands().register("raw", new CommandHandler() {
+			public void execute(final Command command) {
+				if (command.getSender().equals(OWNER))
+					getServer().sendRaw(command.getArgumentText());
+			}
+		});
+		getCommands().register("quit", new CommandHandler() {
+			public void execute(final Command command) {
+				if (command.getSender().equals(OWNER))
+					getServer().quit("bai");
+			}
+		});
 	}
 
 	@Override
@@ -75,11 +92,6 @@ public class HelloBot extends Bot implements ChannelUserListener,
 	public void messageReceived(PrivateMessageEvent e) {
 		final String message = e.getMessage().getMessage();
 		final String sender = e.getMessage().getSender();
-		if (message.contains("!raw") && sender.equals("Speed")) {
-			getServer().sendRaw(message.replaceFirst("!raw", "").trim());
-		} else if (message.equals("!quit") && sender.equals("Speed")) {
-			getServer().quit("bai");
-		}
 		if (e.getMessage().getConversable() == null
 				|| !(e.getMessage().getConversable() instanceof Channel)) {
 			return;
@@ -0,0 +1,90 @@
+package com.speed.irc.testing;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.Socket;
+
+import com.speed.irc.connection.Server;
+import com.speed.irc.types.Channel;
+import com.speed.irc.types.ChannelUser;
+import com.speed.irc.types.ServerUser;
+
+/**
+ * Measures how much heap the channel state of a {@link Server} retains. Users
+ * are registered with a server connection and then added to a number of
+ * channels each, and the growth of the live heap after full collections is
+ * divided by the number of users and then the number of memberships. The
+ * server connection is to a {@link LocalIrcServer}, which is otherwise idle.
+ * <p/>
+ * Run with the number of users, channels and channels per user as arguments,
+ * e.g. <tt>java com.speed.irc.testing.FootprintBenchmark 50000 50 4</tt>. The
+ * heap should be large enough that collections are not forced during the run.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class FootprintBenchmark {
+	public static void main(final String[] args) throws Exception {
+		final int users = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		final int channels = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		final int perUser = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		final LocalIrcServer ircd = new LocalIrcServer(0);
+		ircd.start();
+		final Server server = new Server(new Socket("127.0.0.1",
+				ircd.getPort()));
+		final Channel[] joined = new Channel[channels];
+		for (int i = 0; i < channels; i++) {
+			joined[i] = new Channel("#load" + i, server);
+		}
+		final ServerUser[] identities = new ServerUser[users];
+		final long empty = liveHeap();
+		for (int i = 0; i < users; i++) {
+			identities[i] = server.getUser("User" + i, "~user" + i % 100,
+					"leaf" + i % 4 + ".example.net");
+		}
+		final long registered = liveHeap();
+		int members = 0;
+		for (int i = 0; i < users; i++) {
+			for (int j = 0; j < perUser; j++) {
+				final Channel channel = joined[(i + j) % channels];
+				if (channel.addChannelUser(new ChannelUser(identities[i],
+						i % 10 == 0 ? ChannelUser.VOICE_FLAG : 0, channel)))
+					members++;
+			}
+		}
+		final long after = liveHeap();
+		System.out.printf("%d users: %.1f bytes per user%n", users,
+				(registered - empty) / (double) users);
+		System.out.printf("%d memberships in %d channels:"
+				+ " %.1f bytes per membership%n", members, channels,
+				(after - registered) / (double) members);
+		server.quit("done");
+		ircd.close();
+		System.exit(0);
+	}
+
+	private static long liveHeap() throws InterruptedException {
+		final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(100);
+			used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+		}
+		return used;
+	}
+}
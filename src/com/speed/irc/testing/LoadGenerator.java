@@ -0,0 +1,387 @@
+package com.speed.irc.testing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives virtual users on a {@link LocalIrcServer}: messages to their
+ * channels at a set rate, users parting one channel and joining another, and
+ * leaf servers splitting off and rejoining. Load is generated in batches every
+ * 10 milliseconds on a thread of its own, and each batch runs on the server's
+ * thread so it needs no locking.
+ * <p/>
+ * A generator can also be driven by a script of one command per line, for
+ * example:
+ * 
+ * <pre>
+ * users 20000 channels 50 leaves 4
+ * rate 10000
+ * wait 5000
+ * netsplit leaf1.local
+ * wait 1000
+ * netjoin leaf1.local
+ * churn 200
+ * wait 5000
+ * stop
+ * </pre>
+ * 
+ * Blank lines and lines starting with <tt>#</tt> are ignored.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class LoadGenerator implements Runnable {
+	public static final long TICK = 10;
+	private final LocalIrcServer server;
+	private final List<LocalIrcServer.Client> users = new ArrayList<LocalIrcServer.Client>();
+	private final List<String> channels = new ArrayList<String>();
+	private final List<String> leaves = new ArrayList<String>();
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong churned = new AtomicLong();
+	private volatile double messageRate, churnRate;
+	private volatile long netsplitInterval;
+	private volatile Random random = new Random();
+	private volatile boolean running;
+	private Thread thread;
+	private double messageDebt, churnDebt;
+	private long lastSplit;
+	private String splitLeaf;
+	private int created;
+
+	/**
+	 * Creates a generator for a server.
+	 * 
+	 * @param server
+	 *            the server to generate load on
+	 */
+	public LoadGenerator(final LocalIrcServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Adds virtual users, each in one of a number of channels named
+	 * <tt>#load0</tt>, <tt>#load1</tt> and so on, spread over leaf servers
+	 * named <tt>leaf0.local</tt>, <tt>leaf1.local</tt> and so on. Returns once
+	 * the users exist.
+	 * 
+	 * @param count
+	 *            the number of users
+	 * @param channelCount
+	 *            the number of channels to spread them over
+	 * @param leafCount
+	 *            the number of leaf servers to spread them over
+	 */
+	public void addUsers(final int count, final int channelCount,
+			final int leafCount) {
+		await(new Runnable() {
+			public void run() {
+				for (int i = channels.size(); i < channelCount; i++) {
+					channels.add("#load" + i);
+				}
+				for (int i = leaves.size(); i < leafCount; i++) {
+					leaves.add("leaf" + i + ".local");
+				}
+				for (int i = 0; i < count; i++) {
+					final int n = created++;
+					final LocalIrcServer.Client client = server.addVirtual(
+							"load" + n, leaves.get(n % leafCount));
+					if (client == null)
+						continue;
+					users.add(client);
+					server.join(client, channels.get(n % channelCount), null);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sets how many messages per second the virtual users send to their
+	 * channels.
+	 * 
+	 * @param linesPerSecond
+	 *            the rate, or 0 for none
+	 */
+	public void setMessageRate(final double linesPerSecond) {
+		messageRate = linesPerSecond;
+	}
+
+	/**
+	 * Sets how many times per second a virtual user parts a channel and joins
+	 * another.
+	 * 
+	 * @param perSecond
+	 *            the rate, or 0 for none
+	 */
+	public void setChurnRate(final double perSecond) {
+		churnRate = perSecond;
+	}
+
+	/**
+	 * Sets how often a leaf server splits off. Each split lasts until the next
+	 * one is due, when the leaf rejoins and another one splits.
+	 * 
+	 * @param interval
+	 *            the interval, or 0 for no automatic netsplits
+	 * @param unit
+	 *            the unit of the interval
+	 */
+	public void setNetsplitInterval(final long interval, final TimeUnit unit) {
+		netsplitInterval = unit.toNanos(interval);
+	}
+
+	/**
+	 * Seeds the random choices of users, channels and leaves, so runs can be
+	 * repeated.
+	 * 
+	 * @param seed
+	 *            the seed
+	 */
+	public void setSeed(final long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * Gets the number of messages sent by virtual users.
+	 * 
+	 * @return the number of messages
+	 */
+	public long getMessagesSent() {
+		return messages.get();
+	}
+
+	/**
+	 * Gets the number of times a virtual user changed channel.
+	 * 
+	 * @return the number of parts and joins
+	 */
+	public long getChurnCount() {
+		return churned.get();
+	}
+
+	/**
+	 * Starts generating load.
+	 */
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		running = true;
+		thread = new Thread(this, "Load generator " + server.getPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops generating load, and rejoins any leaf which is split.
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+		await(new Runnable() {
+			public void run() {
+				if (splitLeaf != null) {
+					server.rejoin(splitLeaf);
+					splitLeaf = null;
+				}
+			}
+		});
+	}
+
+	public void run() {
+		long last = System.nanoTime();
+		lastSplit = last;
+		while (running) {
+			try {
+				Thread.sleep(TICK);
+			} catch (InterruptedException e) {
+				break;
+			}
+			final long now = System.nanoTime();
+			final double seconds = (now - last) / 1e9;
+			last = now;
+			server.execute(new Batch(seconds, now));
+		}
+	}
+
+	private class Batch implements Runnable {
+		private final double seconds;
+		private final long now;
+
+		private Batch(final double seconds, final long now) {
+			this.seconds = seconds;
+			this.now = now;
+		}
+
+		public void run() {
+			if (users.isEmpty())
+				return;
+			final Random random = LoadGenerator.this.random;
+			messageDebt += messageRate * seconds;
+			while (messageDebt >= 1) {
+				messageDebt--;
+				final LocalIrcServer.Client user = users.get(random
+						.nextInt(users.size()));
+				if (user.getRooms().isEmpty())
+					continue;
+				final LocalIrcServer.Room room = user.getRooms().iterator()
+						.next();
+				server.handle(user, "PRIVMSG " + room.getName()
+						+ " :load test message " + messages.incrementAndGet());
+			}
+			churnDebt += churnRate * seconds;
+			while (churnDebt >= 1) {
+				churnDebt--;
+				final LocalIrcServer.Client user = users.get(random
+						.nextInt(users.size()));
+				if (user.getRooms().isEmpty())
+					continue;
+				final LocalIrcServer.Room room = user.getRooms().iterator()
+						.next();
+				server.part(user, room, "churn");
+				server.join(user, channels.get(random.nextInt(channels.size())),
+						null);
+				churned.incrementAndGet();
+			}
+			final long interval = netsplitInterval;
+			if (interval > 0 && now - lastSplit >= interval
+					&& !leaves.isEmpty()) {
+				lastSplit = now;
+				if (splitLeaf != null)
+					server.rejoin(splitLeaf);
+				splitLeaf = leaves.get(random.nextInt(leaves.size()));
+				server.split(splitLeaf);
+			}
+		}
+	}
+
+	/**
+	 * Runs a script of commands, returning once it has finished. The commands
+	 * are:
+	 * <ul>
+	 * <li><tt>users N [channels C] [leaves L]</tt> adds users</li>
+	 * <li><tt>rate N</tt> sets the message rate and starts the generator</li>
+	 * <li><tt>churn N</tt> sets the churn rate and starts the generator</li>
+	 * <li><tt>netsplits MS</tt> sets the netsplit interval</li>
+	 * <li><tt>netsplit LEAF</tt> splits a leaf off</li>
+	 * <li><tt>netjoin LEAF</tt> rejoins a leaf</li>
+	 * <li><tt>seed N</tt> seeds the random choices</li>
+	 * <li><tt>wait MS</tt> waits</li>
+	 * <li><tt>stop</tt> stops the generator</li>
+	 * </ul>
+	 * 
+	 * @param script
+	 *            the script
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 * @throws IllegalArgumentException
+	 *             if a line is not a valid command
+	 */
+	public void run(final String script) throws InterruptedException {
+		for (String line : script.split("\r?\n")) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			final String[] words = line.split("\\s+");
+			final String command = words[0].toLowerCase();
+			try {
+				if (command.equals("users")) {
+					int channelCount = Math.max(1, channels.size());
+					int leafCount = Math.max(1, leaves.size());
+					for (int i = 2; i + 1 < words.length; i += 2) {
+						if (words[i].equals("channels"))
+							channelCount = Integer.parseInt(words[i + 1]);
+						else if (words[i].equals("leaves"))
+							leafCount = Integer.parseInt(words[i + 1]);
+						else
+							throw new IllegalArgumentException(line);
+					}
+					addUsers(Integer.parseInt(words[1]), channelCount,
+							leafCount);
+				} else if (command.equals("rate")) {
+					setMessageRate(Double.parseDouble(words[1]));
+					start();
+				} else if (command.equals("churn")) {
+					setChurnRate(Double.parseDouble(words[1]));
+					start();
+				} else if (command.equals("netsplits")) {
+					setNetsplitInterval(Long.parseLong(words[1]),
+							TimeUnit.MILLISECONDS);
+					start();
+				} else if (command.equals("netsplit")) {
+					final String leaf = words[1];
+					await(new Runnable() {
+						public void run() {
+							server.split(leaf);
+						}
+					});
+				} else if (command.equals("netjoin")) {
+					final String leaf = words[1];
+					await(new Runnable() {
+						public void run() {
+							server.rejoin(leaf);
+						}
+					});
+				} else if (command.equals("seed")) {
+					setSeed(Long.parseLong(words[1]));
+				} else if (command.equals("wait")) {
+					Thread.sleep(Long.parseLong(words[1]));
+				} else if (command.equals("stop")) {
+					stop();
+				} else {
+					throw new IllegalArgumentException("Unknown command: "
+							+ line);
+				}
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new IllegalArgumentException("Missing argument: " + line);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad number: " + line);
+			}
+		}
+	}
+
+	/**
+	 * Runs a task on the server's thread and waits for it.
+	 */
+	private void await(final Runnable task) {
+		final CountDownLatch done = new CountDownLatch(1);
+		server.execute(new Runnable() {
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					done.countDown();
+				}
+			}
+		});
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,1430 @@
+package com.speed.irc.testing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.speed.irc.util.CaseMapping;
+
+/**
+ * A small IRC server which runs in the same process, for testing clients
+ * without a live network. It listens on the loopback interface and supports
+ * registration, JOIN, PART, KICK, MODE, NICK, QUIT, PRIVMSG, NOTICE, TOPIC,
+ * NAMES, WHO (including WHOX) and ISUPPORT. Channel modes <tt>b</tt>,
+ * <tt>k</tt>, <tt>l</tt>, <tt>i</tt>, <tt>m</tt>, <tt>n</tt>, <tt>p</tt>,
+ * <tt>s</tt> and <tt>t</tt> are stored and the ones which restrict joining or
+ * speaking are enforced; there are no services, operators or server links.
+ * <p/>
+ * All state belongs to one thread, which multiplexes every connection with a
+ * selector. Besides real connections the server holds virtual users, which
+ * have no socket and cost only their membership, so tens of thousands of them
+ * can be driven by a {@link LoadGenerator}. Virtual users can be put on named
+ * leaf servers and split off and rejoined to simulate netsplits.
+ * <p/>
+ * Each connection is flood limited with a token bucket: once it runs out,
+ * its further lines are held back (and its socket is not read) until it has
+ * earned enough tokens, or it is disconnected for excess flood if
+ * {@link #setFloodDisconnect(boolean)} is on.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public class LocalIrcServer implements Runnable, Closeable {
+	public static final String DEFAULT_NAME = "irc.local";
+	public static final int DEFAULT_FLOOD_BURST = 10;
+	public static final double DEFAULT_FLOOD_RATE = 2;
+	public static final int DEFAULT_SEND_QUEUE = 8 << 20;
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+	static final CaseMapping MAPPING = CaseMapping.RFC1459;
+	private static final int MAX_LINE = 8192;
+	private static final int OP = 1, VOICE = 2;
+	private static final String CHANNEL_MODES = "imnpst";
+	private static final Logger LOGGER = Logger.getLogger(LocalIrcServer.class
+			.getName());
+
+	private final String name;
+	private final Selector selector;
+	private final ServerSocketChannel acceptor;
+	private final Map<String, Client> clients = new HashMap<String, Client>();
+	private final Map<String, Room> rooms = new HashMap<String, Room>();
+	private final Map<String, List<Client>> split = new HashMap<String, List<Client>>();
+	private final Set<Client> dirty = new LinkedHashSet<Client>();
+	private final Set<Client> throttled = new LinkedHashSet<Client>();
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean wakeup = new AtomicBoolean();
+	private final AtomicLong linesIn = new AtomicLong(),
+			linesOut = new AtomicLong();
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 << 10);
+	private volatile int floodBurst = DEFAULT_FLOOD_BURST;
+	private volatile double floodRate = DEFAULT_FLOOD_RATE;
+	private volatile boolean floodDisconnect;
+	private volatile int sendQueue = DEFAULT_SEND_QUEUE;
+	private volatile boolean running;
+	private volatile int userCount, channelCount;
+	private Thread thread;
+
+	/**
+	 * Creates a server listening on a port of the loopback interface. Call
+	 * {@link #start()} to start accepting connections.
+	 * 
+	 * @param port
+	 *            the port, or 0 for any free port
+	 * @throws IOException
+	 *             if the port cannot be bound
+	 */
+	public LocalIrcServer(final int port) throws IOException {
+		this(DEFAULT_NAME, port);
+	}
+
+	/**
+	 * Creates a server listening on a port of the loopback interface.
+	 * 
+	 * @param name
+	 *            the server's name
+	 * @param port
+	 *            the port, or 0 for any free port
+	 * @throws IOException
+	 *             if the port cannot be bound
+	 */
+	public LocalIrcServer(final String name, final int port)
+			throws IOException {
+		this.name = name;
+		selector = Selector.open();
+		acceptor = ServerSocketChannel.open();
+		acceptor.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				port), 1024);
+		acceptor.configureBlocking(false);
+		acceptor.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Starts the server's thread.
+	 */
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		running = true;
+		thread = new Thread(this, "Local IRC server " + getPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the server and closes every connection.
+	 */
+	public void close() throws IOException {
+		running = false;
+		selector.wakeup();
+		final Thread thread = this.thread;
+		if (thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Gets the port the server listens on.
+	 * 
+	 * @return the port
+	 */
+	public int getPort() {
+		return acceptor.socket().getLocalPort();
+	}
+
+	/**
+	 * Gets the server's name.
+	 * 
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Sets the flood limit of each connection.
+	 * 
+	 * @param burst
+	 *            the number of lines which can be sent at once
+	 * @param linesPerSecond
+	 *            the rate lines can be sent at once the burst is used up, or
+	 *            0 for no limit
+	 */
+	public void setFloodLimit(final int burst, final double linesPerSecond) {
+		floodBurst = burst;
+		floodRate = linesPerSecond;
+	}
+
+	/**
+	 * Sets whether a connection which floods is disconnected rather than
+	 * slowed down.
+	 * 
+	 * @param disconnect
+	 *            <tt>true</tt> to disconnect
+	 */
+	public void setFloodDisconnect(final boolean disconnect) {
+		floodDisconnect = disconnect;
+	}
+
+	/**
+	 * Sets how many bytes can be waiting to be sent to a connection before it
+	 * is disconnected.
+	 * 
+	 * @param bytes
+	 *            the send queue limit
+	 */
+	public void setSendQueueLimit(final int bytes) {
+		sendQueue = bytes;
+	}
+
+	/**
+	 * Gets the number of users, real and virtual, excluding split ones.
+	 * 
+	 * @return the number of users
+	 */
+	public int getUserCount() {
+		return userCount;
+	}
+
+	/**
+	 * Gets the number of channels.
+	 * 
+	 * @return the number of channels
+	 */
+	public int getChannelCount() {
+		return channelCount;
+	}
+
+	/**
+	 * Gets the number of lines received from connections.
+	 * 
+	 * @return the number of lines
+	 */
+	public long getLinesIn() {
+		return linesIn.get();
+	}
+
+	/**
+	 * Gets the number of lines sent to connections.
+	 * 
+	 * @return the number of lines
+	 */
+	public long getLinesOut() {
+		return linesOut.get();
+	}
+
+	/**
+	 * Runs a task on the server's thread, where it can safely use the
+	 * server's state.
+	 * 
+	 * @param task
+	 *            the task
+	 */
+	void execute(final Runnable task) {
+		tasks.add(task);
+		if (wakeup.compareAndSet(false, true))
+			selector.wakeup();
+	}
+
+	public void run() {
+		try {
+			while (running) {
+				selector.select(throttled.isEmpty() ? 1000 : 10);
+				wakeup.set(false);
+				final Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid())
+							continue;
+						if (key.isAcceptable())
+							accept();
+						else {
+							if (key.isReadable())
+								read((Client) key.attachment());
+							if (key.isValid() && key.isWritable())
+								write((Client) key.attachment());
+						}
+					} catch (IOException e) {
+						disconnect((Client) key.attachment(), e.getMessage());
+					}
+				}
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						LOGGER.log(Level.WARNING, "Task failed", e);
+					}
+				}
+				if (!throttled.isEmpty()) {
+					for (Client client : new ArrayList<Client>(throttled)) {
+						process(client);
+					}
+				}
+				flush();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Local IRC server stopped", e);
+		} finally {
+			for (Client client : new ArrayList<Client>(clients.values())) {
+				if (client.channel != null)
+					closeChannel(client);
+			}
+			try {
+				acceptor.close();
+				selector.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Could not close", e);
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = acceptor.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			final Client client = new Client(channel);
+			client.host = ((InetSocketAddress) channel.getRemoteAddress())
+					.getAddress().getHostAddress();
+			client.tokens = floodBurst;
+			client.refilled = System.nanoTime();
+			client.key = channel.register(selector, SelectionKey.OP_READ,
+					client);
+		}
+	}
+
+	private void read(final Client client) throws IOException {
+		readBuffer.clear();
+		final int n = client.channel.read(readBuffer);
+		if (n == -1) {
+			disconnect(client, "Connection closed");
+			return;
+		}
+		readBuffer.flip();
+		if (client.in.remaining() < readBuffer.remaining()) {
+			final ByteBuffer grown = ByteBuffer.allocate(Math.max(
+					client.in.capacity() * 2, client.in.position()
+							+ readBuffer.remaining()));
+			client.in.flip();
+			grown.put(client.in);
+			client.in = grown;
+		}
+		client.in.put(readBuffer);
+		process(client);
+	}
+
+	/**
+	 * Handles the complete lines a connection has sent, as far as its flood
+	 * limit allows.
+	 */
+	private void process(final Client client) {
+		final ByteBuffer in = client.in;
+		in.flip();
+		try {
+			while (!client.closed && in.hasRemaining()) {
+				int end = -1;
+				for (int i = in.position(); i < in.limit(); i++) {
+					if (in.get(i) == '\n') {
+						end = i;
+						break;
+					}
+				}
+				if (end == -1) {
+					if (in.remaining() > MAX_LINE)
+						in.position(in.limit());
+					break;
+				}
+				if (!take(client)) {
+					if (floodDisconnect) {
+						disconnect(client, "Excess Flood");
+						return;
+					}
+					if (throttled.add(client))
+						client.key.interestOps(client.key.interestOps()
+								& ~SelectionKey.OP_READ);
+					return;
+				}
+				int length = end - in.position();
+				if (length > 0 && in.get(end - 1) == '\r')
+					length--;
+				final byte[] bytes = new byte[length];
+				in.get(bytes);
+				in.position(end + 1);
+				linesIn.incrementAndGet();
+				try {
+					handle(client, new String(bytes, UTF_8));
+				} catch (RuntimeException e) {
+					// a bad line must not stop the server for every client
+					LOGGER.log(Level.WARNING, "Could not handle line", e);
+					disconnect(client, "Internal error");
+					return;
+				}
+			}
+			if (throttled.remove(client) && client.key.isValid())
+				client.key.interestOps(client.key.interestOps()
+						| SelectionKey.OP_READ);
+		} finally {
+			in.compact();
+		}
+	}
+
+	private boolean take(final Client client) {
+		final double rate = floodRate;
+		if (rate <= 0)
+			return true;
+		final long now = System.nanoTime();
+		client.tokens = Math.min(floodBurst, client.tokens
+				+ (now - client.refilled) * rate / 1e9);
+		client.refilled = now;
+		if (client.tokens < 1)
+			return false;
+		client.tokens--;
+		return true;
+	}
+
+	private void write(final Client client) throws IOException {
+		final ByteBuffer[] buffers = client.out
+				.toArray(new ByteBuffer[client.out.size()]);
+		client.channel.write(buffers);
+		while (!client.out.isEmpty() && !client.out.peek().hasRemaining()) {
+			client.queued -= client.out.poll().capacity();
+		}
+		if (client.closing && client.out.isEmpty()) {
+			closeChannel(client);
+			return;
+		}
+		final int ops = client.out.isEmpty() ? client.key.interestOps()
+				& ~SelectionKey.OP_WRITE : client.key.interestOps()
+				| SelectionKey.OP_WRITE;
+		client.key.interestOps(ops);
+	}
+
+	private void flush() {
+		for (Client client : dirty) {
+			if (client.key == null || !client.key.isValid())
+				continue;
+			try {
+				write(client);
+			} catch (IOException e) {
+				disconnect(client, e.getMessage());
+			}
+		}
+		dirty.clear();
+	}
+
+	// ---- sending
+
+	static byte[] encode(final String line) {
+		return (line + "\r\n").getBytes(UTF_8);
+	}
+
+	private void send(final Client client, final byte[] line) {
+		if (client.channel == null || client.closed)
+			return;
+		client.out.add(ByteBuffer.wrap(line));
+		client.queued += line.length;
+		linesOut.incrementAndGet();
+		if (client.queued > sendQueue && !client.closing) {
+			client.out.clear();
+			client.queued = 0;
+			disconnect(client, "SendQ exceeded");
+			return;
+		}
+		dirty.add(client);
+	}
+
+	private void send(final Client client, final String line) {
+		if (client.channel != null)
+			send(client, encode(line));
+	}
+
+	private void numeric(final Client client, final String numeric,
+			final String params) {
+		send(client, ":" + name + " " + numeric + " "
+				+ (client.nick == null ? "*" : client.nick) + " " + params);
+	}
+
+	/**
+	 * Sends a line to every real member of a channel.
+	 */
+	private void broadcast(final Room room, final byte[] line,
+			final Client except) {
+		for (Client member : room.locals) {
+			if (member != except)
+				send(member, line);
+		}
+	}
+
+	/**
+	 * Sends a line to a user and every real user who shares a channel with
+	 * them.
+	 */
+	private void broadcastCommon(final Client client, final byte[] line,
+			final boolean self) {
+		final Set<Client> seen = new HashSet<Client>();
+		if (self)
+			send(client, line);
+		seen.add(client);
+		for (Room room : client.rooms) {
+			for (Client member : room.locals) {
+				if (seen.add(member))
+					send(member, line);
+			}
+		}
+	}
+
+	// ---- commands
+
+	/**
+	 * Handles a line as if a user had sent it.
+	 * 
+	 * @param client
+	 *            the user
+	 * @param line
+	 *            the line, without CR-LF
+	 */
+	void handle(final Client client, final String line) {
+		final List<String> params = new ArrayList<String>(4);
+		int i = 0;
+		final int length = line.length();
+		if (i < length && line.charAt(i) == '@') {
+			i = skipWord(line, i);
+		}
+		if (i < length && line.charAt(i) == ':') {
+			i = skipWord(line, i);
+		}
+		String command = null;
+		while (i < length) {
+			if (line.charAt(i) == ':' && command != null) {
+				params.add(line.substring(i + 1));
+				break;
+			}
+			final int end = line.indexOf(' ', i);
+			final String word = line.substring(i, end == -1 ? length : end);
+			if (command == null)
+				command = word.toUpperCase();
+			else
+				params.add(word);
+			i = end == -1 ? length : end;
+			while (i < length && line.charAt(i) == ' ')
+				i++;
+		}
+		if (command == null)
+			return;
+		if (!client.registered) {
+			register(client, command, params);
+			return;
+		}
+		if (command.equals("PRIVMSG") || command.equals("NOTICE")) {
+			message(client, command, params);
+		} else if (command.equals("JOIN")) {
+			if (params.isEmpty()) {
+				numeric(client, "461", "JOIN :Not enough parameters");
+				return;
+			}
+			if (params.get(0).equals("0")) {
+				for (Room room : new ArrayList<Room>(client.rooms)) {
+					part(client, room, client.nick);
+				}
+				return;
+			}
+			final String[] names = params.get(0).split(",");
+			final String[] keys = params.size() > 1 ? params.get(1).split(",")
+					: new String[0];
+			for (int k = 0; k < names.length; k++) {
+				join(client, names[k], k < keys.length ? keys[k] : null);
+			}
+		} else if (command.equals("PART")) {
+			if (params.isEmpty()) {
+				numeric(client, "461", "PART :Not enough parameters");
+				return;
+			}
+			for (String channel : params.get(0).split(",")) {
+				final Room room = rooms.get(MAPPING.fold(channel));
+				if (room == null || !room.members.containsKey(client)) {
+					numeric(client, "442", channel
+							+ " :You're not on that channel");
+					continue;
+				}
+				part(client, room, params.size() > 1 ? params.get(1) : null);
+			}
+		} else if (command.equals("PING")) {
+			send(client, ":" + name + " PONG " + name + " :"
+					+ (params.isEmpty() ? "" : params.get(params.size() - 1)));
+		} else if (command.equals("PONG")) {
+			return;
+		} else if (command.equals("NICK")) {
+			if (params.isEmpty()) {
+				numeric(client, "431", ":No nickname given");
+				return;
+			}
+			nick(client, params.get(0));
+		} else if (command.equals("QUIT")) {
+			quit(client, "Quit: "
+					+ (params.isEmpty() ? "" : params.get(0)));
+		} else if (command.equals("KICK")) {
+			kick(client, params);
+		} else if (command.equals("MODE")) {
+			mode(client, params);
+		} else if (command.equals("TOPIC")) {
+			topic(client, params);
+		} else if (command.equals("NAMES")) {
+			if (params.isEmpty()) {
+				numeric(client, "366", "* :End of /NAMES list.");
+				return;
+			}
+			for (String channel : params.get(0).split(",")) {
+				names(client, channel);
+			}
+		} else if (command.equals("WHO")) {
+			who(client, params);
+		} else if (command.equals("CAP")) {
+			cap(client, params);
+		} else if (command.equals("USER") || command.equals("PASS")) {
+			numeric(client, "462", ":You may not reregister");
+		} else {
+			numeric(client, "421", command + " :Unknown command");
+		}
+	}
+
+	private static int skipWord(final String line, int i) {
+		while (i < line.length() && line.charAt(i) != ' ')
+			i++;
+		while (i < line.length() && line.charAt(i) == ' ')
+			i++;
+		return i;
+	}
+
+	private void cap(final Client client, final List<String> params) {
+		if (params.isEmpty())
+			return;
+		final String sub = params.get(0).toUpperCase();
+		if (sub.equals("LS") || sub.equals("LIST"))
+			send(client, ":" + name + " CAP " + nickOrStar(client) + " " + sub
+					+ " :");
+		else if (sub.equals("REQ"))
+			send(client, ":" + name + " CAP " + nickOrStar(client) + " NAK :"
+					+ (params.size() > 1 ? params.get(1) : ""));
+	}
+
+	private static String nickOrStar(final Client client) {
+		return client.nick == null ? "*" : client.nick;
+	}
+
+	private void register(final Client client, final String command,
+			final List<String> params) {
+		if (command.equals("NICK")) {
+			if (params.isEmpty()) {
+				numeric(client, "431", ":No nickname given");
+				return;
+			}
+			final String nick = params.get(0);
+			if (!validNick(nick)) {
+				numeric(client, "432", nick + " :Erroneous nickname");
+				return;
+			}
+			if (clients.containsKey(MAPPING.fold(nick))) {
+				numeric(client, "433", nick + " :Nickname is already in use");
+				return;
+			}
+			client.nick = nick;
+		} else if (command.equals("USER")) {
+			if (params.size() < 4) {
+				numeric(client, "461", "USER :Not enough parameters");
+				return;
+			}
+			client.user = params.get(0);
+			client.realName = params.get(3);
+		} else if (command.equals("CAP")) {
+			cap(client, params);
+			return;
+		} else if (command.equals("PING")) {
+			send(client, ":" + name + " PONG " + name + " :"
+					+ (params.isEmpty() ? "" : params.get(0)));
+			return;
+		} else if (command.equals("QUIT")) {
+			disconnect(client, "Quit");
+			return;
+		} else if (!command.equals("PASS")) {
+			numeric(client, "451", ":You have not registered");
+			return;
+		}
+		if (client.nick != null && client.user != null) {
+			if (clients.containsKey(MAPPING.fold(client.nick))) {
+				numeric(client, "433", client.nick
+						+ " :Nickname is already in use");
+				client.nick = null;
+				return;
+			}
+			client.registered = true;
+			client.leaf = name;
+			clients.put(MAPPING.fold(client.nick), client);
+			userCount = clients.size();
+			welcome(client);
+		}
+	}
+
+	private void welcome(final Client client) {
+		numeric(client, "001", ":Welcome to the local IRC network "
+				+ client.prefix());
+		numeric(client, "002", ":Your host is " + name
+				+ ", running version speed-local");
+		numeric(client, "003", ":This server was created just now");
+		numeric(client, "004", name + " speed-local i bklimnopstv bklov");
+		numeric(client,
+				"005",
+				"CASEMAPPING=rfc1459 CHANTYPES=# CHANMODES=b,k,l,"
+						+ CHANNEL_MODES
+						+ " PREFIX=(ov)@+ NICKLEN=30 CHANNELLEN=50 TOPICLEN=390"
+						+ " :are supported by this server");
+		numeric(client, "005",
+				"MODES=4 TARGMAX=PRIVMSG:4,NOTICE:4,JOIN:,PART:,NAMES:1"
+						+ " WHOX NETWORK=LocalNet :are supported by this server");
+		numeric(client, "251", ":There are " + clients.size()
+				+ " users on 1 server");
+		numeric(client, "422", ":MOTD File is missing");
+	}
+
+	private static boolean validNick(final String nick) {
+		if (nick.isEmpty() || nick.length() > 30)
+			return false;
+		final char first = nick.charAt(0);
+		if (first == '-' || first >= '0' && first <= '9')
+			return false;
+		for (int i = 0; i < nick.length(); i++) {
+			final char c = nick.charAt(i);
+			if (!(c >= 'A' && c <= '}' || c >= '0' && c <= '9' || c == '-'))
+				return false;
+		}
+		return true;
+	}
+
+	void nick(final Client client, final String nick) {
+		if (!validNick(nick)) {
+			numeric(client, "432", nick + " :Erroneous nickname");
+			return;
+		}
+		final String folded = MAPPING.fold(nick);
+		final Client existing = clients.get(folded);
+		if (existing != null && existing != client) {
+			numeric(client, "433", nick + " :Nickname is already in use");
+			return;
+		}
+		final byte[] line = encode(":" + client.prefix() + " NICK :" + nick);
+		clients.remove(MAPPING.fold(client.nick));
+		client.nick = nick;
+		clients.put(folded, client);
+		broadcastCommon(client, line, true);
+	}
+
+	void join(final Client client, final String channel, final String key) {
+		if (channel.length() < 2 || channel.charAt(0) != '#'
+				|| channel.length() > 50 || channel.indexOf(',') != -1) {
+			numeric(client, "403", channel + " :No such channel");
+			return;
+		}
+		final String folded = MAPPING.fold(channel);
+		Room room = rooms.get(folded);
+		if (room != null && room.members.containsKey(client))
+			return;
+		if (room != null) {
+			if (room.key != null && !room.key.equals(key)) {
+				numeric(client, "475", channel
+						+ " :Cannot join channel (+k)");
+				return;
+			}
+			if (room.limit > 0 && room.members.size() >= room.limit) {
+				numeric(client, "471", channel
+						+ " :Cannot join channel (+l)");
+				return;
+			}
+			if (room.modes.indexOf('i') != -1) {
+				numeric(client, "473", channel
+						+ " :Cannot join channel (+i)");
+				return;
+			}
+			final String prefix = MAPPING.fold(client.prefix());
+			for (String ban : room.bans) {
+				if (glob(MAPPING.fold(ban), prefix)) {
+					numeric(client, "474", channel
+							+ " :Cannot join channel (+b)");
+					return;
+				}
+			}
+		} else {
+			room = new Room(channel);
+			rooms.put(folded, room);
+			channelCount = rooms.size();
+		}
+		add(client, room, room.members.isEmpty() ? OP : 0);
+		broadcast(room, encode(":" + client.prefix() + " JOIN " + room.name),
+				null);
+		if (client.channel != null) {
+			if (room.topic != null)
+				numeric(client, "332", room.name + " :" + room.topic);
+			names(client, room.name);
+		}
+	}
+
+	private void add(final Client client, final Room room, final int flags) {
+		room.members.put(client, flags);
+		if (client.channel != null)
+			room.locals.add(client);
+		client.rooms.add(room);
+	}
+
+	private void remove(final Client client, final Room room) {
+		room.members.remove(client);
+		room.locals.remove(client);
+		client.rooms.remove(room);
+		if (room.members.isEmpty()) {
+			rooms.remove(MAPPING.fold(room.name));
+			channelCount = rooms.size();
+		}
+	}
+
+	void part(final Client client, final Room room, final String reason) {
+		broadcast(room, encode(":" + client.prefix() + " PART " + room.name
+				+ (reason == null ? "" : " :" + reason)), null);
+		remove(client, room);
+	}
+
+	Room room(final String channel) {
+		return rooms.get(MAPPING.fold(channel));
+	}
+
+	private void kick(final Client client, final List<String> params) {
+		if (params.size() < 2) {
+			numeric(client, "461", "KICK :Not enough parameters");
+			return;
+		}
+		final Room room = rooms.get(MAPPING.fold(params.get(0)));
+		if (room == null) {
+			numeric(client, "403", params.get(0) + " :No such channel");
+			return;
+		}
+		if (!isOp(client, room)) {
+			numeric(client, "482", room.name
+					+ " :You're not channel operator");
+			return;
+		}
+		for (String nick : params.get(1).split(",")) {
+			final Client target = clients.get(MAPPING.fold(nick));
+			if (target == null || !room.members.containsKey(target)) {
+				numeric(client, "441", nick + " " + room.name
+						+ " :They aren't on that channel");
+				continue;
+			}
+			broadcast(room, encode(":" + client.prefix() + " KICK "
+					+ room.name + " " + target.nick + " :"
+					+ (params.size() > 2 ? params.get(2) : client.nick)), null);
+			remove(target, room);
+		}
+	}
+
+	private boolean isOp(final Client client, final Room room) {
+		final Integer flags = room.members.get(client);
+		return flags != null && (flags & OP) != 0;
+	}
+
+	private void mode(final Client client, final List<String> params) {
+		if (params.isEmpty()) {
+			numeric(client, "461", "MODE :Not enough parameters");
+			return;
+		}
+		final String target = params.get(0);
+		if (target.isEmpty()) {
+			numeric(client, "401", "* :No such nick/channel");
+			return;
+		}
+		if (target.charAt(0) != '#') {
+			if (!MAPPING.equals(target, client.nick)) {
+				numeric(client, "502", ":Can't change mode for other users");
+				return;
+			}
+			if (params.size() == 1)
+				numeric(client, "221", "+i");
+			else
+				send(client, ":" + client.prefix() + " MODE " + client.nick
+						+ " :" + params.get(1));
+			return;
+		}
+		final Room room = rooms.get(MAPPING.fold(target));
+		if (room == null) {
+			numeric(client, "403", target + " :No such channel");
+			return;
+		}
+		if (params.size() == 1) {
+			numeric(client, "324", room.name + " +" + room.modes
+					+ (room.key != null ? "k" : "")
+					+ (room.limit > 0 ? "l" : "")
+					+ (room.key != null ? " " + room.key : "")
+					+ (room.limit > 0 ? " " + room.limit : ""));
+			return;
+		}
+		final String modes = params.get(1);
+		if (params.size() == 2 && (modes.equals("b") || modes.equals("+b"))) {
+			for (String ban : room.bans) {
+				numeric(client, "367", room.name + " " + ban);
+			}
+			numeric(client, "368", room.name + " :End of channel ban list");
+			return;
+		}
+		if (!isOp(client, room)) {
+			numeric(client, "482", room.name
+					+ " :You're not channel operator");
+			return;
+		}
+		final StringBuilder applied = new StringBuilder();
+		final StringBuilder args = new StringBuilder();
+		char lastSign = 0;
+		boolean adding = true;
+		int arg = 2;
+		for (int m = 0; m < modes.length(); m++) {
+			final char c = modes.charAt(m);
+			if (c == '+' || c == '-') {
+				adding = c == '+';
+				continue;
+			}
+			String param = null;
+			if (c == 'o' || c == 'v' || c == 'b' || c == 'k'
+					|| c == 'l' && adding) {
+				if (arg >= params.size())
+					continue;
+				param = params.get(arg++);
+			}
+			boolean changed = false;
+			switch (c) {
+			case 'o':
+			case 'v': {
+				final Client member = clients.get(MAPPING.fold(param));
+				if (member == null || !room.members.containsKey(member)) {
+					numeric(client, "441", param + " " + room.name
+							+ " :They aren't on that channel");
+					continue;
+				}
+				final int bit = c == 'o' ? OP : VOICE;
+				final int flags = room.members.get(member);
+				final int next = adding ? flags | bit : flags & ~bit;
+				changed = next != flags;
+				room.members.put(member, next);
+				param = member.nick;
+				break;
+			}
+			case 'b':
+				changed = adding ? !room.bans.contains(param) && room.bans
+						.add(param) : room.bans.remove(param);
+				break;
+			case 'k':
+				changed = adding || room.key != null;
+				room.key = adding ? param : null;
+				break;
+			case 'l':
+				if (adding) {
+					try {
+						room.limit = Integer.parseInt(param);
+						changed = true;
+					} catch (NumberFormatException e) {
+						continue;
+					}
+				} else {
+					changed = room.limit > 0;
+					room.limit = 0;
+				}
+				break;
+			default:
+				if (CHANNEL_MODES.indexOf(c) == -1) {
+					numeric(client, "472", c + " :is unknown mode char to me");
+					continue;
+				}
+				final int index = room.modes.indexOf(c);
+				if (adding && index == -1) {
+					room.modes += c;
+					changed = true;
+				} else if (!adding && index != -1) {
+					room.modes = room.modes.substring(0, index)
+							+ room.modes.substring(index + 1);
+					changed = true;
+				}
+			}
+			if (!changed)
+				continue;
+			final char sign = adding ? '+' : '-';
+			if (sign != lastSign) {
+				applied.append(sign);
+				lastSign = sign;
+			}
+			applied.append(c);
+			if (param != null)
+				args.append(' ').append(param);
+		}
+		if (applied.length() > 0)
+			broadcast(room, encode(":" + client.prefix() + " MODE "
+					+ room.name + " " + applied + args), null);
+	}
+
+	private void topic(final Client client, final List<String> params) {
+		if (params.isEmpty()) {
+			numeric(client, "461", "TOPIC :Not enough parameters");
+			return;
+		}
+		final Room room = rooms.get(MAPPING.fold(params.get(0)));
+		if (room == null) {
+			numeric(client, "403", params.get(0) + " :No such channel");
+			return;
+		}
+		if (params.size() == 1) {
+			if (room.topic == null)
+				numeric(client, "331", room.name + " :No topic is set");
+			else
+				numeric(client, "332", room.name + " :" + room.topic);
+			return;
+		}
+		if (!room.members.containsKey(client)) {
+			numeric(client, "442", room.name + " :You're not on that channel");
+			return;
+		}
+		if (room.modes.indexOf('t') != -1 && !isOp(client, room)) {
+			numeric(client, "482", room.name
+					+ " :You're not channel operator");
+			return;
+		}
+		room.topic = params.get(1);
+		broadcast(room, encode(":" + client.prefix() + " TOPIC " + room.name
+				+ " :" + room.topic), null);
+	}
+
+	private void names(final Client client, final String channel) {
+		final Room room = rooms.get(MAPPING.fold(channel));
+		if (room != null
+				&& (room.members.containsKey(client) || room.modes
+						.indexOf('s') == -1)) {
+			final String head = (room.modes.indexOf('s') != -1 ? "@ " : "= ")
+					+ room.name + " :";
+			final StringBuilder builder = new StringBuilder(head);
+			for (Map.Entry<Client, Integer> entry : room.members.entrySet()) {
+				if (builder.length() > 400) {
+					numeric(client, "353", builder.toString());
+					builder.setLength(0);
+					builder.append(head);
+				}
+				if (builder.length() > head.length())
+					builder.append(' ');
+				final int flags = entry.getValue();
+				if ((flags & OP) != 0)
+					builder.append('@');
+				else if ((flags & VOICE) != 0)
+					builder.append('+');
+				builder.append(entry.getKey().nick);
+			}
+			numeric(client, "353", builder.toString());
+		}
+		numeric(client, "366", channel + " :End of /NAMES list.");
+	}
+
+	private void who(final Client client, final List<String> params) {
+		if (params.isEmpty()) {
+			numeric(client, "315", "* :End of /WHO list.");
+			return;
+		}
+		final String mask = params.get(0);
+		String fields = null, token = null;
+		if (params.size() > 1 && params.get(1).startsWith("%")) {
+			fields = params.get(1).substring(1);
+			final int comma = fields.indexOf(',');
+			if (comma != -1) {
+				token = fields.substring(comma + 1);
+				fields = fields.substring(0, comma);
+			}
+		}
+		if (mask.startsWith("#")) {
+			final Room room = rooms.get(MAPPING.fold(mask));
+			if (room != null) {
+				for (Map.Entry<Client, Integer> entry : room.members
+						.entrySet()) {
+					who(client, room, entry.getKey(), entry.getValue(),
+							fields, token);
+				}
+			}
+		} else {
+			final Client target = clients.get(MAPPING.fold(mask));
+			if (target != null) {
+				final Room room = target.rooms.isEmpty() ? null
+						: target.rooms.iterator().next();
+				who(client, room, target,
+						room == null ? 0 : room.members.get(target), fields,
+						token);
+			}
+		}
+		numeric(client, "315", mask + " :End of /WHO list.");
+	}
+
+	private void who(final Client client, final Room room,
+			final Client target, final int flags, final String fields,
+			final String token) {
+		final String channel = room == null ? "*" : room.name;
+		final String status = "H" + ((flags & OP) != 0 ? "@" : "")
+				+ ((flags & VOICE) != 0 && (flags & OP) == 0 ? "+" : "");
+		if (fields == null) {
+			numeric(client, "352", channel + " " + target.user + " "
+					+ target.host + " " + target.leaf + " " + target.nick
+					+ " " + status + " :0 " + target.realName);
+			return;
+		}
+		final StringBuilder builder = new StringBuilder();
+		final String order = "tcuihsnfdlaor";
+		for (int i = 0; i < order.length(); i++) {
+			final char f = order.charAt(i);
+			if (fields.indexOf(f) == -1)
+				continue;
+			if (builder.length() > 0)
+				builder.append(' ');
+			switch (f) {
+			case 't':
+				builder.append(token == null ? "0" : token);
+				break;
+			case 'c':
+				builder.append(channel);
+				break;
+			case 'u':
+				builder.append(target.user);
+				break;
+			case 'i':
+				builder.append(target.channel == null ? "255.255.255.255"
+						: target.host);
+				break;
+			case 'h':
+				builder.append(target.host);
+				break;
+			case 's':
+				builder.append(target.leaf);
+				break;
+			case 'n':
+				builder.append(target.nick);
+				break;
+			case 'f':
+				builder.append(status);
+				break;
+			case 'd':
+				builder.append('0');
+				break;
+			case 'l':
+				builder.append('0');
+				break;
+			case 'a':
+				builder.append('0');
+				break;
+			case 'o':
+				builder.append("n/a");
+				break;
+			case 'r':
+				builder.append(':').append(target.realName);
+				break;
+			}
+		}
+		numeric(client, "354", builder.toString());
+	}
+
+	private void message(final Client client, final String command,
+			final List<String> params) {
+		final boolean notice = command.equals("NOTICE");
+		if (params.size() < 2) {
+			if (!notice)
+				numeric(client, params.isEmpty() ? "411" : "412",
+						params.isEmpty() ? ":No recipient given (PRIVMSG)"
+								: ":No text to send");
+			return;
+		}
+		final String text = params.get(1);
+		for (String target : params.get(0).split(",")) {
+			final String line = ":" + client.prefix() + " " + command + " "
+					+ target + " :" + text;
+			if (target.startsWith("#")) {
+				final Room room = rooms.get(MAPPING.fold(target));
+				if (room == null) {
+					if (!notice)
+						numeric(client, "401", target
+								+ " :No such nick/channel");
+					continue;
+				}
+				final Integer flags = room.members.get(client);
+				if (flags == null && room.modes.indexOf('n') != -1
+						|| room.modes.indexOf('m') != -1
+						&& (flags == null || flags == 0)) {
+					if (!notice)
+						numeric(client, "404", room.name
+								+ " :Cannot send to channel");
+					continue;
+				}
+				if (!room.locals.isEmpty())
+					broadcast(room, encode(line), client);
+			} else {
+				final Client recipient = clients.get(MAPPING.fold(target));
+				if (recipient == null) {
+					if (!notice)
+						numeric(client, "401", target
+								+ " :No such nick/channel");
+					continue;
+				}
+				send(recipient, line);
+			}
+		}
+	}
+
+	void quit(final Client client, final String reason) {
+		final byte[] line = encode(":" + client.prefix() + " QUIT :" + reason);
+		broadcastCommon(client, line, false);
+		for (Room room : new ArrayList<Room>(client.rooms)) {
+			remove(client, room);
+		}
+		if (client.registered)
+			clients.remove(MAPPING.fold(client.nick));
+		userCount = clients.size();
+		if (client.channel != null) {
+			send(client, "ERROR :Closing Link: " + client.host + " ("
+					+ reason + ")");
+			client.closing = true;
+			client.closed = true;
+			throttled.remove(client);
+		}
+	}
+
+	private void disconnect(final Client client, final String reason) {
+		if (client == null || client.closed && !client.closing)
+			return;
+		if (client.closing) {
+			closeChannel(client);
+			return;
+		}
+		quit(client, reason);
+	}
+
+	private void closeChannel(final Client client) {
+		client.closed = true;
+		client.closing = false;
+		throttled.remove(client);
+		try {
+			client.channel.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Could not close connection", e);
+		}
+	}
+
+	// ---- virtual users and netsplits
+
+	/**
+	 * Adds a user with no connection. Must be called on the server's thread.
+	 * 
+	 * @param nick
+	 *            the user's nick
+	 * @param leaf
+	 *            the server the user appears to be on
+	 * @return the user, or <tt>null</tt> if the nick is in use
+	 */
+	Client addVirtual(final String nick, final String leaf) {
+		final String folded = MAPPING.fold(nick);
+		if (clients.containsKey(folded))
+			return null;
+		final Client client = new Client(null);
+		client.nick = nick;
+		client.user = "load";
+		client.host = leaf;
+		client.leaf = leaf;
+		client.realName = "Load generator";
+		client.registered = true;
+		clients.put(folded, client);
+		userCount = clients.size();
+		return client;
+	}
+
+	/**
+	 * Splits a leaf server off: every virtual user on it quits with a
+	 * netsplit message, and is remembered so it can rejoin.
+	 * 
+	 * @param leaf
+	 *            the leaf server's name
+	 * @return the number of users split off
+	 */
+	int split(final String leaf) {
+		final List<Client> gone = new ArrayList<Client>();
+		for (Client client : new ArrayList<Client>(clients.values())) {
+			if (client.channel != null || !leaf.equals(client.leaf))
+				continue;
+			final Map<Room, Integer> memberships = new LinkedHashMap<Room, Integer>();
+			for (Room room : client.rooms) {
+				memberships.put(room, room.members.get(client));
+			}
+			quit(client, name + " " + leaf);
+			client.splitRooms = memberships;
+			gone.add(client);
+		}
+		final List<Client> previous = split.get(leaf);
+		if (previous != null)
+			gone.addAll(previous);
+		split.put(leaf, gone);
+		return gone.size();
+	}
+
+	/**
+	 * Rejoins a leaf server which was split off: its users come back and
+	 * rejoin their channels, getting their status back from the server.
+	 * 
+	 * @param leaf
+	 *            the leaf server's name
+	 * @return the number of users who came back
+	 */
+	int rejoin(final String leaf) {
+		final List<Client> back = split.remove(leaf);
+		if (back == null)
+			return 0;
+		int count = 0;
+		for (Client client : back) {
+			if (clients.containsKey(MAPPING.fold(client.nick)))
+				continue;
+			clients.put(MAPPING.fold(client.nick), client);
+			count++;
+			for (Map.Entry<Room, Integer> entry : client.splitRooms
+					.entrySet()) {
+				Room room = rooms.get(MAPPING.fold(entry.getKey().name));
+				if (room == null) {
+					room = entry.getKey();
+					rooms.put(MAPPING.fold(room.name), room);
+				}
+				add(client, room, entry.getValue());
+				broadcast(room, encode(":" + client.prefix() + " JOIN "
+						+ room.name), null);
+				final int flags = entry.getValue();
+				if (flags != 0)
+					broadcast(room, encode(":" + name + " MODE " + room.name
+							+ " +" + ((flags & OP) != 0 ? "o" : "v") + " "
+							+ client.nick), null);
+			}
+			client.splitRooms = null;
+		}
+		userCount = clients.size();
+		channelCount = rooms.size();
+		return count;
+	}
+
+	static boolean glob(final String glob, final String text) {
+		int g = 0, t = 0, star = -1, mark = 0;
+		while (t < text.length()) {
+			if (g < glob.length()
+					&& (glob.charAt(g) == '?' || glob.charAt(g) == text
+							.charAt(t))) {
+				g++;
+				t++;
+			} else if (g < glob.length() && glob.charAt(g) == '*') {
+				star = g++;
+				mark = t;
+			} else if (star != -1) {
+				g = star + 1;
+				t = ++mark;
+			} else {
+				return false;
+			}
+		}
+		while (g < glob.length() && glob.charAt(g) == '*') {
+			g++;
+		}
+		return g == glob.length();
+	}
+
+	/**
+	 * A user, connected or virtual. Only used on the server's thread.
+	 */
+	static final class Client {
+		private final SocketChannel channel;
+		private final Set<Room> rooms = new LinkedHashSet<Room>();
+		private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+		private SelectionKey key;
+		private ByteBuffer in = ByteBuffer.allocate(1024);
+		private String nick, user, host, realName = "", leaf;
+		private boolean registered, closing, closed;
+		private Map<Room, Integer> splitRooms;
+		private long queued, refilled;
+		private double tokens;
+
+		private Client(final SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		String getNick() {
+			return nick;
+		}
+
+		Set<Room> getRooms() {
+			return rooms;
+		}
+
+		private String prefix() {
+			return nick + "!" + user + "@" + host;
+		}
+	}
+
+	/**
+	 * A channel. Only used on the server's thread.
+	 */
+	static final class Room {
+		private final String name;
+		private final Map<Client, Integer> members = new LinkedHashMap<Client, Integer>();
+		private final Set<Client> locals = new LinkedHashSet<Client>();
+		private final List<String> bans = new ArrayList<String>();
+		private String topic, key, modes = "nt";
+		private int limit;
+
+		private Room(final String name) {
+			this.name = name;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		int size() {
+			return members.size();
+		}
+	}
+}
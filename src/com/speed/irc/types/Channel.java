@@ -1,17 +1,22 @@
 package com.speed.irc.types;
 
-import java.util.LinkedList;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import com.speed.irc.connection.LineBuilder;
 import com.speed.irc.connection.Server;
-import com.speed.irc.event.ChannelUserEvent;
-import com.speed.irc.event.ChannelUserListener;
+import com.speed.irc.util.PersistentMap;
+import com.speed.irc.util.Scrollback;
+import com.speed.irc.util.ScrollbackArena;
 
 /**
- * Represents a channel
+ * Represents a channel. What is known about the channel is published as an
+ * immutable {@link ChannelState}, replaced whenever the channel changes, so it
+ * can be read from any thread without locking; changes are made by the
+ * parser thread, one at a time.
  * <p/>
  * This file is part of Speed's IRC API.
  * <p/>
@@ -30,22 +35,19 @@ import com.speed.irc.event.ChannelUserListener;
  * 
  * @author Shivam Mistry
  */
-public class Channel extends Conversable implements ChannelUserListener,
-		Runnable {
+public class Channel extends Conversable implements Runnable {
 	protected String name;
 	protected Server server;
-	public volatile List<ChannelUser> users = new LinkedList<ChannelUser>();
-	public volatile List<ChannelUser> userBuffer = new LinkedList<ChannelUser>();
+	private final Object lock = new Object();
+	private volatile ChannelState state = new ChannelState(this);
+	private PersistentMap<ServerUser, ChannelUser> whoBuffer = PersistentMap
+			.empty();
 	public volatile boolean isRunning = true;
 	public static final int WHO_DELAY = 90000;
 	protected boolean autoRejoin;
 	protected String nick;
-	public Mode chanMode;
-	public List<String> bans = new LinkedList<String>();
-	public List<String> exempts = new LinkedList<String>();
-	public List<String> invites = new LinkedList<String>();
-	protected String topic;
 	protected ScheduledFuture<?> future;
+	private volatile Scrollback scrollback;
 
 	public Future<?> getFuture() {
 		return future;
@@ -63,9 +65,7 @@ public class Channel extends Conversable implements ChannelUserListener,
 		this.name = name;
 		this.server = server;
 		this.nick = server.getNick();
-		this.server.getEventManager().addListener(this);
 		this.server.getChannels().put(name.toLowerCase().trim(), this);
-		chanMode = new Mode(server, "");
 	}
 
 	/**
@@ -77,13 +77,24 @@ public class Channel extends Conversable implements ChannelUserListener,
 		return name;
 	}
 
+	/**
+	 * Gets the latest snapshot of the channel. Later changes are not seen by
+	 * the snapshot, so it can be used to read several things consistently.
+	 * 
+	 * @return the snapshot
+	 */
+	public ChannelState getState() {
+		return state;
+	}
+
 	/**
 	 * Gets the list of users in the channel.
 	 * 
-	 * @return The list of users in the channel.
+	 * @return The list of users in the channel, which cannot be modified and
+	 *         does not change.
 	 */
 	public List<ChannelUser> getUsers() {
-		return users;
+		return state.getUsers();
 	}
 
 	/**
@@ -95,20 +106,220 @@ public class Channel extends Conversable implements ChannelUserListener,
 	 *         <code>null</code>.
 	 */
 	public ChannelUser getUser(final String nick) {
-		for (ChannelUser user : users) {
-			if (user.getNick().equalsIgnoreCase(nick)) {
-				return user;
-			}
-		}
-		return null;
+		return state.getUser(nick);
 	}
 
+	/**
+	 * Adds a user to the channel, replacing the user's previous membership
+	 * if they had one.
+	 * 
+	 * @param user
+	 *            the user
+	 * @return <tt>true</tt> if the user was not in the channel
+	 */
 	public boolean addChannelUser(final ChannelUser user) {
-		return users.add(user);
+		synchronized (lock) {
+			final ChannelState state = this.state;
+			final boolean added = state.getUser(user.getIdentity()) == null;
+			this.state = state.withMembers(state.getMembers().plus(
+					user.getIdentity(), user));
+			return added;
+		}
 	}
 
+	/**
+	 * Removes a user from the channel.
+	 * 
+	 * @param user
+	 *            the user
+	 * @return <tt>true</tt> if the user was in the channel
+	 */
 	public boolean removeChannelUser(final ChannelUser user) {
-		return users.remove(user);
+		if (user == null)
+			return false;
+		synchronized (lock) {
+			final ChannelState state = this.state;
+			final ChannelState changed = state.withMembers(state.getMembers()
+					.minus(user.getIdentity()));
+			this.state = changed;
+			return changed != state;
+		}
+	}
+
+	/**
+	 * Changes the rights of a member.
+	 * 
+	 * @param user
+	 *            the member
+	 * @param rights
+	 *            the bitmask of the member's new rights
+	 * @return the new membership, or <tt>null</tt> if the user is not in the
+	 *         channel
+	 */
+	public ChannelUser setRights(final ChannelUser user, final int rights) {
+		return setRights(user, rights, ~rights);
+	}
+
+	/**
+	 * Gives a member some rights and takes others away, starting from the
+	 * rights the member has in the channel's current state.
+	 * 
+	 * @param user
+	 *            the member
+	 * @param add
+	 *            the bitmask of rights to give
+	 * @param remove
+	 *            the bitmask of rights to take away
+	 * @return the new membership, or <tt>null</tt> if the user is not in the
+	 *         channel
+	 */
+	public ChannelUser setRights(final ChannelUser user, final int add,
+			final int remove) {
+		synchronized (lock) {
+			final ChannelState state = this.state;
+			final ChannelUser current = state.getUser(user.getIdentity());
+			if (current == null)
+				return null;
+			final int rights = (current.getRights() | add) & ~remove;
+			if (current.getRights() == rights)
+				return current;
+			final ChannelUser changed = new ChannelUser(user.getIdentity(),
+					rights, this);
+			this.state = state.withMembers(state.getMembers().plus(
+					user.getIdentity(), changed));
+			return changed;
+		}
+	}
+
+	/**
+	 * Adds a user to the user list being gathered from a WHO reply. The list
+	 * replaces the channel's users when {@link #commitUsers()} is called.
+	 * Only used by the parser thread.
+	 * 
+	 * @param user
+	 *            the user
+	 */
+	public void bufferUser(final ChannelUser user) {
+		whoBuffer = whoBuffer.plus(user.getIdentity(), user);
+	}
+
+	/**
+	 * Replaces the channel's users with those gathered by
+	 * {@link #bufferUser(ChannelUser)}, once a WHO reply has ended.
+	 */
+	public void commitUsers() {
+		synchronized (lock) {
+			state = state.withMembers(whoBuffer).confirmed();
+		}
+		whoBuffer = PersistentMap.empty();
+	}
+
+	/**
+	 * Replaces everything known about the channel with state restored from a
+	 * snapshot, which stays provisional until the server next lists the
+	 * channel's members.
+	 * 
+	 * @param members
+	 *            the members
+	 * @param modes
+	 *            the letters of the channel modes which are set
+	 * @param topic
+	 *            the topic, can be <tt>null</tt>
+	 * @param bans
+	 *            the ban masks
+	 * @param exempts
+	 *            the ban exemption masks
+	 * @param invites
+	 *            the invite exemption masks
+	 */
+	public void restore(final Collection<ChannelUser> members,
+			final String modes, final String topic, final List<String> bans,
+			final List<String> exempts, final List<String> invites) {
+		PersistentMap<ServerUser, ChannelUser> map = PersistentMap.empty();
+		for (ChannelUser user : members) {
+			map = map.plus(user.getIdentity(), user);
+		}
+		synchronized (lock) {
+			state = state.restored(map, modes, topic, bans, exempts, invites);
+		}
+	}
+
+	/**
+	 * Applies channel mode changes, such as <tt>"+nt-s"</tt>. Only modes
+	 * without a user or list argument should be passed.
+	 * 
+	 * @param changes
+	 *            the changes
+	 */
+	public void applyModes(final String changes) {
+		synchronized (lock) {
+			final ChannelState state = this.state;
+			final StringBuilder modes = new StringBuilder(state.getModes());
+			boolean plus = true;
+			for (int i = 0; i < changes.length(); i++) {
+				final char c = changes.charAt(i);
+				if (c == '+' || c == '-') {
+					plus = c == '+';
+					continue;
+				}
+				final int index = modes.indexOf(String.valueOf(c));
+				if (plus && index == -1) {
+					int at = 0;
+					while (at < modes.length() && modes.charAt(at) < c) {
+						at++;
+					}
+					modes.insert(at, c);
+				} else if (!plus && index != -1) {
+					modes.deleteCharAt(index);
+				}
+			}
+			this.state = state.withModes(modes.toString());
+		}
+	}
+
+	/**
+	 * Adds a mask to, or removes one from, the ban (<tt>b</tt>), ban
+	 * exemption (<tt>e</tt>) or invite exemption (<tt>I</tt>) list.
+	 * 
+	 * @param mode
+	 *            the list mode letter
+	 * @param set
+	 *            <tt>true</tt> to add the mask, <tt>false</tt> to remove it
+	 * @param mask
+	 *            the mask
+	 */
+	public void setListMode(final char mode, final boolean set,
+			final String mask) {
+		synchronized (lock) {
+			state = state.withListMode(mode, set, mask);
+		}
+	}
+
+	/**
+	 * Gets the ban masks.
+	 * 
+	 * @return an unmodifiable list of the masks
+	 */
+	public List<String> getBans() {
+		return state.getBans();
+	}
+
+	/**
+	 * Gets the ban exemption masks.
+	 * 
+	 * @return an unmodifiable list of the masks
+	 */
+	public List<String> getExempts() {
+		return state.getExempts();
+	}
+
+	/**
+	 * Gets the invite exemption masks.
+	 * 
+	 * @return an unmodifiable list of the masks
+	 */
+	public List<String> getInvites() {
+		return state.getInvites();
 	}
 
 	public boolean isAutoRejoinOn() {
@@ -134,9 +345,9 @@ public class Channel extends Conversable implements ChannelUserListener,
 	public void part(final String message) {
 		isRunning = false;
 		if (message != null && !message.isEmpty())
-			server.sendRaw(String.format("PART %s :%s\n", name, message));
+			server.command("PART").param(name).trailing(message).send();
 		else
-			server.sendRaw(String.format("PART %s\n", name));
+			server.command("PART").param(name).send();
 	}
 
 	/**
@@ -146,15 +357,41 @@ public class Channel extends Conversable implements ChannelUserListener,
 	 *            The message to be sent
 	 */
 	public void sendMessage(final String message) {
-		server.sendRaw(String.format("PRIVMSG %s :%s\n", name, message));
+		server.sendText("PRIVMSG", name, message);
+		final Scrollback scrollback = getScrollback();
+		if (scrollback != null)
+			scrollback.add(System.currentTimeMillis(), server.getNick(),
+					message);
+	}
+
+	/**
+	 * Gets the recent messages of the channel, including those sent by this
+	 * client. The scrollback is opened from the server's
+	 * {@link ScrollbackArena} when it is first needed.
+	 * 
+	 * @return the scrollback, or <tt>null</tt> if the server keeps no history
+	 */
+	public Scrollback getScrollback() {
+		Scrollback scrollback = this.scrollback;
+		if (scrollback == null) {
+			final ScrollbackArena arena = server.getScrollbackArena();
+			if (arena == null)
+				return null;
+			synchronized (lock) {
+				if (this.scrollback == null)
+					this.scrollback = arena.open();
+				scrollback = this.scrollback;
+			}
+		}
+		return scrollback;
 	}
 
 	public void sendNotice(String notice) {
-		server.sendRaw(String.format("NOTICE %s :%s\n", name, notice));
+		server.sendText("NOTICE", name, notice);
 	}
 
 	public void run() {
-		server.sendRaw("WHO " + name);
+		server.command("WHO").param(name).send();
 
 	}
 
@@ -171,14 +408,29 @@ public class Channel extends Conversable implements ChannelUserListener,
 	 * Joins the channel.
 	 */
 	public void join() {
-		server.sendRaw("JOIN :" + name);
-		server.sendRaw("MODE " + name);
+		server.command("JOIN").trailing(name).send();
+		server.command("MODE").param(name).send();
+		setJoined(0);
+	}
+
+	/**
+	 * Marks the channel as joined once a JOIN has been sent for it and
+	 * schedules the periodic WHO requests used to keep the user list up to
+	 * date. Used by {@link Server#joinChannels(java.util.Map)} when joining
+	 * channels in bulk.
+	 * 
+	 * @param whoDelay
+	 *            the delay in milliseconds before the first WHO request
+	 */
+	public void setJoined(final long whoDelay) {
 		isRunning = true;
 		if (!server.getChannels().containsValue(this)) {
 			server.getChannels().put(name, this);
 		}
-		future = server.getChanExec().scheduleWithFixedDelay(this, 0, 2,
-				TimeUnit.MINUTES);
+		if (future != null && !future.isDone())
+			future.cancel(false);
+		future = server.getChanExec().scheduleWithFixedDelay(this,
+				whoDelay, TimeUnit.MINUTES.toMillis(2), TimeUnit.MILLISECONDS);
 	}
 
 	/**
@@ -188,8 +440,8 @@ public class Channel extends Conversable implements ChannelUserListener,
 	 *            the password to join the channel with
 	 */
 	public void join(final String password) {
-		server.sendRaw("JOIN :" + name + " " + password);
-		server.sendRaw("MODE " + name);
+		server.command("JOIN").param(name).param(password).send();
+		server.command("MODE").param(name).send();
 		isRunning = true;
 		if (!server.getChannels().containsValue(this)) {
 			server.getChannels().put(name, this);
@@ -218,9 +470,8 @@ public class Channel extends Conversable implements ChannelUserListener,
 	 *            the user that should be banned.
 	 */
 	public void ban(final ChannelUser user) {
-		final String banMask = new StringBuffer().append("*!*@")
-				.append(user.getHost()).toString();
-		ban(banMask);
+		server.command("MODE").param(name).param("+b").param("*!*@")
+				.append(user.getHost()).send();
 	}
 
 	/**
@@ -230,7 +481,7 @@ public class Channel extends Conversable implements ChannelUserListener,
 	 *            The ban-mask that should be banned.
 	 */
 	public void ban(final String banMask) {
-		server.sendRaw(String.format("MODE %s +b %s\n", name, banMask));
+		server.command("MODE").param(name).param("+b").param(banMask).send();
 	}
 
 	/**
@@ -246,8 +497,8 @@ public class Channel extends Conversable implements ChannelUserListener,
 		if (reason == null) {
 			reason = user.getNick();
 		}
-		server.sendRaw(String.format("KICK %s %s :%s\n", name, user.getNick(),
-				reason));
+		server.command("KICK").param(name).param(user.getNick())
+				.trailing(reason).send();
 	}
 
 	/**
@@ -264,11 +515,7 @@ public class Channel extends Conversable implements ChannelUserListener,
 		if (user == null) {
 			return;
 		}
-		if (reason == null) {
-			reason = user.getNick();
-		}
-		server.sendRaw(String.format("KICK %s %s :%s\n", name, user.getNick(),
-				reason));
+		kick(user, reason);
 	}
 
 	/**
@@ -278,7 +525,7 @@ public class Channel extends Conversable implements ChannelUserListener,
 	 *            The new channel topic.
 	 */
 	public void sendTopic(final String topic) {
-		server.sendRaw(String.format("TOPIC %s :%s\n", name, topic));
+		server.command("TOPIC").param(name).trailing(topic).send();
 	}
 
 	/**
@@ -288,7 +535,9 @@ public class Channel extends Conversable implements ChannelUserListener,
 	 *            the new channel topic
 	 */
 	public void setTopic(final String newTopic) {
-		this.topic = newTopic;
+		synchronized (lock) {
+			state = state.withTopic(newTopic);
+		}
 	}
 
 	/**
@@ -297,7 +546,7 @@ public class Channel extends Conversable implements ChannelUserListener,
 	 * @return the channel's topic
 	 */
 	public String getTopic() {
-		return topic;
+		return state.getTopic();
 	}
 
 	@Override
@@ -311,52 +560,29 @@ public class Channel extends Conversable implements ChannelUserListener,
 				&& ((Channel) o).getName().equals(getName());
 	}
 
-	public void channelUserJoined(ChannelUserEvent e) {
-		if (e.getChannel().equals(this)) {
-			addChannelUser(e.getUser());
-		}
-	}
-
-	public void channelUserParted(ChannelUserEvent e) {
-		if (e.getChannel().equals(this)) {
-
-			ChannelUser user = e.getUser();
-			if (user != null) {
-				removeChannelUser(user);
-			}
-		}
-	}
-
-	public void channelUserModeChanged(ChannelUserEvent e) {
-	}
-
-	public void channelUserKicked(ChannelUserEvent e) {
-		if (e.getChannel().equals(this)) {
-			ChannelUser user = e.getUser();
-			removeChannelUser(user);
-			if (user.getNick().equals(nick) && isAutoRejoinOn()) {
-				try {
-					Thread.sleep(50);
-				} catch (InterruptedException e1) {
-					e1.printStackTrace();
+	/**
+	 * Called by the parser when the client has been kicked from the channel.
+	 * The channel is forgotten and, if auto-rejoin is on, joined again
+	 * shortly afterwards.
+	 */
+	public void kicked() {
+		isRunning = false;
+		server.getChannels().values().remove(this);
+		if (isAutoRejoinOn()) {
+			server.getChanExec().schedule(new Runnable() {
+				public void run() {
+					join();
 				}
-				isRunning = false;
-				server.getChannels().remove(this);
-				join();
-			} else if (user.getNick().equals(nick)) {
-				isRunning = false;
-				server.getChannels().remove(this);
-			}
+			}, 50, TimeUnit.MILLISECONDS);
 		}
 	}
 
 	public void setMode(String mode, String... args) {
-		StringBuilder arg = new StringBuilder();
+		final LineBuilder line = server.command("MODE").param(name).param(mode);
 		for (String s : args) {
-			arg.append(s).append(' ');
+			line.param(s);
 		}
-		server.sendRaw(String.format("MODE %s %s %s", name, mode,
-				arg.toString()));
+		line.send();
 	}
 
 	public void removeExempt(String mask) {
@@ -0,0 +1,285 @@
+package com.speed.irc.types;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.speed.irc.util.PersistentMap;
+
+/**
+ * An immutable snapshot of what is known about a {@link Channel}: its
+ * members, modes, topic and ban, exempt and invite lists. A channel publishes
+ * a new snapshot for every change, so a reader which holds on to one sees a
+ * consistent channel however long it takes, and getting the latest costs one
+ * volatile read.
+ * <p/>
+ * Members are held in a {@link PersistentMap} which shares everything but the
+ * changed path with the previous snapshot, so a join or part in a channel of
+ * thousands copies a few small nodes. The list modes are short and bounded by
+ * the server, so they are copied whole.
+ * <p/>
+ * State restored from a {@link com.speed.irc.connection.StateSnapshot} is
+ * provisional until the server has confirmed the members with a NAMES or WHO
+ * reply.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public final class ChannelState {
+	private static final List<String> NONE = Collections.emptyList();
+
+	private final Channel channel;
+	private final long version;
+	private final PersistentMap<ServerUser, ChannelUser> members;
+	private final String modes, topic;
+	private final List<String> bans, exempts, invites;
+	private final boolean provisional;
+	private volatile List<ChannelUser> users;
+
+	ChannelState(final Channel channel) {
+		this(channel, 0, PersistentMap.<ServerUser, ChannelUser> empty(), "",
+				null, NONE, NONE, NONE, false);
+	}
+
+	private ChannelState(final Channel channel, final long version,
+			final PersistentMap<ServerUser, ChannelUser> members,
+			final String modes, final String topic, final List<String> bans,
+			final List<String> exempts, final List<String> invites,
+			final boolean provisional) {
+		this.channel = channel;
+		this.version = version;
+		this.members = members;
+		this.modes = modes;
+		this.topic = topic;
+		this.bans = bans;
+		this.exempts = exempts;
+		this.invites = invites;
+		this.provisional = provisional;
+	}
+
+	/**
+	 * Gets the channel this is a snapshot of.
+	 * 
+	 * @return the channel
+	 */
+	public Channel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Gets the number of changes made to the channel before this snapshot.
+	 * Later snapshots have higher versions.
+	 * 
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Gets the members of the channel, in no particular order.
+	 * 
+	 * @return an unmodifiable list of the members
+	 */
+	public List<ChannelUser> getUsers() {
+		List<ChannelUser> users = this.users;
+		if (users == null) {
+			final List<ChannelUser> list = new ArrayList<ChannelUser>(
+					members.size());
+			for (ChannelUser user : members) {
+				list.add(user);
+			}
+			this.users = users = Collections.unmodifiableList(list);
+		}
+		return users;
+	}
+
+	/**
+	 * Gets a member of the channel.
+	 * 
+	 * @param nick
+	 *            the nick of the member
+	 * @return the member, or <tt>null</tt> if there is no member with that
+	 *         nick
+	 */
+	public ChannelUser getUser(final String nick) {
+		final ServerUser identity = channel.getServer().findUser(nick);
+		return identity == null ? null : members.get(identity);
+	}
+
+	/**
+	 * Gets the membership of a user.
+	 * 
+	 * @param identity
+	 *            the user
+	 * @return the member, or <tt>null</tt> if the user is not in the channel
+	 */
+	public ChannelUser getUser(final ServerUser identity) {
+		return members.get(identity);
+	}
+
+	/**
+	 * Gets the number of members.
+	 * 
+	 * @return the number of members
+	 */
+	public int size() {
+		return members.size();
+	}
+
+	/**
+	 * Gets the letters of the channel's modes which are set, such as
+	 * <tt>"nt"</tt>.
+	 * 
+	 * @return the mode letters, in alphabetical order
+	 */
+	public String getModes() {
+		return modes;
+	}
+
+	/**
+	 * Checks whether a channel mode is set.
+	 * 
+	 * @param mode
+	 *            the mode letter
+	 * @return <tt>true</tt> if it is set
+	 */
+	public boolean hasMode(final char mode) {
+		return modes.indexOf(mode) != -1;
+	}
+
+	/**
+	 * Gets the topic.
+	 * 
+	 * @return the topic, or <tt>null</tt> if it is not known
+	 */
+	public String getTopic() {
+		return topic;
+	}
+
+	/**
+	 * Gets the ban masks.
+	 * 
+	 * @return an unmodifiable list of the masks
+	 */
+	public List<String> getBans() {
+		return bans;
+	}
+
+	/**
+	 * Gets the ban exemption masks.
+	 * 
+	 * @return an unmodifiable list of the masks
+	 */
+	public List<String> getExempts() {
+		return exempts;
+	}
+
+	/**
+	 * Gets the invite exemption masks.
+	 * 
+	 * @return an unmodifiable list of the masks
+	 */
+	public List<String> getInvites() {
+		return invites;
+	}
+
+	/**
+	 * Checks whether the members were restored from a snapshot and have not
+	 * been confirmed by the server yet.
+	 * 
+	 * @return <tt>true</tt> if the members may be out of date
+	 */
+	public boolean isProvisional() {
+		return provisional;
+	}
+
+	PersistentMap<ServerUser, ChannelUser> getMembers() {
+		return members;
+	}
+
+	ChannelState withMembers(
+			final PersistentMap<ServerUser, ChannelUser> members) {
+		if (members == this.members)
+			return this;
+		return new ChannelState(channel, version + 1, members, modes, topic,
+				bans, exempts, invites, provisional);
+	}
+
+	ChannelState confirmed() {
+		if (!provisional)
+			return this;
+		return new ChannelState(channel, version + 1, members, modes, topic,
+				bans, exempts, invites, false);
+	}
+
+	ChannelState restored(
+			final PersistentMap<ServerUser, ChannelUser> members,
+			final String modes, final String topic, final List<String> bans,
+			final List<String> exempts, final List<String> invites) {
+		return new ChannelState(channel, version + 1, members, modes, topic,
+				bans.isEmpty() ? NONE : Collections.unmodifiableList(bans),
+				exempts.isEmpty() ? NONE : Collections.unmodifiableList(exempts),
+				invites.isEmpty() ? NONE : Collections.unmodifiableList(invites),
+				true);
+	}
+
+	ChannelState withModes(final String modes) {
+		if (modes.equals(this.modes))
+			return this;
+		return new ChannelState(channel, version + 1, members, modes, topic,
+				bans, exempts, invites, provisional);
+	}
+
+	ChannelState withTopic(final String topic) {
+		return new ChannelState(channel, version + 1, members, modes, topic,
+				bans, exempts, invites, provisional);
+	}
+
+	/**
+	 * Makes a snapshot with a mask added to or removed from a list mode.
+	 * 
+	 * @param mode
+	 *            <tt>b</tt>, <tt>e</tt> or <tt>I</tt>
+	 */
+	ChannelState withListMode(final char mode, final boolean set,
+			final String mask) {
+		final List<String> list = mode == 'b' ? bans : mode == 'e' ? exempts
+				: invites;
+		if (list.contains(mask) == set)
+			return this;
+		final List<String> changed = new ArrayList<String>(list.size()
+				+ (set ? 1 : 0));
+		changed.addAll(list);
+		if (set)
+			changed.add(mask);
+		else
+			changed.remove(mask);
+		final List<String> result = changed.isEmpty() ? NONE : Collections
+				.unmodifiableList(changed);
+		return new ChannelState(channel, version + 1, members, modes, topic,
+				mode == 'b' ? result : bans, mode == 'e' ? result : exempts,
+				mode == 'I' ? result : invites, provisional);
+	}
+
+	@Override
+	public String toString() {
+		return channel.getName() + " v" + version + " (" + members.size()
+				+ " users, +" + modes + (provisional ? ", provisional" : "")
+				+ ")";
+	}
+}
@@ -1,7 +1,14 @@
 package com.speed.irc.types;
 
+import com.speed.irc.connection.Server;
+
 /**
- * Represents a user in a channel.
+ * Represents a user in a channel. A channel user is a compact record: the
+ * {@link ServerUser} the server connection holds for the user, which carries
+ * the nick, user name and host, and a bitmask of the user's rights in the
+ * channel. Memberships are immutable parts of a {@link ChannelState}: a change
+ * of rights makes a new membership in a new snapshot, which can be got from
+ * the channel.
  * <p/>
  * This file is part of Speed's IRC API.
  * <p/>
@@ -20,32 +27,98 @@ package com.speed.irc.types;
  * 
  * @author Shivam Mistry
  */
-public class ChannelUser extends ServerUser {
-	private String nick, modes, user;
-	private String host;
-	private Mode channelModes;
+public class ChannelUser extends Conversable {
+	private final ServerUser identity;
 	private final Channel channel;
+	private final int rights;
 	public static final int VOICE_FLAG = 0x1, HALF_OP_FLAG = 0x2,
 			OP_FLAG = 0x4, ADMIN_FLAG = 0x8, OWNER_FLAG = 0x10;
+	/**
+	 * The mode letters and prefix symbols of each flag, by bit position,
+	 * used when the server has not sent a PREFIX token.
+	 */
+	private static final String FLAG_LETTERS = "vhoaq",
+			FLAG_SYMBOLS = "+%@&~";
 
 	public String getNick() {
-		return nick;
+		return identity.getNick();
 	}
 
 	public void setNick(String nick) {
-		this.nick = nick;
+		identity.setNick(nick);
 	}
 
+	/**
+	 * Gets the prefix symbols of the user's rights, in the order the server
+	 * lists them.
+	 * 
+	 * @return the symbols, e.g. <tt>"@+"</tt>
+	 */
 	public String getModes() {
-		return modes;
+		final int rights = this.rights;
+		if (rights == 0)
+			return "";
+		final Server server = getServer();
+		final char[] letters = server.getModeLetters();
+		final char[] symbols = server.getModeSymbols();
+		final StringBuilder builder = new StringBuilder(2);
+		if (letters == null || symbols == null) {
+			for (int i = FLAG_SYMBOLS.length() - 1; i >= 0; i--) {
+				if ((rights & 1 << i) != 0)
+					builder.append(FLAG_SYMBOLS.charAt(i));
+			}
+		} else {
+			for (int i = 0; i < letters.length; i++) {
+				if ((rights & letterToFlag(letters[i])) != 0)
+					builder.append(symbols[i]);
+			}
+		}
+		return builder.toString();
 	}
 
+	/**
+	 * Sets the user's rights in the channel from prefix symbols. Memberships
+	 * are immutable, so this membership keeps its old rights and the new
+	 * membership made for the channel is discarded.
+	 * 
+	 * @param modes
+	 *            the symbols, e.g. <tt>"@+"</tt>
+	 * @deprecated use {@link #sync(String)} instead, and keep the membership
+	 *             it returns
+	 */
+	@Deprecated
 	public void setModes(String modes) {
-		this.modes = modes;
+		sync(modes);
 	}
 
 	public void sendMessage(final String message) {
-		channel.server.sendRaw(String.format("PRIVMSG %s :%s", nick, message));
+		getServer().sendText("PRIVMSG", getNick(), message);
+	}
+
+	public void sendNotice(final String notice) {
+		identity.sendNotice(notice);
+	}
+
+	public String getName() {
+		return getNick();
+	}
+
+	/**
+	 * Gets the mask of this user.
+	 * 
+	 * @return the mask of the user
+	 */
+	public Mask getMask() {
+		return identity.getMask();
+	}
+
+	/**
+	 * Gets the server this user is on
+	 * 
+	 * @return the server this user is on
+	 */
+	public Server getServer() {
+		return channel.getServer();
 	}
 
 	public Channel getChannel() {
@@ -54,68 +127,124 @@ public class ChannelUser extends ServerUser {
 
 	public ChannelUser(final String nick, final String modes,
 			final String user, final String host, final Channel channel) {
-		super(nick, host, user, channel.getServer());
+		this(channel.getServer().getUser(nick, user, host), symbolsToRights(
+				channel.getServer(), modes), channel);
+	}
+
+	/**
+	 * Creates a channel user for a user the server connection already knows.
+	 * 
+	 * @param identity
+	 *            the user
+	 * @param rights
+	 *            the bitmask of the user's rights in the channel
+	 * @param channel
+	 *            the channel
+	 */
+	public ChannelUser(final ServerUser identity, final int rights,
+			final Channel channel) {
+		this.identity = identity;
+		this.rights = rights;
 		this.channel = channel;
-		this.channelModes = new Mode(this.channel.server, "");
-		this.setModes(modes);
-		this.setNick(nick);
-		this.setHost(host);
-		this.setUser(user);
-		if (!modes.isEmpty())
-			sync(modes);
-	}
-
-	public void sync(String modes) {
-		channelModes.clear();
-		StringBuilder builder = new StringBuilder("+");
-		for (char c : modes.toCharArray()) {
-			builder.append(channelModes.channelModeSymbolToLetter(c));
-		}
-		channelModes.parse(builder.toString());
 	}
 
-	public void addMode(char mode) {
-		mode = channelModes.channelModeLetterToSymbol(mode);
+	/**
+	 * Gets the user this channel user is, shared by all the channels they are
+	 * in.
+	 * 
+	 * @return the server user
+	 */
+	public ServerUser getIdentity() {
+		return identity;
+	}
 
-		modes = modes + mode;
-		sync(modes);
+	/**
+	 * Sets the user's rights in the channel from prefix symbols. This
+	 * membership is unchanged; the channel gets a new one.
+	 * 
+	 * @param modes
+	 *            the symbols, e.g. <tt>"@+"</tt>
+	 * @return the new membership, or <tt>null</tt> if the user has left
+	 */
+	public ChannelUser sync(String modes) {
+		return channel.setRights(this, symbolsToRights(getServer(), modes));
+	}
+
+	/**
+	 * Gives the user a right in the channel. This membership is unchanged;
+	 * the channel gets a new one.
+	 * 
+	 * @param mode
+	 *            the mode letter of the right, e.g. <tt>'o'</tt>
+	 * @return the new membership, or <tt>null</tt> if the user has left
+	 */
+	public ChannelUser addMode(char mode) {
+		return channel.setRights(this, letterToFlag(mode), 0);
 	}
 
 	public void removeExempts() {
-		for (final String s : channel.exempts) {
+		for (final String s : channel.getExempts()) {
 			Mask mask = new Mask(s);
-			if (mask.matches(this)) {
+			if (mask.matches(identity)) {
 				channel.removeExempt(s);
 			}
 		}
 	}
 
-	public void removeMode(char mode) {
-		mode = channelModes.channelModeLetterToSymbol(mode);
-		StringBuilder builder = new StringBuilder();
-		for (char c : modes.toCharArray()) {
-			if (c != mode) {
-				builder.append(c);
-			}
-		}
-		modes = builder.toString();
-		sync(modes);
+	/**
+	 * Takes a right in the channel from the user. This membership is
+	 * unchanged; the channel gets a new one.
+	 * 
+	 * @param mode
+	 *            the mode letter of the right, e.g. <tt>'o'</tt>
+	 * @return the new membership, or <tt>null</tt> if the user has left
+	 */
+	public ChannelUser removeMode(char mode) {
+		return channel.setRights(this, 0, letterToFlag(mode));
 	}
 
 	public void setHost(String host) {
-		this.host = host;
+		identity.setHost(host);
 	}
 
 	public void setUser(String user) {
-		this.user = user;
+		identity.setUser(user);
 	}
 
 	public String getUser() {
-		return user;
+		return identity.getUser();
 	}
 
 	public String getHost() {
-		return host;
+		return identity.getHost();
+	}
+
+	private static int symbolsToRights(final Server server,
+			final String symbols) {
+		int rights = 0;
+		for (int i = 0; i < symbols.length(); i++) {
+			rights |= symbolToFlag(server, symbols.charAt(i));
+		}
+		return rights;
+	}
+
+	private static int symbolToFlag(final Server server, final char symbol) {
+		final char[] letters = server.getModeLetters();
+		final char[] symbols = server.getModeSymbols();
+		if (letters == null || symbols == null) {
+			final int i = FLAG_SYMBOLS.indexOf(symbol);
+			return i == -1 ? 0 : 1 << i;
+		}
+		for (int i = 0; i < symbols.length; i++) {
+			if (symbols[i] == symbol)
+				return letterToFlag(letters[i]);
+		}
+		return 0;
+	}
+
+	private static int letterToFlag(final char letter) {
+		final int i = FLAG_LETTERS.indexOf(letter);
+		return i == -1 ? 0 : 1 << i;
 	}
 
 	public boolean isOperator() {
@@ -146,22 +275,11 @@ public class ChannelUser extends ServerUser {
 	 * @returns the bitmask of the user's flags
 	 */
 	public int getRights() {
-		int rights = 0;
-		if (modes.indexOf(channel.server.getModeSymbols()[0]) != -1)
-			rights = rights | OWNER_FLAG;
-		if (modes.indexOf(channel.server.getModeSymbols()[1]) != -1)
-			rights = rights | ADMIN_FLAG;
-		if (modes.indexOf(channel.server.getModeSymbols()[2]) != -1)
-			rights = rights | OP_FLAG;
-		if (modes.indexOf(channel.server.getModeSymbols()[3]) != -1)
-			rights = rights | HALF_OP_FLAG;
-		if (modes.indexOf(channel.server.getModeSymbols()[4]) != -1)
-			rights = rights | VOICE_FLAG;
 		return rights;
 	}
 
 	@Override
 	public String toString() {
-		return nick;
+		return getNick();
 	}
 }
@@ -22,7 +22,8 @@ package com.speed.irc.types;
  */
 public abstract class Conversable {
 	/**
-	 * Sends a PRIVMSG message to the entity.
+	 * Sends a PRIVMSG message to the entity. Messages too long for one line
+	 * are split over several.
 	 * 
 	 * @param message
 	 *            the message that is to be sent.
@@ -30,7 +31,8 @@ public abstract class Conversable {
 	public abstract void sendMessage(final String message);
 
 	/**
-	 * Sends a NOTICE message to the entity.
+	 * Sends a NOTICE message to the entity. Notices too long for one line are
+	 * split over several.
 	 * 
 	 * @param notice
 	 *            the notice that is to be sent.
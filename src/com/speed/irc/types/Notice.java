@@ -1,6 +1,7 @@
 package com.speed.irc.types;
 
 import com.speed.irc.connection.Server;
+import com.speed.irc.util.StyledText;
 
 /**
  * A wrapper class for NOTICE messages.
@@ -26,6 +27,7 @@ import com.speed.irc.connection.Server;
 public class Notice {
 	private final String message, sender, target;
 	private final Server server;
+	private volatile StyledText styled;
 
 	/**
 	 * 
@@ -55,6 +57,33 @@ public class Notice {
 		return message;
 	}
 
+	/**
+	 * Gets the message with colour, bold and other formatting codes removed.
+	 * The message is only scanned the first time its plain text or styles are
+	 * requested.
+	 * 
+	 * @return the message without formatting codes
+	 */
+	public String getPlainMessage() {
+		return getStyledMessage().getText();
+	}
+
+	/**
+	 * Gets the message's plain text together with the runs of it which were
+	 * coloured or styled. The message is only scanned the first time its plain
+	 * text or styles are requested.
+	 * 
+	 * @return the styled message
+	 */
+	public StyledText getStyledMessage() {
+		StyledText styled = this.styled;
+		if (styled == null) {
+			styled = StyledText.parse(message);
+			this.styled = styled;
+		}
+		return styled;
+	}
+
 	/**
 	 * Get the sender of the notice.
 	 * 
@@ -84,6 +113,16 @@ public class Notice {
 				.getUser(target.toLowerCase());
 	}
 
+	/**
+	 * Gets the name of the channel or nick the notice was sent to, without
+	 * looking up or creating the channel or user.
+	 * 
+	 * @return the name of the target
+	 */
+	public String getTargetName() {
+		return target;
+	}
+
 	/**
 	 * Gets the channel the notice was sent to or from
 	 * 
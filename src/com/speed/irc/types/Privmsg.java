@@ -1,5 +1,7 @@
 package com.speed.irc.types;
 
+import com.speed.irc.util.StyledText;
+
 /**
  * A wrapper class for PRIVMSGs.
  * <p/>
@@ -24,6 +26,7 @@ public class Privmsg {
 
 	private final String message, sender;
 	private Conversable conversable;
+	private volatile StyledText styled;
 
 	/**
 	 * @param message
@@ -49,6 +52,33 @@ public class Privmsg {
 		return message;
 	}
 
+	/**
+	 * Gets the message with colour, bold and other formatting codes removed.
+	 * The message is only scanned the first time its plain text or styles are
+	 * requested.
+	 * 
+	 * @return the message without formatting codes
+	 */
+	public String getPlainMessage() {
+		return getStyledMessage().getText();
+	}
+
+	/**
+	 * Gets the message's plain text together with the runs of it which were
+	 * coloured or styled. The message is only scanned the first time its plain
+	 * text or styles are requested.
+	 * 
+	 * @return the styled message
+	 */
+	public StyledText getStyledMessage() {
+		StyledText styled = this.styled;
+		if (styled == null) {
+			styled = StyledText.parse(message);
+			this.styled = styled;
+		}
+		return styled;
+	}
+
 	/**
 	 * Gets the sender
 	 * 
@@ -27,10 +27,25 @@ public class RawMessage {
 
 	private String raw, code, sender, target;
 	private Server server;
+	private final long readTime;
 
 	public RawMessage(String raw, final Server server) {
+		this(raw, server, 0);
+	}
+
+	/**
+	 * @param raw
+	 *            the line received from the server
+	 * @param server
+	 *            the server the line was received from
+	 * @param readTime
+	 *            the {@link System#nanoTime()} at which the line was read, or
+	 *            0 if it was not recorded
+	 */
+	public RawMessage(String raw, final Server server, final long readTime) {
 		this.raw = raw;
 		this.server = server;
+		this.readTime = readTime;
 		String[] strings = raw.split(" ");
 		code = strings[1];
 		sender = strings[0];
@@ -59,4 +74,15 @@ public class RawMessage {
 		return server;
 	}
 
+	/**
+	 * Gets the time the line was read from the server, which is only
+	 * recorded while latency tracking is on.
+	 * 
+	 * @return the {@link System#nanoTime()} at which the line was read, or 0
+	 *         if it was not recorded
+	 */
+	public long getReadTime() {
+		return readTime;
+	}
+
 }
@@ -1,9 +1,14 @@
 package com.speed.irc.types;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.speed.irc.connection.Server;
 
 /**
- * A representation of a user an a server.
+ * A representation of a user an a server. There is one per user the server
+ * connection knows of, shared by all the {@link ChannelUser}s of that user, so
+ * the nick, user name and host are held once however many channels the user
+ * is in.
  * <p/>
  * This file is part of Speed's IRC API.
  * <p/>
@@ -23,11 +28,13 @@ import com.speed.irc.connection.Server;
  * @author Shivam Mistry
  */
 public class ServerUser extends Conversable {
-	private String nick, host, user;
-	private Server server;
+	private static final AtomicLong CHANGES = new AtomicLong();
+	private volatile String nick, host, user;
+	private volatile long version;
+	private final Server server;
 
 	/**
-	 * Initialises a server user.
+	 * Initialises a server user, and registers it with the server.
 	 * 
 	 * @param nick
 	 *            the nick of the user
@@ -48,7 +55,7 @@ public class ServerUser extends Conversable {
 	}
 
 	public String toString() {
-		return String.format("%s!%s@%s", nick, user, host);
+		return String.format("%s!%s@%s", getNick(), getUser(), getHost());
 	}
 
 	/**
@@ -61,15 +68,15 @@ public class ServerUser extends Conversable {
 	}
 
 	public void sendMessage(final String message) {
-		server.sendRaw(String.format("PRIVMSG %s :%s", nick, message));
+		server.sendText("PRIVMSG", getNick(), message);
 	}
 
 	public void sendNotice(final String notice) {
-		server.sendNotice(new Notice(notice, null, nick, server));
+		server.sendNotice(new Notice(notice, null, getNick(), server));
 	}
 
 	public String getName() {
-		return nick;
+		return getNick();
 	}
 
 	/**
@@ -81,6 +88,17 @@ public class ServerUser extends Conversable {
 		return nick;
 	}
 
+	/**
+	 * Sets the nick of this user, when they change it.
+	 * 
+	 * @param nick
+	 *            the new nick
+	 */
+	public void setNick(final String nick) {
+		this.nick = nick;
+		version = CHANGES.incrementAndGet();
+	}
+
 	/**
 	 * Gets the host of the user.
 	 * 
@@ -90,6 +108,17 @@ public class ServerUser extends Conversable {
 		return host;
 	}
 
+	/**
+	 * Sets the host of this user, when it becomes known or changes.
+	 * 
+	 * @param host
+	 *            the host
+	 */
+	public void setHost(final String host) {
+		this.host = host;
+		version = CHANGES.incrementAndGet();
+	}
+
 	/**
 	 * Gets the username of this user.
 	 * 
@@ -99,6 +128,38 @@ public class ServerUser extends Conversable {
 		return user;
 	}
 
+	/**
+	 * Sets the username of this user, when it becomes known or changes.
+	 * 
+	 * @param user
+	 *            the username
+	 */
+	public void setUser(final String user) {
+		this.user = user;
+		version = CHANGES.incrementAndGet();
+	}
+
+	/**
+	 * Gets the number stamped on this user when its nick, user name or host
+	 * last changed. The numbers are shared by all users and only increase, so
+	 * a user has changed since {@link #getLatestVersion()} returned some
+	 * number if its version is higher.
+	 * 
+	 * @return the version, 0 if the user has not changed since it was created
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Gets the version stamped on the user which changed most recently.
+	 * 
+	 * @return the latest version
+	 */
+	public static long getLatestVersion() {
+		return CHANGES.get();
+	}
+
 	/**
 	 * Gets the server this user is on
 	 * 
@@ -0,0 +1,151 @@
+package com.speed.irc.util;
+
+/**
+ * The case mappings a server can advertise with its CASEMAPPING token, used
+ * to compare nicks, channel names and text the same way the server does.
+ * Characters outside ASCII are lower-cased with
+ * {@link Character#toLowerCase(char)}.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public enum CaseMapping {
+	/**
+	 * Only A-Z are folded to a-z.
+	 */
+	ASCII('Z'),
+	/**
+	 * A-Z and []\^ are folded to a-z and {}|~.
+	 */
+	RFC1459('^'),
+	/**
+	 * A-Z and []\ are folded to a-z and {}|.
+	 */
+	STRICT_RFC1459(']');
+
+	private final char last;
+
+	CaseMapping(final char last) {
+		this.last = last;
+	}
+
+	/**
+	 * Folds a character to lower case.
+	 *
+	 * @param c
+	 *            the character
+	 * @return the folded character
+	 */
+	public char fold(final char c) {
+		if (c >= 'A' && c <= last)
+			return (char) (c + ('a' - 'A'));
+		if (c >= 0x80)
+			return Character.toLowerCase(c);
+		return c;
+	}
+
+	/**
+	 * Folds a string to lower case.
+	 *
+	 * @param s
+	 *            the string
+	 * @return the folded string, which is <tt>s</tt> itself if it is already
+	 *         lower case
+	 */
+	public String fold(final String s) {
+		int i = 0;
+		while (i < s.length() && fold(s.charAt(i)) == s.charAt(i)) {
+			i++;
+		}
+		if (i == s.length())
+			return s;
+		final StringBuilder builder = new StringBuilder(s.length());
+		builder.append(s, 0, i);
+		for (; i < s.length(); i++) {
+			builder.append(fold(s.charAt(i)));
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Compares two strings ignoring case.
+	 *
+	 * @param a
+	 *            the first string
+	 * @param b
+	 *            the second string
+	 * @return <tt>true</tt> if they are equal once folded
+	 */
+	public boolean equals(final String a, final String b) {
+		if (a.length() != b.length())
+			return false;
+		for (int i = 0; i < a.length(); i++) {
+			if (fold(a.charAt(i)) != fold(b.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Matches a whole string against a glob ignoring case, where <tt>*</tt>
+	 * matches any number of characters and <tt>?</tt> any one character.
+	 *
+	 * @param glob
+	 *            the glob, such as a mask <tt>*!*@example.com</tt>
+	 * @param text
+	 *            the string
+	 * @return <tt>true</tt> if the string matches
+	 */
+	public boolean matches(final String glob, final String text) {
+		int g = 0, s = 0, star = -1, mark = 0;
+		while (s < text.length()) {
+			if (g < glob.length()
+					&& (glob.charAt(g) == '?' || glob.charAt(g) != '*'
+							&& fold(glob.charAt(g)) == fold(text.charAt(s)))) {
+				g++;
+				s++;
+			} else if (g < glob.length() && glob.charAt(g) == '*') {
+				star = g++;
+				mark = s;
+			} else if (star != -1) {
+				g = star + 1;
+				s = ++mark;
+			} else {
+				return false;
+			}
+		}
+		while (g < glob.length() && glob.charAt(g) == '*') {
+			g++;
+		}
+		return g == glob.length();
+	}
+
+	/**
+	 * Gets the case mapping with the name a server advertises.
+	 *
+	 * @param name
+	 *            the value of the CASEMAPPING token, can be <tt>null</tt>
+	 * @return the case mapping, {@link #RFC1459} if the name is unknown
+	 */
+	public static CaseMapping forName(final String name) {
+		if ("ascii".equalsIgnoreCase(name))
+			return ASCII;
+		if ("strict-rfc1459".equalsIgnoreCase(name))
+			return STRICT_RFC1459;
+		return RFC1459;
+	}
+}
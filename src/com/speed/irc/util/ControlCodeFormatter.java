@@ -1,5 +1,10 @@
 package com.speed.irc.util;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Formats messages with control codes, using a specified 'format' character.
  * <p/>
@@ -24,10 +29,21 @@ public class ControlCodeFormatter {
 	public static final char UNICODE_COLOUR = '\u0003';
 	public static final char UNICODE_BOLD = '\u0002';
 	public static final char UNICODE_UNDERLINE = '\u001F';
+	public static final char UNICODE_ITALIC = '\u001D';
+	public static final char UNICODE_REVERSE = '\u0016';
+	public static final char UNICODE_STRIKETHROUGH = '\u001E';
+	public static final char UNICODE_MONOSPACE = '\u0011';
+	public static final char UNICODE_RESET = '\u000F';
+	/**
+	 * The maximum number of compiled templates kept by each cache.
+	 */
+	public static final int MAX_CACHED_TEMPLATES = 256;
 
 	private static char format_character = '$';
-	
+	private static final Map<String, Template> STATIC_CACHE = new ConcurrentHashMap<String, Template>();
+
 	private char formatChar;
+	private final Map<String, Template> cache = new ConcurrentHashMap<String, Template>();
 
 	public ControlCodeFormatter() {
 		formatChar = '$';
@@ -37,7 +53,30 @@ public class ControlCodeFormatter {
 		formatChar = format_char;
 	}
 
-	public enum Colour {
+	/**
+	 * A control code which can be substituted for a format character in a
+	 * template.
+	 */
+	public interface Format {
+		/**
+		 * Appends the control code(s) to a buffer.
+		 * 
+		 * @param buffer
+		 *            the buffer to append to
+		 */
+		void appendTo(StringBuilder buffer);
+
+		/**
+		 * Checks whether the control code only changes colour, in which case
+		 * a rendered template is terminated with {@link #UNICODE_COLOUR}
+		 * rather than {@link #UNICODE_RESET}.
+		 * 
+		 * @return <tt>true</tt> if this is a colour code
+		 */
+		boolean isColour();
+	}
+
+	public enum Colour implements Format {
 		WHITE(0), BLACK(1), NAVY_BLUE(2), GREEN(3), RED(4), CRIMSON_RED(5), MAGENTA(
 				6), BROWN(7), YELLOW(8), LIME(9), TEAL(10), AQUA(11), ROYAL_BLUE(
 				12), PINK(13), DARK_GREY(14), LIGHT_GREY(15);
@@ -46,6 +85,196 @@ public class ControlCodeFormatter {
 		}
 
 		int code;
+
+		/**
+		 * Gets a format for this colour on a background colour.
+		 * 
+		 * @param background
+		 *            the background colour
+		 * @return the format for this colour on the background
+		 */
+		public Format on(final Colour background) {
+			final Colour foreground = this;
+			return new Format() {
+				public void appendTo(final StringBuilder buffer) {
+					foreground.appendTo(buffer);
+					appendCode(buffer.append(','), background.code);
+				}
+
+				public boolean isColour() {
+					return true;
+				}
+			};
+		}
+
+		public void appendTo(final StringBuilder buffer) {
+			appendCode(buffer.append(UNICODE_COLOUR), code);
+		}
+
+		public boolean isColour() {
+			return true;
+		}
+	}
+
+	/**
+	 * Text styles which can be substituted for a format character in a
+	 * template.
+	 */
+	public enum Style implements Format {
+		BOLD(UNICODE_BOLD), UNDERLINE(UNICODE_UNDERLINE), ITALIC(UNICODE_ITALIC), REVERSE(
+				UNICODE_REVERSE), STRIKETHROUGH(UNICODE_STRIKETHROUGH), MONOSPACE(
+				UNICODE_MONOSPACE), RESET(UNICODE_RESET), DEFAULT_COLOUR(
+				UNICODE_COLOUR);
+		private final char code;
+
+		Style(final char code) {
+			this.code = code;
+		}
+
+		public void appendTo(final StringBuilder buffer) {
+			buffer.append(code);
+		}
+
+		public boolean isColour() {
+			return this == DEFAULT_COLOUR;
+		}
+	}
+
+	/**
+	 * A template parsed once into literal text and format character
+	 * placeholders, which can be rendered many times without being scanned
+	 * again.
+	 */
+	public static final class Template {
+		private final String[] literals;
+		private final char formatChar;
+
+		private Template(final String[] literals, final char formatChar) {
+			this.literals = literals;
+			this.formatChar = formatChar;
+		}
+
+		/**
+		 * Gets the number of format characters in the template.
+		 * 
+		 * @return the number of placeholders
+		 */
+		public int getPlaceholders() {
+			return literals.length - 1;
+		}
+
+		/**
+		 * Renders the template into a buffer, substituting the format
+		 * characters with the formats in order. Format characters left over
+		 * once the formats run out are rendered as they are. The rendered text
+		 * is terminated with {@link #UNICODE_COLOUR} if only colours were
+		 * used, or {@link #UNICODE_RESET} if any other style was.
+		 * 
+		 * @param buffer
+		 *            the buffer to render into
+		 * @param formats
+		 *            the formats to substitute
+		 * @return the buffer
+		 */
+		public StringBuilder render(final StringBuilder buffer,
+				final Format... formats) {
+			if (formats.length == 0) {
+				for (int i = 0; i < literals.length; i++) {
+					if (i > 0)
+						buffer.append(formatChar);
+					buffer.append(literals[i]);
+				}
+				return buffer;
+			}
+			boolean styled = false;
+			buffer.append(literals[0]);
+			for (int i = 1; i < literals.length; i++) {
+				if (i <= formats.length) {
+					final Format format = formats[i - 1];
+					format.appendTo(buffer);
+					styled |= !format.isColour();
+				} else {
+					buffer.append(formatChar);
+				}
+				buffer.append(literals[i]);
+			}
+			return buffer.append(styled ? UNICODE_RESET : UNICODE_COLOUR);
+		}
+
+		/**
+		 * Renders the template into a new string.
+		 * 
+		 * @param formats
+		 *            the formats to substitute
+		 * @return the rendered text
+		 * @see #render(StringBuilder, Format...)
+		 */
+		public String render(final Format... formats) {
+			int length = formats.length * 6 + 1;
+			for (String literal : literals) {
+				length += literal.length() + 1;
+			}
+			return render(new StringBuilder(length), formats).toString();
+		}
+	}
+
+	/**
+	 * Parses a template once, so it can be rendered many times. A format
+	 * character preceded by '\' is taken literally.
+	 * 
+	 * @param template
+	 *            the template to parse
+	 * @param formatChar
+	 *            the character to be replaced with control codes
+	 * @return the parsed template
+	 */
+	public static Template compile(final String template, final char formatChar) {
+		final List<String> literals = new ArrayList<String>();
+		final StringBuilder literal = new StringBuilder(template.length());
+		for (int i = 0; i < template.length(); i++) {
+			final char c = template.charAt(i);
+			if (c == '\\' && i + 1 < template.length()
+					&& template.charAt(i + 1) == formatChar) {
+				literal.append(formatChar);
+				i++;
+			} else if (c == formatChar) {
+				literals.add(literal.toString());
+				literal.setLength(0);
+			} else {
+				literal.append(c);
+			}
+		}
+		literals.add(literal.toString());
+		return new Template(literals.toArray(new String[literals.size()]),
+				formatChar);
+	}
+
+	/**
+	 * Gets the compiled form of a template using this formatter's format
+	 * character, parsing it only the first time it is seen.
+	 * 
+	 * @param template
+	 *            the template
+	 * @return the compiled template
+	 */
+	public Template compile(final String template) {
+		return cached(cache, template, formatChar);
+	}
+
+	private static Template cached(final Map<String, Template> cache,
+			final String template, final char formatChar) {
+		Template compiled = cache.get(template);
+		if (compiled == null || compiled.formatChar != formatChar) {
+			compiled = compile(template, formatChar);
+			if (cache.size() >= MAX_CACHED_TEMPLATES)
+				cache.clear();
+			cache.put(template, compiled);
+		}
+		return compiled;
+	}
+
+	private static void appendCode(final StringBuilder buffer, final int code) {
+		buffer.append((char) ('0' + code / 10)).append((char) ('0' + code % 10));
 	}
 
 	/**
@@ -57,6 +286,7 @@ public class ControlCodeFormatter {
 	 */
 	public void setFormatChar(final char c) {
 		formatChar = c;
+		cache.clear();
 	}
 
 	/**
@@ -104,35 +334,25 @@ public class ControlCodeFormatter {
 	 * @return the formatted string
 	 */
 	public String formatString(final String s, final Colour... colours) {
-		final StringBuilder builder = new StringBuilder();
 		if (colours.length == 0)
 			return s;
-		int replaced = 0;
-		for (int i = 0; i < s.length(); i++) {
-			char c = s.charAt(i);
-			if (replaced >= colours.length) {
-				if (c == '\\' && s.charAt(i + 1) == formatChar) {
-					builder.append(formatChar);
-					i++;
-				} else {
-					builder.append(c);
-				}
-				continue;
-			} else if (c == formatChar) {
-				if (i != 0) {
-					if (s.charAt(i - 1) == '\\') {
-						builder.deleteCharAt(builder.lastIndexOf("\\"));
-						builder.append(c);
-						continue;
-					}
-				}
-				builder.append(UNICODE_COLOUR).append(colours[replaced++].code);
+		return compile(s).render(colours);
+	}
 
-			} else {
-				builder.append(c);
-			}
-		}
-		return builder.toString() + ControlCodeFormatter.UNICODE_COLOUR;
+	/**
+	 * Formats the string with the colours and styles specified. Default
+	 * format character is '$' and any format character is escaped using '\'.
+	 * 
+	 * @param s
+	 *            The string to be formatted.
+	 * @param formats
+	 *            The colours and styles to format the string with.
+	 * @return the formatted string
+	 */
+	public String formatString(final String s, final Format... formats) {
+		if (formats.length == 0)
+			return s;
+		return compile(s).render(formats);
 	}
 
 	/**
@@ -148,34 +368,24 @@ public class ControlCodeFormatter {
 	 * @return the formatted string
 	 */
 	public static String format(final String s, final Colour... colours) {
-		final StringBuilder builder = new StringBuilder();
 		if (colours.length == 0)
 			return s;
-		int replaced = 0;
-		for (int i = 0; i < s.length(); i++) {
-			char c = s.charAt(i);
-			if (replaced >= colours.length) {
-				if (c == '\\' && s.charAt(i + 1) == format_character) {
-					builder.append(format_character);
-					i++;
-				} else {
-					builder.append(c);
-				}
-				continue;
-			} else if (c == format_character) {
-				if (i != 0) {
-					if (s.charAt(i - 1) == '\\') {
-						builder.deleteCharAt(builder.lastIndexOf("\\"));
-						builder.append(c);
-						continue;
-					}
-				}
-				builder.append(UNICODE_COLOUR).append(colours[replaced++].code);
+		return cached(STATIC_CACHE, s, format_character).render(colours);
+	}
 
-			} else {
-				builder.append(c);
-			}
-		}
-		return builder.toString() + ControlCodeFormatter.UNICODE_COLOUR;
+	/**
+	 * Formats the string with the colours and styles specified. Default
+	 * format character is '$' and any format character is escaped using '\'.
+	 * 
+	 * @param s
+	 *            The string to be formatted.
+	 * @param formats
+	 *            The colours and styles to format the string with.
+	 * @return the formatted string
+	 */
+	public static String format(final String s, final Format... formats) {
+		if (formats.length == 0)
+			return s;
+		return cached(STATIC_CACHE, s, format_character).render(formats);
 	}
 }
@@ -0,0 +1,75 @@
+package com.speed.irc.util;
+
+/**
+ * A fixed-size cache which deduplicates equal strings, so that the hosts and
+ * user names of thousands of users share a few instances instead of each
+ * holding its own copy. Unlike {@link String#intern()} it is bounded: each
+ * string hashes to one slot, and a string which collides with another simply
+ * replaces it. The cache never holds more than its capacity, and a lost entry
+ * only means a duplicate string.
+ * <p/>
+ * Strings are immutable, so the slots need no synchronization: a thread which
+ * misses another thread's write just stores its own copy.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public final class Interner {
+	private final String[] table;
+	private final int mask;
+
+	/**
+	 * Creates an interner.
+	 * 
+	 * @param capacity
+	 *            the number of strings to hold, rounded up to a power of two
+	 */
+	public Interner(final int capacity) {
+		final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		table = new String[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Gets the cached string equal to a string, caching it if there is none.
+	 * 
+	 * @param s
+	 *            the string, can be <tt>null</tt>
+	 * @return an equal string, which may be <tt>s</tt> itself
+	 */
+	public String intern(final String s) {
+		if (s == null)
+			return null;
+		int h = s.hashCode();
+		h ^= h >>> 16;
+		final int slot = h & mask;
+		final String cached = table[slot];
+		if (cached != null && cached.equals(s))
+			return cached;
+		table[slot] = s;
+		return s;
+	}
+
+	/**
+	 * Gets the number of strings the interner can hold.
+	 * 
+	 * @return the capacity
+	 */
+	public int capacity() {
+		return table.length;
+	}
+}
@@ -0,0 +1,198 @@
+package com.speed.irc.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An Aho-Corasick automaton which finds every occurrence of any of a set of
+ * keywords in a single pass over some text, whatever the number of keywords.
+ * Keywords and text are compared using a {@link CaseMapping}. An automaton is
+ * immutable once built and can be shared between threads.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public final class KeywordAutomaton {
+	private static final char[] NO_LABELS = new char[0];
+	private static final int[] NONE = new int[0];
+
+	/**
+	 * Receives the keywords found by {@link KeywordAutomaton#scan}.
+	 */
+	public interface Visitor {
+		/**
+		 * Called for each occurrence of a keyword.
+		 *
+		 * @param keyword
+		 *            the index of the keyword in the list the automaton was
+		 *            built from
+		 * @param end
+		 *            the index in the text just after the occurrence
+		 * @return <tt>true</tt> to carry on scanning, <tt>false</tt> to stop
+		 */
+		boolean found(int keyword, int end);
+	}
+
+	private final CaseMapping mapping;
+	private final int keywords;
+	private char[][] labels;
+	private int[][] targets;
+	private int[][] outputs;
+	private int[] fail, dictionary;
+	private int nodes;
+
+	/**
+	 * Builds an automaton for a list of keywords. Empty keywords never match.
+	 *
+	 * @param keywords
+	 *            the keywords to find
+	 * @param mapping
+	 *            the case mapping used to compare keywords and text
+	 */
+	public KeywordAutomaton(final List<String> keywords,
+			final CaseMapping mapping) {
+		this.mapping = mapping;
+		this.keywords = keywords.size();
+		int capacity = 16;
+		labels = new char[capacity][];
+		targets = new int[capacity][];
+		outputs = new int[capacity][];
+		newNode();
+		for (int k = 0; k < keywords.size(); k++) {
+			final String keyword = keywords.get(k);
+			if (keyword.isEmpty())
+				continue;
+			int node = 0;
+			for (int i = 0; i < keyword.length(); i++) {
+				node = child(node, mapping.fold(keyword.charAt(i)), true);
+			}
+			outputs[node] = append(outputs[node], k);
+		}
+		fail = new int[nodes];
+		dictionary = new int[nodes];
+		final int[] queue = new int[nodes];
+		int head = 0, tail = 0;
+		for (int target : targets[0]) {
+			queue[tail++] = target;
+		}
+		while (head < tail) {
+			final int node = queue[head++];
+			for (int j = 0; j < labels[node].length; j++) {
+				final char c = labels[node][j];
+				final int child = targets[node][j];
+				int f = fail[node];
+				int next;
+				while ((next = child(f, c, false)) == -1 && f != 0) {
+					f = fail[f];
+				}
+				fail[child] = next == -1 || next == child ? 0 : next;
+				dictionary[child] = outputs[fail[child]].length > 0 ? fail[child]
+						: dictionary[fail[child]];
+				queue[tail++] = child;
+			}
+		}
+		labels = Arrays.copyOf(labels, nodes);
+		targets = Arrays.copyOf(targets, nodes);
+		outputs = Arrays.copyOf(outputs, nodes);
+	}
+
+	private void newNode() {
+		if (nodes == labels.length) {
+			final int capacity = nodes * 2;
+			labels = Arrays.copyOf(labels, capacity);
+			targets = Arrays.copyOf(targets, capacity);
+			outputs = Arrays.copyOf(outputs, capacity);
+		}
+		labels[nodes] = NO_LABELS;
+		targets[nodes] = NONE;
+		outputs[nodes] = NONE;
+		nodes++;
+	}
+
+	private int child(final int node, final char c, final boolean create) {
+		final char[] l = labels[node];
+		final int index = Arrays.binarySearch(l, c);
+		if (index >= 0)
+			return targets[node][index];
+		if (!create)
+			return -1;
+		final int insert = -index - 1;
+		final char[] newLabels = new char[l.length + 1];
+		final int[] newTargets = new int[l.length + 1];
+		System.arraycopy(l, 0, newLabels, 0, insert);
+		System.arraycopy(targets[node], 0, newTargets, 0, insert);
+		System.arraycopy(l, insert, newLabels, insert + 1, l.length - insert);
+		System.arraycopy(targets[node], insert, newTargets, insert + 1,
+				l.length - insert);
+		newLabels[insert] = c;
+		newTargets[insert] = nodes;
+		labels[node] = newLabels;
+		targets[node] = newTargets;
+		newNode();
+		return nodes - 1;
+	}
+
+	private static int[] append(final int[] array, final int value) {
+		final int[] appended = Arrays.copyOf(array, array.length + 1);
+		appended[array.length] = value;
+		return appended;
+	}
+
+	/**
+	 * Finds every occurrence of the keywords in some text.
+	 *
+	 * @param text
+	 *            the text to scan
+	 * @param visitor
+	 *            receives each occurrence, in order of where it ends
+	 */
+	public void scan(final CharSequence text, final Visitor visitor) {
+		int node = 0;
+		for (int i = 0, n = text.length(); i < n; i++) {
+			final char c = mapping.fold(text.charAt(i));
+			int next;
+			while ((next = child(node, c, false)) == -1 && node != 0) {
+				node = fail[node];
+			}
+			node = next == -1 ? 0 : next;
+			for (int out = outputs[node].length > 0 ? node : dictionary[node]; out != 0; out = dictionary[out]) {
+				for (int keyword : outputs[out]) {
+					if (!visitor.found(keyword, i + 1))
+						return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of keywords the automaton was built from.
+	 *
+	 * @return the number of keywords
+	 */
+	public int size() {
+		return keywords;
+	}
+
+	/**
+	 * Gets the case mapping used to compare keywords and text.
+	 *
+	 * @return the case mapping
+	 */
+	public CaseMapping getCaseMapping() {
+		return mapping;
+	}
+}
@@ -0,0 +1,172 @@
+package com.speed.irc.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds with a fixed set of buckets, so
+ * recording a value never allocates. Values below 64ns have a bucket each;
+ * above that every power of two is split into 32 buckets, which keeps the
+ * error of a percentile within about 3%. Values above about 68 seconds are
+ * counted in the last bucket.
+ * <p/>
+ * Values can be recorded from any thread.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5, SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final long MAX_VALUE = (1L << 36) - 1;
+	private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong(), max = new AtomicLong();
+
+	private static int index(final long value) {
+		final int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value)
+				- SUB_BUCKET_BITS);
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	private static long lowest(final int index) {
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+		final int shift = index / SUB_BUCKETS - 1;
+		return (long) (index - shift * SUB_BUCKETS) << shift;
+	}
+
+	private static long highest(final int index) {
+		return lowest(index + 1) - 1;
+	}
+
+	/**
+	 * Records a latency.
+	 * 
+	 * @param nanos
+	 *            the latency in nanoseconds, negative values are counted as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(index(Math.min(nanos, MAX_VALUE)));
+		total.addAndGet(nanos);
+		long m;
+		while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+		}
+	}
+
+	/**
+	 * Removes all recorded values.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		total.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * Copies the values recorded so far. Values recorded while the copy is
+	 * taken may or may not be included.
+	 * 
+	 * @return the snapshot
+	 */
+	public Snapshot getSnapshot() {
+		final long[] copy = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+			count += copy[i];
+		}
+		return new Snapshot(copy, count, total.get(), max.get());
+	}
+
+	/**
+	 * The values of a histogram at some point in time.
+	 */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count, total, max;
+
+		private Snapshot(final long[] counts, final long count,
+				final long total, final long max) {
+			this.counts = counts;
+			this.count = count;
+			this.total = total;
+			this.max = max;
+		}
+
+		/**
+		 * Gets the number of values recorded.
+		 * 
+		 * @return the number of values
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Gets the mean of the values recorded.
+		 * 
+		 * @return the mean in nanoseconds, or 0 if none were recorded
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : (double) total / count;
+		}
+
+		/**
+		 * Gets the largest value recorded.
+		 * 
+		 * @return the largest value in nanoseconds
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Gets the value below which a percentage of the values fall.
+		 * 
+		 * @param percentile
+		 *            the percentage, from 0 to 100
+		 * @return the highest value of the bucket the percentile falls in, in
+		 *         nanoseconds, or 0 if no values were recorded
+		 */
+		public long getPercentile(final double percentile) {
+			if (count == 0)
+				return 0;
+			final long rank = Math.max(1,
+					(long) Math.ceil(count * Math.min(percentile, 100) / 100));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(highest(i), max);
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"count=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus",
+					count, getMean() / 1000, getPercentile(50) / 1000.0,
+					getPercentile(99) / 1000.0, max / 1000.0);
+		}
+	}
+}
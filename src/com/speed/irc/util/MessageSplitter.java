@@ -0,0 +1,321 @@
+package com.speed.irc.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Splits long messages into pieces which fit in a given number of bytes when
+ * encoded as UTF-8. Pieces are broken at a space where possible, preferably
+ * one with no formatting active, and never inside a surrogate pair or a
+ * colour code. Formatting which is still active at a break is restored at the
+ * start of the next piece. A line feed in the message always starts a new
+ * piece.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public class MessageSplitter {
+	/**
+	 * The smallest number of bytes a piece can be given, enough to hold the
+	 * longest formatting prefix and one character.
+	 */
+	public static final int MIN_BYTES = 20;
+
+	/**
+	 * Splits a message into pieces of at most <tt>maxBytes</tt> bytes,
+	 * dropping the spaces the pieces were broken at.
+	 *
+	 * @param text
+	 *            the message to split
+	 * @param maxBytes
+	 *            the maximum number of UTF-8 bytes in a piece
+	 * @return the pieces of the message, in order
+	 */
+	public static List<String> split(final String text, final int maxBytes) {
+		final List<String> pieces = new ArrayList<String>();
+		split(text, maxBytes, false, pieces, null);
+		return pieces;
+	}
+
+	/**
+	 * Splits a message into pieces of at most <tt>maxBytes</tt> bytes.
+	 *
+	 * @param text
+	 *            the message to split
+	 * @param maxBytes
+	 *            the maximum number of UTF-8 bytes in a piece, at least
+	 *            {@link #MIN_BYTES}
+	 * @param keepSpaces
+	 *            <tt>true</tt> to keep the space a piece was broken at on the
+	 *            end of the piece, or on the start of the next piece if it
+	 *            does not fit, so the pieces can be concatenated back into the
+	 *            original text
+	 * @param pieces
+	 *            the list the pieces are added to
+	 * @param continued
+	 *            if not <tt>null</tt>, the bit of each piece (indexed from the
+	 *            size of <tt>pieces</tt> on entry) which continues the previous
+	 *            piece rather than starting a new line is set
+	 */
+	public static void split(final String text, final int maxBytes,
+			final boolean keepSpaces, final List<String> pieces,
+			final BitSet continued) {
+		if (maxBytes < MIN_BYTES)
+			throw new IllegalArgumentException("maxBytes must be at least "
+					+ MIN_BYTES);
+		final int length = text.length();
+		final State state = new State();
+		final State spaceState = new State();
+		final State plainState = new State();
+		final StringBuilder piece = new StringBuilder(Math.min(length,
+				maxBytes) + 16);
+		String prefix = "";
+		boolean continues = false;
+		int start = 0;
+		do {
+			// a piece starting with a comma after a colour code is guarded
+			// with two bold codes, so the comma is not read as part of it
+			final boolean guard = prefix.length() > 0
+					&& Character.isDigit(prefix.charAt(prefix.length() - 1))
+					&& start < length && text.charAt(start) == ',';
+			int bytes = utf8Length(prefix) + (guard ? 2 : 0);
+			int i = start, end = length, next = length;
+			int spaceBreak = -1, plainBreak = -1;
+			boolean broken = false;
+			while (i < length) {
+				final char c = text.charAt(i);
+				if (c == '\n' || c == '\r') {
+					end = i;
+					next = i + 1;
+					if (c == '\r' && next < length && text.charAt(next) == '\n')
+						next++;
+					break;
+				}
+				final int tokenEnd = tokenEnd(text, i);
+				final int tokenBytes = utf8Length(text, i, tokenEnd);
+				if (c == ' ' && i > start) {
+					spaceBreak = i;
+					spaceState.copy(state);
+					if (state.isPlain()) {
+						plainBreak = i;
+						plainState.copy(state);
+					}
+				}
+				if (bytes + tokenBytes > maxBytes && i > start) {
+					broken = true;
+					if (plainBreak != -1 && plainBreak - start >= (i - start) / 2) {
+						end = plainBreak;
+						state.copy(plainState);
+					} else if (spaceBreak != -1) {
+						end = spaceBreak;
+						state.copy(spaceState);
+					} else {
+						end = i;
+					}
+					next = end;
+					if (end == spaceBreak) {
+						// a kept space stays on this piece if it was counted,
+						// otherwise it starts the next one
+						if (!keepSpaces)
+							next = end + 1;
+						else if (spaceBreak < i)
+							next = ++end;
+					}
+					break;
+				}
+				state.apply(text, i, tokenEnd);
+				bytes += tokenBytes;
+				i = tokenEnd;
+			}
+			if (end > start || length == 0) {
+				piece.setLength(0);
+				piece.append(prefix);
+				if (guard)
+					piece.append(ControlCodeFormatter.UNICODE_BOLD).append(
+							ControlCodeFormatter.UNICODE_BOLD);
+				piece.append(text, start, end);
+				if (continued != null && continues)
+					continued.set(pieces.size());
+				pieces.add(piece.toString());
+			}
+			if (broken) {
+				prefix = state.prefix();
+				continues = true;
+			} else {
+				state.reset();
+				prefix = "";
+				continues = false;
+			}
+			start = next;
+		} while (start < length);
+	}
+
+	/**
+	 * Counts the bytes a string takes up when encoded as UTF-8.
+	 *
+	 * @param s
+	 *            the string
+	 * @return the encoded length
+	 */
+	public static int utf8Length(final CharSequence s) {
+		return utf8Length(s, 0, s.length());
+	}
+
+	private static int utf8Length(final CharSequence s, final int start,
+			final int end) {
+		int bytes = 0;
+		for (int i = start; i < end; i++) {
+			final char c = s.charAt(i);
+			if (c < 0x80)
+				bytes++;
+			else if (c < 0x800)
+				bytes += 2;
+			else if (Character.isHighSurrogate(c))
+				bytes += 4;
+			else if (!Character.isLowSurrogate(c))
+				bytes += 3;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Finds the end of the indivisible token starting at an index: a
+	 * surrogate pair, a colour code with its numbers, or a single character.
+	 */
+	private static int tokenEnd(final String text, final int i) {
+		final char c = text.charAt(i);
+		final int length = text.length();
+		if (Character.isHighSurrogate(c) && i + 1 < length
+				&& Character.isLowSurrogate(text.charAt(i + 1)))
+			return i + 2;
+		if (c != ControlCodeFormatter.UNICODE_COLOUR)
+			return i + 1;
+		int j = digits(text, i + 1);
+		if (j > i + 1 && j + 1 < length && text.charAt(j) == ','
+				&& Character.isDigit(text.charAt(j + 1)))
+			j = digits(text, j + 1);
+		return j;
+	}
+
+	private static int digits(final String text, final int i) {
+		int j = i;
+		while (j < text.length() && j < i + 2 && Character.isDigit(text.charAt(j)))
+			j++;
+		return j;
+	}
+
+	/**
+	 * The formatting active at a point in a message.
+	 */
+	private static class State {
+		private boolean bold, italic, underline, reverse, strikethrough,
+				monospace;
+		private String foreground, background;
+
+		private void reset() {
+			bold = italic = underline = reverse = strikethrough = monospace = false;
+			foreground = background = null;
+		}
+
+		private void copy(final State s) {
+			bold = s.bold;
+			italic = s.italic;
+			underline = s.underline;
+			reverse = s.reverse;
+			strikethrough = s.strikethrough;
+			monospace = s.monospace;
+			foreground = s.foreground;
+			background = s.background;
+		}
+
+		private boolean isPlain() {
+			return !bold && !italic && !underline && !reverse && !strikethrough
+					&& !monospace && foreground == null;
+		}
+
+		private void apply(final String text, final int start, final int end) {
+			switch (text.charAt(start)) {
+			case ControlCodeFormatter.UNICODE_BOLD:
+				bold = !bold;
+				break;
+			case ControlCodeFormatter.UNICODE_ITALIC:
+				italic = !italic;
+				break;
+			case ControlCodeFormatter.UNICODE_UNDERLINE:
+				underline = !underline;
+				break;
+			case ControlCodeFormatter.UNICODE_REVERSE:
+				reverse = !reverse;
+				break;
+			case ControlCodeFormatter.UNICODE_STRIKETHROUGH:
+				strikethrough = !strikethrough;
+				break;
+			case ControlCodeFormatter.UNICODE_MONOSPACE:
+				monospace = !monospace;
+				break;
+			case ControlCodeFormatter.UNICODE_RESET:
+				reset();
+				break;
+			case ControlCodeFormatter.UNICODE_COLOUR:
+				if (end == start + 1) {
+					foreground = background = null;
+				} else {
+					final int comma = text.indexOf(',', start);
+					if (comma != -1 && comma < end) {
+						foreground = text.substring(start + 1, comma);
+						background = text.substring(comma + 1, end);
+					} else {
+						foreground = text.substring(start + 1, end);
+					}
+				}
+				break;
+			}
+		}
+
+		private String prefix() {
+			if (isPlain())
+				return "";
+			final StringBuilder builder = new StringBuilder(16);
+			if (foreground != null) {
+				builder.append(ControlCodeFormatter.UNICODE_COLOUR);
+				pad(builder, foreground);
+				if (background != null)
+					pad(builder.append(','), background);
+			}
+			if (bold)
+				builder.append(ControlCodeFormatter.UNICODE_BOLD);
+			if (italic)
+				builder.append(ControlCodeFormatter.UNICODE_ITALIC);
+			if (underline)
+				builder.append(ControlCodeFormatter.UNICODE_UNDERLINE);
+			if (reverse)
+				builder.append(ControlCodeFormatter.UNICODE_REVERSE);
+			if (strikethrough)
+				builder.append(ControlCodeFormatter.UNICODE_STRIKETHROUGH);
+			if (monospace)
+				builder.append(ControlCodeFormatter.UNICODE_MONOSPACE);
+			return builder.toString();
+		}
+
+		private static void pad(final StringBuilder builder, final String n) {
+			if (n.length() == 1)
+				builder.append('0');
+			builder.append(n);
+		}
+	}
+}
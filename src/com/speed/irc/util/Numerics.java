@@ -24,10 +24,16 @@ package com.speed.irc.util;
  * 
  */
 public interface Numerics {
+	String WELCOME = "001";
 	String WHO_RESPONSE = "352";
 	String WHO_END = "315";
+	String NAMES_REPLY = "353";
+	String NAMES_END = "366";
+	String MOTD_END = "376";
+	String NO_MOTD = "422";
 	String SERVER_SUPPORT = "005";
 	String BANNED_FROM_CHANNEL = "474";
 	String NOT_AN_OPERATOR = "482";
 	String CHANNEL_MODES = "324";
+	String HOST_HIDDEN = "396";
 }
@@ -0,0 +1,407 @@
+package com.speed.irc.util;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable hash map which is updated by making a new map that shares all
+ * but the changed path with the old one. It is a hash array mapped trie:
+ * each level consumes five bits of the key's hash, so a lookup or an update
+ * touches at most seven small nodes whatever the size of the map, and an
+ * update copies only those nodes. Keys are compared with
+ * {@link Object#equals(Object)} and must not be <tt>null</tt>.
+ * <p/>
+ * Being immutable, a map can be read by any number of threads without
+ * locking once it has been safely published.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public final class PersistentMap<K, V> implements Iterable<V> {
+	private static final PersistentMap<Object, Object> EMPTY = new PersistentMap<Object, Object>(
+			null, 0);
+
+	private final Node root;
+	private final int size;
+
+	private PersistentMap(final Node root, final int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * Gets the empty map.
+	 * 
+	 * @return the empty map
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentMap<K, V> empty() {
+		return (PersistentMap<K, V>) EMPTY;
+	}
+
+	/**
+	 * Gets the number of entries.
+	 * 
+	 * @return the number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Checks whether the map has no entries.
+	 * 
+	 * @return <tt>true</tt> if the map is empty
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Gets the value of a key.
+	 * 
+	 * @param key
+	 *            the key
+	 * @return the value, or <tt>null</tt> if the key is not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(final Object key) {
+		return root == null ? null : (V) root.find(0, hash(key), key);
+	}
+
+	/**
+	 * Checks whether the map has a key.
+	 * 
+	 * @param key
+	 *            the key
+	 * @return <tt>true</tt> if the key is in the map
+	 */
+	public boolean containsKey(final Object key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Makes a map with a key set to a value.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value, not <tt>null</tt>
+	 * @return the new map, or this map if the key already had that value
+	 */
+	public PersistentMap<K, V> plus(final K key, final V value) {
+		if (value == null)
+			throw new NullPointerException("value");
+		final boolean[] added = new boolean[1];
+		final Node node = (root == null ? BitmapNode.EMPTY : root).assoc(0,
+				hash(key), key, value, added);
+		if (node == root)
+			return this;
+		return new PersistentMap<K, V>(node, added[0] ? size + 1 : size);
+	}
+
+	/**
+	 * Makes a map without a key.
+	 * 
+	 * @param key
+	 *            the key
+	 * @return the new map, or this map if the key was not in it
+	 */
+	public PersistentMap<K, V> minus(final Object key) {
+		if (root == null)
+			return this;
+		final Node node = root.without(0, hash(key), key);
+		if (node == root)
+			return this;
+		return node == null ? PersistentMap.<K, V> empty()
+				: new PersistentMap<K, V>(node, size - 1);
+	}
+
+	/**
+	 * Iterates over the values, in no particular order.
+	 */
+	public Iterator<V> iterator() {
+		return new Values<V>(root, false);
+	}
+
+	/**
+	 * Iterates over the keys, in no particular order.
+	 * 
+	 * @return an iterator over the keys
+	 */
+	public Iterator<K> keyIterator() {
+		return new Values<K>(root, true);
+	}
+
+	/**
+	 * Gets a read-only view of the values.
+	 * 
+	 * @return the values
+	 */
+	public Collection<V> values() {
+		return new AbstractCollection<V>() {
+			public Iterator<V> iterator() {
+				return PersistentMap.this.iterator();
+			}
+
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private static int hash(final Object key) {
+		final int h = key.hashCode();
+		return h ^ h >>> 16;
+	}
+
+	private static int bit(final int hash, final int shift) {
+		return 1 << (hash >>> shift & 31);
+	}
+
+	private static Object[] copyWith(final Object[] array, final int index,
+			final Object value) {
+		final Object[] copy = array.clone();
+		copy[index] = value;
+		return copy;
+	}
+
+	/**
+	 * A node of the trie. Nodes hold keys and values in pairs in one array,
+	 * the key of a pair which refers to a child node being <tt>null</tt>.
+	 */
+	private static abstract class Node {
+		final Object[] array;
+
+		Node(final Object[] array) {
+			this.array = array;
+		}
+
+		abstract Object find(int shift, int hash, Object key);
+
+		abstract Node assoc(int shift, int hash, Object key, Object value,
+				boolean[] added);
+
+		abstract Node without(int shift, int hash, Object key);
+	}
+
+	private static final class BitmapNode extends Node {
+		static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+		final int bitmap;
+
+		BitmapNode(final int bitmap, final Object[] array) {
+			super(array);
+			this.bitmap = bitmap;
+		}
+
+		private int index(final int bit) {
+			return Integer.bitCount(bitmap & bit - 1) * 2;
+		}
+
+		Object find(final int shift, final int hash, final Object key) {
+			final int bit = bit(hash, shift);
+			if ((bitmap & bit) == 0)
+				return null;
+			final int i = index(bit);
+			final Object k = array[i];
+			if (k == null)
+				return ((Node) array[i + 1]).find(shift + 5, hash, key);
+			return key.equals(k) ? array[i + 1] : null;
+		}
+
+		Node assoc(final int shift, final int hash, final Object key,
+				final Object value, final boolean[] added) {
+			final int bit = bit(hash, shift);
+			final int i = index(bit);
+			if ((bitmap & bit) == 0) {
+				final Object[] grown = new Object[array.length + 2];
+				System.arraycopy(array, 0, grown, 0, i);
+				grown[i] = key;
+				grown[i + 1] = value;
+				System.arraycopy(array, i, grown, i + 2, array.length - i);
+				added[0] = true;
+				return new BitmapNode(bitmap | bit, grown);
+			}
+			final Object k = array[i];
+			final Object v = array[i + 1];
+			if (k == null) {
+				final Node child = ((Node) v).assoc(shift + 5, hash, key,
+						value, added);
+				return child == v ? this : new BitmapNode(bitmap, copyWith(
+						array, i + 1, child));
+			}
+			if (key.equals(k)) {
+				return v == value ? this : new BitmapNode(bitmap, copyWith(
+						array, i + 1, value));
+			}
+			added[0] = true;
+			final Object[] copy = copyWith(array, i, null);
+			copy[i + 1] = pair(shift + 5, k, v, hash, key, value);
+			return new BitmapNode(bitmap, copy);
+		}
+
+		private static Node pair(final int shift, final Object k1,
+				final Object v1, final int h2, final Object k2, final Object v2) {
+			final int h1 = hash(k1);
+			if (h1 == h2)
+				return new CollisionNode(h1, new Object[] { k1, v1, k2, v2 });
+			final boolean[] ignored = new boolean[1];
+			return EMPTY.assoc(shift, h1, k1, v1, ignored).assoc(shift, h2,
+					k2, v2, ignored);
+		}
+
+		Node without(final int shift, final int hash, final Object key) {
+			final int bit = bit(hash, shift);
+			if ((bitmap & bit) == 0)
+				return this;
+			final int i = index(bit);
+			final Object k = array[i];
+			if (k == null) {
+				final Node child = ((Node) array[i + 1]).without(shift + 5,
+						hash, key);
+				if (child == array[i + 1])
+					return this;
+				if (child != null)
+					return new BitmapNode(bitmap, copyWith(array, i + 1, child));
+			} else if (!key.equals(k)) {
+				return this;
+			}
+			if (bitmap == bit)
+				return null;
+			final Object[] shrunk = new Object[array.length - 2];
+			System.arraycopy(array, 0, shrunk, 0, i);
+			System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+			return new BitmapNode(bitmap & ~bit, shrunk);
+		}
+	}
+
+	/**
+	 * The keys whose hashes are all equal.
+	 */
+	private static final class CollisionNode extends Node {
+		final int hash;
+
+		CollisionNode(final int hash, final Object[] array) {
+			super(array);
+			this.hash = hash;
+		}
+
+		private int indexOf(final Object key) {
+			for (int i = 0; i < array.length; i += 2) {
+				if (key.equals(array[i]))
+					return i;
+			}
+			return -1;
+		}
+
+		Object find(final int shift, final int hash, final Object key) {
+			final int i = indexOf(key);
+			return i == -1 ? null : array[i + 1];
+		}
+
+		Node assoc(final int shift, final int hash, final Object key,
+				final Object value, final boolean[] added) {
+			if (hash != this.hash) {
+				return new BitmapNode(bit(this.hash, shift), new Object[] {
+						null, this }).assoc(shift, hash, key, value, added);
+			}
+			final int i = indexOf(key);
+			if (i != -1) {
+				return array[i + 1] == value ? this : new CollisionNode(hash,
+						copyWith(array, i + 1, value));
+			}
+			final Object[] grown = new Object[array.length + 2];
+			System.arraycopy(array, 0, grown, 0, array.length);
+			grown[array.length] = key;
+			grown[array.length + 1] = value;
+			added[0] = true;
+			return new CollisionNode(hash, grown);
+		}
+
+		Node without(final int shift, final int hash, final Object key) {
+			final int i = indexOf(key);
+			if (i == -1)
+				return this;
+			if (array.length == 2)
+				return null;
+			final Object[] shrunk = new Object[array.length - 2];
+			System.arraycopy(array, 0, shrunk, 0, i);
+			System.arraycopy(array, i + 2, shrunk, i, array.length - i - 2);
+			return new CollisionNode(hash, shrunk);
+		}
+	}
+
+	/**
+	 * Walks the trie depth first, returning the keys or the values.
+	 */
+	private static final class Values<T> implements Iterator<T> {
+		private final Node[] nodes = new Node[8];
+		private final int[] positions = new int[8];
+		private final boolean keys;
+		private int depth = -1;
+		private Object next;
+
+		private Values(final Node root, final boolean keys) {
+			this.keys = keys;
+			if (root != null) {
+				nodes[0] = root;
+				depth = 0;
+			}
+			advance();
+		}
+
+		private void advance() {
+			next = null;
+			while (depth >= 0) {
+				final Node node = nodes[depth];
+				final int i = positions[depth];
+				if (i >= node.array.length) {
+					positions[depth--] = 0;
+					continue;
+				}
+				positions[depth] = i + 2;
+				final Object k = node.array[i];
+				if (k == null) {
+					nodes[++depth] = (Node) node.array[i + 1];
+					positions[depth] = 0;
+				} else {
+					next = keys ? k : node.array[i + 1];
+					return;
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@SuppressWarnings("unchecked")
+		public T next() {
+			if (next == null)
+				throw new NoSuchElementException();
+			final T value = (T) next;
+			advance();
+			return value;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
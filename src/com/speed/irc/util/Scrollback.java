@@ -0,0 +1,400 @@
+package com.speed.irc.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The recent messages of a channel, kept as a ring in the pages of a
+ * {@link ScrollbackArena}. Once the scrollback has used its budget, or the
+ * arena its own, the oldest messages are dropped a page at a time.
+ * <p/>
+ * Messages are stored with their formatting codes, and read back through a
+ * {@link Visitor}, newest first, with one {@link Entry} which is reused for
+ * every message; the sender and text are only decoded if they are asked for,
+ * and messages can be matched by sender without decoding them at all, so
+ * searching the history allocates next to nothing. Visitors are called with
+ * the arena locked and should not block.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public final class Scrollback {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	/**
+	 * A message's timestamp, sender length and text length, before the
+	 * sender and text, and its total length after them.
+	 */
+	private static final int HEADER = 8 + 1 + 2, TRAILER = 2;
+	private static final int MAX_SENDER = 255;
+	private static final int MAX_TEXT = ScrollbackArena.PAGE_SIZE - HEADER
+			- TRAILER - MAX_SENDER;
+
+	private final ScrollbackArena arena;
+	private int[] pages;
+	private int head, count, messages;
+
+	Scrollback(final ScrollbackArena arena, final int budget) {
+		this.arena = arena;
+		this.pages = new int[budget / ScrollbackArena.PAGE_SIZE];
+	}
+
+	/**
+	 * Something which is shown the messages of a scrollback one at a time.
+	 */
+	public interface Visitor {
+		/**
+		 * Visits a message. The entry is reused for the next message, so it
+		 * must not be kept.
+		 * 
+		 * @param entry
+		 *            the message
+		 * @return <tt>true</tt> to go on to the next message, <tt>false</tt>
+		 *         to stop
+		 */
+		boolean visit(Entry entry);
+	}
+
+	/**
+	 * A message being visited, read from the arena when asked for.
+	 */
+	public static final class Entry {
+		private byte[] scratch;
+		private ByteBuffer buffer;
+		private int sender, senderLength, text, textLength;
+		private long time;
+
+		/**
+		 * Gets the time the message was received or sent.
+		 * 
+		 * @return the time, in milliseconds since the epoch
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Gets the nick of the user who sent the message.
+		 * 
+		 * @return the nick
+		 */
+		public String getSender() {
+			return decode(sender, senderLength);
+		}
+
+		/**
+		 * Gets the message with its formatting codes.
+		 * 
+		 * @return the message as it was received
+		 */
+		public String getRaw() {
+			return decode(text, textLength);
+		}
+
+		/**
+		 * Gets the message without its formatting codes.
+		 * 
+		 * @return the plain text
+		 */
+		public String getText() {
+			return StyledText.strip(getRaw());
+		}
+
+		/**
+		 * Gets the message with its formatting separated from the text.
+		 * 
+		 * @return the styled text
+		 */
+		public StyledText getStyledText() {
+			return StyledText.parse(getRaw());
+		}
+
+		/**
+		 * Checks who sent the message without decoding it.
+		 * 
+		 * @param nick
+		 *            the nick, folded and encoded by
+		 *            {@link Scrollback#encodeNick(String, CaseMapping)}
+		 * @param mapping
+		 *            the case mapping the nick was folded with
+		 * @return <tt>true</tt> if the nick sent the message
+		 */
+		public boolean isFrom(final byte[] nick, final CaseMapping mapping) {
+			if (nick.length != senderLength)
+				return false;
+			for (int i = 0; i < senderLength; i++) {
+				final byte b = buffer.get(sender + i);
+				if (b != nick[i]
+						&& (b < 0 || (byte) mapping.fold((char) b) != nick[i]))
+					return false;
+			}
+			return true;
+		}
+
+		private String decode(final int offset, final int length) {
+			if (scratch == null || scratch.length < length)
+				scratch = new byte[Math.max(length, 64)];
+			for (int i = 0; i < length; i++) {
+				scratch[i] = buffer.get(offset + i);
+			}
+			return new String(scratch, 0, length, UTF_8);
+		}
+	}
+
+	/**
+	 * Folds and encodes a nick once so that it can be matched against many
+	 * messages.
+	 * 
+	 * @param nick
+	 *            the nick
+	 * @param mapping
+	 *            the server's case mapping
+	 * @return the encoded nick
+	 */
+	public static byte[] encodeNick(final String nick,
+			final CaseMapping mapping) {
+		return mapping.fold(nick).getBytes(UTF_8);
+	}
+
+	/**
+	 * Adds a message. Messages longer than a page, which the server would
+	 * not send, are cut short.
+	 * 
+	 * @param time
+	 *            the time the message was received or sent
+	 * @param sender
+	 *            the nick of the sender
+	 * @param message
+	 *            the message with its formatting codes
+	 */
+	public void add(final long time, final String sender, final String message) {
+		final byte[] nick = truncate(sender.getBytes(UTF_8), MAX_SENDER);
+		final byte[] text = truncate(message.getBytes(UTF_8), MAX_TEXT);
+		final int length = HEADER + nick.length + text.length + TRAILER;
+		synchronized (arena) {
+			int page = count == 0 ? -1 : pages[(head + count - 1)
+					% pages.length];
+			if (page == -1
+					|| arena.getFill(page) + length > ScrollbackArena.PAGE_SIZE) {
+				if (count == pages.length) {
+					page = pages[head];
+					messages -= arena.getRecords(page);
+					head = (head + 1) % pages.length;
+					count--;
+					arena.reuse(page);
+				} else {
+					page = arena.allocate(this);
+				}
+				pages[(head + count) % pages.length] = page;
+				count++;
+			}
+			final ByteBuffer buffer = arena.buffer(page);
+			final int offset = ScrollbackArena.offset(page)
+					+ arena.getFill(page);
+			buffer.putLong(offset, time);
+			buffer.put(offset + 8, (byte) nick.length);
+			buffer.putShort(offset + 9, (short) text.length);
+			buffer.position(offset + HEADER);
+			buffer.put(nick);
+			buffer.put(text);
+			buffer.putShort(offset + length - TRAILER, (short) length);
+			arena.appended(page, length);
+			messages++;
+		}
+	}
+
+	/**
+	 * Cuts encoded text short, without splitting a character.
+	 */
+	private static byte[] truncate(final byte[] bytes, final int max) {
+		if (bytes.length <= max)
+			return bytes;
+		int length = max;
+		while (length > 0 && (bytes[length] & 0xC0) == 0x80) {
+			length--;
+		}
+		final byte[] cut = new byte[length];
+		System.arraycopy(bytes, 0, cut, 0, length);
+		return cut;
+	}
+
+	/**
+	 * Visits the most recent messages, newest first.
+	 * 
+	 * @param n
+	 *            the most messages to visit
+	 * @param visitor
+	 *            the visitor
+	 * @return the number of messages visited
+	 */
+	public int last(final int n, final Visitor visitor) {
+		return visit(n, null, null, Long.MIN_VALUE, visitor);
+	}
+
+	/**
+	 * Visits the most recent messages sent by a user, newest first.
+	 * 
+	 * @param nick
+	 *            the nick of the user
+	 * @param mapping
+	 *            the server's case mapping
+	 * @param n
+	 *            the most messages to visit
+	 * @param visitor
+	 *            the visitor
+	 * @return the number of messages visited
+	 */
+	public int from(final String nick, final CaseMapping mapping, final int n,
+			final Visitor visitor) {
+		return visit(n, encodeNick(nick, mapping), mapping, Long.MIN_VALUE,
+				visitor);
+	}
+
+	/**
+	 * Visits the messages received or sent since a time, newest first.
+	 * 
+	 * @param time
+	 *            the time, in milliseconds since the epoch
+	 * @param visitor
+	 *            the visitor
+	 * @return the number of messages visited
+	 */
+	public int since(final long time, final Visitor visitor) {
+		return visit(Integer.MAX_VALUE, null, null, time, visitor);
+	}
+
+	/**
+	 * Visits messages newest first, with any of the filters.
+	 * 
+	 * @param n
+	 *            the most messages to visit
+	 * @param nick
+	 *            the encoded nick of the sender, or <tt>null</tt> for any
+	 * @param mapping
+	 *            the case mapping the nick was folded with
+	 * @param since
+	 *            the time of the oldest message to visit
+	 * @param visitor
+	 *            the visitor
+	 * @return the number of messages visited
+	 */
+	public int visit(final int n, final byte[] nick,
+			final CaseMapping mapping, final long since, final Visitor visitor) {
+		final Entry entry = new Entry();
+		int visited = 0;
+		synchronized (arena) {
+			for (int p = count - 1; p >= 0 && visited < n; p--) {
+				final int page = pages[(head + p) % pages.length];
+				final ByteBuffer buffer = arena.buffer(page);
+				final int start = ScrollbackArena.offset(page);
+				int end = start + arena.getFill(page);
+				while (end > start && visited < n) {
+					final int offset = end
+							- (buffer.getShort(end - TRAILER) & 0xFFFF);
+					end = offset;
+					entry.time = buffer.getLong(offset);
+					if (entry.time < since)
+						return visited;
+					entry.buffer = buffer;
+					entry.senderLength = buffer.get(offset + 8) & 0xFF;
+					entry.textLength = buffer.getShort(offset + 9) & 0xFFFF;
+					entry.sender = offset + HEADER;
+					entry.text = entry.sender + entry.senderLength;
+					if (nick != null && !entry.isFrom(nick, mapping))
+						continue;
+					visited++;
+					if (!visitor.visit(entry))
+						return visited;
+				}
+			}
+		}
+		return visited;
+	}
+
+	/**
+	 * Gets the number of messages held.
+	 * 
+	 * @return the number of messages
+	 */
+	public int size() {
+		synchronized (arena) {
+			return messages;
+		}
+	}
+
+	/**
+	 * Gets the most bytes the scrollback may use.
+	 * 
+	 * @return the budget
+	 */
+	public int getBudget() {
+		synchronized (arena) {
+			return pages.length * ScrollbackArena.PAGE_SIZE;
+		}
+	}
+
+	/**
+	 * Changes the most bytes the scrollback may use, dropping the oldest
+	 * messages if it now uses too much.
+	 * 
+	 * @param bytes
+	 *            the budget, at least two pages
+	 */
+	public void setBudget(final int bytes) {
+		final int length = ScrollbackArena.checkBudget(bytes)
+				/ ScrollbackArena.PAGE_SIZE;
+		synchronized (arena) {
+			while (count > length) {
+				dropOldest(true);
+			}
+			final int[] resized = new int[length];
+			for (int i = 0; i < count; i++) {
+				resized[i] = pages[(head + i) % pages.length];
+			}
+			pages = resized;
+			head = 0;
+		}
+	}
+
+	/**
+	 * Drops every message and gives the memory back to the arena.
+	 */
+	public void clear() {
+		synchronized (arena) {
+			while (count > 0) {
+				dropOldest(true);
+			}
+		}
+	}
+
+	/**
+	 * Called by the arena when it takes this scrollback's oldest page for
+	 * another.
+	 */
+	void evicted(final int page) {
+		if (count > 0 && pages[head] == page)
+			dropOldest(false);
+	}
+
+	private void dropOldest(final boolean release) {
+		final int page = pages[head];
+		messages -= arena.getRecords(page);
+		head = (head + 1) % pages.length;
+		count--;
+		if (release)
+			arena.release(page);
+	}
+}
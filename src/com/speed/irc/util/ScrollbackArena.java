@@ -0,0 +1,237 @@
+package com.speed.irc.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The memory the {@link Scrollback}s of a server share. Messages are stored
+ * outside the Java heap, in direct buffers split into pages of
+ * {@link #PAGE_SIZE} bytes, so the garbage collector does not have to trace
+ * thousands of channels of history; a scrollback owns a few pages and writes
+ * its messages into them as a ring.
+ * <p/>
+ * Memory is bounded twice: each scrollback holds at most its own budget,
+ * after which it reuses its oldest page, and all of them together hold at
+ * most the arena's budget, after which the page written least recently,
+ * whichever channel owns it, is taken. Buffers are allocated a chunk at a
+ * time as pages are first needed, so a large budget costs nothing until it
+ * is used.
+ * <p/>
+ * The arena and its scrollbacks are guarded by the arena's lock, so they can
+ * be read from any thread.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * @author Shivam Mistry
+ */
+public final class ScrollbackArena {
+	public static final int PAGE_SIZE = 4096;
+	public static final long DEFAULT_BUDGET = 32L << 20;
+	public static final int DEFAULT_CHANNEL_BUDGET = 128 << 10;
+	private static final int PAGES_PER_CHUNK = 256;
+	private static final int NONE = -1;
+
+	private final int maxPages;
+	private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	private final int[] fill, records, older, newer;
+	private final Scrollback[] owners;
+	private final int[] free;
+	private int freeCount, created, oldest = NONE, newest = NONE;
+	private volatile int channelBudget;
+
+	/**
+	 * Creates an arena with the default budgets.
+	 */
+	public ScrollbackArena() {
+		this(DEFAULT_BUDGET, DEFAULT_CHANNEL_BUDGET);
+	}
+
+	/**
+	 * Creates an arena.
+	 * 
+	 * @param budget
+	 *            the most bytes all scrollbacks may use together
+	 * @param channelBudget
+	 *            the most bytes a single scrollback may use, by default
+	 */
+	public ScrollbackArena(final long budget, final int channelBudget) {
+		final long pages = budget / PAGE_SIZE;
+		if (pages < 2 || pages > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Bad budget: " + budget);
+		maxPages = (int) pages;
+		fill = new int[maxPages];
+		records = new int[maxPages];
+		older = new int[maxPages];
+		newer = new int[maxPages];
+		owners = new Scrollback[maxPages];
+		free = new int[maxPages];
+		setChannelBudget(channelBudget);
+	}
+
+	/**
+	 * Creates an empty scrollback using this arena's memory.
+	 * 
+	 * @return the scrollback
+	 */
+	public Scrollback open() {
+		return new Scrollback(this, channelBudget);
+	}
+
+	/**
+	 * Sets the budget of scrollbacks opened from now on. Existing scrollbacks
+	 * keep theirs, see {@link Scrollback#setBudget(int)}.
+	 * 
+	 * @param bytes
+	 *            the most bytes a scrollback may use, at least two pages
+	 */
+	public void setChannelBudget(final int bytes) {
+		this.channelBudget = checkBudget(bytes);
+	}
+
+	/**
+	 * Gets the budget of newly opened scrollbacks.
+	 * 
+	 * @return the most bytes a new scrollback may use
+	 */
+	public int getChannelBudget() {
+		return channelBudget;
+	}
+
+	/**
+	 * Gets the most bytes all scrollbacks may use together.
+	 * 
+	 * @return the budget
+	 */
+	public long getBudget() {
+		return (long) maxPages * PAGE_SIZE;
+	}
+
+	/**
+	 * Gets the number of bytes held by scrollbacks, in whole pages.
+	 * 
+	 * @return the bytes in use
+	 */
+	public synchronized long getUsed() {
+		return (long) (created - freeCount) * PAGE_SIZE;
+	}
+
+	/**
+	 * Gets the number of bytes allocated outside the heap so far.
+	 * 
+	 * @return the bytes allocated
+	 */
+	public synchronized long getAllocated() {
+		long bytes = 0;
+		for (ByteBuffer chunk : chunks) {
+			bytes += chunk.capacity();
+		}
+		return bytes;
+	}
+
+	static int checkBudget(final int bytes) {
+		if (bytes < 2 * PAGE_SIZE)
+			throw new IllegalArgumentException("Budget must be at least "
+					+ 2 * PAGE_SIZE + " bytes: " + bytes);
+		return bytes;
+	}
+
+	/**
+	 * Takes a page for a scrollback: a free one, a new one, or the page
+	 * written least recently.
+	 */
+	int allocate(final Scrollback owner) {
+		int page;
+		if (freeCount > 0) {
+			page = free[--freeCount];
+		} else if (created < maxPages) {
+			page = created++;
+			if (page / PAGES_PER_CHUNK == chunks.size()) {
+				final int size = Math.min(PAGES_PER_CHUNK, maxPages - page);
+				chunks.add(ByteBuffer.allocateDirect(size * PAGE_SIZE));
+			}
+		} else {
+			page = oldest;
+			owners[page].evicted(page);
+			unlink(page);
+		}
+		owners[page] = owner;
+		fill[page] = 0;
+		records[page] = 0;
+		link(page);
+		return page;
+	}
+
+	/**
+	 * Reuses a page a scrollback already owns, which becomes the page written
+	 * most recently.
+	 */
+	void reuse(final int page) {
+		unlink(page);
+		fill[page] = 0;
+		records[page] = 0;
+		link(page);
+	}
+
+	void release(final int page) {
+		unlink(page);
+		owners[page] = null;
+		free[freeCount++] = page;
+	}
+
+	private void link(final int page) {
+		older[page] = newest;
+		newer[page] = NONE;
+		if (newest != NONE)
+			newer[newest] = page;
+		else
+			oldest = page;
+		newest = page;
+	}
+
+	private void unlink(final int page) {
+		final int o = older[page], n = newer[page];
+		if (o != NONE)
+			newer[o] = n;
+		else
+			oldest = n;
+		if (n != NONE)
+			older[n] = o;
+		else
+			newest = o;
+	}
+
+	ByteBuffer buffer(final int page) {
+		return chunks.get(page / PAGES_PER_CHUNK);
+	}
+
+	static int offset(final int page) {
+		return (page % PAGES_PER_CHUNK) * PAGE_SIZE;
+	}
+
+	int getFill(final int page) {
+		return fill[page];
+	}
+
+	int getRecords(final int page) {
+		return records[page];
+	}
+
+	void appended(final int page, final int length) {
+		fill[page] += length;
+		records[page]++;
+	}
+}
@@ -0,0 +1,319 @@
+package com.speed.irc.util;
+
+/**
+ * Text received from the server with its formatting codes separated out: the
+ * plain text, and the runs of it which were coloured or styled. This is the
+ * inverse of {@link ControlCodeFormatter}; a message is scanned once, from
+ * start to end, when it is parsed.
+ * <p/>
+ * Runs are stored compactly as offsets into the plain text and a packed style
+ * word, and only runs which have some formatting are kept.
+ * <p/>
+ * This file is part of Speed's IRC API.
+ * <p/>
+ * Speed's IRC API is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * <p/>
+ * Speed's IRC API is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License
+ * for more details.
+ * <p/>
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Speed's IRC API. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * @author Shivam Mistry
+ */
+public final class StyledText {
+	public static final int BOLD = 0x1, ITALIC = 0x2, UNDERLINE = 0x4,
+			REVERSE = 0x8, STRIKETHROUGH = 0x10, MONOSPACE = 0x20;
+	private static final int FLAGS = 0xff, NO_COLOUR = -1;
+	private static final int[] EMPTY = new int[0];
+	private static final char HEX_COLOUR = '\u0004';
+
+	private final String text;
+	private final int[] starts, ends, styles;
+	private final int count;
+
+	private StyledText(final String text, final int[] starts,
+			final int[] ends, final int[] styles, final int count) {
+		this.text = text;
+		this.starts = starts;
+		this.ends = ends;
+		this.styles = styles;
+		this.count = count;
+	}
+
+	/**
+	 * Separates the formatting codes from a message.
+	 *
+	 * @param raw
+	 *            the message as received from the server
+	 * @return the styled text
+	 */
+	public static StyledText parse(final String raw) {
+		final int length = raw.length();
+		int i = 0;
+		while (i < length && !isCode(raw.charAt(i))) {
+			i++;
+		}
+		if (i == length)
+			return new StyledText(raw, EMPTY, EMPTY, EMPTY, 0);
+		final StringBuilder plain = new StringBuilder(length);
+		plain.append(raw, 0, i);
+		final Runs runs = new Runs();
+		int style = 0, runStart = i;
+		while (i < length) {
+			final char c = raw.charAt(i);
+			if (!isCode(c)) {
+				plain.append(c);
+				i++;
+				continue;
+			}
+			int next = style;
+			i++;
+			switch (c) {
+			case ControlCodeFormatter.UNICODE_BOLD:
+				next ^= BOLD;
+				break;
+			case ControlCodeFormatter.UNICODE_ITALIC:
+				next ^= ITALIC;
+				break;
+			case ControlCodeFormatter.UNICODE_UNDERLINE:
+				next ^= UNDERLINE;
+				break;
+			case ControlCodeFormatter.UNICODE_REVERSE:
+				next ^= REVERSE;
+				break;
+			case ControlCodeFormatter.UNICODE_STRIKETHROUGH:
+				next ^= STRIKETHROUGH;
+				break;
+			case ControlCodeFormatter.UNICODE_MONOSPACE:
+				next ^= MONOSPACE;
+				break;
+			case ControlCodeFormatter.UNICODE_RESET:
+				next = 0;
+				break;
+			case ControlCodeFormatter.UNICODE_COLOUR: {
+				int j = digits(raw, i, 2, false);
+				if (j == i) {
+					next &= FLAGS;
+					break;
+				}
+				int foreground = number(raw, i, j);
+				int background = (style >>> 16) & 0xff;
+				if (j + 1 < length && raw.charAt(j) == ','
+						&& digits(raw, j + 1, 1, false) > j + 1) {
+					final int k = digits(raw, j + 1, 2, false);
+					background = number(raw, j + 1, k) + 1;
+					j = k;
+				}
+				next = (next & FLAGS) | ((foreground + 1) << 8)
+						| (background << 16);
+				i = j;
+				break;
+			}
+			case HEX_COLOUR: {
+				// hex colours are stripped but not modelled
+				int j = digits(raw, i, 6, true);
+				if (j == i + 6 && j + 1 < length && raw.charAt(j) == ',')
+					j = digits(raw, j + 1, 6, true);
+				i = j;
+				break;
+			}
+			}
+			if (next != style) {
+				final int position = plain.length();
+				if (style != 0 && position > runStart)
+					runs.add(runStart, position, style);
+				runStart = position;
+				style = next;
+			}
+		}
+		final int position = plain.length();
+		if (style != 0 && position > runStart)
+			runs.add(runStart, position, style);
+		return new StyledText(plain.toString(), runs.starts, runs.ends,
+				runs.styles, runs.count);
+	}
+
+	/**
+	 * Removes all formatting codes from a message.
+	 *
+	 * @param raw
+	 *            the message as received from the server
+	 * @return the message without formatting codes
+	 */
+	public static String strip(final String raw) {
+		return parse(raw).getText();
+	}
+
+	private static boolean isCode(final char c) {
+		switch (c) {
+		case ControlCodeFormatter.UNICODE_BOLD:
+		case ControlCodeFormatter.UNICODE_ITALIC:
+		case ControlCodeFormatter.UNICODE_UNDERLINE:
+		case ControlCodeFormatter.UNICODE_REVERSE:
+		case ControlCodeFormatter.UNICODE_STRIKETHROUGH:
+		case ControlCodeFormatter.UNICODE_MONOSPACE:
+		case ControlCodeFormatter.UNICODE_RESET:
+		case ControlCodeFormatter.UNICODE_COLOUR:
+		case HEX_COLOUR:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static int digits(final String s, final int start, final int max,
+			final boolean hex) {
+		int j = start;
+		while (j < s.length() && j < start + max) {
+			final char c = s.charAt(j);
+			if (!(c >= '0' && c <= '9')
+					&& !(hex && (c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F')))
+				break;
+			j++;
+		}
+		return j;
+	}
+
+	private static int number(final String s, final int start, final int end) {
+		int n = 0;
+		for (int i = start; i < end; i++) {
+			n = n * 10 + (s.charAt(i) - '0');
+		}
+		return n;
+	}
+
+	/**
+	 * Collects styled runs while a message is parsed, merging adjacent runs
+	 * with the same style.
+	 */
+	private static class Runs {
+		private int[] starts = new int[4], ends = new int[4],
+				styles = new int[4];
+		private int count;
+
+		private void add(final int start, final int end, final int style) {
+			if (count > 0 && ends[count - 1] == start
+					&& styles[count - 1] == style) {
+				ends[count - 1] = end;
+				return;
+			}
+			if (count == starts.length) {
+				starts = grow(starts);
+				ends = grow(ends);
+				styles = grow(styles);
+			}
+			starts[count] = start;
+			ends[count] = end;
+			styles[count++] = style;
+		}
+
+		private static int[] grow(final int[] array) {
+			final int[] grown = new int[array.length * 2];
+			System.arraycopy(array, 0, grown, 0, array.length);
+			return grown;
+		}
+	}
+
+	/**
+	 * Gets the text with all formatting codes removed.
+	 *
+	 * @return the plain text
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * Checks whether the text had any formatting.
+	 *
+	 * @return <tt>true</tt> if at least one run of the text is styled
+	 */
+	public boolean isStyled() {
+		return count > 0;
+	}
+
+	/**
+	 * Gets the number of styled runs.
+	 *
+	 * @return the number of styled runs
+	 */
+	public int getRunCount() {
+		return count;
+	}
+
+	/**
+	 * Gets the offset in the plain text at which a styled run starts.
+	 *
+	 * @param run
+	 *            the index of the run
+	 * @return the start offset, inclusive
+	 */
+	public int getRunStart(final int run) {
+		return starts[check(run)];
+	}
+
+	/**
+	 * Gets the offset in the plain text at which a styled run ends.
+	 *
+	 * @param run
+	 *            the index of the run
+	 * @return the end offset, exclusive
+	 */
+	public int getRunEnd(final int run) {
+		return ends[check(run)];
+	}
+
+	/**
+	 * Gets the style flags of a run, a combination of {@link #BOLD},
+	 * {@link #ITALIC}, {@link #UNDERLINE}, {@link #REVERSE},
+	 * {@link #STRIKETHROUGH} and {@link #MONOSPACE}.
+	 *
+	 * @param run
+	 *            the index of the run
+	 * @return the style flags
+	 */
+	public int getRunFlags(final int run) {
+		return styles[check(run)] & FLAGS;
+	}
+
+	/**
+	 * Gets the foreground colour code of a run.
+	 *
+	 * @param run
+	 *            the index of the run
+	 * @return the colour code, or -1 if the run has no foreground colour
+	 */
+	public int getRunForeground(final int run) {
+		final int colour = (styles[check(run)] >>> 8) & 0xff;
+		return colour == 0 ? NO_COLOUR : colour - 1;
+	}
+
+	/**
+	 * Gets the background colour code of a run.
+	 *
+	 * @param run
+	 *            the index of the run
+	 * @return the colour code, or -1 if the run has no background colour
+	 */
+	public int getRunBackground(final int run) {
+		final int colour = (styles[check(run)] >>> 16) & 0xff;
+		return colour == 0 ? NO_COLOUR : colour - 1;
+	}
+
+	private int check(final int run) {
+		if (run < 0 || run >= count)
+			throw new IndexOutOfBoundsException("run " + run);
+		return run;
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+}